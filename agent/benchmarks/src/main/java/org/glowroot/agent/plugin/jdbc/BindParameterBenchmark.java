@@ -0,0 +1,97 @@
+/*
+ * Copyright 2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.plugin.jdbc;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import org.glowroot.agent.plugin.jdbc.support.MockConnection;
+import org.glowroot.microbenchmarks.support.TransactionWorthy;
+
+// run with -prof gc to see the allocation rate of bind parameter capture
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class BindParameterBenchmark extends TransactionWorthy {
+
+    @Param
+    private Execution execution;
+
+    private Connection connection;
+    private PreparedStatement preparedStatement;
+
+    @Setup
+    public void setup() throws SQLException {
+        connection = new MockConnection();
+        preparedStatement = connection
+                .prepareStatement("insert into mock (id, count, amount, name) values (?, ?, ?, ?)");
+    }
+
+    @TearDown
+    public void tearDown() throws SQLException {
+        preparedStatement.close();
+        connection.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(10000)
+    public void bind() throws Exception {
+        doSomethingTransactionWorthy();
+    }
+
+    @Override
+    public void doSomethingTransactionWorthy() throws SQLException {
+        switch (execution) {
+            case SINGLE:
+                for (int i = 0; i < 10000; i++) {
+                    bindParameters(i);
+                    preparedStatement.executeUpdate();
+                }
+                break;
+            case BATCH:
+                for (int i = 0; i < 10000; i++) {
+                    bindParameters(i);
+                    preparedStatement.addBatch();
+                }
+                preparedStatement.executeBatch();
+                break;
+        }
+    }
+
+    private void bindParameters(int i) throws SQLException {
+        preparedStatement.setLong(1, i);
+        preparedStatement.setInt(2, i);
+        preparedStatement.setDouble(3, i);
+        preparedStatement.setString(4, "mock");
+    }
+
+    public enum Execution {
+        SINGLE, BATCH
+    }
+}
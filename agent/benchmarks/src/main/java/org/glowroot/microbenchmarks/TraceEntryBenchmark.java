@@ -1,5 +1,5 @@
 /*
- * Copyright 2014-2016 the original author or authors.
+ * Copyright 2014-2020 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -19,6 +19,7 @@ import java.util.concurrent.TimeUnit;
 
 import org.openjdk.jmh.annotations.Benchmark;
 import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
 import org.openjdk.jmh.annotations.Mode;
 import org.openjdk.jmh.annotations.OperationsPerInvocation;
 import org.openjdk.jmh.annotations.OutputTimeUnit;
@@ -51,6 +52,14 @@ public class TraceEntryBenchmark extends TransactionWorthy {
         doSomethingTransactionWorthy();
     }
 
+    // run with -prof gc to compare the allocation rate with execute()
+    @Benchmark
+    @OperationsPerInvocation(2000)
+    @Fork(jvmArgsAppend = "-Dglowroot.internal.recycleTraceEntries=true")
+    public void executeWithRecycledTraceEntries() throws Exception {
+        doSomethingTransactionWorthy();
+    }
+
     @Override
     public void doSomethingTransactionWorthy() throws Exception {
         switch (pointcutType) {
@@ -1,5 +1,5 @@
 /*
- * Copyright 2014-2016 the original author or authors.
+ * Copyright 2014-2020 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,17 +15,23 @@
  */
 package org.glowroot.microbenchmarks;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 import org.openjdk.jmh.annotations.Benchmark;
 import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
 import org.openjdk.jmh.annotations.Mode;
 import org.openjdk.jmh.annotations.OutputTimeUnit;
 import org.openjdk.jmh.annotations.Param;
 import org.openjdk.jmh.annotations.Scope;
 import org.openjdk.jmh.annotations.Setup;
 import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
 
+import org.glowroot.microbenchmarks.support.FanOutTransactionWorthy;
+import org.glowroot.microbenchmarks.support.NestedTimersTransactionWorthy;
 import org.glowroot.microbenchmarks.support.TransactionWorthy;
 
 @BenchmarkMode(Mode.AverageTime)
@@ -37,14 +43,47 @@ public class TransactionBenchmark {
     private PointcutType pointcutType;
 
     private TransactionWorthy transactionWorthy;
+    private TransactionWorthy nestedTimersTransactionWorthy;
+
+    private ExecutorService executor;
+    private TransactionWorthy fanOutTransactionWorthy;
 
     @Setup
     public void setup() {
         transactionWorthy = new TransactionWorthy();
+        nestedTimersTransactionWorthy = new NestedTimersTransactionWorthy(100);
+        executor = Executors.newFixedThreadPool(4);
+        fanOutTransactionWorthy = new FanOutTransactionWorthy(executor, 1000);
+    }
+
+    @TearDown
+    public void tearDown() {
+        executor.shutdown();
     }
 
     @Benchmark
     public void execute() throws Exception {
+        execute(transactionWorthy, pointcutType);
+    }
+
+    @Benchmark
+    public void executeWithNestedTimers() throws Exception {
+        execute(nestedTimersTransactionWorthy, pointcutType);
+    }
+
+    @Benchmark
+    public void executeWithAuxThreadContexts() throws Exception {
+        execute(fanOutTransactionWorthy, pointcutType);
+    }
+
+    @Benchmark
+    @Fork(jvmArgsAppend = "-Dglowroot.transaction.aux.thread.context.coalesce.threshold=10")
+    public void executeWithCoalescedAuxThreadContexts() throws Exception {
+        execute(fanOutTransactionWorthy, pointcutType);
+    }
+
+    private static void execute(TransactionWorthy transactionWorthy, PointcutType pointcutType)
+            throws Exception {
         switch (pointcutType) {
             case API:
                 transactionWorthy.doSomethingTransactionWorthy();
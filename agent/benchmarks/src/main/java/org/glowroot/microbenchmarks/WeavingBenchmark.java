@@ -1,5 +1,5 @@
 /*
- * Copyright 2014-2018 the original author or authors.
+ * Copyright 2014-2020 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -28,6 +28,7 @@ import com.google.common.base.Splitter;
 import com.google.common.base.StandardSystemProperty;
 import org.openjdk.jmh.annotations.Benchmark;
 import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
 import org.openjdk.jmh.annotations.Measurement;
 import org.openjdk.jmh.annotations.Mode;
 import org.openjdk.jmh.annotations.OutputTimeUnit;
@@ -80,6 +81,17 @@ public class WeavingBenchmark {
 
     @Benchmark
     public void execute() throws ClassNotFoundException {
+        loadClasses();
+    }
+
+    // baseline for comparing the cost of resolving super types during weaving
+    @Benchmark
+    @Fork(jvmArgsAppend = "-Dglowroot.internal.superTypePrefetchThreads=0")
+    public void executeWithoutSuperTypePrefetch() throws ClassNotFoundException {
+        loadClasses();
+    }
+
+    private void loadClasses() throws ClassNotFoundException {
         for (String className : classNames) {
             try {
                 Class.forName(className, false, WeavingBenchmark.class.getClassLoader());
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks.support;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+
+// each transaction fans out to many tiny tasks, similar to reactive or CompletableFuture code
+public class FanOutTransactionWorthy extends TransactionWorthy {
+
+    private final ExecutorService executor;
+    private final int taskCount;
+
+    public FanOutTransactionWorthy(ExecutorService executor, int taskCount) {
+        this.executor = executor;
+        this.taskCount = taskCount;
+    }
+
+    @Override
+    public void doSomethingTransactionWorthy() throws Exception {
+        fanOut();
+    }
+
+    @Override
+    public void doSomethingTransactionWorthy2() {
+        try {
+            fanOut();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void fanOut() throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(taskCount);
+        for (int i = 0; i < taskCount; i++) {
+            executor.execute(new Task(latch));
+        }
+        latch.await();
+    }
+
+    private static class Task implements Runnable {
+
+        private final CountDownLatch latch;
+
+        private Task(CountDownLatch latch) {
+            this.latch = latch;
+        }
+
+        @Override
+        public void run() {
+            latch.countDown();
+        }
+    }
+}
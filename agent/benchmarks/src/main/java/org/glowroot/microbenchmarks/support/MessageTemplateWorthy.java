@@ -0,0 +1,37 @@
+/*
+ * Copyright 2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks.support;
+
+// similar shape to the redis plugin's message template "{{this.host}}:{{this.port}} {{0.name}}"
+public class MessageTemplateWorthy {
+
+    public void doSomethingMessageTemplateWorthy(Command command) {}
+
+    public String getHost() {
+        return "localhost";
+    }
+
+    public int getPort() {
+        return 6379;
+    }
+
+    public static class Command {
+
+        public String getName() {
+            return "GET";
+        }
+    }
+}
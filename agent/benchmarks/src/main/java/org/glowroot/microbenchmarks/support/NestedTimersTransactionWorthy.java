@@ -0,0 +1,44 @@
+/*
+ * Copyright 2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks.support;
+
+// each transaction repeatedly starts a couple of different nested timers, which exercises nested
+// timer lookup during the transaction and timer tree merging at the end of the transaction
+public class NestedTimersTransactionWorthy extends TransactionWorthy {
+
+    private final TimerWorthy timerWorthy = new TimerWorthy();
+    private final int iterations;
+
+    public NestedTimersTransactionWorthy(int iterations) {
+        this.iterations = iterations;
+    }
+
+    @Override
+    public void doSomethingTransactionWorthy() {
+        for (int i = 0; i < iterations; i++) {
+            timerWorthy.doSomethingTimerWorthy();
+            timerWorthy.doSomethingTimerWorthyB();
+        }
+    }
+
+    @Override
+    public void doSomethingTransactionWorthy2() {
+        for (int i = 0; i < iterations; i++) {
+            timerWorthy.doSomethingTimerWorthy2();
+            timerWorthy.doSomethingTimerWorthy2B();
+        }
+    }
+}
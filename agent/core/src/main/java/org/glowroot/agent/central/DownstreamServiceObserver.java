@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2019 the original author or authors.
+ * Copyright 2015-2020 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,13 +15,26 @@
  */
 package org.glowroot.agent.central;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.GZIPOutputStream;
 
 import com.google.common.base.Stopwatch;
+import com.google.common.io.ByteStreams;
+import com.google.protobuf.ByteString;
+import io.grpc.stub.CallStreamObserver;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
 import io.grpc.stub.StreamObserver;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.slf4j.Logger;
@@ -58,7 +71,9 @@ import org.glowroot.wire.api.model.DownstreamServiceOuterClass.FullTraceResponse
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.GlobalMeta;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.GlobalMetaResponse;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.HeaderResponse;
+import org.glowroot.wire.api.model.DownstreamServiceOuterClass.HeapDumpChunk;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.HeapDumpFileInfo;
+import org.glowroot.wire.api.model.DownstreamServiceOuterClass.HeapDumpRequest;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.HeapDumpResponse;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.HeapHistogram;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.HeapHistogramResponse;
@@ -94,10 +109,16 @@ import static com.google.common.base.Preconditions.checkState;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
-class DownstreamServiceObserver implements StreamObserver<CentralRequest> {
+class DownstreamServiceObserver
+        implements ClientResponseObserver<AgentResponse, CentralRequest> {
 
     private static final Logger logger = LoggerFactory.getLogger(DownstreamServiceObserver.class);
 
+    private static final int HEAP_DUMP_CHUNK_SIZE = 256 * 1024;
+
+    // max time to wait for the central collector to accept the next streamed message
+    private static final int STREAM_READY_TIMEOUT_SECONDS = 60;
+
     private final CentralConnection centralConnection;
     private final DownstreamServiceStub downstreamServiceStub;
     private final AgentConfigUpdater agentConfigUpdater;
@@ -107,7 +128,7 @@ class DownstreamServiceObserver implements StreamObserver<CentralRequest> {
     private final LiveTraceRepositoryImpl liveTraceRepository;
     private final String agentId;
 
-    private volatile @Nullable StreamObserver<AgentResponse> currResponseObserver;
+    private volatile @Nullable SynchronizedResponseObserver currResponseObserver;
 
     // only used by tests
     private volatile boolean closedByCentralCollector;
@@ -119,6 +140,13 @@ class DownstreamServiceObserver implements StreamObserver<CentralRequest> {
 
     private final ScheduledExecutorService scheduledRetryExecutor;
 
+    // responses that are streamed in many messages are sent from this thread so that waiting for
+    // flow control does not block the grpc inbound thread (which also delivers the onReady
+    // callback, as well as all other requests from the central collector)
+    private final ExecutorService streamingExecutor;
+
+    private final Object streamReadyLock = new Object();
+
     DownstreamServiceObserver(CentralConnection centralConnection,
             AgentConfigUpdater agentConfigUpdater, boolean configReadOnly,
             LiveJvmServiceImpl liveJvmService, LiveWeavingServiceImpl liveWeavingService,
@@ -137,6 +165,18 @@ class DownstreamServiceObserver implements StreamObserver<CentralRequest> {
         this.sharedQueryTextLimiter = sharedQueryTextLimiter;
         scheduledRetryExecutor = Executors.newSingleThreadScheduledExecutor(
                 ThreadFactories.create("Glowroot-Downstream-Retry"));
+        streamingExecutor = Executors.newSingleThreadExecutor(
+                ThreadFactories.create("Glowroot-Downstream-Streaming"));
+    }
+
+    @Override
+    public void beforeStart(ClientCallStreamObserver<AgentResponse> requestStream) {
+        requestStream.setOnReadyHandler(new Runnable() {
+            @Override
+            public void run() {
+                notifyStreamReadyWaiters();
+            }
+        });
     }
 
     @Override
@@ -174,6 +214,7 @@ class DownstreamServiceObserver implements StreamObserver<CentralRequest> {
             // try immediate re-connect once in case this is just node of central collector cluster
             // going down
             connectAsync();
+            notifyStreamReadyWaiters();
             return;
         }
         if (!inConnectionFailure.getAndSet(true)) {
@@ -187,13 +228,15 @@ class DownstreamServiceObserver implements StreamObserver<CentralRequest> {
             });
         }
         currResponseObserver = null;
+        notifyStreamReadyWaiters();
         // TODO revisit retry/backoff after next grpc version
         scheduledRetryExecutor.schedule(new RetryAfterError(), 1, SECONDS);
     }
 
     void connectAsync() {
         // these are async so never fail, onError() will be called on failure
-        StreamObserver<AgentResponse> responseObserver = downstreamServiceStub.connect(this);
+        SynchronizedResponseObserver responseObserver = new SynchronizedResponseObserver(
+                (CallStreamObserver<AgentResponse>) downstreamServiceStub.connect(this));
         currResponseObserver = responseObserver;
         responseObserver.onNext(AgentResponse.newBuilder()
                 .setHello(Hello.newBuilder()
@@ -202,7 +245,7 @@ class DownstreamServiceObserver implements StreamObserver<CentralRequest> {
     }
 
     private void onNextInternal(CentralRequest request) throws InterruptedException {
-        StreamObserver<AgentResponse> responseObserver = currResponseObserver;
+        SynchronizedResponseObserver responseObserver = currResponseObserver;
         while (responseObserver == null) {
             MILLISECONDS.sleep(10);
             responseObserver = currResponseObserver;
@@ -221,10 +264,8 @@ class DownstreamServiceObserver implements StreamObserver<CentralRequest> {
                 availableDiskSpaceAndRespond(request, responseObserver);
                 return;
             case HEAP_DUMP_REQUEST:
-                heapDumpAndRespond(request, responseObserver);
-                return;
             case HEAP_HISTOGRAM_REQUEST:
-                heapHistogramAndRespond(request, responseObserver);
+                streamingExecutor.execute(new StreamingResponder(request, responseObserver));
                 return;
             case EXPLICIT_GC_DISABLED_REQUEST:
                 explicitGcDisabledAndRespond(request, responseObserver);
@@ -396,11 +437,11 @@ class DownstreamServiceObserver implements StreamObserver<CentralRequest> {
     }
 
     private void heapDumpAndRespond(CentralRequest request,
-            StreamObserver<AgentResponse> responseObserver) {
+            SynchronizedResponseObserver responseObserver) {
+        HeapDumpRequest heapDumpRequest = request.getHeapDumpRequest();
         HeapDumpFileInfo heapDumpFileInfo;
         try {
-            heapDumpFileInfo =
-                    liveJvmService.heapDump("", request.getHeapDumpRequest().getDirectory());
+            heapDumpFileInfo = liveJvmService.heapDump("", heapDumpRequest.getDirectory());
         } catch (DirectoryDoesNotExistException e) {
             logger.debug(e.getMessage(), e);
             responseObserver.onNext(AgentResponse.newBuilder()
@@ -414,15 +455,46 @@ class DownstreamServiceObserver implements StreamObserver<CentralRequest> {
             sendExceptionResponse(request, responseObserver);
             return;
         }
+        if (heapDumpRequest.getStream()) {
+            File file = new File(heapDumpFileInfo.getFilePath());
+            try {
+                streamHeapDump(request.getRequestId(), file, responseObserver);
+            } catch (Exception e) {
+                logger.error(e.getMessage(), e);
+                sendExceptionResponse(request, responseObserver);
+                return;
+            } finally {
+                if (!file.delete()) {
+                    logger.warn("unable to delete heap dump file: {}", file.getAbsolutePath());
+                }
+            }
+        }
         responseObserver.onNext(AgentResponse.newBuilder()
                 .setRequestId(request.getRequestId())
                 .setHeapDumpResponse(HeapDumpResponse.newBuilder()
-                        .setHeapDumpFileInfo(heapDumpFileInfo))
+                        .setHeapDumpFileInfo(heapDumpFileInfo)
+                        .setStreamed(heapDumpRequest.getStream()))
                 .build());
     }
 
+    private void streamHeapDump(long requestId, File file,
+            SynchronizedResponseObserver responseObserver) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            OutputStream out = new GZIPOutputStream(
+                    new HeapDumpChunkOutputStream(requestId, responseObserver));
+            try {
+                ByteStreams.copy(in, out);
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
     private void heapHistogramAndRespond(CentralRequest request,
-            StreamObserver<AgentResponse> responseObserver) {
+            SynchronizedResponseObserver responseObserver) {
         HeapHistogram heapHistogram;
         try {
             heapHistogram = liveJvmService.heapHistogram("");
@@ -448,6 +520,33 @@ class DownstreamServiceObserver implements StreamObserver<CentralRequest> {
             sendExceptionResponse(request, responseObserver);
             return;
         }
+        int pageSize = request.getHeapHistogramRequest().getPageSize();
+        List<HeapHistogram.ClassInfo> classInfos = heapHistogram.getClassInfoList();
+        if (pageSize > 0 && classInfos.size() > pageSize) {
+            // large heap histograms can exceed the central collector's max inbound message size
+            int fromIndex = 0;
+            try {
+                while (classInfos.size() - fromIndex > pageSize) {
+                    waitUntilReady(responseObserver);
+                    responseObserver.onNext(AgentResponse.newBuilder()
+                            .setRequestId(request.getRequestId())
+                            .setHeapHistogramResponse(HeapHistogramResponse.newBuilder()
+                                    .setHeapHistogram(HeapHistogram.newBuilder()
+                                            .addAllClassInfo(classInfos.subList(fromIndex,
+                                                    fromIndex + pageSize)))
+                                    .setMorePages(true))
+                            .build());
+                    fromIndex += pageSize;
+                }
+            } catch (IOException e) {
+                logger.error(e.getMessage(), e);
+                sendExceptionResponse(request, responseObserver);
+                return;
+            }
+            heapHistogram = HeapHistogram.newBuilder()
+                    .addAllClassInfo(classInfos.subList(fromIndex, classInfos.size()))
+                    .build();
+        }
         responseObserver.onNext(AgentResponse.newBuilder()
                 .setRequestId(request.getRequestId())
                 .setHeapHistogramResponse(HeapHistogramResponse.newBuilder()
@@ -685,9 +784,9 @@ class DownstreamServiceObserver implements StreamObserver<CentralRequest> {
 
     private void reweaveAndRespond(CentralRequest request,
             StreamObserver<AgentResponse> responseObserver) {
-        int classUpdateCount;
+        ReweaveResponse response;
         try {
-            classUpdateCount = liveWeavingService.reweave("");
+            response = liveWeavingService.reweave("");
         } catch (Exception e) {
             logger.error(e.getMessage(), e);
             sendExceptionResponse(request, responseObserver);
@@ -695,8 +794,7 @@ class DownstreamServiceObserver implements StreamObserver<CentralRequest> {
         }
         responseObserver.onNext(AgentResponse.newBuilder()
                 .setRequestId(request.getRequestId())
-                .setReweaveResponse(ReweaveResponse.newBuilder()
-                        .setClassUpdateCount(classUpdateCount))
+                .setReweaveResponse(response)
                 .build());
     }
 
@@ -845,7 +943,8 @@ class DownstreamServiceObserver implements StreamObserver<CentralRequest> {
 
     @OnlyUsedByTests
     void close() throws InterruptedException {
-        StreamObserver<AgentResponse> responseObserver = currResponseObserver;
+        streamingExecutor.shutdown();
+        SynchronizedResponseObserver responseObserver = currResponseObserver;
         while (responseObserver == null) {
             MILLISECONDS.sleep(10);
             responseObserver = currResponseObserver;
@@ -866,6 +965,117 @@ class DownstreamServiceObserver implements StreamObserver<CentralRequest> {
                 .build());
     }
 
+    // this provides flow control when streaming large responses, so that the messages are not all
+    // buffered in memory waiting to be sent over the network
+    private void waitUntilReady(SynchronizedResponseObserver responseObserver)
+            throws IOException {
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        synchronized (streamReadyLock) {
+            while (!responseObserver.isReady()) {
+                if (responseObserver != currResponseObserver) {
+                    throw new IOException("connection to the central collector was lost");
+                }
+                long remainingMillis = SECONDS.toMillis(STREAM_READY_TIMEOUT_SECONDS)
+                        - stopwatch.elapsed(MILLISECONDS);
+                if (remainingMillis <= 0) {
+                    throw new IOException("timed out waiting for the central collector");
+                }
+                try {
+                    // woken up by the onReady callback, or by onError() if the connection is lost
+                    streamReadyLock.wait(remainingMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+    }
+
+    private void notifyStreamReadyWaiters() {
+        synchronized (streamReadyLock) {
+            streamReadyLock.notifyAll();
+        }
+    }
+
+    private class HeapDumpChunkOutputStream extends OutputStream {
+
+        private final long requestId;
+        private final SynchronizedResponseObserver responseObserver;
+
+        private final byte[] buffer = new byte[HEAP_DUMP_CHUNK_SIZE];
+        private int count;
+
+        private HeapDumpChunkOutputStream(long requestId,
+                SynchronizedResponseObserver responseObserver) {
+            this.requestId = requestId;
+            this.responseObserver = responseObserver;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (count == buffer.length) {
+                sendChunk();
+            }
+            buffer[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (count == buffer.length) {
+                    sendChunk();
+                }
+                int n = Math.min(len, buffer.length - count);
+                System.arraycopy(b, off, buffer, count, n);
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (count > 0) {
+                sendChunk();
+            }
+        }
+
+        private void sendChunk() throws IOException {
+            waitUntilReady(responseObserver);
+            responseObserver.onNext(AgentResponse.newBuilder()
+                    .setRequestId(requestId)
+                    .setHeapDumpChunk(HeapDumpChunk.newBuilder()
+                            .setData(ByteString.copyFrom(buffer, 0, count)))
+                    .build());
+            count = 0;
+        }
+    }
+
+    private class StreamingResponder implements Runnable {
+
+        private final CentralRequest request;
+        private final SynchronizedResponseObserver responseObserver;
+
+        private StreamingResponder(CentralRequest request,
+                SynchronizedResponseObserver responseObserver) {
+            this.request = request;
+            this.responseObserver = responseObserver;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (request.getMessageCase() == MessageCase.HEAP_DUMP_REQUEST) {
+                    heapDumpAndRespond(request, responseObserver);
+                } else {
+                    heapHistogramAndRespond(request, responseObserver);
+                }
+            } catch (Throwable t) {
+                logger.error(t.getMessage(), t);
+            }
+        }
+    }
+
     private class RetryAfterError implements Runnable {
         @Override
         public void run() {
@@ -876,4 +1086,34 @@ class DownstreamServiceObserver implements StreamObserver<CentralRequest> {
             }
         }
     }
+
+    // StreamObserver is not thread-safe, and responses are sent from both the grpc inbound thread
+    // and the streaming executor
+    private static class SynchronizedResponseObserver implements StreamObserver<AgentResponse> {
+
+        private final CallStreamObserver<AgentResponse> delegate;
+
+        private SynchronizedResponseObserver(CallStreamObserver<AgentResponse> delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public synchronized void onNext(AgentResponse value) {
+            delegate.onNext(value);
+        }
+
+        @Override
+        public synchronized void onError(Throwable t) {
+            delegate.onError(t);
+        }
+
+        @Override
+        public synchronized void onCompleted() {
+            delegate.onCompleted();
+        }
+
+        private boolean isReady() {
+            return delegate.isReady();
+        }
+    }
 }
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.google.common.collect.Sets;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+// once a transaction has started many auxiliary thread contexts (e.g. reactive or
+// CompletableFuture code fanning out to many tiny tasks), the auxiliary thread contexts that it
+// starts after that are tracked here instead of under the transaction-wide lock
+//
+// they are started without auxiliary thread context hierarchy (the same as limit exceeded
+// auxiliary thread contexts), and once complete (and if they have no trace entries) they are
+// pushed onto a lock-free stack which is merged into the transaction's already merged auxiliary
+// thread components in batches
+class CoalescedAuxThreadContexts {
+
+    private final Set<ThreadContextImpl> active = Sets.newConcurrentHashSet();
+
+    private final AtomicReference</*@Nullable*/ CompletedNode> completedHead =
+            new AtomicReference</*@Nullable*/ CompletedNode>();
+    private final AtomicInteger completedCount = new AtomicInteger();
+
+    private final int batchSize;
+
+    CoalescedAuxThreadContexts(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    void addActive(ThreadContextImpl auxThreadContext) {
+        active.add(auxThreadContext);
+    }
+
+    boolean isActive(ThreadContextImpl auxThreadContext) {
+        return active.contains(auxThreadContext);
+    }
+
+    boolean removeActive(ThreadContextImpl auxThreadContext) {
+        return active.remove(auxThreadContext);
+    }
+
+    Iterable<ThreadContextImpl> getActive() {
+        return active;
+    }
+
+    // returns true if the completed auxiliary thread contexts should be merged now
+    boolean addCompleted(ThreadContextImpl auxThreadContext) {
+        CompletedNode node = new CompletedNode(auxThreadContext);
+        CompletedNode head;
+        do {
+            head = completedHead.get();
+            node.next = head;
+        } while (!completedHead.compareAndSet(head, node));
+        return completedCount.incrementAndGet() % batchSize == 0;
+    }
+
+    // an auxiliary thread context is added to completed before it is removed from active, so it
+    // is removed from active here as well, to ensure it is not read again via getActive() after
+    // being drained
+    @Nullable
+    CompletedNode drainCompleted() {
+        CompletedNode head = completedHead.getAndSet(null);
+        CompletedNode node = head;
+        while (node != null) {
+            active.remove(node.auxThreadContext);
+            node = node.next;
+        }
+        return head;
+    }
+
+    static class CompletedNode {
+
+        private final ThreadContextImpl auxThreadContext;
+        private @Nullable CompletedNode next;
+
+        private CompletedNode(ThreadContextImpl auxThreadContext) {
+            this.auxThreadContext = auxThreadContext;
+        }
+
+        ThreadContextImpl getAuxThreadContext() {
+            return auxThreadContext;
+        }
+
+        @Nullable
+        CompletedNode getNext() {
+            return next;
+        }
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2014-2018 the original author or authors.
+ * Copyright 2014-2020 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -22,21 +22,49 @@ import org.glowroot.agent.model.TimerNameImpl;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 // micro-optimized map for nested timers
+//
+// timer name ids are global and assigned in registration order (see TimerNameImpl.id()), so the
+// timer names registered early (e.g. by the plugins loaded at startup) have small ids, and nested
+// timers with those names are stored in a small array indexed by timer name id
+//
+// all other timer names (registered later, or re-registered after being collected from the weak
+// TimerNameCache) fall back to open addressing
 class NestedTimerMap {
 
+    // bounds the size of the indexed array to 256 bytes (with compressed oops), since this map is
+    // allocated per timer per transaction
+    static final int MAX_INDEXED_ID = 63;
+
     private static final Object CHAINED_KEY = new Object();
 
+    private static final @Nullable TimerImpl[] EMPTY_INDEXED = new TimerImpl[0];
+
+    private @Nullable TimerImpl[] indexed = EMPTY_INDEXED;
+
     // capacity must always be a power of 2, see comments in get() and put()
     private int capacity = 4;
-    private @Nullable Object[] table = new Object[capacity << 1];
+    // lazy initialize since this is only needed for timer name ids beyond MAX_INDEXED_ID
+    private @Nullable Object /*@Nullable*/ [] table;
 
     private int size = 0;
     private int threshold = 3; // 0.75 * capacity
 
     @Nullable
     TimerImpl get(TimerNameImpl key) {
+        int id = key.id();
+        if (id < indexed.length) {
+            return indexed[id];
+        }
+        if (id <= MAX_INDEXED_ID) {
+            return null;
+        }
+        @Nullable
+        Object[] table = this.table;
+        if (table == null) {
+            return null;
+        }
         // this mask requires capacity to be a power of 2
-        int bucket = (key.specialHashCode() & (capacity - 1)) << 1;
+        int bucket = (id & (capacity - 1)) << 1;
         Object keyAtBucket = table[bucket];
         Object value = table[bucket + 1];
         // ok to use "==" because TimerNameImpl instances are always unique
@@ -51,6 +79,22 @@ class NestedTimerMap {
 
     // IMPORTANT put assumes get was already called and key is not present in this map
     void put(TimerNameImpl key, TimerImpl value) {
+        int id = key.id();
+        if (id <= MAX_INDEXED_ID) {
+            if (id >= indexed.length) {
+                // grow to the next power of 2 (at least 8) that can hold id
+                int newLength = Math.max(Integer.highestOneBit(id) << 1, 8);
+                @Nullable
+                TimerImpl[] newIndexed = new TimerImpl[newLength];
+                System.arraycopy(indexed, 0, newIndexed, 0, indexed.length);
+                indexed = newIndexed;
+            }
+            indexed[id] = value;
+            return;
+        }
+        if (table == null) {
+            table = new Object[capacity << 1];
+        }
         if (size++ > threshold) {
             rehash();
         }
@@ -58,8 +102,10 @@ class NestedTimerMap {
     }
 
     private void putWithoutRehashCheck(TimerNameImpl key, @Nullable Object value) {
+        @Nullable
+        Object[] table = checkNotNull(this.table);
         // this mask requires capacity to be a power of 2
-        int bucket = (key.specialHashCode() & (capacity - 1)) << 1;
+        int bucket = (key.id() & (capacity - 1)) << 1;
         Object keyAtBucket = table[bucket];
         if (keyAtBucket == null) {
             table[bucket] = key;
@@ -71,6 +117,8 @@ class NestedTimerMap {
 
     private void putChained(TimerNameImpl key, @Nullable Object value, int bucket,
             Object keyAtBucket) {
+        @Nullable
+        Object[] table = checkNotNull(this.table);
         if (keyAtBucket == CHAINED_KEY) {
             @Nullable
             Object[] chain = (/*@Nullable*/ Object[]) checkNotNull(table[bucket + 1]);
@@ -102,7 +150,7 @@ class NestedTimerMap {
 
     private void rehash() {
         @Nullable
-        Object[] existingTable = table;
+        Object[] existingTable = checkNotNull(table);
         capacity <<= 1;
         threshold <<= 1;
         table = new Object[capacity << 1];
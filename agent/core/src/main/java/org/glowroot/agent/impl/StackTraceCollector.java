@@ -1,5 +1,5 @@
 /*
- * Copyright 2011-2018 the original author or authors.
+ * Copyright 2011-2020 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -154,10 +154,17 @@ public class StackTraceCollector {
             for (int i = 0; i < transactions.size(); i++) {
                 Transaction transaction = transactions.get(i);
                 ThreadContextImpl mainThreadContext = transaction.getMainThreadContext();
-                if (mainThreadContext.isActive()) {
+                if (mainThreadContext.isActive() && !mainThreadContext.isVirtualThread()) {
                     activeThreadContexts.add(mainThreadContext);
                 }
-                activeThreadContexts.addAll(transaction.getActiveAuxThreadContexts());
+                for (ThreadContextImpl auxThreadContext : transaction
+                        .getActiveAuxThreadContexts()) {
+                    // ThreadMXBean.getThreadInfo() does not capture virtual threads (and passing
+                    // their ids just makes the (safepoint) operation more expensive)
+                    if (!auxThreadContext.isVirtualThread()) {
+                        activeThreadContexts.add(auxThreadContext);
+                    }
+                }
             }
             captureStackTraces(activeThreadContexts);
         }
@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2019 the original author or authors.
+ * Copyright 2015-2020 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -60,6 +60,7 @@ import org.glowroot.agent.plugin.api.TimerName;
 import org.glowroot.agent.plugin.api.TraceEntry;
 import org.glowroot.agent.util.ThreadAllocatedBytes;
 import org.glowroot.agent.util.Tickers;
+import org.glowroot.agent.util.VirtualThreads;
 import org.glowroot.common.config.AdvancedConfig;
 import org.glowroot.common.util.NotAvailableAware;
 
@@ -97,6 +98,15 @@ public class ThreadContextImpl implements ThreadContextPlus {
     // root entry for this trace
     private final TraceEntryComponent traceEntryComponent;
 
+    // only non-null when -Dglowroot.internal.recycleTraceEntries is true
+    private final @Nullable TraceEntryPool traceEntryPool;
+    // linked list of the (non-async) dummy entries started by this thread context, only maintained
+    // when traceEntryPool is non-null, so they can be released together, only accessed by the
+    // thread context's thread until the transaction has been processed
+    private @Nullable DummyTraceEntryOrQuery headDummyEntry;
+    private @Nullable DummyTraceEntryOrQuery tailDummyEntry;
+    private int dummyEntryCount;
+
     // only accessed by the thread context's thread
     private boolean transactionAsyncComplete;
 
@@ -116,6 +126,7 @@ public class ThreadContextImpl implements ThreadContextPlus {
     private final int maxServiceCallAggregates;
 
     private final long threadId;
+    private final boolean virtualThread;
 
     private final boolean limitExceededAuxThreadContext;
 
@@ -150,12 +161,16 @@ public class ThreadContextImpl implements ThreadContextPlus {
         this.parentTraceEntry = parentTraceEntry;
         rootTimer = TimerImpl.createRootTimer(castInitialized(this), (TimerNameImpl) rootTimerName);
         rootTimer.start(startTick);
+        traceEntryPool = TraceEntryPool.getForCurrentThread();
         traceEntryComponent = new TraceEntryComponent(castInitialized(this), messageSupplier,
-                rootTimer, startTick);
+                rootTimer, startTick, traceEntryPool);
         this.parentThreadContextPriorEntry = parentThreadContextPriorEntry;
-        threadId = Thread.currentThread().getId();
-        threadStatsComponent =
-                captureThreadStats ? new ThreadStatsComponent(threadAllocatedBytes) : null;
+        Thread currentThread = Thread.currentThread();
+        threadId = currentThread.getId();
+        virtualThread = VirtualThreads.isVirtual(currentThread);
+        // ThreadMXBean does not report on virtual threads
+        threadStatsComponent = captureThreadStats && !virtualThread
+                ? new ThreadStatsComponent(threadAllocatedBytes) : null;
         this.maxQueryAggregates = maxQueryAggregates;
         this.maxServiceCallAggregates = maxServiceCallAggregates;
         this.limitExceededAuxThreadContext = limitExceededAuxThreadContext;
@@ -206,10 +221,38 @@ public class ThreadContextImpl implements ThreadContextPlus {
         return threadId;
     }
 
+    // the thread id of a virtual thread is not known to ThreadMXBean
+    public boolean isVirtualThread() {
+        return virtualThread;
+    }
+
     boolean isCompleted() {
         return traceEntryComponent.isCompleted();
     }
 
+    // only called by the transaction processor thread, after the transaction has been processed
+    // (and only if it was not selected for trace storage)
+    void releaseTraceEntries() {
+        if (traceEntryPool == null || !isCompleted()) {
+            // incomplete auxiliary thread contexts can continue running after the transaction
+            // ends, so their trace entries cannot be released
+            return;
+        }
+        traceEntryComponent.releaseEntries(traceEntryPool);
+        if (headDummyEntry != null && tailDummyEntry != null
+                && traceEntryPool.hasRoomFor(dummyEntryCount)) {
+            DummyTraceEntryOrQuery entry = headDummyEntry;
+            while (entry != null) {
+                entry.markReleased();
+                entry = entry.getNextDummyEntry();
+            }
+            traceEntryPool.releaseDummyEntries(headDummyEntry, tailDummyEntry, dummyEntryCount);
+            headDummyEntry = null;
+            tailDummyEntry = null;
+            dummyEntryCount = 0;
+        }
+    }
+
     public boolean isActive() {
         // checking threadContextHolder.get() to make sure this isn't an outer transaction on hold
         // while inner transaction is executing
@@ -389,6 +432,33 @@ public class ThreadContextImpl implements ThreadContextPlus {
         return entry;
     }
 
+    private DummyTraceEntryOrQuery startDummyEntry(TimerImpl syncTimer, long startTick,
+            Object messageSupplier, @Nullable QueryData queryData, long queryExecutionCount) {
+        if (traceEntryPool == null) {
+            return new DummyTraceEntryOrQuery(this, syncTimer, null, startTick, messageSupplier,
+                    queryData, queryExecutionCount);
+        }
+        DummyTraceEntryOrQuery entry = traceEntryPool.acquireDummyEntry();
+        if (entry == null) {
+            entry = new DummyTraceEntryOrQuery(this, syncTimer, null, startTick, messageSupplier,
+                    queryData, queryExecutionCount);
+        } else {
+            entry.reset(this, syncTimer, startTick, messageSupplier, queryData,
+                    queryExecutionCount);
+        }
+        if (dummyEntryCount < TraceEntryPool.MAX_SIZE) {
+            // beyond this the dummy entries could not be released to the pool anyways, so they are
+            // not linked (and retained until the end of the transaction), and are just left for gc
+            entry.setNextDummyEntry(headDummyEntry);
+            headDummyEntry = entry;
+            if (tailDummyEntry == null) {
+                tailDummyEntry = entry;
+            }
+            dummyEntryCount++;
+        }
+        return entry;
+    }
+
     private TraceEntryImpl startAsyncTraceEntry(long startTick, MessageSupplier messageSupplier,
             TimerImpl syncTimer, AsyncTimer asyncTimer) {
         TraceEntryImpl entry = traceEntryComponent.pushEntry(startTick, messageSupplier, syncTimer,
@@ -582,7 +652,7 @@ public class ThreadContextImpl implements ThreadContextPlus {
         if (transaction.allowAnotherEntry()) {
             return traceEntryComponent.pushEntry(startTick, messageSupplier, timer, null, null, 0);
         } else {
-            return new DummyTraceEntryOrQuery(timer, null, startTick, messageSupplier, null, 0);
+            return startDummyEntry(timer, startTick, messageSupplier, null, 0);
         }
     }
 
@@ -601,7 +671,7 @@ public class ThreadContextImpl implements ThreadContextPlus {
         if (transaction.allowAnotherEntry()) {
             return traceEntryComponent.pushEntry(startTick, messageSupplier, timer, null, null, 0);
         } else {
-            return new DummyTraceEntryOrQuery(timer, null, startTick, messageSupplier, null, 0);
+            return startDummyEntry(timer, startTick, messageSupplier, null, 0);
         }
     }
 
@@ -622,8 +692,8 @@ public class ThreadContextImpl implements ThreadContextPlus {
         if (transaction.allowAnotherEntry()) {
             return startAsyncTraceEntry(startTick, messageSupplier, syncTimer, asyncTimer);
         } else {
-            return new DummyTraceEntryOrQuery(syncTimer, asyncTimer, startTick, messageSupplier,
-                    null, 0);
+            return new DummyTraceEntryOrQuery(this, syncTimer, asyncTimer, startTick,
+                    messageSupplier, null, 0);
         }
     }
 
@@ -654,8 +724,7 @@ public class ThreadContextImpl implements ThreadContextPlus {
                     queryData, 1);
         } else {
             SyncQueryData queryData = getOrCreateQueryData(queryType, queryText, false);
-            return new DummyTraceEntryOrQuery(timer, null, startTick, queryMessageSupplier,
-                    queryData, 1);
+            return startDummyEntry(timer, startTick, queryMessageSupplier, queryData, 1);
         }
     }
 
@@ -690,8 +759,8 @@ public class ThreadContextImpl implements ThreadContextPlus {
                     queryData, queryExecutionCount);
         } else {
             SyncQueryData queryData = getOrCreateQueryData(queryType, queryText, false);
-            return new DummyTraceEntryOrQuery(timer, null, startTick, queryMessageSupplier,
-                    queryData, queryExecutionCount);
+            return startDummyEntry(timer, startTick, queryMessageSupplier, queryData,
+                    queryExecutionCount);
         }
     }
 
@@ -726,7 +795,7 @@ public class ThreadContextImpl implements ThreadContextPlus {
         } else {
             AsyncQueryData queryData =
                     transaction.getOrCreateAsyncQueryData(queryType, queryText, false);
-            return new DummyTraceEntryOrQuery(syncTimer, asyncTimer, startTick,
+            return new DummyTraceEntryOrQuery(this, syncTimer, asyncTimer, startTick,
                     queryMessageSupplier, queryData, 1);
         }
     }
@@ -760,8 +829,7 @@ public class ThreadContextImpl implements ThreadContextPlus {
         } else {
             SyncQueryData queryData =
                     getOrCreateServiceCallData(serviceCallType, serviceCallText, false);
-            return new DummyTraceEntryOrQuery(timer, null, startTick, messageSupplier, queryData,
-                    1);
+            return startDummyEntry(timer, startTick, messageSupplier, queryData, 1);
         }
     }
 
@@ -798,8 +866,8 @@ public class ThreadContextImpl implements ThreadContextPlus {
         } else {
             AsyncQueryData queryData = transaction.getOrCreateAsyncServiceCallData(serviceCallType,
                     serviceCallText, false);
-            return new DummyTraceEntryOrQuery(syncTimer, asyncTimer, startTick, messageSupplier,
-                    queryData, 1);
+            return new DummyTraceEntryOrQuery(this, syncTimer, asyncTimer, startTick,
+                    messageSupplier, queryData, 1);
         }
     }
 
@@ -1099,12 +1167,19 @@ public class ThreadContextImpl implements ThreadContextPlus {
     }
 
     // this does not include the root trace entry
-    private class DummyTraceEntryOrQuery extends QueryEntryBase implements AsyncQueryEntry, Timer {
-
-        private final TimerImpl syncTimer;
-        private final @Nullable AsyncTimer asyncTimer;
-        private final long startTick;
-        private final Object messageSupplier;
+    //
+    // this is used for timing once the trace entry limit has been exceeded, and is never part of
+    // the trace
+    static class DummyTraceEntryOrQuery extends QueryEntryBase implements AsyncQueryEntry, Timer {
+
+        // these fields are not final since instances can be recycled (see TraceEntryPool), but
+        // this is only used by the transaction thread (other than for async entries which are
+        // never recycled)
+        private ThreadContextImpl threadContext;
+        private TimerImpl syncTimer;
+        private @Nullable AsyncTimer asyncTimer;
+        private long startTick;
+        private Object messageSupplier;
 
         // not volatile, so depends on memory barrier in Transaction for visibility
         private int selfNestingLevel;
@@ -1113,19 +1188,62 @@ public class ThreadContextImpl implements ThreadContextPlus {
 
         private boolean initialComplete;
 
-        public DummyTraceEntryOrQuery(TimerImpl syncTimer, @Nullable AsyncTimer asyncTimer,
-                long startTick, Object messageSupplier, @Nullable QueryData queryData,
-                long queryExecutionCount) {
+        // this is used for linking together the dummy entries of a thread context, so they can be
+        // released together (and is also used for linking together released dummy entries in
+        // TraceEntryPool)
+        private @Nullable DummyTraceEntryOrQuery nextDummyEntry;
+
+        // not volatile, so use after release is only detected on a best effort basis
+        private boolean released;
+
+        private DummyTraceEntryOrQuery(ThreadContextImpl threadContext, TimerImpl syncTimer,
+                @Nullable AsyncTimer asyncTimer, long startTick, Object messageSupplier,
+                @Nullable QueryData queryData, long queryExecutionCount) {
             super(queryData, startTick, queryExecutionCount);
+            this.threadContext = threadContext;
             this.syncTimer = syncTimer;
             this.asyncTimer = asyncTimer;
             this.startTick = startTick;
             this.messageSupplier = messageSupplier;
         }
 
+        // this is only used for dummy entries acquired from TraceEntryPool
+        private void reset(ThreadContextImpl threadContext, TimerImpl syncTimer, long startTick,
+                Object messageSupplier, @Nullable QueryData queryData,
+                long queryExecutionCount) {
+            resetQueryEntry(queryData, startTick, queryExecutionCount);
+            this.threadContext = threadContext;
+            this.syncTimer = syncTimer;
+            asyncTimer = null;
+            this.startTick = startTick;
+            this.messageSupplier = messageSupplier;
+            selfNestingLevel = 0;
+            extendedTimer = null;
+            initialComplete = false;
+            nextDummyEntry = null;
+            released = false;
+        }
+
+        @Nullable
+        DummyTraceEntryOrQuery getNextDummyEntry() {
+            return nextDummyEntry;
+        }
+
+        void setNextDummyEntry(@Nullable DummyTraceEntryOrQuery nextDummyEntry) {
+            this.nextDummyEntry = nextDummyEntry;
+        }
+
+        // only called by the transaction processor thread, after the transaction has been
+        // processed
+        private void markReleased() {
+            released = true;
+            // this guards any subsequent calls to end*()
+            initialComplete = true;
+        }
+
         @Override
         public void end() {
-            endInternal(ticker.read());
+            endInternal(threadContext.ticker.read());
         }
 
         @Override
@@ -1134,7 +1252,7 @@ public class ThreadContextImpl implements ThreadContextPlus {
                 logger.error(
                         "endWithLocationStackTrace(): argument 'threshold' must be non-negative");
             }
-            endInternal(ticker.read());
+            endInternal(threadContext.ticker.read());
         }
 
         @Override
@@ -1154,27 +1272,30 @@ public class ThreadContextImpl implements ThreadContextPlus {
 
         @Override
         public void endWithInfo(Throwable t) {
-            endInternal(ticker.read());
+            endInternal(threadContext.ticker.read());
         }
 
         private void endWithErrorInternal(@Nullable String message, @Nullable Throwable t) {
             if (initialComplete) {
                 // this guards against end*() being called multiple times on async trace entries
+                checkNotReleased();
                 return;
             }
-            long endTick = ticker.read();
+            long endTick = threadContext.ticker.read();
             endInternal(endTick);
-            if (transaction.allowAnotherErrorEntry()) {
+            if (threadContext.transaction.allowAnotherErrorEntry()) {
                 ErrorMessage errorMessage = ErrorMessage.create(message, t,
-                        transaction.getThrowableFrameLimitCounter());
+                        threadContext.transaction.getThrowableFrameLimitCounter());
                 // entry won't be nested properly, but at least the error will get captured
-                addErrorEntry(startTick, endTick, messageSupplier, getQueryData(), errorMessage);
+                threadContext.addErrorEntry(startTick, endTick, messageSupplier, getQueryData(),
+                        errorMessage);
             }
         }
 
         private void endInternal(long endTick) {
             if (initialComplete) {
                 // this guards against end*() being called multiple times on async trace entries
+                checkNotReleased();
                 return;
             }
             if (asyncTimer == null) {
@@ -1188,18 +1309,22 @@ public class ThreadContextImpl implements ThreadContextPlus {
 
         @Override
         public Timer extend() {
+            if (released) {
+                TraceEntryPool.logUseAfterRelease(this);
+                return NopTimer.INSTANCE;
+            }
             if (selfNestingLevel++ == 0) {
                 if (isAsync()) {
                     extendAsync();
                 } else {
-                    TimerImpl currentTimerLocal = currentTimer;
+                    TimerImpl currentTimerLocal = threadContext.currentTimer;
                     if (currentTimerLocal == null) {
                         // thread context has ended, cannot extend sync timer
                         // (this is ok, see https://github.com/glowroot/glowroot/issues/418)
                         selfNestingLevel--;
                         return NopTimer.INSTANCE;
                     }
-                    extendSync(ticker.read(), currentTimerLocal);
+                    extendSync(threadContext.ticker.read(), currentTimerLocal);
                 }
             }
             return this;
@@ -1215,11 +1340,11 @@ public class ThreadContextImpl implements ThreadContextPlus {
             ThreadContextThreadLocal.Holder holder =
                     BytecodeServiceHolder.get().getCurrentThreadContextHolder();
             ThreadContextPlus currThreadContext = holder.get();
-            long currTick = ticker.read();
-            if (currThreadContext == ThreadContextImpl.this) {
+            long currTick = threadContext.ticker.read();
+            if (currThreadContext == threadContext) {
                 // this thread context was found in ThreadContextThreadLocal.Holder, so it is still
                 // active, and so current timer must be non-null
-                extendSync(currTick, checkNotNull(getCurrentTimer()));
+                extendSync(currTick, checkNotNull(threadContext.getCurrentTimer()));
             } else {
                 // set to null since its value is checked in stopAsync()
                 extendedTimer = null;
@@ -1236,7 +1361,7 @@ public class ThreadContextImpl implements ThreadContextPlus {
                 if (isAsync()) {
                     stopAsync();
                 } else {
-                    stopSync(ticker.read());
+                    stopSync(threadContext.ticker.read());
                 }
             }
         }
@@ -1249,7 +1374,7 @@ public class ThreadContextImpl implements ThreadContextPlus {
 
         @RequiresNonNull("asyncTimer")
         private void stopAsync() {
-            long endTick = ticker.read();
+            long endTick = threadContext.ticker.read();
             if (extendedTimer == null) {
                 endQueryData(endTick);
                 // it is not helpful to capture stack trace at end of async trace entry since it is
@@ -1261,6 +1386,33 @@ public class ThreadContextImpl implements ThreadContextPlus {
             asyncTimer.end(endTick);
         }
 
+        @Override
+        public void rowNavigationAttempted() {
+            if (released) {
+                TraceEntryPool.logUseAfterRelease(this);
+                return;
+            }
+            super.rowNavigationAttempted();
+        }
+
+        @Override
+        public void incrementCurrRow() {
+            if (released) {
+                TraceEntryPool.logUseAfterRelease(this);
+                return;
+            }
+            super.incrementCurrRow();
+        }
+
+        @Override
+        public void setCurrRow(long row) {
+            if (released) {
+                TraceEntryPool.logUseAfterRelease(this);
+                return;
+            }
+            super.setCurrRow(row);
+        }
+
         @Override
         public Object getMessageSupplier() {
             return messageSupplier;
@@ -1278,12 +1430,18 @@ public class ThreadContextImpl implements ThreadContextPlus {
             }
             // this thread context was passed in from plugin, so it is still active, and so current
             // timer must be non-null
-            return syncTimer.extend(checkNotNull(getCurrentTimer()));
+            return syncTimer.extend(checkNotNull(threadContext.getCurrentTimer()));
         }
 
         @EnsuresNonNullIf(expression = "asyncTimer", result = true)
         private boolean isAsync() {
             return asyncTimer != null;
         }
+
+        private void checkNotReleased() {
+            if (released) {
+                TraceEntryPool.logUseAfterRelease(this);
+            }
+        }
     }
 }
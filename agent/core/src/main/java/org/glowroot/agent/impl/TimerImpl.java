@@ -1,5 +1,5 @@
 /*
- * Copyright 2011-2018 the original author or authors.
+ * Copyright 2011-2020 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -185,19 +185,7 @@ public class TimerImpl implements Timer, TransactionTimer {
     public void mergeChildTimersInto(AggregatedTimer timer) {
         TimerImpl curr = headChild;
         while (curr != null) {
-            String currName = curr.getName();
-            boolean extended = curr.isExtended();
-            AggregatedTimer matchingChildTimer = null;
-            for (AggregatedTimer childTimer : timer.getChildTimers()) {
-                if (currName.equals(childTimer.getName()) && extended == childTimer.isExtended()) {
-                    matchingChildTimer = childTimer;
-                    break;
-                }
-            }
-            if (matchingChildTimer == null) {
-                matchingChildTimer = timer.newChildTimer(curr.getName(), curr.isExtended());
-            }
-            matchingChildTimer.addDataFrom(curr);
+            timer.getOrCreateChildTimer(curr.timerName).addDataFrom(curr);
             curr = curr.nextSibling;
         }
     }
@@ -1,5 +1,5 @@
 /*
- * Copyright 2011-2018 the original author or authors.
+ * Copyright 2011-2020 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -37,6 +37,9 @@ class TraceEntryComponent {
 
     private final ThreadContextImpl threadContext;
 
+    // only non-null when -Dglowroot.internal.recycleTraceEntries is true
+    private final @Nullable TraceEntryPool traceEntryPool;
+
     private final TraceEntryImpl rootEntry;
 
     private TraceEntryImpl activeEntry;
@@ -44,8 +47,9 @@ class TraceEntryComponent {
     private TraceEntryImpl tailEntry;
 
     TraceEntryComponent(ThreadContextImpl threadContext, MessageSupplier messageSupplier,
-            TimerImpl timer, long startTick) {
+            TimerImpl timer, long startTick, @Nullable TraceEntryPool traceEntryPool) {
         this.threadContext = threadContext;
+        this.traceEntryPool = traceEntryPool;
         this.startTick = startTick;
         rootEntry = new TraceEntryImpl(threadContext, null, messageSupplier, null, 0, startTick,
                 timer, null);
@@ -72,8 +76,17 @@ class TraceEntryComponent {
     TraceEntryImpl pushEntry(long startTick, Object messageSupplier, TimerImpl syncTimer,
             @Nullable AsyncTimer asyncTimer, @Nullable QueryData queryData,
             long queryExecutionCount) {
-        TraceEntryImpl entry = new TraceEntryImpl(threadContext, activeEntry, messageSupplier,
-                queryData, queryExecutionCount, startTick, syncTimer, asyncTimer);
+        TraceEntryImpl entry = null;
+        if (traceEntryPool != null && asyncTimer == null) {
+            entry = traceEntryPool.acquireTraceEntry();
+        }
+        if (entry == null) {
+            entry = new TraceEntryImpl(threadContext, activeEntry, messageSupplier, queryData,
+                    queryExecutionCount, startTick, syncTimer, asyncTimer);
+        } else {
+            entry.reset(threadContext, activeEntry, messageSupplier, queryData,
+                    queryExecutionCount, startTick, syncTimer);
+        }
         tailEntry.setNextTraceEntry(entry);
         tailEntry = entry;
         activeEntry = entry;
@@ -119,6 +132,36 @@ class TraceEntryComponent {
         return rootEntry == tailEntry;
     }
 
+    // only called by the transaction processor thread, after the transaction has been processed
+    //
+    // the root entry is not released since it is referenced from outside of this component
+    void releaseEntries(TraceEntryPool traceEntryPool) {
+        if (!traceEntryPool.hasRoomFor(1)) {
+            return;
+        }
+        TraceEntryImpl head = null;
+        TraceEntryImpl tail = null;
+        int count = 0;
+        TraceEntryImpl entry = rootEntry.getNextTraceEntry();
+        while (entry != null) {
+            TraceEntryImpl next = entry.getNextTraceEntry();
+            if (entry.isRecyclable()) {
+                entry.markReleased();
+                if (tail == null) {
+                    head = entry;
+                } else {
+                    tail.setNextTraceEntry(entry);
+                }
+                tail = entry;
+                count++;
+            }
+            entry = next;
+        }
+        if (head != null && tail != null) {
+            traceEntryPool.releaseTraceEntries(head, tail, count);
+        }
+    }
+
     private void popEntrySafe(TraceEntryImpl entry) {
         if (activeEntry != entry) {
             // somehow(?) a pop was missed (or maybe too many pops), this is just damage control
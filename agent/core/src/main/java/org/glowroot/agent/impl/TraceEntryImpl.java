@@ -1,5 +1,5 @@
 /*
- * Copyright 2011-2018 the original author or authors.
+ * Copyright 2011-2020 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -57,14 +57,16 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
     private static final Logger logger = LoggerFactory.getLogger(TraceEntryImpl.class);
     private static final Ticker ticker = Tickers.getTicker();
 
-    private final ThreadContextImpl threadContext;
-    private final @Nullable TraceEntryImpl parentTraceEntry;
-    private final @Nullable Object messageSupplier;
+    // these fields are not final since instances can be recycled (see TraceEntryPool), so depends
+    // on memory barrier in Transaction for visibility
+    private ThreadContextImpl threadContext;
+    private @Nullable TraceEntryImpl parentTraceEntry;
+    private @Nullable Object messageSupplier;
 
     // volatile so it can be set from another thread (needed for async trace entries)
     private volatile @Nullable ErrorMessage errorMessage;
 
-    private final long startTick;
+    private long startTick;
 
     // these fields are not volatile, so depends on memory barrier in Transaction for visibility
     private long revisedStartTick;
@@ -72,12 +74,13 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
     private long endTick;
     private boolean initialComplete;
 
-    // this is for maintaining linear list of trace entries
+    // this is for maintaining linear list of trace entries (and is also used for linking together
+    // released trace entries in TraceEntryPool)
     private @Nullable TraceEntryImpl nextTraceEntry;
 
     // only null for trace entries added using addEntryEntry()
-    private final @Nullable TimerImpl syncTimer;
-    private final @Nullable AsyncTimer asyncTimer;
+    private @Nullable TimerImpl syncTimer;
+    private @Nullable AsyncTimer asyncTimer;
     // not volatile, so depends on memory barrier in Transaction for visibility
     private @Nullable ImmutableList<StackTraceElement> locationStackTrace;
 
@@ -86,6 +89,9 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
     // only used by transaction thread
     private @Nullable TimerImpl extendedTimer;
 
+    // not volatile, so use after release is only detected on a best effort basis
+    private boolean released;
+
     static TraceEntryImpl createCompletedErrorEntry(ThreadContextImpl threadContext,
             TraceEntryImpl parentTraceEntry, @Nullable Object messageSupplier,
             @Nullable QueryData queryData, ErrorMessage errorMessage, long startTick,
@@ -117,6 +123,41 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
         selfNestingLevel = 1;
     }
 
+    // this is only used for trace entries acquired from TraceEntryPool
+    void reset(ThreadContextImpl threadContext, @Nullable TraceEntryImpl parentTraceEntry,
+            Object messageSupplier, @Nullable QueryData queryData, long queryExecutionCount,
+            long startTick, TimerImpl syncTimer) {
+        resetQueryEntry(queryData, startTick, queryExecutionCount);
+        this.threadContext = threadContext;
+        this.parentTraceEntry = parentTraceEntry;
+        this.messageSupplier = messageSupplier;
+        errorMessage = null;
+        this.startTick = startTick;
+        revisedStartTick = startTick;
+        selfNestingLevel = 1;
+        endTick = 0;
+        initialComplete = false;
+        nextTraceEntry = null;
+        this.syncTimer = syncTimer;
+        asyncTimer = null;
+        locationStackTrace = null;
+        locationStackTraceThreshold = 0;
+        extendedTimer = null;
+        released = false;
+    }
+
+    // async trace entries can be ended by another thread after the transaction has ended
+    boolean isRecyclable() {
+        return asyncTimer == null;
+    }
+
+    // only called by the transaction processor thread, after the transaction has been processed
+    void markReleased() {
+        released = true;
+        // this guards any subsequent calls to end*()
+        initialComplete = true;
+    }
+
     @Override
     public @Nullable Object getMessageSupplier() {
         return messageSupplier;
@@ -212,6 +253,7 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
     public void end() {
         if (initialComplete) {
             // this guards against end*() being called multiple times on async trace entries
+            checkNotReleased();
             return;
         }
         long endTick = ticker.read();
@@ -232,6 +274,7 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
     public void endWithError(Throwable t) {
         if (initialComplete) {
             // this guards against end*() being called multiple times on async trace entries
+            checkNotReleased();
             return;
         }
         endWithErrorInternal(null, t);
@@ -241,6 +284,7 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
     public void endWithError(@Nullable String message) {
         if (initialComplete) {
             // this guards against end*() being called multiple times on async trace entries
+            checkNotReleased();
             return;
         }
         endWithErrorInternal(message, null);
@@ -250,6 +294,7 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
     public void endWithError(@Nullable String message, Throwable t) {
         if (initialComplete) {
             // this guards against end*() being called multiple times on async trace entries
+            checkNotReleased();
             return;
         }
         endWithErrorInternal(message, t);
@@ -259,6 +304,7 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
     public void endWithInfo(Throwable t) {
         if (initialComplete) {
             // this guards against end*() being called multiple times on async trace entries
+            checkNotReleased();
             return;
         }
         endWithErrorInternal(null, t);
@@ -266,6 +312,10 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
 
     @Override
     public Timer extend() {
+        if (released) {
+            TraceEntryPool.logUseAfterRelease(this);
+            return NopTimer.INSTANCE;
+        }
         if (selfNestingLevel++ == 0) {
             if (isAsync()) {
                 extendAsync();
@@ -289,6 +339,8 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
         // shortcut the condition without checking the volatile completed field in Transaction
         if (!threadContext.isCompleted() || !threadContext.getTransaction().isCompleted()) {
             super.rowNavigationAttempted();
+        } else {
+            checkNotReleased();
         }
     }
 
@@ -298,6 +350,8 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
         // shortcut the condition without checking the volatile completed field in Transaction
         if (!threadContext.isCompleted() || !threadContext.getTransaction().isCompleted()) {
             super.incrementCurrRow();
+        } else {
+            checkNotReleased();
         }
     }
 
@@ -307,6 +361,8 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
         // shortcut the condition without checking the volatile completed field in Transaction
         if (!threadContext.isCompleted() || !threadContext.getTransaction().isCompleted()) {
             super.setCurrRow(row);
+        } else {
+            checkNotReleased();
         }
     }
 
@@ -402,7 +458,7 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
         return nextTraceEntry;
     }
 
-    void setNextTraceEntry(TraceEntryImpl nextTraceEntry) {
+    void setNextTraceEntry(@Nullable TraceEntryImpl nextTraceEntry) {
         this.nextTraceEntry = nextTraceEntry;
     }
 
@@ -425,6 +481,7 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
     private void endWithLocationStackTraceInternal(long threshold, TimeUnit unit) {
         if (initialComplete) {
             // this guards against end*() being called multiple times on async trace entries
+            checkNotReleased();
             return;
         }
         if (isAsync()) {
@@ -479,6 +536,12 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
         initialComplete = true;
     }
 
+    private void checkNotReleased() {
+        if (released) {
+            TraceEntryPool.logUseAfterRelease(this);
+        }
+    }
+
     private String getRowCountSuffix() {
         if (!isRowNavigationAttempted()) {
             return "";
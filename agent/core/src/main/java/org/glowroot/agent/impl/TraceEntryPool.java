@@ -0,0 +1,156 @@
+/*
+ * Copyright 2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import org.glowroot.agent.impl.ThreadContextImpl.DummyTraceEntryOrQuery;
+import org.glowroot.agent.util.RateLimitedLogger;
+
+// per-thread free lists of trace entries, only used when -Dglowroot.internal.recycleTraceEntries
+// is true
+//
+// trace entries (and the dummy trace entries that are used for timing once a transaction has
+// exceeded the trace entry limit) are released back to the pool of the thread that created them
+// by the transaction processor thread, once the transaction has been aggregated and only if it was
+// not selected for trace storage
+//
+// plugins can hold on to trace entries beyond the end of the transaction (e.g. a jdbc result set
+// that is iterated after the transaction has ended), so released trace entries are marked as
+// released and any use of them prior to being re-acquired is logged and ignored, but use after
+// they have been re-acquired cannot be detected, which is why recycling is opt-in
+class TraceEntryPool {
+
+    static final boolean ENABLED = Boolean.getBoolean("glowroot.internal.recycleTraceEntries");
+
+    // bounds the memory retained by each thread's pool
+    static final int MAX_SIZE =
+            Integer.getInteger("glowroot.internal.recycleTraceEntries.maxPerThread", 10000);
+
+    private static final RateLimitedLogger useAfterReleaseLogger =
+            new RateLimitedLogger(TraceEntryPool.class);
+
+    private static final ThreadLocal<TraceEntryPool> pools = new ThreadLocal<TraceEntryPool>() {
+        @Override
+        protected TraceEntryPool initialValue() {
+            return new TraceEntryPool();
+        }
+    };
+
+    // these are only accessed by the pool's thread
+    private @Nullable TraceEntryImpl freeTraceEntries;
+    private @Nullable DummyTraceEntryOrQuery freeDummyEntries;
+    private int freeCount;
+
+    // these are pushed to by the transaction processor thread, and drained by the pool's thread
+    // once its free lists are empty
+    private final AtomicReference</*@Nullable*/ TraceEntryImpl> releasedTraceEntries =
+            new AtomicReference</*@Nullable*/ TraceEntryImpl>();
+    private final AtomicReference</*@Nullable*/ DummyTraceEntryOrQuery> releasedDummyEntries =
+            new AtomicReference</*@Nullable*/ DummyTraceEntryOrQuery>();
+    private final AtomicInteger releasedCount = new AtomicInteger();
+
+    static @Nullable TraceEntryPool getForCurrentThread() {
+        return ENABLED ? pools.get() : null;
+    }
+
+    static void logUseAfterRelease(Object entry) {
+        useAfterReleaseLogger.warn("trace entry was used after it was released for recycling,"
+                + " this can lead to incorrect data, and so -Dglowroot.internal"
+                + ".recycleTraceEntries should not be used with the plugin that is using it: {}",
+                entry.getClass().getName(), new Exception("location stack trace"));
+    }
+
+    // only called by the pool's thread
+    @Nullable
+    TraceEntryImpl acquireTraceEntry() {
+        TraceEntryImpl entry = freeTraceEntries;
+        if (entry == null) {
+            if (releasedTraceEntries.get() == null) {
+                return null;
+            }
+            entry = drainReleasedTraceEntries();
+            if (entry == null) {
+                return null;
+            }
+        }
+        freeTraceEntries = entry.getNextTraceEntry();
+        freeCount--;
+        return entry;
+    }
+
+    // only called by the pool's thread
+    @Nullable
+    DummyTraceEntryOrQuery acquireDummyEntry() {
+        DummyTraceEntryOrQuery entry = freeDummyEntries;
+        if (entry == null) {
+            if (releasedDummyEntries.get() == null) {
+                return null;
+            }
+            entry = drainReleasedDummyEntries();
+            if (entry == null) {
+                return null;
+            }
+        }
+        freeDummyEntries = entry.getNextDummyEntry();
+        freeCount--;
+        return entry;
+    }
+
+    // only called by the transaction processor thread
+    boolean hasRoomFor(int count) {
+        // freeCount is not volatile, so this is only an approximate bound
+        return freeCount + releasedCount.get() + count <= MAX_SIZE;
+    }
+
+    // only called by the transaction processor thread
+    //
+    // the entries from head to tail must already be linked together via their next trace entry
+    void releaseTraceEntries(TraceEntryImpl head, TraceEntryImpl tail, int count) {
+        releasedCount.addAndGet(count);
+        TraceEntryImpl currHead;
+        do {
+            currHead = releasedTraceEntries.get();
+            tail.setNextTraceEntry(currHead);
+        } while (!releasedTraceEntries.compareAndSet(currHead, head));
+    }
+
+    // only called by the transaction processor thread
+    //
+    // the entries from head to tail must already be linked together via their next dummy entry
+    void releaseDummyEntries(DummyTraceEntryOrQuery head, DummyTraceEntryOrQuery tail,
+            int count) {
+        releasedCount.addAndGet(count);
+        DummyTraceEntryOrQuery currHead;
+        do {
+            currHead = releasedDummyEntries.get();
+            tail.setNextDummyEntry(currHead);
+        } while (!releasedDummyEntries.compareAndSet(currHead, head));
+    }
+
+    private @Nullable TraceEntryImpl drainReleasedTraceEntries() {
+        freeCount += releasedCount.getAndSet(0);
+        return releasedTraceEntries.getAndSet(null);
+    }
+
+    private @Nullable DummyTraceEntryOrQuery drainReleasedDummyEntries() {
+        freeCount += releasedCount.getAndSet(0);
+        return releasedDummyEntries.getAndSet(null);
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2011-2019 the original author or authors.
+ * Copyright 2011-2020 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -31,17 +31,15 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Strings;
 import com.google.common.base.Ticker;
 import com.google.common.collect.ArrayListMultimap;
-import com.google.common.collect.HashMultimap;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableListMultimap;
-import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.SetMultimap;
 import com.google.common.collect.Sets;
-import com.google.common.collect.TreeMultimap;
 import com.google.common.io.BaseEncoding;
 import org.checkerframework.checker.nullness.qual.EnsuresNonNull;
 import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
@@ -93,16 +91,19 @@ public class Transaction {
 
     static final String AUXILIARY_THREAD_MESSAGE = "auxiliary thread";
 
-    // initial capacity is very important, see ThreadSafeCollectionOfTenBenchmark
-    private static final int ATTRIBUTE_KEYS_INITIAL_CAPACITY = 16;
-
-    // this is just to limit memory (and also to limit display size of trace)
-    private static final long ATTRIBUTE_VALUES_PER_KEY_LIMIT = 1000;
-
     // this is only to limit memory
     private static final int TRANSACTION_AUX_THREAD_CONTEXT_LIMIT =
             Integer.getInteger("glowroot.transaction.aux.thread.context.limit", 1000);
 
+    // once a transaction has started this many auxiliary thread contexts, further auxiliary thread
+    // contexts are coalesced (see CoalescedAuxThreadContexts), zero or negative disables coalescing
+    private static final int AUX_THREAD_CONTEXT_COALESCE_THRESHOLD =
+            Integer.getInteger("glowroot.transaction.aux.thread.context.coalesce.threshold", 0);
+
+    // number of completed coalesced auxiliary thread contexts to merge at a time
+    private static final int AUX_THREAD_CONTEXT_COALESCE_BATCH_SIZE =
+            Integer.getInteger("glowroot.transaction.aux.thread.context.coalesce.batch.size", 100);
+
     private static final StackTraceElement[] EMPTY_STACK_TRACE = new StackTraceElement[0];
 
     private static final Random random = new Random();
@@ -124,10 +125,7 @@ public class Transaction {
     private volatile @Nullable String user;
     private volatile int userPriority = Integer.MIN_VALUE;
 
-    private final Object attributesLock = new Object();
-    // lazy loaded to reduce memory when custom attributes are not used
-    @GuardedBy("attributesLock")
-    private @MonotonicNonNull SetMultimap<String, String> attributes;
+    private final TransactionAttributes attributes = new TransactionAttributes();
 
     // trace-level error
     private volatile @Nullable ErrorMessage errorMessage;
@@ -185,6 +183,12 @@ public class Transaction {
     @GuardedBy("mainThreadContext")
     private @MonotonicNonNull Set<ThreadContextImpl> unmergedLimitExceededAuxThreadContexts;
 
+    // number of auxiliary thread contexts started under the transaction-wide lock, only updated
+    // under the lock, but read outside of it to check the coalescing threshold
+    private volatile int lockedAuxThreadContextCount;
+    // this is only initialized (under the transaction-wide lock) after auxThreadContexts
+    private volatile @MonotonicNonNull CoalescedAuxThreadContexts coalescedAuxThreadContexts;
+
     private final Object asyncComponentsInitLock = new Object();
     private volatile @MonotonicNonNull AsyncComponents asyncComponents;
 
@@ -300,14 +304,7 @@ public class Transaction {
     }
 
     public SetMultimap<String, String> getAttributes() {
-        synchronized (attributesLock) {
-            if (attributes == null) {
-                return ImmutableSetMultimap.of();
-            }
-            SetMultimap<String, String> orderedAttributes = TreeMultimap.create();
-            orderedAttributes.putAll(attributes);
-            return orderedAttributes;
-        }
+        return attributes.get();
     }
 
     Map<String, ?> getDetail() {
@@ -356,12 +353,14 @@ public class Transaction {
             if (auxThreadContexts == null) {
                 return;
             }
+            Iterable<ThreadContextImpl> unmergedAuxThreadContexts =
+                    mergeCompletedAndGetUnmergedAuxThreadContexts();
             if (alreadyMergedAuxThreadTimers != null) {
                 for (MergedThreadTimer rootTimer : alreadyMergedAuxThreadTimers.getRootTimers()) {
                     rootAuxThreadTimer.addDataFrom(rootTimer);
                 }
             }
-            for (ThreadContextImpl auxThreadContext : getUnmergedAuxThreadContext()) {
+            for (ThreadContextImpl auxThreadContext : unmergedAuxThreadContexts) {
                 rootAuxThreadTimer.addDataFrom(auxThreadContext.getRootTimer());
             }
         }
@@ -388,11 +387,13 @@ public class Transaction {
             if (auxThreadContexts == null) {
                 return cpuNanos;
             }
+            Iterable<ThreadContextImpl> unmergedAuxThreadContexts =
+                    mergeCompletedAndGetUnmergedAuxThreadContexts();
             if (alreadyMergedAuxThreadStats != null) {
                 cpuNanos =
                         NotAvailableAware.add(cpuNanos, alreadyMergedAuxThreadStats.getCpuNanos());
             }
-            for (ThreadContextImpl auxThreadContext : getUnmergedAuxThreadContext()) {
+            for (ThreadContextImpl auxThreadContext : unmergedAuxThreadContexts) {
                 cpuNanos =
                         NotAvailableAware.add(cpuNanos, auxThreadContext.getCpuNanos());
             }
@@ -405,10 +406,12 @@ public class Transaction {
             if (auxThreadContexts == null) {
                 return;
             }
+            Iterable<ThreadContextImpl> unmergedAuxThreadContexts =
+                    mergeCompletedAndGetUnmergedAuxThreadContexts();
             if (alreadyMergedAuxThreadStats != null) {
                 collector.mergeThreadStats(alreadyMergedAuxThreadStats.getMergedThreadStats());
             }
-            for (ThreadContextImpl auxThreadContext : getUnmergedAuxThreadContext()) {
+            for (ThreadContextImpl auxThreadContext : unmergedAuxThreadContexts) {
                 collector.mergeThreadStats(auxThreadContext.getThreadStats());
             }
         }
@@ -419,10 +422,12 @@ public class Transaction {
         mainThreadContext.mergeQueriesInto(collector);
         synchronized (mainThreadContext) {
             if (auxThreadContexts != null) {
+                Iterable<ThreadContextImpl> unmergedAuxThreadContexts =
+                        mergeCompletedAndGetUnmergedAuxThreadContexts();
                 if (alreadyMergedAuxQueries != null) {
                     alreadyMergedAuxQueries.mergeQueriesInto(collector);
                 }
-                for (ThreadContextImpl auxThreadContext : getUnmergedAuxThreadContext()) {
+                for (ThreadContextImpl auxThreadContext : unmergedAuxThreadContexts) {
                     auxThreadContext.mergeQueriesInto(collector);
                 }
             }
@@ -467,10 +472,12 @@ public class Transaction {
         mainThreadContext.mergeServiceCallsInto(collector);
         synchronized (mainThreadContext) {
             if (auxThreadContexts != null) {
+                Iterable<ThreadContextImpl> unmergedAuxThreadContexts =
+                        mergeCompletedAndGetUnmergedAuxThreadContexts();
                 if (alreadyMergedAuxServiceCalls != null) {
                     alreadyMergedAuxServiceCalls.mergeServiceCallsInto(collector);
                 }
-                for (ThreadContextImpl auxThreadContext : getUnmergedAuxThreadContext()) {
+                for (ThreadContextImpl auxThreadContext : unmergedAuxThreadContexts) {
                     auxThreadContext.mergeServiceCallsInto(collector);
                 }
             }
@@ -640,17 +647,7 @@ public class Transaction {
     }
 
     void addAttribute(String name, @Nullable String value) {
-        synchronized (attributesLock) {
-            if (attributes == null) {
-                // no race condition here since only transaction thread calls addAttribute()
-                attributes = HashMultimap.create(ATTRIBUTE_KEYS_INITIAL_CAPACITY, 1);
-            }
-            String val = Strings.nullToEmpty(value);
-            Collection<String> values = attributes.get(name);
-            if (values.size() < ATTRIBUTE_VALUES_PER_KEY_LIMIT) {
-                values.add(val);
-            }
-        }
+        attributes.add(name, Strings.nullToEmpty(value));
     }
 
     void setError(@Nullable String message, @Nullable Throwable t) {
@@ -689,12 +686,33 @@ public class Transaction {
         checkNotNull(transactionEntry).remove();
     }
 
+    // only called by the transaction processor thread, after the transaction has been processed
+    // (and only if it was not selected for trace storage)
+    void releaseTraceEntries() {
+        if (!TraceEntryPool.ENABLED) {
+            return;
+        }
+        synchronized (mainThreadContext) {
+            mainThreadContext.releaseTraceEntries();
+            if (auxThreadContexts != null) {
+                for (ThreadContextImpl auxThreadContext : getUnmergedAuxThreadContext()) {
+                    auxThreadContext.releaseTraceEntries();
+                }
+            }
+        }
+    }
+
     @Nullable
     ThreadContextImpl startAuxThreadContext(@Nullable TraceEntryImpl parentTraceEntry,
             @Nullable TraceEntryImpl parentThreadContextPriorEntry, TimerName auxTimerName,
             long startTick, ThreadContextThreadLocal.Holder threadContextHolder,
             @Nullable ServletRequestInfo servletRequestInfo,
             @Nullable ThreadAllocatedBytes threadAllocatedBytes) {
+        if (AUX_THREAD_CONTEXT_COALESCE_THRESHOLD > 0
+                && lockedAuxThreadContextCount >= AUX_THREAD_CONTEXT_COALESCE_THRESHOLD) {
+            return startCoalescedAuxThreadContext(auxTimerName, startTick, threadContextHolder,
+                    servletRequestInfo, threadAllocatedBytes);
+        }
         ThreadContextImpl auxThreadContext;
         synchronized (mainThreadContext) {
             // check completed and add aux thread context inside synchronized block to avoid race
@@ -706,6 +724,7 @@ public class Transaction {
             if (auxThreadContexts == null) {
                 auxThreadContexts = Lists.newArrayList();
             }
+            lockedAuxThreadContextCount++;
             // conditions below for parentTraceEntry and parentThreadContextPriorEntry are redundant
             // since they will not be null until after allowAnotherAuxThreadContextWithHierarchy()
             // starts returning false
@@ -736,7 +755,57 @@ public class Transaction {
         return auxThreadContext;
     }
 
+    private @Nullable ThreadContextImpl startCoalescedAuxThreadContext(TimerName auxTimerName,
+            long startTick, ThreadContextThreadLocal.Holder threadContextHolder,
+            @Nullable ServletRequestInfo servletRequestInfo,
+            @Nullable ThreadAllocatedBytes threadAllocatedBytes) {
+        CoalescedAuxThreadContexts coalescedAuxThreadContexts =
+                getOrInitCoalescedAuxThreadContexts();
+        // no auxiliary thread context hierarchy, same as limit exceeded auxiliary thread contexts
+        ThreadContextImpl auxThreadContext = new ThreadContextImpl(this,
+                mainThreadContext.getRootEntry(), mainThreadContext.getTailEntry(),
+                AuxThreadRootMessageSupplier.INSTANCE, auxTimerName, startTick,
+                mainThreadContext.getCaptureThreadStats(), maxQueryAggregates,
+                maxServiceCallAggregates, threadAllocatedBytes, true, ticker, threadContextHolder,
+                servletRequestInfo, 0, 0);
+        coalescedAuxThreadContexts.addActive(auxThreadContext);
+        // adding to active before checking completed (both volatile) guarantees that either this
+        // sees completed, or end() sees (and detaches) this auxiliary thread context
+        if (completed) {
+            coalescedAuxThreadContexts.removeActive(auxThreadContext);
+            return null;
+        }
+        // see counterpart to this synchronization (and explanation) in ThreadContextImpl.detach()
+        synchronized (threadContextHolder) {
+            threadContextHolder.set(auxThreadContext);
+        }
+        return auxThreadContext;
+    }
+
     void mergeLimitExceededAuxThreadContext(ThreadContextImpl auxThreadContext) {
+        CoalescedAuxThreadContexts coalescedAuxThreadContexts = this.coalescedAuxThreadContexts;
+        if (coalescedAuxThreadContexts != null
+                && coalescedAuxThreadContexts.isActive(auxThreadContext)) {
+            if (auxThreadContext.hasTraceEntries()) {
+                // moved under the same lock that readers hold, so that readers see it in exactly
+                // one of the two places
+                synchronized (mainThreadContext) {
+                    checkNotNull(auxThreadContexts).add(auxThreadContext);
+                    coalescedAuxThreadContexts.removeActive(auxThreadContext);
+                }
+                return;
+            }
+            // this is not done under the mainThreadContext lock, so readers snapshot active before
+            // draining completed (see mergeCompletedAndGetUnmergedAuxThreadContexts())
+            boolean mergeNow = coalescedAuxThreadContexts.addCompleted(auxThreadContext);
+            coalescedAuxThreadContexts.removeActive(auxThreadContext);
+            if (mergeNow) {
+                synchronized (mainThreadContext) {
+                    mergeCompletedCoalescedAuxThreadContexts();
+                }
+            }
+            return;
+        }
         synchronized (mainThreadContext) {
             checkNotNull(unmergedLimitExceededAuxThreadContexts).remove(auxThreadContext);
             if (auxThreadContext.hasTraceEntries()) {
@@ -1003,6 +1072,64 @@ public class Transaction {
         mergeableAuxThreadContext.mergeServiceCallsInto(alreadyMergedAuxServiceCalls);
     }
 
+    private CoalescedAuxThreadContexts getOrInitCoalescedAuxThreadContexts() {
+        if (coalescedAuxThreadContexts == null) {
+            synchronized (mainThreadContext) {
+                if (coalescedAuxThreadContexts == null) {
+                    coalescedAuxThreadContexts = new CoalescedAuxThreadContexts(
+                            AUX_THREAD_CONTEXT_COALESCE_BATCH_SIZE);
+                }
+            }
+        }
+        return coalescedAuxThreadContexts;
+    }
+
+    // an auxiliary thread context moves from active to completed without holding the
+    // mainThreadContext lock, so active is read before draining completed, otherwise one that
+    // moves in between would be in neither (one that is in both is skipped in active)
+    @GuardedBy("mainThreadContext")
+    @RequiresNonNull("auxThreadContexts")
+    private Iterable<ThreadContextImpl> mergeCompletedAndGetUnmergedAuxThreadContexts() {
+        if (coalescedAuxThreadContexts == null) {
+            return getUnmergedNonCoalescedAuxThreadContext();
+        }
+        List<ThreadContextImpl> active =
+                ImmutableList.copyOf(coalescedAuxThreadContexts.getActive());
+        Set<ThreadContextImpl> merged = mergeCompletedCoalescedAuxThreadContexts();
+        if (!merged.isEmpty()) {
+            List<ThreadContextImpl> stillActive = Lists.newArrayList();
+            for (ThreadContextImpl auxThreadContext : active) {
+                if (!merged.contains(auxThreadContext)) {
+                    stillActive.add(auxThreadContext);
+                }
+            }
+            active = stillActive;
+        }
+        return Iterables.concat(getUnmergedNonCoalescedAuxThreadContext(), active);
+    }
+
+    // returns the auxiliary thread contexts that were merged
+    @GuardedBy("mainThreadContext")
+    private Set<ThreadContextImpl> mergeCompletedCoalescedAuxThreadContexts() {
+        if (coalescedAuxThreadContexts == null) {
+            return ImmutableSet.of();
+        }
+        CoalescedAuxThreadContexts.CompletedNode node =
+                coalescedAuxThreadContexts.drainCompleted();
+        if (node == null) {
+            return ImmutableSet.of();
+        }
+        initAlreadyMergedAuxComponentsIfNeeded();
+        Set<ThreadContextImpl> merged = Sets.newHashSet();
+        while (node != null) {
+            ThreadContextImpl auxThreadContext = node.getAuxThreadContext();
+            mergeAux(auxThreadContext);
+            merged.add(auxThreadContext);
+            node = node.getNext();
+        }
+        return merged;
+    }
+
     private AsyncComponents getOrInitAsyncComponents() {
         if (asyncComponents == null) {
             synchronized (asyncComponentsInitLock) {
@@ -1068,7 +1195,7 @@ public class Transaction {
                 continue;
             }
             auxThreadContext.detach();
-            if (!logger.isDebugEnabled()) {
+            if (!logger.isDebugEnabled() || auxThreadContext.isVirtualThread()) {
                 continue;
             }
             ThreadInfo threadInfo = ManagementFactory.getThreadMXBean()
@@ -1090,6 +1217,16 @@ public class Transaction {
     @GuardedBy("mainThreadContext")
     @RequiresNonNull("auxThreadContexts")
     private Iterable<ThreadContextImpl> getUnmergedAuxThreadContext() {
+        if (coalescedAuxThreadContexts != null) {
+            return Iterables.concat(getUnmergedNonCoalescedAuxThreadContext(),
+                    coalescedAuxThreadContexts.getActive());
+        }
+        return getUnmergedNonCoalescedAuxThreadContext();
+    }
+
+    @GuardedBy("mainThreadContext")
+    @RequiresNonNull("auxThreadContexts")
+    private Iterable<ThreadContextImpl> getUnmergedNonCoalescedAuxThreadContext() {
         if (unmergeableAuxThreadContexts == null) {
             if (unmergedLimitExceededAuxThreadContexts == null) {
                 return auxThreadContexts;
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.collect.SetMultimap;
+import com.google.common.collect.TreeMultimap;
+import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+// attributes are almost always added by the transaction thread, and there are typically only a
+// handful of them, so they are held in an immutable linked list (newest first) which is appended
+// to via compare-and-set, which means adding an attribute costs a single small allocation and no
+// lock, and the list can be read at any time by other threads (e.g. the active trace viewer)
+//
+// once the list reaches MAX_INLINE_ATTRIBUTES it is no longer appended to, and further attributes
+// go to a hash multimap guarded by a lock
+class TransactionAttributes {
+
+    private static final int MAX_INLINE_ATTRIBUTES = 64;
+
+    // this is just to limit memory (and also to limit display size of trace)
+    private static final int VALUES_PER_KEY_LIMIT = 1000;
+
+    private static final AtomicReferenceFieldUpdater<TransactionAttributes, Node> headUpdater =
+            AtomicReferenceFieldUpdater.newUpdater(TransactionAttributes.class, Node.class,
+                    "head");
+
+    private volatile @Nullable Node head;
+
+    // lazy loaded since it is only needed once the inline list is full
+    @GuardedBy("this")
+    private @MonotonicNonNull SetMultimap<String, String> overflow;
+
+    void add(String name, String value) {
+        while (true) {
+            Node currHead = head;
+            if (currHead != null && currHead.size == MAX_INLINE_ATTRIBUTES) {
+                addToOverflow(name, value, currHead);
+                return;
+            }
+            int valueCount = 0;
+            for (Node curr = currHead; curr != null; curr = curr.next) {
+                if (curr.name.equals(name)) {
+                    if (curr.value.equals(value)) {
+                        return;
+                    }
+                    valueCount++;
+                }
+            }
+            if (valueCount >= VALUES_PER_KEY_LIMIT) {
+                return;
+            }
+            if (headUpdater.compareAndSet(this, currHead, new Node(name, value, currHead))) {
+                return;
+            }
+        }
+    }
+
+    // returns attributes ordered by name and then by value
+    SetMultimap<String, String> get() {
+        Node currHead = head;
+        if (currHead == null) {
+            return ImmutableSetMultimap.of();
+        }
+        SetMultimap<String, String> orderedAttributes = TreeMultimap.create();
+        for (Node curr = currHead; curr != null; curr = curr.next) {
+            orderedAttributes.put(curr.name, curr.value);
+        }
+        if (currHead.size == MAX_INLINE_ATTRIBUTES) {
+            synchronized (this) {
+                if (overflow != null) {
+                    orderedAttributes.putAll(overflow);
+                }
+            }
+        }
+        return orderedAttributes;
+    }
+
+    // the inline list is no longer appended to once it is full, so it is safe to scan here
+    private synchronized void addToOverflow(String name, String value, Node fullHead) {
+        int valueCount = 0;
+        for (Node curr = fullHead; curr != null; curr = curr.next) {
+            if (curr.name.equals(name)) {
+                if (curr.value.equals(value)) {
+                    return;
+                }
+                valueCount++;
+            }
+        }
+        if (overflow == null) {
+            overflow = HashMultimap.create();
+        }
+        Set<String> values = overflow.get(name);
+        if (valueCount + values.size() < VALUES_PER_KEY_LIMIT) {
+            values.add(value);
+        }
+    }
+
+    private static class Node {
+
+        private final String name;
+        private final String value;
+        private final @Nullable Node next;
+        private final int size;
+
+        private Node(String name, String value, @Nullable Node next) {
+            this.name = name;
+            this.value = value;
+            this.next = next;
+            size = next == null ? 1 : next.size + 1;
+        }
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2013-2019 the original author or authors.
+ * Copyright 2013-2020 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -218,7 +218,7 @@ public class TransactionProcessor {
             // send to the trace collector before removing from transaction registry so that the
             // trace collector can cover the gap (via TraceCollector.getPendingTransactions())
             // between removing the transaction from the registry and storing it
-            traceCollector.collectTrace(transaction);
+            boolean traceQueued = traceCollector.collectTrace(transaction);
 
             transaction.removeFromActiveTransactions();
 
@@ -235,6 +235,12 @@ public class TransactionProcessor {
                 flushAndResetActiveIntervalCollector(pendingTransaction.captureTime);
             }
             activeIntervalCollector.add(transaction);
+            if (!traceQueued && !transaction.isPartiallyStored()) {
+                // the transaction's trace entries are no longer needed at this point, other than by
+                // an active trace viewer that started prior to the transaction being removed from
+                // active transactions above (which is one reason that recycling is opt-in)
+                transaction.releaseTraceEntries();
+            }
         }
 
         private void maybeEndOfInterval() {
@@ -1,5 +1,5 @@
 /*
- * Copyright 2011-2019 the original author or authors.
+ * Copyright 2011-2020 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -70,6 +70,7 @@ import org.glowroot.agent.weaving.AnalyzedWorld;
 import org.glowroot.agent.weaving.IsolatedWeavingClassLoader;
 import org.glowroot.agent.weaving.PointcutClassFileTransformer;
 import org.glowroot.agent.weaving.PreInitializeWeavingClasses;
+import org.glowroot.agent.weaving.SuperTypePrefetcher;
 import org.glowroot.agent.weaving.Weaver;
 import org.glowroot.agent.weaving.WeavingClassFileTransformer;
 import org.glowroot.common.util.Clock;
@@ -96,10 +97,12 @@ public class AgentModule {
     private final Ticker ticker;
 
     private final ConfigService configService;
+    private final File tmpDir;
     private final TransactionRegistry transactionRegistry;
     private final AdviceCache adviceCache;
     private final PreloadSomeSuperTypesCache preloadSomeSuperTypesCache;
     private final AnalyzedWorld analyzedWorld;
+    private final @Nullable SuperTypePrefetcher superTypePrefetcher;
     private final Weaver weaver;
     private final Random random;
 
@@ -133,6 +136,7 @@ public class AgentModule {
         this.clock = clock;
         this.ticker = nullableTicker == null ? Tickers.getTicker() : nullableTicker;
         this.configService = configService;
+        this.tmpDir = tmpDir;
         transactionRegistry = new TransactionRegistry();
 
         ClassFileTransformer pointcutClassFileTransformer = null;
@@ -144,15 +148,18 @@ public class AgentModule {
             instrumentation.addTransformer(pointcutClassFileTransformer);
         }
         adviceCache = new AdviceCache(pluginCache.pluginDescriptors(),
-                configService.getInstrumentationConfigs(), instrumentation, tmpDir);
+                configService.getPluginConfigs(), configService.getInstrumentationConfigs(),
+                instrumentation, tmpDir);
         if (pointcutClassFileTransformer != null) {
             checkNotNull(instrumentation).removeTransformer(pointcutClassFileTransformer);
         }
         preloadSomeSuperTypesCache = new PreloadSomeSuperTypesCache(
                 new File(tmpDir, "preload-some-super-types-cache"), 50000, clock);
+        superTypePrefetcher = SuperTypePrefetcher.create();
         analyzedWorld =
                 new AnalyzedWorld(adviceCache.getAdvisorsSupplier(), adviceCache.getShimTypes(),
-                        adviceCache.getMixinTypes(), preloadSomeSuperTypesCache);
+                        adviceCache.getMixinTypes(), preloadSomeSuperTypesCache,
+                        superTypePrefetcher);
         TimerNameCache timerNameCache = new TimerNameCache();
 
         weaver = new Weaver(adviceCache.getAdvisorsSupplier(), adviceCache.getShimTypes(),
@@ -210,6 +217,9 @@ public class AgentModule {
                     false);
             instrumentation.retransformClasses(ClassLoader.class);
         }
+        if (superTypePrefetcher != null) {
+            superTypePrefetcher.start();
+        }
 
         ManagementFactory.getThreadMXBean().setThreadCpuTimeEnabled(true);
         ManagementFactory.getThreadMXBean().setThreadContentionMonitoringEnabled(true);
@@ -294,7 +304,8 @@ public class AgentModule {
                 clock, ticker);
         liveAggregateRepository = new LiveAggregateRepositoryImpl(transactionProcessor);
         liveWeavingService = new LiveWeavingServiceImpl(analyzedWorld, instrumentation,
-                configService, adviceCache, jvmRetransformClassesSupported);
+                configService, adviceCache, jvmRetransformClassesSupported,
+                new File(tmpDir, "classpath-class-names"));
         liveJvmService = new LiveJvmServiceImpl(lazyPlatformMBeanServer, transactionRegistry,
                 traceCollector, threadAllocatedBytes.getAvailability(), configService,
                 glowrootJarFile, clock);
@@ -460,6 +471,12 @@ public class AgentModule {
         if (deadlockedActiveWeavingRunnable != null) {
             deadlockedActiveWeavingRunnable.cancel();
         }
+        if (superTypePrefetcher != null) {
+            superTypePrefetcher.close();
+        }
+        if (liveWeavingService != null) {
+            liveWeavingService.close();
+        }
     }
 
     private static class DeadlockedActiveWeavingRunnable extends ScheduledRunnable {
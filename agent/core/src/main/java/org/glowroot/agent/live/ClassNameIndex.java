@@ -0,0 +1,348 @@
+/*
+ * Copyright 2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.live;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+// immutable index of class names, matching (case-insensitive) partial class names against the
+// start of the class name or against the position right after any '.' or '$', which is the same
+// matching previously done by scanning all class names on each search
+//
+// the index is a sorted array of (class name, offset) entries, where offset is the start of the
+// class name or the position right after a '.' or '$', sorted by the class name substring starting
+// at offset, so all matches for a given partial class name are in a single contiguous range that
+// can be found using binary search
+class ClassNameIndex {
+
+    static final ClassNameIndex EMPTY = new ClassNameIndex(new String[0], new int[0], new int[0]);
+
+    // sorted (natural ordering)
+    private final String[] classNames;
+
+    // parallel arrays, see above
+    private final int[] entryClassNameIndexes;
+    private final int[] entryOffsets;
+
+    private ClassNameIndex(String[] classNames, int[] entryClassNameIndexes, int[] entryOffsets) {
+        this.classNames = classNames;
+        this.entryClassNameIndexes = entryClassNameIndexes;
+        this.entryOffsets = entryOffsets;
+    }
+
+    static ClassNameIndex create(Collection<String> classNames) {
+        return createFromSortedUnique(sortedUnique(classNames));
+    }
+
+    // returns this if there are no new class names
+    ClassNameIndex plus(Collection<String> classNames) {
+        List<String> newClassNames = Lists.newArrayList();
+        for (String className : classNames) {
+            if (!contains(className)) {
+                newClassNames.add(className);
+            }
+        }
+        if (newClassNames.isEmpty()) {
+            return this;
+        }
+        ClassNameIndex other = createFromSortedUnique(sortedUnique(newClassNames));
+        return merge(this, other);
+    }
+
+    boolean contains(String className) {
+        return Arrays.binarySearch(classNames, className) >= 0;
+    }
+
+    int size() {
+        return classNames.length;
+    }
+
+    List<String> getClassNames() {
+        return Collections.unmodifiableList(Arrays.asList(classNames));
+    }
+
+    // full matches (partial class name matches the entire class name, or the entire remainder after
+    // a '.' or '$') are returned first, followed by other matches, followed by camel case matches
+    // (e.g. "CHM" or "ConHasMap" for "ConcurrentHashMap")
+    ImmutableList<String> getMatchingClassNames(String partialClassName, int limit) {
+        Set<String> fullMatchingClassNames = Sets.newLinkedHashSet();
+        Set<String> matchingClassNames = Sets.newLinkedHashSet();
+        int i = lowerBound(partialClassName);
+        // full matches sort before all other matches in the range
+        for (; i < entryOffsets.length; i++) {
+            int classNameIndex = entryClassNameIndexes[i];
+            String className = classNames[classNameIndex];
+            int offset = entryOffsets[i];
+            if (!startsWithIgnoreCase(className, offset, partialClassName)
+                    || className.length() - offset != partialClassName.length()) {
+                break;
+            }
+            fullMatchingClassNames.add(className);
+            if (fullMatchingClassNames.size() == limit) {
+                return ImmutableList.copyOf(fullMatchingClassNames);
+            }
+        }
+        for (; i < entryOffsets.length
+                && fullMatchingClassNames.size() + matchingClassNames.size() < limit; i++) {
+            String className = classNames[entryClassNameIndexes[i]];
+            if (!startsWithIgnoreCase(className, entryOffsets[i], partialClassName)) {
+                break;
+            }
+            if (!fullMatchingClassNames.contains(className)) {
+                matchingClassNames.add(className);
+            }
+        }
+        if (fullMatchingClassNames.size() + matchingClassNames.size() < limit) {
+            addCamelCaseMatches(partialClassName, fullMatchingClassNames, matchingClassNames,
+                    limit);
+        }
+        return combineClassNamesWithLimit(fullMatchingClassNames, matchingClassNames, limit);
+    }
+
+    private void addCamelCaseMatches(String partialClassName, Set<String> fullMatchingClassNames,
+            Set<String> matchingClassNames, int limit) {
+        List<String> humps = getHumps(partialClassName);
+        if (humps.size() < 2) {
+            return;
+        }
+        String firstHump = humps.get(0);
+        for (int i = lowerBound(firstHump); i < entryOffsets.length
+                && fullMatchingClassNames.size() + matchingClassNames.size() < limit; i++) {
+            String className = classNames[entryClassNameIndexes[i]];
+            int offset = entryOffsets[i];
+            if (!startsWithIgnoreCase(className, offset, firstHump)) {
+                break;
+            }
+            if (isCamelCaseMatch(className, offset, humps)
+                    && !fullMatchingClassNames.contains(className)) {
+                matchingClassNames.add(className);
+            }
+        }
+    }
+
+    // returns index of the first entry that is greater than or equal to the partial class name
+    private int lowerBound(String partialClassName) {
+        int low = 0;
+        int high = entryOffsets.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (compareIgnoreCase(classNames[entryClassNameIndexes[mid]], entryOffsets[mid],
+                    partialClassName, 0) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static ClassNameIndex createFromSortedUnique(final String[] classNames) {
+        int entryCount = 0;
+        for (String className : classNames) {
+            entryCount += getOffsetCount(className);
+        }
+        final int[] classNameIndexes = new int[entryCount];
+        final int[] offsets = new int[entryCount];
+        int j = 0;
+        for (int i = 0; i < classNames.length; i++) {
+            String className = classNames[i];
+            classNameIndexes[j] = i;
+            offsets[j++] = 0;
+            for (int k = 0; k < className.length() - 1; k++) {
+                char c = className.charAt(k);
+                if (c == '.' || c == '$') {
+                    classNameIndexes[j] = i;
+                    offsets[j++] = k + 1;
+                }
+            }
+        }
+        Integer[] order = new Integer[entryCount];
+        for (int i = 0; i < entryCount; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer left, Integer right) {
+                return compareEntries(classNames, classNameIndexes[left], offsets[left],
+                        classNameIndexes[right], offsets[right]);
+            }
+        });
+        int[] sortedClassNameIndexes = new int[entryCount];
+        int[] sortedOffsets = new int[entryCount];
+        for (int i = 0; i < entryCount; i++) {
+            sortedClassNameIndexes[i] = classNameIndexes[order[i]];
+            sortedOffsets[i] = offsets[order[i]];
+        }
+        return new ClassNameIndex(classNames, sortedClassNameIndexes, sortedOffsets);
+    }
+
+    // linear merge, which avoids re-sorting the (typically much larger) existing index
+    private static ClassNameIndex merge(ClassNameIndex left, ClassNameIndex right) {
+        String[] classNames = new String[left.classNames.length + right.classNames.length];
+        int[] leftMapping = new int[left.classNames.length];
+        int[] rightMapping = new int[right.classNames.length];
+        int i = 0;
+        int j = 0;
+        int k = 0;
+        while (i < left.classNames.length || j < right.classNames.length) {
+            if (j == right.classNames.length || (i < left.classNames.length
+                    && left.classNames[i].compareTo(right.classNames[j]) < 0)) {
+                leftMapping[i] = k;
+                classNames[k++] = left.classNames[i++];
+            } else {
+                rightMapping[j] = k;
+                classNames[k++] = right.classNames[j++];
+            }
+        }
+        int entryCount = left.entryOffsets.length + right.entryOffsets.length;
+        int[] classNameIndexes = new int[entryCount];
+        int[] offsets = new int[entryCount];
+        i = 0;
+        j = 0;
+        k = 0;
+        while (i < left.entryOffsets.length || j < right.entryOffsets.length) {
+            boolean takeLeft;
+            if (j == right.entryOffsets.length) {
+                takeLeft = true;
+            } else if (i == left.entryOffsets.length) {
+                takeLeft = false;
+            } else {
+                takeLeft = compareEntries(classNames,
+                        leftMapping[left.entryClassNameIndexes[i]], left.entryOffsets[i],
+                        rightMapping[right.entryClassNameIndexes[j]], right.entryOffsets[j]) < 0;
+            }
+            if (takeLeft) {
+                classNameIndexes[k] = leftMapping[left.entryClassNameIndexes[i]];
+                offsets[k++] = left.entryOffsets[i++];
+            } else {
+                classNameIndexes[k] = rightMapping[right.entryClassNameIndexes[j]];
+                offsets[k++] = right.entryOffsets[j++];
+            }
+        }
+        return new ClassNameIndex(classNames, classNameIndexes, offsets);
+    }
+
+    private static String[] sortedUnique(Collection<String> classNames) {
+        String[] array = Sets.newHashSet(classNames).toArray(new String[0]);
+        Arrays.sort(array);
+        return array;
+    }
+
+    private static int getOffsetCount(String className) {
+        int count = 1;
+        for (int i = 0; i < className.length() - 1; i++) {
+            char c = className.charAt(i);
+            if (c == '.' || c == '$') {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static int compareEntries(String[] classNames, int leftClassNameIndex, int leftOffset,
+            int rightClassNameIndex, int rightOffset) {
+        int result = compareIgnoreCase(classNames[leftClassNameIndex], leftOffset,
+                classNames[rightClassNameIndex], rightOffset);
+        if (result == 0) {
+            // this makes full matches come out in class name order
+            return leftClassNameIndex - rightClassNameIndex;
+        }
+        return result;
+    }
+
+    private static int compareIgnoreCase(String left, int leftOffset, String right,
+            int rightOffset) {
+        int leftLength = left.length() - leftOffset;
+        int rightLength = right.length() - rightOffset;
+        int length = Math.min(leftLength, rightLength);
+        for (int i = 0; i < length; i++) {
+            char c1 = Character.toUpperCase(left.charAt(leftOffset + i));
+            char c2 = Character.toUpperCase(right.charAt(rightOffset + i));
+            if (c1 != c2) {
+                return c1 - c2;
+            }
+        }
+        return leftLength - rightLength;
+    }
+
+    private static boolean startsWithIgnoreCase(String className, int offset, String prefix) {
+        return className.regionMatches(true, offset, prefix, 0, prefix.length());
+    }
+
+    // splits camel case query into humps, e.g. "ConHMap" into "Con", "H", "Map"
+    private static List<String> getHumps(String partialClassName) {
+        List<String> humps = Lists.newArrayList();
+        int start = 0;
+        for (int i = 1; i < partialClassName.length(); i++) {
+            char c = partialClassName.charAt(i);
+            if (c == '.' || c == '$') {
+                // camel case matching only applies to simple names
+                return ImmutableList.of();
+            }
+            if (Character.isUpperCase(c)) {
+                humps.add(partialClassName.substring(start, i));
+                start = i;
+            }
+        }
+        humps.add(partialClassName.substring(start));
+        return humps;
+    }
+
+    // first hump is already known to match at offset
+    private static boolean isCamelCaseMatch(String className, int offset, List<String> humps) {
+        int end = offset;
+        while (end < className.length() && className.charAt(end) != '.'
+                && className.charAt(end) != '$') {
+            end++;
+        }
+        int pos = offset + humps.get(0).length();
+        for (String hump : Iterables.skip(humps, 1)) {
+            boolean found = false;
+            for (; pos <= end - hump.length(); pos++) {
+                if (Character.isUpperCase(className.charAt(pos))
+                        && className.regionMatches(true, pos, hump, 0, hump.length())) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                return false;
+            }
+            pos += hump.length();
+        }
+        return true;
+    }
+
+    private static ImmutableList<String> combineClassNamesWithLimit(
+            Set<String> fullMatchingClassNames, Set<String> matchingClassNames, int limit) {
+        if (fullMatchingClassNames.size() < limit) {
+            int space = limit - fullMatchingClassNames.size();
+            int numToAdd = Math.min(space, matchingClassNames.size());
+            fullMatchingClassNames
+                    .addAll(ImmutableList.copyOf(Iterables.limit(matchingClassNames, numToAdd)));
+        }
+        return ImmutableList.copyOf(fullMatchingClassNames);
+    }
+}
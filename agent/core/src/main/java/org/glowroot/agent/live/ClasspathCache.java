@@ -1,5 +1,5 @@
 /*
- * Copyright 2013-2018 the original author or authors.
+ * Copyright 2013-2020 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,6 +15,7 @@
  */
 package org.glowroot.agent.live;
 
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
@@ -29,10 +30,9 @@ import java.net.URL;
 import java.net.URLClassLoader;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Locale;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.jar.JarEntry;
 import java.util.jar.JarInputStream;
 import java.util.jar.Manifest;
@@ -45,7 +45,6 @@ import com.google.common.collect.HashMultimap;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMultimap;
 import com.google.common.collect.Iterables;
-import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.MultimapBuilder;
@@ -53,6 +52,7 @@ import com.google.common.collect.SetMultimap;
 import com.google.common.collect.Sets;
 import com.google.common.io.ByteStreams;
 import com.google.common.io.Closer;
+import com.google.common.io.Files;
 import com.google.common.io.Resources;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.immutables.value.Value;
@@ -66,7 +66,9 @@ import org.slf4j.LoggerFactory;
 import org.glowroot.agent.weaving.AnalyzedWorld;
 import org.glowroot.agent.weaving.ClassNames;
 
+import static com.google.common.base.Charsets.UTF_8;
 import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.objectweb.asm.Opcodes.ACC_NATIVE;
 import static org.objectweb.asm.Opcodes.ACC_SYNTHETIC;
 import static org.objectweb.asm.Opcodes.ASM7;
@@ -77,8 +79,14 @@ class ClasspathCache {
 
     private static final Logger logger = LoggerFactory.getLogger(ClasspathCache.class);
 
+    // minimum time between background refreshes triggered by class name searches
+    private static final long BACKGROUND_UPDATE_INTERVAL_NANOS = SECONDS.toNanos(5);
+
     private final AnalyzedWorld analyzedWorld;
     private final @Nullable Instrumentation instrumentation;
+    // class names are persisted so that class name search doesn't have to wait on the (slow)
+    // initial classpath scan after JVM restart
+    private final @Nullable File classNamesFile;
 
     @GuardedBy("this")
     private final Set<Location> classpathLocations = Sets.newHashSet();
@@ -88,49 +96,34 @@ class ClasspathCache {
     @GuardedBy("this")
     private ImmutableMultimap<String, Location> classNameLocations = ImmutableMultimap.of();
 
-    ClasspathCache(AnalyzedWorld analyzedWorld, @Nullable Instrumentation instrumentation) {
+    // null until first search, class name searches read this without locking
+    private volatile @Nullable ClassNameIndex classNameIndex;
+
+    // true when classNameIndex was loaded from classNamesFile and has not yet been replaced by a
+    // classpath scan (the file may contain classes that are no longer on the classpath)
+    @GuardedBy("this")
+    private boolean classNameIndexFromFile;
+
+    private final AtomicBoolean backgroundUpdateInProgress = new AtomicBoolean();
+    private volatile long lastUpdateNanos;
+
+    ClasspathCache(AnalyzedWorld analyzedWorld, @Nullable Instrumentation instrumentation,
+            @Nullable File classNamesFile) {
         this.analyzedWorld = analyzedWorld;
         this.instrumentation = instrumentation;
+        this.classNamesFile = classNamesFile;
     }
 
-    // using synchronization instead of concurrent structures in this cache to conserve memory
-    synchronized ImmutableList<String> getMatchingClassNames(String partialClassName, int limit) {
-        // update cache before proceeding
-        updateCache();
-        PartialClassNameMatcher matcher = new PartialClassNameMatcher(partialClassName);
-        Set<String> fullMatchingClassNames = Sets.newLinkedHashSet();
-        Set<String> matchingClassNames = Sets.newLinkedHashSet();
-        // also check loaded classes, e.g. for groovy classes
-        Iterator<String> i = classNameLocations.keySet().iterator();
-        if (instrumentation != null) {
-            List<String> loadedClassNames = Lists.newArrayList();
-            for (Class<?> clazz : instrumentation.getAllLoadedClasses()) {
-                if (!clazz.getName().startsWith("[")) {
-                    loadedClassNames.add(clazz.getName());
-                }
-            }
-            i = Iterators.concat(i, loadedClassNames.iterator());
-        }
-        while (i.hasNext()) {
-            String className = i.next();
-            String classNameUpper = className.toUpperCase(Locale.ENGLISH);
-            boolean potentialFullMatch = matcher.isPotentialFullMatch(classNameUpper);
-            if (matchingClassNames.size() == limit && !potentialFullMatch) {
-                // once limit reached, only consider full matches
-                continue;
-            }
-            if (fullMatchingClassNames.size() == limit) {
-                break;
-            }
-            if (matcher.isPotentialMatch(classNameUpper)) {
-                if (potentialFullMatch) {
-                    fullMatchingClassNames.add(className);
-                } else {
-                    matchingClassNames.add(className);
-                }
-            }
+    ImmutableList<String> getMatchingClassNames(String partialClassName, int limit) {
+        ClassNameIndex index = classNameIndex;
+        if (index == null) {
+            index = initClassNameIndex();
+        } else {
+            // searching against the current index instead of waiting for the update, new classes
+            // will be visible to subsequent searches
+            updateCacheInBackground();
         }
-        return combineClassNamesWithLimit(fullMatchingClassNames, matchingClassNames, limit);
+        return index.getMatchingClassNames(partialClassName, limit);
     }
 
     // using synchronization over concurrent structures in this cache to conserve memory
@@ -173,6 +166,98 @@ class ClasspathCache {
             newMap.putAll(newClassNameLocations);
             classNameLocations = ImmutableMultimap.copyOf(newMap);
         }
+        // also index loaded classes, e.g. for groovy classes
+        List<String> loadedClassNames = getLoadedClassNames();
+        ClassNameIndex currIndex = classNameIndex;
+        ClassNameIndex newIndex;
+        if (currIndex == null || classNameIndexFromFile) {
+            newIndex = ClassNameIndex
+                    .create(Lists.newArrayList(Iterables.concat(classNameLocations.keySet(),
+                            loadedClassNames)));
+            classNameIndexFromFile = false;
+        } else {
+            newIndex = currIndex.plus(Lists.newArrayList(
+                    Iterables.concat(newClassNameLocations.keySet(), loadedClassNames)));
+        }
+        classNameIndex = newIndex;
+        lastUpdateNanos = System.nanoTime();
+        if (newIndex != currIndex && classNamesFile != null) {
+            writeClassNamesFile(classNamesFile, newIndex);
+        }
+    }
+
+    private synchronized ClassNameIndex initClassNameIndex() {
+        ClassNameIndex index = classNameIndex;
+        if (index != null) {
+            return index;
+        }
+        if (classNamesFile != null && classNamesFile.exists()) {
+            try {
+                index = ClassNameIndex.create(Files.readLines(classNamesFile, UTF_8));
+            } catch (IOException e) {
+                logger.error("error reading {}: {}", classNamesFile.getAbsolutePath(),
+                        e.getMessage(), e);
+            }
+        }
+        if (index == null) {
+            updateCache();
+            return checkNotNull(classNameIndex);
+        }
+        classNameIndex = index;
+        classNameIndexFromFile = true;
+        updateCacheInBackground();
+        return index;
+    }
+
+    private void updateCacheInBackground() {
+        if (System.nanoTime() - lastUpdateNanos < BACKGROUND_UPDATE_INTERVAL_NANOS) {
+            return;
+        }
+        if (backgroundUpdateInProgress.compareAndSet(false, true)) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        updateCache();
+                    } catch (Throwable t) {
+                        logger.error(t.getMessage(), t);
+                    }
+                    backgroundUpdateInProgress.set(false);
+                }
+            });
+            thread.setName("Glowroot-Update-Classpath-Cache");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private List<String> getLoadedClassNames() {
+        if (instrumentation == null) {
+            return ImmutableList.of();
+        }
+        List<String> loadedClassNames = Lists.newArrayList();
+        for (Class<?> clazz : instrumentation.getAllLoadedClasses()) {
+            if (!clazz.getName().startsWith("[")) {
+                loadedClassNames.add(clazz.getName());
+            }
+        }
+        return loadedClassNames;
+    }
+
+    private static void writeClassNamesFile(File file, ClassNameIndex index) {
+        try {
+            BufferedWriter out = Files.newWriter(file, UTF_8);
+            try {
+                for (String className : index.getClassNames()) {
+                    out.write(className);
+                    out.newLine();
+                }
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            logger.error("error writing {}: {}", file.getAbsolutePath(), e.getMessage(), e);
+        }
     }
 
     @GuardedBy("this")
@@ -311,17 +396,6 @@ class ClasspathCache {
         }
     }
 
-    private static ImmutableList<String> combineClassNamesWithLimit(
-            Set<String> fullMatchingClassNames, Set<String> matchingClassNames, int limit) {
-        if (fullMatchingClassNames.size() < limit) {
-            int space = limit - fullMatchingClassNames.size();
-            int numToAdd = Math.min(space, matchingClassNames.size());
-            fullMatchingClassNames
-                    .addAll(ImmutableList.copyOf(Iterables.limit(matchingClassNames, numToAdd)));
-        }
-        return ImmutableList.copyOf(fullMatchingClassNames);
-    }
-
     private static List<UiAnalyzedMethod> getAnalyzedMethods(Location location, String className)
             throws IOException {
         byte[] bytes = getBytes(location, className);
@@ -517,31 +591,6 @@ class ClasspathCache {
         ImmutableList<String> exceptions();
     }
 
-    private static class PartialClassNameMatcher {
-
-        private final String partialClassNameUpper;
-        private final String prefixedPartialClassNameUpper1;
-        private final String prefixedPartialClassNameUpper2;
-
-        private PartialClassNameMatcher(String partialClassName) {
-            partialClassNameUpper = partialClassName.toUpperCase(Locale.ENGLISH);
-            prefixedPartialClassNameUpper1 = '.' + partialClassNameUpper;
-            prefixedPartialClassNameUpper2 = '$' + partialClassNameUpper;
-        }
-
-        private boolean isPotentialFullMatch(String classNameUpper) {
-            return classNameUpper.equals(partialClassNameUpper)
-                    || classNameUpper.endsWith(prefixedPartialClassNameUpper1)
-                    || classNameUpper.endsWith(prefixedPartialClassNameUpper2);
-        }
-
-        private boolean isPotentialMatch(String classNameUpper) {
-            return classNameUpper.startsWith(partialClassNameUpper)
-                    || classNameUpper.contains(prefixedPartialClassNameUpper1)
-                    || classNameUpper.contains(prefixedPartialClassNameUpper2);
-        }
-    }
-
     private static class AnalyzingClassVisitor extends ClassVisitor {
 
         private final List<UiAnalyzedMethod> analyzedMethods = Lists.newArrayList();
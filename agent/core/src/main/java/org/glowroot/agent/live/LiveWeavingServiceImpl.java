@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2019 the original author or authors.
+ * Copyright 2015-2020 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,12 +15,17 @@
  */
 package org.glowroot.agent.live;
 
+import java.io.File;
 import java.lang.instrument.Instrumentation;
 import java.lang.instrument.UnmodifiableClassException;
 import java.lang.reflect.Modifier;
 import java.util.List;
 import java.util.Locale;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Pattern;
 
 import com.google.common.annotations.VisibleForTesting;
@@ -44,16 +49,23 @@ import org.slf4j.LoggerFactory;
 
 import org.glowroot.agent.config.ConfigService;
 import org.glowroot.agent.live.ClasspathCache.UiAnalyzedMethod;
+import org.glowroot.agent.plugin.api.config.ConfigListener;
 import org.glowroot.agent.util.MaybePatterns;
+import org.glowroot.agent.util.ThreadFactories;
 import org.glowroot.agent.weaving.AdviceCache;
 import org.glowroot.agent.weaving.AnalyzedWorld;
 import org.glowroot.common.config.InstrumentationConfig;
+import org.glowroot.common.util.OnlyUsedByTests;
 import org.glowroot.common.live.LiveWeavingService;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.GlobalMeta;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.MethodSignature;
+import org.glowroot.wire.api.model.DownstreamServiceOuterClass.ReweaveResponse;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.objectweb.asm.Opcodes.ACC_FINAL;
 import static org.objectweb.asm.Opcodes.ACC_SYNCHRONIZED;
 
@@ -64,11 +76,26 @@ public class LiveWeavingServiceImpl implements LiveWeavingService {
     private static final String THE_SINGLE_KEY = "THE_SINGLE_KEY";
     private static final Splitter splitter = Splitter.on(' ').omitEmptyStrings();
 
+    private static final int RETRANSFORM_BATCH_SIZE =
+            Integer.getInteger("glowroot.internal.reweave.batchSize", 500);
+    private static final long RETRANSFORM_BATCH_PAUSE_MILLIS =
+            Long.getLong("glowroot.internal.reweave.batchPauseMillis", 20);
+
+    // loaded classes are scanned in parallel chunks of this size
+    private static final int SCAN_CHUNK_SIZE = 10000;
+
     private final AnalyzedWorld analyzedWorld;
     private final @Nullable Instrumentation instrumentation;
     private final ConfigService configService;
     private final AdviceCache adviceCache;
     private final boolean jvmRetransformClassesSupported;
+    private final @Nullable File classNamesFile;
+
+    // re-weaving after a plugin property change is performed on this single background thread so
+    // that it does not delay the config listener notification (and the other listeners) that
+    // triggered it
+    private final ExecutorService pluginConfigChangeExecutor = Executors.newSingleThreadExecutor(
+            ThreadFactories.create("Glowroot-Plugin-Config-Reweave"));
 
     // hopefully can simplify someday https://github.com/google/guava/issues/872
     private final LoadingCache<String, ClasspathCache> classpathCache = CacheBuilder.newBuilder()
@@ -77,18 +104,35 @@ public class LiveWeavingServiceImpl implements LiveWeavingService {
             .build(new CacheLoader<String, ClasspathCache>() {
                 @Override
                 public ClasspathCache load(String key) throws Exception {
-                    return new ClasspathCache(analyzedWorld, instrumentation);
+                    return new ClasspathCache(analyzedWorld, instrumentation, classNamesFile);
                 }
             });
 
     public LiveWeavingServiceImpl(AnalyzedWorld analyzedWorld,
             @Nullable Instrumentation instrumentation, ConfigService configService,
-            AdviceCache adviceCache, boolean jvmRetransformClassesSupported) {
+            AdviceCache adviceCache, boolean jvmRetransformClassesSupported,
+            @Nullable File classNamesFile) {
         this.analyzedWorld = analyzedWorld;
         this.instrumentation = instrumentation;
         this.configService = configService;
         this.adviceCache = adviceCache;
         this.jvmRetransformClassesSupported = jvmRetransformClassesSupported;
+        this.classNamesFile = classNamesFile;
+        configService.addPluginConfigListener(new ConfigListener() {
+            @Override
+            public void onChange() {
+                pluginConfigChangeExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            onPluginConfigChange();
+                        } catch (Throwable t) {
+                            logger.error(t.getMessage(), t);
+                        }
+                    }
+                });
+            }
+        });
     }
 
     @Override
@@ -172,11 +216,19 @@ public class LiveWeavingServiceImpl implements LiveWeavingService {
     }
 
     @Override
-    public int reweave(String agentId) throws Exception {
+    public ReweaveResponse reweave(String agentId) throws Exception {
+        // wait for any re-weaving from prior plugin property changes to complete first (the
+        // executor is single threaded so this empty task runs after all previously submitted tasks)
+        pluginConfigChangeExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                // nothing to do
+            }
+        }).get();
         if (instrumentation == null) {
             // this method is called from GlowrootAgentInit.resetConfigForTests() when
             // instrumentation is null
-            return 0;
+            return ReweaveResponse.getDefaultInstance();
         }
         // this command is filtered out of the UI when retransform classes is not supported
         checkState(instrumentation.isRetransformClassesSupported(),
@@ -184,6 +236,14 @@ public class LiveWeavingServiceImpl implements LiveWeavingService {
         return reweaveInternal();
     }
 
+    @OnlyUsedByTests
+    public void close() throws InterruptedException {
+        pluginConfigChangeExecutor.shutdown();
+        if (!pluginConfigChangeExecutor.awaitTermination(10, SECONDS)) {
+            throw new IllegalStateException("Could not terminate executor");
+        }
+    }
+
     private List<UiAnalyzedMethod> getAnalyzedMethods(String className, String methodName) {
         // use set to remove duplicate methods (e.g. same class loaded by multiple class loaders)
         Set<UiAnalyzedMethod> analyzedMethods = Sets.newHashSet();
@@ -201,7 +261,7 @@ public class LiveWeavingServiceImpl implements LiveWeavingService {
     }
 
     @RequiresNonNull("instrumentation")
-    private int reweaveInternal() throws Exception {
+    private synchronized ReweaveResponse reweaveInternal() throws Exception {
         List<InstrumentationConfig> configs = configService.getInstrumentationConfigs();
         adviceCache.updateAdvisors(configs);
         Set<PointcutClassName> pointcutClassNames = Sets.newHashSet();
@@ -219,7 +279,7 @@ public class LiveWeavingServiceImpl implements LiveWeavingService {
             }
         }
         Set<Class<?>> classes = Sets.newHashSet();
-        Set<Class<?>> possibleNewReweavableClasses = getExistingModifiableSubClasses(
+        Set<Class<?>> possibleNewReweavableClasses = getExistingModifiableSubClassesInParallel(
                 pointcutClassNames, instrumentation.getAllLoadedClasses(), instrumentation);
         // need to remove these classes from AnalyzedWorld, otherwise if a subclass and its parent
         // class are both in the list and the subclass is re-transformed first, it will use the
@@ -230,9 +290,11 @@ public class LiveWeavingServiceImpl implements LiveWeavingService {
         classes.addAll(existingReweavableClasses);
         classes.addAll(possibleNewReweavableClasses);
         if (classes.isEmpty()) {
-            return 0;
+            return ReweaveResponse.getDefaultInstance();
         }
-        instrumentation.retransformClasses(Iterables.toArray(classes, Class.class));
+        ReweaveResponse.Builder response = ReweaveResponse.newBuilder()
+                .setClassRetransformCount(classes.size());
+        retransformClassesInBatches(Lists.newArrayList(classes), response);
         List<Class<?>> updatedReweavableClasses =
                 analyzedWorld.getClassesWithReweavableAdvice(false);
         // all existing reweavable classes were woven
@@ -244,7 +306,95 @@ public class LiveWeavingServiceImpl implements LiveWeavingService {
                 count++;
             }
         }
-        return count;
+        return response.setClassUpdateCount(count)
+                .build();
+    }
+
+    // plugin advice that depends on a plugin property (see Pointcut.enabledByProperty()) is only
+    // woven while the property is enabled, so classes that the advice applies to need to be
+    // re-woven when the property changes
+    private synchronized void onPluginConfigChange() throws Exception {
+        Set<PointcutClassName> pointcutClassNames =
+                adviceCache.updatePluginConfigs(configService.getPluginConfigs());
+        if (pointcutClassNames.isEmpty() || instrumentation == null) {
+            // property dependent advice is always woven when retransform classes is not supported
+            // (see AdviceCache)
+            return;
+        }
+        Set<Class<?>> classes = getExistingModifiableSubClassesInParallel(pointcutClassNames,
+                instrumentation.getAllLoadedClasses(), instrumentation);
+        // need to remove these classes from AnalyzedWorld for the same reason as in
+        // reweaveInternal()
+        analyzedWorld.removeClasses(classes);
+        // interfaces are not re-woven since plugin advice is woven into the implementing classes
+        // (and re-weaving an interface that was loaded prior to weaving fails to add shim types),
+        // the exception being advice on interface default methods, which will not be updated
+        List<Class<?>> nonInterfaceClasses = Lists.newArrayList();
+        for (Class<?> clazz : classes) {
+            if (!clazz.isInterface()) {
+                nonInterfaceClasses.add(clazz);
+            }
+        }
+        if (nonInterfaceClasses.isEmpty()) {
+            return;
+        }
+        ReweaveResponse.Builder response = ReweaveResponse.newBuilder()
+                .setClassRetransformCount(nonInterfaceClasses.size());
+        retransformClassesInBatches(nonInterfaceClasses, response);
+        logger.debug("re-wove {} classes after plugin property change",
+                nonInterfaceClasses.size());
+    }
+
+    // each call to retransformClasses() stalls the application (at least the threads that need to
+    // cross a safepoint), so retransforming in bounded batches with pauses in between spreads out
+    // the stall instead of doing it all at once
+    @RequiresNonNull("instrumentation")
+    private void retransformClassesInBatches(List<Class<?>> classes,
+            ReweaveResponse.Builder response) throws Exception {
+        List<List<Class<?>>> batches = Lists.partition(classes, RETRANSFORM_BATCH_SIZE);
+        for (int i = 0; i < batches.size(); i++) {
+            if (i > 0) {
+                MILLISECONDS.sleep(RETRANSFORM_BATCH_PAUSE_MILLIS);
+            }
+            List<Class<?>> batch = batches.get(i);
+            long startTick = System.nanoTime();
+            instrumentation.retransformClasses(Iterables.toArray(batch, Class.class));
+            long durationNanos = System.nanoTime() - startTick;
+            response.addBatchDurationNanos(durationNanos);
+            logger.debug("re-transformed batch {} of {} ({} classes) in {} ms", i + 1,
+                    batches.size(), batch.size(), NANOSECONDS.toMillis(durationNanos));
+        }
+    }
+
+    // the loaded classes are scanned in parallel since there can be a very large number of them
+    private Set<Class<?>> getExistingModifiableSubClassesInParallel(
+            Set<PointcutClassName> pointcutClassNames, Class<?>[] classes,
+            Instrumentation instrumentation) throws Exception {
+        int chunkCount = (classes.length + SCAN_CHUNK_SIZE - 1) / SCAN_CHUNK_SIZE;
+        int threadCount = Math.min(chunkCount, Runtime.getRuntime().availableProcessors());
+        if (threadCount <= 1) {
+            ClassScan scan = new ClassScan();
+            scan.scan(pointcutClassNames, classes, 0, classes.length, instrumentation,
+                    analyzedWorld);
+            return scan.getMatchingSubClasses();
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount,
+                ThreadFactories.create("Glowroot-Reweave-Scan-%d"));
+        try {
+            List<Future<ClassScan>> futures = Lists.newArrayList();
+            for (int i = 0; i < classes.length; i += SCAN_CHUNK_SIZE) {
+                futures.add(executor.submit(new ClassScanTask(pointcutClassNames, classes, i,
+                        Math.min(i + SCAN_CHUNK_SIZE, classes.length), instrumentation,
+                        analyzedWorld)));
+            }
+            ClassScan scan = new ClassScan();
+            for (Future<ClassScan> future : futures) {
+                scan.addAll(future.get());
+            }
+            return scan.getMatchingSubClasses();
+        } finally {
+            executor.shutdown();
+        }
     }
 
     public static void initialReweave(Set<PointcutClassName> pointcutClassNames,
@@ -271,39 +421,9 @@ public class LiveWeavingServiceImpl implements LiveWeavingService {
     private static Set<Class<?>> getExistingModifiableSubClasses(
             Set<PointcutClassName> pointcutClassNames, Class<?>[] classes,
             Instrumentation instrumentation) {
-        List<Class<?>> matchingClasses = Lists.newArrayList();
-        Multimap<Class<?>, Class<?>> subClasses = ArrayListMultimap.create();
-        for (Class<?> clazz : classes) {
-            if (!instrumentation.isModifiableClass(clazz)) {
-                continue;
-            }
-            Class<?> superclass = clazz.getSuperclass();
-            if (superclass != null) {
-                subClasses.put(superclass, clazz);
-            }
-            for (Class<?> iface : clazz.getInterfaces()) {
-                subClasses.put(iface, clazz);
-            }
-            for (PointcutClassName pointcutClassName : pointcutClassNames) {
-                if (pointcutClassName.appliesTo(clazz.getName())) {
-                    matchingClasses.add(clazz);
-                    break;
-                }
-            }
-        }
-        Set<Class<?>> matchingSubClasses = Sets.newHashSet();
-        for (Class<?> matchingClass : matchingClasses) {
-            addToMatchingSubClasses(matchingClass, matchingSubClasses, subClasses);
-        }
-        return matchingSubClasses;
-    }
-
-    private static void addToMatchingSubClasses(Class<?> clazz, Set<Class<?>> matchingSubClasses,
-            Multimap<Class<?>, Class<?>> subClasses) {
-        matchingSubClasses.add(clazz);
-        for (Class<?> subClass : subClasses.get(clazz)) {
-            addToMatchingSubClasses(subClass, matchingSubClasses, subClasses);
-        }
+        ClassScan scan = new ClassScan();
+        scan.scan(pointcutClassNames, classes, 0, classes.length, instrumentation, null);
+        return scan.getMatchingSubClasses();
     }
 
     @VisibleForTesting
@@ -333,6 +453,97 @@ public class LiveWeavingServiceImpl implements LiveWeavingService {
         }
     }
 
+    // sub classes are keyed by super type name (instead of super type Class) so that super types
+    // can be read from the AnalyzedWorld hierarchy cache when available, instead of via reflection,
+    // which can only over-match (when the same class name is loaded by multiple class loaders),
+    // and over-matched classes are just re-transformed without any change
+    private static class ClassScan {
+
+        private final List<Class<?>> matchingClasses = Lists.newArrayList();
+        private final Multimap<String, Class<?>> subClasses = ArrayListMultimap.create();
+
+        private void scan(Set<PointcutClassName> pointcutClassNames, Class<?>[] classes, int from,
+                int to, Instrumentation instrumentation, @Nullable AnalyzedWorld analyzedWorld) {
+            for (int i = from; i < to; i++) {
+                Class<?> clazz = classes[i];
+                if (!instrumentation.isModifiableClass(clazz)) {
+                    continue;
+                }
+                List<String> superTypeNames =
+                        analyzedWorld == null ? null : analyzedWorld.getSuperTypeNames(clazz);
+                if (superTypeNames == null) {
+                    Class<?> superclass = clazz.getSuperclass();
+                    if (superclass != null) {
+                        subClasses.put(superclass.getName(), clazz);
+                    }
+                    for (Class<?> iface : clazz.getInterfaces()) {
+                        subClasses.put(iface.getName(), clazz);
+                    }
+                } else {
+                    for (String superTypeName : superTypeNames) {
+                        subClasses.put(superTypeName, clazz);
+                    }
+                }
+                for (PointcutClassName pointcutClassName : pointcutClassNames) {
+                    if (pointcutClassName.appliesTo(clazz.getName())) {
+                        matchingClasses.add(clazz);
+                        break;
+                    }
+                }
+            }
+        }
+
+        private void addAll(ClassScan scan) {
+            matchingClasses.addAll(scan.matchingClasses);
+            subClasses.putAll(scan.subClasses);
+        }
+
+        private Set<Class<?>> getMatchingSubClasses() {
+            Set<Class<?>> matchingSubClasses = Sets.newHashSet();
+            for (Class<?> matchingClass : matchingClasses) {
+                addToMatchingSubClasses(matchingClass, matchingSubClasses);
+            }
+            return matchingSubClasses;
+        }
+
+        private void addToMatchingSubClasses(Class<?> clazz, Set<Class<?>> matchingSubClasses) {
+            if (!matchingSubClasses.add(clazz)) {
+                // already visited
+                return;
+            }
+            for (Class<?> subClass : subClasses.get(clazz.getName())) {
+                addToMatchingSubClasses(subClass, matchingSubClasses);
+            }
+        }
+    }
+
+    private static class ClassScanTask implements Callable<ClassScan> {
+
+        private final Set<PointcutClassName> pointcutClassNames;
+        private final Class<?>[] classes;
+        private final int from;
+        private final int to;
+        private final Instrumentation instrumentation;
+        private final AnalyzedWorld analyzedWorld;
+
+        private ClassScanTask(Set<PointcutClassName> pointcutClassNames, Class<?>[] classes,
+                int from, int to, Instrumentation instrumentation, AnalyzedWorld analyzedWorld) {
+            this.pointcutClassNames = pointcutClassNames;
+            this.classes = classes;
+            this.from = from;
+            this.to = to;
+            this.instrumentation = instrumentation;
+            this.analyzedWorld = analyzedWorld;
+        }
+
+        @Override
+        public ClassScan call() {
+            ClassScan scan = new ClassScan();
+            scan.scan(pointcutClassNames, classes, from, to, instrumentation, analyzedWorld);
+            return scan;
+        }
+    }
+
     @Value.Immutable
     public abstract static class PointcutClassName {
 
@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2019 the original author or authors.
+ * Copyright 2015-2020 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -74,7 +74,8 @@ class ThreadDumpService {
         // so that main thread context will always appear first within a given matched transaction,
         // and its auxiliary threads will be then sorted by age
         for (ThreadContextImpl threadContext : activeThreadContexts) {
-            if (!threadContext.isActive()) {
+            if (!threadContext.isActive() || threadContext.isVirtualThread()) {
+                // virtual threads are not included in ThreadMXBean thread dumps
                 continue;
             }
             long threadId = threadContext.getThreadId();
@@ -1,5 +1,5 @@
 /*
- * Copyright 2018 the original author or authors.
+ * Copyright 2018-2020 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -27,5 +27,7 @@ public interface AggregatedTimer {
 
     AggregatedTimer newChildTimer(String name, boolean extended);
 
+    AggregatedTimer getOrCreateChildTimer(TimerNameImpl timerName);
+
     void addDataFrom(TransactionTimer timer);
 }
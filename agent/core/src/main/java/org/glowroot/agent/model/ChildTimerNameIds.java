@@ -0,0 +1,52 @@
+/*
+ * Copyright 2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+// timer name ids of an aggregated timer's child timers (parallel to its list of child timers), so
+// that transaction timers can be merged into it by comparing ints instead of timer names
+//
+// child timers that were not created from a timer name (e.g. when merging already merged timers)
+// have id -1 until they are matched by name against a timer name
+class ChildTimerNameIds {
+
+    private static final int[] EMPTY = new int[0];
+
+    private int[] ids = EMPTY;
+    private int size;
+
+    // returns the index of the child timer with the given timer name id, or -1 if not found
+    int indexOf(int timerNameId) {
+        for (int i = 0; i < size; i++) {
+            if (ids[i] == timerNameId) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // index must be <= the current number of child timers
+    void set(int index, int timerNameId) {
+        if (index == size) {
+            if (size == ids.length) {
+                int[] newIds = new int[Math.max(size << 1, 4)];
+                System.arraycopy(ids, 0, newIds, 0, size);
+                ids = newIds;
+            }
+            size++;
+        }
+        ids[index] = timerNameId;
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2018 the original author or authors.
+ * Copyright 2015-2020 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -30,6 +30,7 @@ public class MergedThreadTimer implements TransactionTimer, AggregatedTimer {
     private long count;
     private boolean active;
     private final List<MergedThreadTimer> childTimers;
+    private final ChildTimerNameIds childTimerNameIds = new ChildTimerNameIds();
 
     public static MergedThreadTimer createAuxThreadRootTimer() {
         return new MergedThreadTimer(TimerNameCache.AUXILIARY_THREAD_ROOT_TIMER_NAME, false);
@@ -96,9 +97,26 @@ public class MergedThreadTimer implements TransactionTimer, AggregatedTimer {
 
     @Override
     public AggregatedTimer newChildTimer(String name, boolean extended) {
-        MergedThreadTimer childTimer = new MergedThreadTimer(name, extended);
-        childTimers.add(childTimer);
-        return childTimer;
+        return addChildTimer(name, extended, -1);
+    }
+
+    @Override
+    public MergedThreadTimer getOrCreateChildTimer(TimerNameImpl timerName) {
+        int timerNameId = timerName.id();
+        int index = childTimerNameIds.indexOf(timerNameId);
+        if (index != -1) {
+            return childTimers.get(index);
+        }
+        String name = timerName.name();
+        boolean extended = timerName.extended();
+        for (int i = 0; i < childTimers.size(); i++) {
+            MergedThreadTimer childTimer = childTimers.get(i);
+            if (name.equals(childTimer.name) && extended == childTimer.extended) {
+                childTimerNameIds.set(i, timerNameId);
+                return childTimer;
+            }
+        }
+        return addChildTimer(name, extended, timerNameId);
     }
 
     @Override
@@ -110,6 +128,13 @@ public class MergedThreadTimer implements TransactionTimer, AggregatedTimer {
         timer.mergeChildTimersInto(this);
     }
 
+    private MergedThreadTimer addChildTimer(String name, boolean extended, int timerNameId) {
+        MergedThreadTimer childTimer = new MergedThreadTimer(name, extended);
+        childTimerNameIds.set(childTimers.size(), timerNameId);
+        childTimers.add(childTimer);
+        return childTimer;
+    }
+
     public Trace.Timer toProto() {
         Trace.Timer.Builder builder = Trace.Timer.newBuilder()
                 .setName(name)
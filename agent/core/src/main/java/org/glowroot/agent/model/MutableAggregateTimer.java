@@ -1,5 +1,5 @@
 /*
- * Copyright 2014-2018 the original author or authors.
+ * Copyright 2014-2020 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -30,6 +30,7 @@ public class MutableAggregateTimer implements AggregatedTimer {
     private double totalDurationNanos;
     private long count;
     private final List<MutableAggregateTimer> childTimers;
+    private final ChildTimerNameIds childTimerNameIds = new ChildTimerNameIds();
 
     public static MutableAggregateTimer createAuxThreadRootTimer() {
         return new MutableAggregateTimer(TimerNameCache.AUXILIARY_THREAD_ROOT_TIMER_NAME, false);
@@ -58,9 +59,26 @@ public class MutableAggregateTimer implements AggregatedTimer {
 
     @Override
     public AggregatedTimer newChildTimer(String name, boolean extended) {
-        MutableAggregateTimer childTimer = new MutableAggregateTimer(name, extended);
-        childTimers.add(childTimer);
-        return childTimer;
+        return addChildTimer(name, extended, -1);
+    }
+
+    @Override
+    public MutableAggregateTimer getOrCreateChildTimer(TimerNameImpl timerName) {
+        int timerNameId = timerName.id();
+        int index = childTimerNameIds.indexOf(timerNameId);
+        if (index != -1) {
+            return childTimers.get(index);
+        }
+        String name = timerName.name();
+        boolean extended = timerName.extended();
+        for (int i = 0; i < childTimers.size(); i++) {
+            MutableAggregateTimer childTimer = childTimers.get(i);
+            if (name.equals(childTimer.name) && extended == childTimer.extended) {
+                childTimerNameIds.set(i, timerNameId);
+                return childTimer;
+            }
+        }
+        return addChildTimer(name, extended, timerNameId);
     }
 
     @Override
@@ -70,6 +88,13 @@ public class MutableAggregateTimer implements AggregatedTimer {
         timer.mergeChildTimersInto(this);
     }
 
+    private MutableAggregateTimer addChildTimer(String name, boolean extended, int timerNameId) {
+        MutableAggregateTimer childTimer = new MutableAggregateTimer(name, extended);
+        childTimerNameIds.set(childTimers.size(), timerNameId);
+        childTimers.add(childTimer);
+        return childTimer;
+    }
+
     public Aggregate.Timer toProto() {
         Aggregate.Timer.Builder builder = Aggregate.Timer.newBuilder()
                 .setName(name)
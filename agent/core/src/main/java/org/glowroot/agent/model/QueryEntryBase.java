@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2018 the original author or authors.
+ * Copyright 2015-2020 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -24,7 +24,8 @@ import org.glowroot.agent.plugin.api.QueryEntry;
 // addresses that must be navigated)
 public abstract class QueryEntryBase implements QueryEntry {
 
-    private final @Nullable QueryData queryData;
+    // not final since instances can be recycled, see TraceEntryPool
+    private @Nullable QueryData queryData;
 
     // row numbers start at 1
     private long currRow = -1;
@@ -34,11 +35,16 @@ public abstract class QueryEntryBase implements QueryEntry {
     protected QueryEntryBase(@Nullable QueryData queryData, long startTick,
             long queryExecutionCount) {
         this.queryData = queryData;
-        // see special case for queryExecutionCount -1 in TraceEntryImpl.createCompletedErrorEntry()
-        if (queryData != null && queryExecutionCount != -1) {
-            queryData.start(startTick, queryExecutionCount);
-        }
+        startQueryData(queryData, startTick, queryExecutionCount);
+    }
 
+    // this is only used when recycling an instance that is no longer in use
+    protected void resetQueryEntry(@Nullable QueryData queryData, long startTick,
+            long queryExecutionCount) {
+        this.queryData = queryData;
+        currRow = -1;
+        maxRow = 0;
+        startQueryData(queryData, startTick, queryExecutionCount);
     }
 
     public void extendQueryData(long startTick) {
@@ -118,4 +124,12 @@ public abstract class QueryEntryBase implements QueryEntry {
     protected @Nullable String getQueryText() {
         return queryData == null ? null : queryData.getQueryText();
     }
+
+    private static void startQueryData(@Nullable QueryData queryData, long startTick,
+            long queryExecutionCount) {
+        // see special case for queryExecutionCount -1 in TraceEntryImpl.createCompletedErrorEntry()
+        if (queryData != null && queryExecutionCount != -1) {
+            queryData.start(startTick, queryExecutionCount);
+        }
+    }
 }
@@ -1,5 +1,5 @@
 /*
- * Copyright 2014-2018 the original author or authors.
+ * Copyright 2014-2020 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -28,7 +28,11 @@ import org.glowroot.common.util.Styles;
 @Styles.AllParameters
 public abstract class TimerNameImpl implements TimerName {
 
-    private static final AtomicInteger nextSpecialHashCode = new AtomicInteger();
+    // ids are assigned in registration order (each timer name also consumes an id for its
+    // extended timer), which allows nested timers with early registered timer names to be looked
+    // up by indexing into a small array (see NestedTimerMap), and allows aggregate timers to match
+    // child timers by id instead of by name
+    private static final AtomicInteger nextId = new AtomicInteger();
 
     @VisibleForTesting
     public abstract String name();
@@ -44,7 +48,7 @@ public abstract class TimerNameImpl implements TimerName {
     }
 
     @Value.Derived
-    public int specialHashCode() {
-        return nextSpecialHashCode.getAndIncrement();
+    public int id() {
+        return nextId.getAndIncrement();
     }
 }
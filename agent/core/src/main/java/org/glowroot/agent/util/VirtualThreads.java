@@ -0,0 +1,59 @@
+/*
+ * Copyright 2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.util;
+
+import java.lang.reflect.Method;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+// ThreadMXBean only reports on platform threads, e.g. ThreadMXBean.getThreadInfo() returns null
+// for the id of a virtual thread, and the thread cpu time and allocated bytes that it reports are
+// for the carrier thread which is shared by many unrelated virtual threads, so these need to be
+// skipped for virtual threads
+//
+// LIMIT DEPENDENCY USAGE IN THIS CLASS SO IT DOESN'T TRIGGER ANY CLASS LOADING ON ITS OWN
+public class VirtualThreads {
+
+    // Thread.isVirtual() was introduced in Java 19 (as preview) and finalized in Java 21
+    private static final @Nullable Method IS_VIRTUAL_METHOD = getIsVirtualMethod();
+
+    private VirtualThreads() {}
+
+    public static boolean isVirtual(Thread thread) {
+        if (IS_VIRTUAL_METHOD == null) {
+            return false;
+        }
+        try {
+            return (Boolean) IS_VIRTUAL_METHOD.invoke(thread);
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    public static boolean isSupported() {
+        return IS_VIRTUAL_METHOD != null;
+    }
+
+    private static @Nullable Method getIsVirtualMethod() {
+        try {
+            return Thread.class.getMethod("isVirtual");
+        } catch (NoSuchMethodException e) {
+            return null;
+        } catch (SecurityException e) {
+            return null;
+        }
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2014-2018 the original author or authors.
+ * Copyright 2014-2020 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -17,18 +17,28 @@ package org.glowroot.agent.weaving;
 
 import java.lang.reflect.Array;
 import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 
 import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
 class Accessor {
 
+    private static final Logger logger = LoggerFactory.getLogger(Accessor.class);
+
     private final AccessorType accessorType;
     private final @Nullable Method method;
     private final @Nullable Field field;
 
+    // this is only set (see compile()) before the accessor is published, and it is only reset to
+    // null on failure, in which case other threads may still see the non-null value for a while,
+    // but they will just fail and reset it also
+    private @Nullable CompiledAccessor compiledAccessor;
+
     static Accessor fromMethod(Method method) {
         return new Accessor(method);
     }
@@ -74,11 +84,45 @@ class Accessor {
         }
     }
 
+    // replaces reflection with generated bytecode when possible, this is only worth doing for
+    // accessors that are used repeatedly (e.g. those resolved when creating a message template)
+    void compile() {
+        switch (accessorType) {
+            case METHOD:
+                checkNotNull(method);
+                compiledAccessor = AccessorCompiler.compile(method);
+                break;
+            case FIELD:
+                checkNotNull(field);
+                compiledAccessor = AccessorCompiler.compile(field);
+                break;
+            default:
+                break;
+        }
+    }
+
+    boolean isCompiled() {
+        return compiledAccessor != null;
+    }
+
     @Nullable
     Object evaluate(Object object) throws Exception {
         if (isArrayEvaluation(object)) {
             return evaluateArray((/*@Nullable*/ Object[]) object);
         }
+        CompiledAccessor compiledAccessor = this.compiledAccessor;
+        if (compiledAccessor != null) {
+            try {
+                return compiledAccessor.evaluate(object);
+            } catch (IllegalAccessError e) {
+                // e.g. the class is in a java 9+ module that does not export its package
+                logger.debug(e.getMessage(), e);
+                this.compiledAccessor = null;
+            } catch (Throwable t) {
+                // consistent with reflective invocation
+                throw new InvocationTargetException(t);
+            }
+        }
         switch (accessorType) {
             case METHOD:
                 checkNotNull(method);
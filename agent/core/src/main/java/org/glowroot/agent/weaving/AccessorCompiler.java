@@ -0,0 +1,208 @@
+/*
+ * Copyright 2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.objectweb.asm.Opcodes.ACC_FINAL;
+import static org.objectweb.asm.Opcodes.ACC_PUBLIC;
+import static org.objectweb.asm.Opcodes.ACC_SUPER;
+import static org.objectweb.asm.Opcodes.ACONST_NULL;
+import static org.objectweb.asm.Opcodes.ALOAD;
+import static org.objectweb.asm.Opcodes.ARETURN;
+import static org.objectweb.asm.Opcodes.CHECKCAST;
+import static org.objectweb.asm.Opcodes.GETFIELD;
+import static org.objectweb.asm.Opcodes.GETSTATIC;
+import static org.objectweb.asm.Opcodes.INVOKEINTERFACE;
+import static org.objectweb.asm.Opcodes.INVOKESPECIAL;
+import static org.objectweb.asm.Opcodes.INVOKESTATIC;
+import static org.objectweb.asm.Opcodes.INVOKEVIRTUAL;
+import static org.objectweb.asm.Opcodes.RETURN;
+import static org.objectweb.asm.Opcodes.V1_5;
+
+// generates direct getter/field access bytecode for the accessors in message template paths that
+// are resolved when the message template is created, so that evaluating the template on each
+// captured call does not go through reflection
+//
+// only public members of public classes can be accessed this way, since the generated class is
+// defined in its own class loader (one per accessor, similar to the JDK's generated reflection
+// accessors, so that it can be collected along with the class that it accesses), for everything
+// else the reflective path is used
+class AccessorCompiler {
+
+    private static final Logger logger = LoggerFactory.getLogger(AccessorCompiler.class);
+
+    private static final boolean DISABLED =
+            Boolean.getBoolean("glowroot.internal.reflectiveAccessors");
+
+    private static final AtomicInteger counter = new AtomicInteger();
+
+    private AccessorCompiler() {}
+
+    static @Nullable CompiledAccessor compile(Method method) {
+        Class<?> declaringClass = method.getDeclaringClass();
+        int modifiers = method.getModifiers();
+        if (!isCompilable(declaringClass, modifiers) || method.getParameterTypes().length != 0) {
+            return null;
+        }
+        boolean isStatic = Modifier.isStatic(modifiers);
+        if (isStatic && declaringClass.isInterface()) {
+            // static interface methods require a newer class file version
+            return null;
+        }
+        int opcode;
+        if (isStatic) {
+            opcode = INVOKESTATIC;
+        } else if (declaringClass.isInterface()) {
+            opcode = INVOKEINTERFACE;
+        } else {
+            opcode = INVOKEVIRTUAL;
+        }
+        return define(declaringClass, opcode, method.getName(), Type.getMethodDescriptor(method),
+                Type.getType(method.getReturnType()), isStatic);
+    }
+
+    static @Nullable CompiledAccessor compile(Field field) {
+        Class<?> declaringClass = field.getDeclaringClass();
+        int modifiers = field.getModifiers();
+        if (!isCompilable(declaringClass, modifiers)) {
+            return null;
+        }
+        boolean isStatic = Modifier.isStatic(modifiers);
+        Type fieldType = Type.getType(field.getType());
+        return define(declaringClass, isStatic ? GETSTATIC : GETFIELD, field.getName(),
+                fieldType.getDescriptor(), fieldType, isStatic);
+    }
+
+    private static boolean isCompilable(Class<?> declaringClass, int modifiers) {
+        return !DISABLED && Modifier.isPublic(modifiers)
+                && Modifier.isPublic(declaringClass.getModifiers());
+    }
+
+    private static @Nullable CompiledAccessor define(Class<?> declaringClass, int opcode,
+            String name, String descriptor, Type valueType, boolean isStatic) {
+        String internalName =
+                "org/glowroot/agent/weaving/GeneratedAccessor" + counter.getAndIncrement();
+        String ownerInternalName = Type.getInternalName(declaringClass);
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        cw.visit(V1_5, ACC_PUBLIC + ACC_FINAL + ACC_SUPER, internalName, null, "java/lang/Object",
+                new String[] {Type.getInternalName(CompiledAccessor.class)});
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+        mv = cw.visitMethod(ACC_PUBLIC, "evaluate", "(Ljava/lang/Object;)Ljava/lang/Object;",
+                null, null);
+        mv.visitCode();
+        if (!isStatic) {
+            mv.visitVarInsn(ALOAD, 1);
+            mv.visitTypeInsn(CHECKCAST, ownerInternalName);
+        }
+        if (opcode == GETFIELD || opcode == GETSTATIC) {
+            mv.visitFieldInsn(opcode, ownerInternalName, name, descriptor);
+        } else {
+            mv.visitMethodInsn(opcode, ownerInternalName, name, descriptor,
+                    opcode == INVOKEINTERFACE);
+        }
+        box(mv, valueType);
+        mv.visitInsn(ARETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+        cw.visitEnd();
+        try {
+            AccessorClassLoader loader = new AccessorClassLoader(declaringClass.getClassLoader());
+            Class<?> clazz = loader.defineClass(internalName.replace('/', '.'), cw.toByteArray());
+            return (CompiledAccessor) clazz.newInstance();
+        } catch (Throwable t) {
+            // e.g. security manager does not allow creating class loaders
+            logger.debug(t.getMessage(), t);
+            return null;
+        }
+    }
+
+    private static void box(MethodVisitor mv, Type type) {
+        switch (type.getSort()) {
+            case Type.VOID:
+                mv.visitInsn(ACONST_NULL);
+                break;
+            case Type.BOOLEAN:
+                box(mv, "java/lang/Boolean", type);
+                break;
+            case Type.CHAR:
+                box(mv, "java/lang/Character", type);
+                break;
+            case Type.BYTE:
+                box(mv, "java/lang/Byte", type);
+                break;
+            case Type.SHORT:
+                box(mv, "java/lang/Short", type);
+                break;
+            case Type.INT:
+                box(mv, "java/lang/Integer", type);
+                break;
+            case Type.FLOAT:
+                box(mv, "java/lang/Float", type);
+                break;
+            case Type.LONG:
+                box(mv, "java/lang/Long", type);
+                break;
+            case Type.DOUBLE:
+                box(mv, "java/lang/Double", type);
+                break;
+            default:
+                // object or array, nothing to box
+                break;
+        }
+    }
+
+    private static void box(MethodVisitor mv, String boxInternalName, Type primitiveType) {
+        mv.visitMethodInsn(INVOKESTATIC, boxInternalName, "valueOf",
+                "(" + primitiveType.getDescriptor() + ")L" + boxInternalName + ";", false);
+    }
+
+    private static class AccessorClassLoader extends ClassLoader {
+
+        private AccessorClassLoader(@Nullable ClassLoader parent) {
+            super(parent);
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            if (name.equals(CompiledAccessor.class.getName())) {
+                // the parent class loader may not be able to see glowroot classes
+                return CompiledAccessor.class;
+            }
+            return super.loadClass(name, resolve);
+        }
+
+        private Class<?> defineClass(String name, byte[] bytes) {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2012-2019 the original author or authors.
+ * Copyright 2012-2020 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -33,9 +33,11 @@ import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import org.checkerframework.checker.nullness.qual.Nullable;
+import org.immutables.value.Value;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.glowroot.agent.config.PluginConfig;
 import org.glowroot.agent.config.PluginDescriptor;
 import org.glowroot.agent.live.LiveWeavingServiceImpl;
 import org.glowroot.agent.live.LiveWeavingServiceImpl.PointcutClassName;
@@ -45,7 +47,9 @@ import org.glowroot.agent.weaving.PluginDetail.MixinClass;
 import org.glowroot.agent.weaving.PluginDetail.PointcutClass;
 import org.glowroot.agent.weaving.PluginDetail.ShimClass;
 import org.glowroot.common.config.InstrumentationConfig;
+import org.glowroot.common.config.PropertyValue;
 import org.glowroot.common.util.OnlyUsedByTests;
+import org.glowroot.common.util.Styles;
 import org.glowroot.common.util.Versions;
 
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -57,21 +61,31 @@ public class AdviceCache {
     private static final AtomicInteger jarFileCounter = new AtomicInteger();
 
     private final ImmutableList<Advice> pluginAdvisors;
+    // plugin advisors that are only woven while a plugin property is enabled
+    // (see Pointcut.enabledByProperty())
+    private final ImmutableList<PropertyDependentAdvice> propertyDependentAdvisors;
     private final ImmutableList<ShimType> shimTypes;
     private final ImmutableList<MixinType> mixinTypes;
     private final @Nullable Instrumentation instrumentation;
     private final File tmpDir;
 
+    private volatile ImmutableList<Advice> enabledPropertyDependentAdvisors;
+
     private volatile ImmutableList<Advice> reweavableAdvisors;
     private volatile ImmutableSet<String> reweavableConfigVersions;
 
     private volatile ImmutableList<Advice> allAdvisors;
 
-    public AdviceCache(List<PluginDescriptor> pluginDescriptors,
+    public AdviceCache(List<PluginDescriptor> pluginDescriptors, List<PluginConfig> pluginConfigs,
             List<InstrumentationConfig> reweavableConfigs,
             @Nullable Instrumentation instrumentation, File tmpDir) throws Exception {
 
+        // advice that depends on a plugin property can only be left out while the property is
+        // disabled if the classes it applies to can be re-woven when the property changes
+        boolean retransformClassesSupported =
+                instrumentation != null && instrumentation.isRetransformClassesSupported();
         List<Advice> pluginAdvisors = Lists.newArrayList();
+        List<PropertyDependentAdvice> propertyDependentAdvisors = Lists.newArrayList();
         List<ShimType> shimTypes = Lists.newArrayList();
         List<MixinType> mixinTypes = Lists.newArrayList();
         Map<Advice, LazyDefinedClass> lazyAdvisors = Maps.newHashMap();
@@ -79,7 +93,15 @@ public class AdviceCache {
             PluginDetailBuilder builder = new PluginDetailBuilder(pluginDescriptor);
             PluginDetail pluginDetail = builder.build();
 
-            pluginAdvisors.addAll(getAdvisors(pluginDetail.pointcutClasses()));
+            for (Advice advice : getAdvisors(pluginDetail.pointcutClasses())) {
+                String propertyName = advice.pointcut().enabledByProperty();
+                if (propertyName.isEmpty() || !retransformClassesSupported) {
+                    pluginAdvisors.add(advice);
+                } else {
+                    propertyDependentAdvisors.add(ImmutablePropertyDependentAdvice
+                            .of(advice, pluginDescriptor.id(), propertyName));
+                }
+            }
             mixinTypes.addAll(getMixinTypes(pluginDetail.mixinClasses()));
             shimTypes.addAll(getShimTypes(pluginDetail.shimClasses()));
 
@@ -110,6 +132,7 @@ public class AdviceCache {
             }
         }
         this.pluginAdvisors = ImmutableList.copyOf(pluginAdvisors);
+        this.propertyDependentAdvisors = ImmutableList.copyOf(propertyDependentAdvisors);
         this.shimTypes = ImmutableList.copyOf(shimTypes);
         this.mixinTypes = ImmutableList.copyOf(mixinTypes);
         this.instrumentation = instrumentation;
@@ -117,7 +140,8 @@ public class AdviceCache {
         reweavableAdvisors =
                 createReweavableAdvisors(reweavableConfigs, instrumentation, tmpDir, true);
         reweavableConfigVersions = createReweavableConfigVersions(reweavableConfigs);
-        allAdvisors = ImmutableList.copyOf(Iterables.concat(pluginAdvisors, reweavableAdvisors));
+        enabledPropertyDependentAdvisors = getEnabledPropertyDependentAdvisors(pluginConfigs);
+        allAdvisors = createAllAdvisors();
     }
 
     public Supplier<List<Advice>> getAdvisorsSupplier() {
@@ -159,11 +183,37 @@ public class AdviceCache {
                 checkNotNull(instrumentation));
     }
 
-    public void updateAdvisors(List<InstrumentationConfig> reweavableConfigs) throws Exception {
+    public synchronized void updateAdvisors(List<InstrumentationConfig> reweavableConfigs)
+            throws Exception {
         reweavableAdvisors =
                 createReweavableAdvisors(reweavableConfigs, instrumentation, tmpDir, false);
         reweavableConfigVersions = createReweavableConfigVersions(reweavableConfigs);
-        allAdvisors = ImmutableList.copyOf(Iterables.concat(pluginAdvisors, reweavableAdvisors));
+        allAdvisors = createAllAdvisors();
+    }
+
+    // returns the pointcut class names of the advisors that were enabled or disabled, so that the
+    // classes they apply to can be re-woven
+    public synchronized Set<PointcutClassName> updatePluginConfigs(
+            List<PluginConfig> pluginConfigs) {
+        if (propertyDependentAdvisors.isEmpty()) {
+            return ImmutableSet.of();
+        }
+        ImmutableList<Advice> updatedAdvisors = getEnabledPropertyDependentAdvisors(pluginConfigs);
+        Set<PointcutClassName> pointcutClassNames = Sets.newHashSet();
+        for (Advice advice : Sets.symmetricDifference(
+                ImmutableSet.copyOf(enabledPropertyDependentAdvisors),
+                ImmutableSet.copyOf(updatedAdvisors))) {
+            PointcutClassName pointcutClassName = getPointcutClassName(advice);
+            if (pointcutClassName == null) {
+                logger.warn("cannot re-weave advice without a pointcut className: {}",
+                        advice.adviceType().getClassName());
+            } else {
+                pointcutClassNames.add(pointcutClassName);
+            }
+        }
+        enabledPropertyDependentAdvisors = updatedAdvisors;
+        allAdvisors = createAllAdvisors();
+        return pointcutClassNames;
     }
 
     public boolean isOutOfSync(List<InstrumentationConfig> reweavableConfigs) {
@@ -174,6 +224,50 @@ public class AdviceCache {
         return !versions.equals(this.reweavableConfigVersions);
     }
 
+    private ImmutableList<Advice> createAllAdvisors() {
+        return ImmutableList.copyOf(Iterables.concat(pluginAdvisors,
+                enabledPropertyDependentAdvisors, reweavableAdvisors));
+    }
+
+    private ImmutableList<Advice> getEnabledPropertyDependentAdvisors(
+            List<PluginConfig> pluginConfigs) {
+        Map<String, PluginConfig> pluginConfigMap = Maps.newHashMap();
+        for (PluginConfig pluginConfig : pluginConfigs) {
+            pluginConfigMap.put(pluginConfig.id(), pluginConfig);
+        }
+        List<Advice> advisors = Lists.newArrayList();
+        for (PropertyDependentAdvice propertyDependentAdvice : propertyDependentAdvisors) {
+            PluginConfig pluginConfig = pluginConfigMap.get(propertyDependentAdvice.pluginId());
+            if (isEnabled(pluginConfig, propertyDependentAdvice.propertyName())) {
+                advisors.add(propertyDependentAdvice.advice());
+            }
+        }
+        return ImmutableList.copyOf(advisors);
+    }
+
+    private static boolean isEnabled(@Nullable PluginConfig pluginConfig, String propertyName) {
+        if (pluginConfig == null) {
+            // this shouldn't happen since plugin configs are populated for all plugins, but weave
+            // the advice just in case since @IsEnabled still checks the property
+            return true;
+        }
+        PropertyValue propertyValue = pluginConfig.properties().get(propertyName);
+        if (propertyValue == null) {
+            logger.warn("plugin {} has no property {}", pluginConfig.id(), propertyName);
+            return true;
+        }
+        Object value = propertyValue.value();
+        if (value instanceof Boolean) {
+            return (Boolean) value;
+        } else if (value instanceof String) {
+            return !((String) value).isEmpty();
+        } else if (value instanceof List) {
+            return !((List<?>) value).isEmpty();
+        } else {
+            return value != null;
+        }
+    }
+
     private static List<Advice> getAdvisors(List<PointcutClass> adviceClasses) {
         List<Advice> advisors = Lists.newArrayList();
         for (PointcutClass adviceClass : adviceClasses) {
@@ -275,6 +369,14 @@ public class AdviceCache {
         return null;
     }
 
+    @Value.Immutable
+    @Styles.AllParameters
+    interface PropertyDependentAdvice {
+        Advice advice();
+        String pluginId();
+        String propertyName();
+    }
+
     // this method exists because tests cannot use (sometimes) shaded guava Supplier
     @OnlyUsedByTests
     public List<Advice> getAdvisors() {
@@ -1,5 +1,5 @@
 /*
- * Copyright 2012-2019 the original author or authors.
+ * Copyright 2012-2020 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -44,6 +44,7 @@ import org.slf4j.LoggerFactory;
 
 import org.glowroot.agent.impl.PreloadSomeSuperTypesCache;
 import org.glowroot.agent.weaving.ClassLoaders.LazyDefinedClass;
+import org.glowroot.agent.weaving.SuperTypePrefetcher.PrefetchedClass;
 import org.glowroot.common.config.InstrumentationConfig;
 import org.glowroot.common.util.Styles;
 
@@ -93,13 +94,18 @@ public class AnalyzedWorld {
     // only null for tests
     private final @Nullable PreloadSomeSuperTypesCache preloadSomeSuperTypesCache;
 
+    // null for tests and when disabled via -Dglowroot.internal.superTypePrefetchThreads=0
+    private final @Nullable SuperTypePrefetcher superTypePrefetcher;
+
     public AnalyzedWorld(Supplier<List<Advice>> advisors, List<ShimType> shimTypes,
             List<MixinType> mixinTypes,
-            @Nullable PreloadSomeSuperTypesCache preloadSomeSuperTypesCache) {
+            @Nullable PreloadSomeSuperTypesCache preloadSomeSuperTypesCache,
+            @Nullable SuperTypePrefetcher superTypePrefetcher) {
         this.advisors = advisors;
         this.shimTypes = ImmutableList.copyOf(shimTypes);
         this.mixinTypes = ImmutableList.copyOf(mixinTypes);
         this.preloadSomeSuperTypesCache = preloadSomeSuperTypesCache;
+        this.superTypePrefetcher = superTypePrefetcher;
     }
 
     public List<Class<?>> getClassesWithReweavableAdvice(boolean remove) {
@@ -122,6 +128,30 @@ public class AnalyzedWorld {
         }
     }
 
+    // returns the names of the super class and interfaces of an already analyzed class, without
+    // having to go through reflection, or returns null if the class has not been analyzed
+    public @Nullable List<String> getSuperTypeNames(Class<?> clazz) {
+        ClassLoader loader = clazz.getClassLoader();
+        Map<String, AnalyzedClass> loaderAnalyzedClasses =
+                loader == null ? bootstrapLoaderWorld : world.get(loader);
+        if (loaderAnalyzedClasses == null) {
+            return null;
+        }
+        AnalyzedClass analyzedClass = loaderAnalyzedClasses.get(clazz.getName());
+        if (analyzedClass == null) {
+            return null;
+        }
+        List<String> superTypeNames = Lists.newArrayList();
+        String superName = analyzedClass.superName();
+        // interfaces are analyzed with super class java.lang.Object, but Class.getSuperclass()
+        // returns null for interfaces
+        if (superName != null && !analyzedClass.isInterface()) {
+            superTypeNames.add(superName);
+        }
+        superTypeNames.addAll(analyzedClass.interfaceNames());
+        return superTypeNames;
+    }
+
     public ImmutableList<ClassLoader> getClassLoaders() {
         synchronized (world) {
             return ImmutableList.copyOf(world.keySet());
@@ -144,6 +174,30 @@ public class AnalyzedWorld {
         return getSuperClasses(className, loader, subClassName, parseContext);
     }
 
+    // the super types are passed in the order that they are about to be resolved (one at a time) by
+    // the current thread, so the first one is not worth prefetching
+    void prefetchSuperTypes(List<String> classNames, @Nullable ClassLoader loader) {
+        if (superTypePrefetcher == null || loader == null || classNames.size() < 2) {
+            return;
+        }
+        ConcurrentMap<String, AnalyzedClass> loaderAnalyzedClasses = getAnalyzedClasses(loader);
+        List<String> prefetchClassNames = Lists.newArrayList();
+        for (int i = 1; i < classNames.size(); i++) {
+            String className = classNames.get(i);
+            if (loaderAnalyzedClasses.containsKey(className)
+                    || bootstrapLoaderWorld.containsKey(className)
+                    || findLoadedClass(className, loader) != null) {
+                // already analyzed or, if already loaded, then already analyzed under its own
+                // class loader
+                continue;
+            }
+            prefetchClassNames.add(className);
+        }
+        if (!prefetchClassNames.isEmpty()) {
+            superTypePrefetcher.prefetch(prefetchClassNames, loader);
+        }
+    }
+
     static List<Advice> mergeInstrumentationAnnotations(List<Advice> advisors, byte[] classBytes,
             @Nullable ClassLoader loader, String className) {
         byte[] marker = "Lorg/glowroot/agent/api/Instrumentation$".getBytes(UTF_8);
@@ -199,6 +253,14 @@ public class AnalyzedWorld {
         ClassLoader analyzedClassLoader = analyzedClassAndLoader.analyzedClassLoader();
         superTypes.add(analyzedClass);
         String superName = analyzedClass.superName();
+        if (superTypePrefetcher != null && !analyzedClass.interfaceNames().isEmpty()) {
+            List<String> superTypeNames = Lists.newArrayList();
+            if (superName != null && !superName.equals("java.lang.Object")) {
+                superTypeNames.add(superName);
+            }
+            superTypeNames.addAll(analyzedClass.interfaceNames());
+            prefetchSuperTypes(superTypeNames, analyzedClassLoader);
+        }
         if (superName != null && !superName.equals("java.lang.Object")) {
             superTypes.addAll(
                     getSuperClasses(superName, analyzedClassLoader, className, parseContext));
@@ -228,6 +290,9 @@ public class AnalyzedWorld {
             return ImmutableAnalyzedClassAndLoader.of(analyzedClass, loader);
         }
         ClassLoader analyzedClassLoader = getAnalyzedLoader(className, loader, subClassName);
+        if (superTypePrefetcher != null && loader != null && analyzedClassLoader != loader) {
+            superTypePrefetcher.discard(className, loader);
+        }
         loaderAnalyzedClasses = getAnalyzedClasses(analyzedClassLoader);
         analyzedClass = loaderAnalyzedClasses.get(className);
         if (analyzedClass == null) {
@@ -268,11 +333,19 @@ public class AnalyzedWorld {
             throws ClassNotFoundException, IOException {
         String path = ClassNames.toInternalName(className) + ".class";
         URL url;
+        byte /*@Nullable*/ [] bytes = null;
         if (loader == null) {
             // null loader means the bootstrap class loader
             url = ClassLoader.getSystemResource(path);
         } else {
-            url = loader.getResource(path);
+            PrefetchedClass prefetchedClass = superTypePrefetcher == null ? null
+                    : superTypePrefetcher.take(className, loader);
+            if (prefetchedClass == null) {
+                url = loader.getResource(path);
+            } else {
+                url = prefetchedClass.url();
+                bytes = prefetchedClass.bytes();
+            }
             if (url != null) {
                 AnalyzedClass parentLoaderAnalyzedClass =
                         tryToReuseFromParentLoader(className, loader, path, url);
@@ -287,7 +360,9 @@ public class AnalyzedWorld {
             // org.codehaus.groovy.runtime.callsite.CallSiteClassLoader
             return createAnalyzedClassPlanB(className, loader);
         }
-        byte[] bytes = Resources.toByteArray(url);
+        if (bytes == null) {
+            bytes = Resources.toByteArray(url);
+        }
         List<Advice> advisors =
                 mergeInstrumentationAnnotations(this.advisors.get(), bytes, loader, className);
         ThinClassVisitor accv = new ThinClassVisitor();
@@ -304,6 +379,14 @@ public class AnalyzedWorld {
         ClassLoader loader = originalLoader;
         while (loader != null) {
             ClassLoader parentLoader = loader.getParent();
+            // check this first to avoid the (potentially expensive, e.g. for nested jars) resource
+            // lookup in the parent loader when there is nothing to reuse anyways
+            AnalyzedClass parentLoaderAnalyzedClass =
+                    getAnalyzedClassIfExists(className, parentLoader);
+            if (parentLoaderAnalyzedClass == null) {
+                loader = parentLoader;
+                continue;
+            }
             URL parentLoaderUrl;
             if (parentLoader == null) {
                 parentLoaderUrl = ClassLoader.getSystemResource(path);
@@ -314,14 +397,10 @@ public class AnalyzedWorld {
             // performs name resolution and is a blocking operation (from the javadoc)
             if (parentLoaderUrl != null
                     && parentLoaderUrl.toExternalForm().equals(url.toExternalForm())) {
-                // reuse parent loader's AnalyzedClass if available
+                // reuse parent loader's AnalyzedClass
                 // this saves time here, and reduces memory footprint of AnalyzedWorld
                 // which can be very noticeable when lots of ClassLoaders, e.g. groovy
-                AnalyzedClass parentLoaderAnalyzedClass =
-                        getAnalyzedClasses(parentLoader).get(className);
-                if (parentLoaderAnalyzedClass != null) {
-                    return parentLoaderAnalyzedClass;
-                }
+                return parentLoaderAnalyzedClass;
             }
             loader = parentLoader;
         }
@@ -375,6 +454,19 @@ public class AnalyzedWorld {
         }
     }
 
+    private @Nullable AnalyzedClass getAnalyzedClassIfExists(String className,
+            @Nullable ClassLoader loader) {
+        Map<String, AnalyzedClass> loaderAnalyzedClasses;
+        if (loader == null) {
+            loaderAnalyzedClasses = bootstrapLoaderWorld;
+        } else {
+            synchronized (world) {
+                loaderAnalyzedClasses = world.get(loader);
+            }
+        }
+        return loaderAnalyzedClasses == null ? null : loaderAnalyzedClasses.get(className);
+    }
+
     private ImmutableList<ConcurrentMap<String, AnalyzedClass>> getWorldValues() {
         synchronized (world) {
             return ImmutableList.copyOf(world.values());
@@ -401,12 +493,7 @@ public class AnalyzedWorld {
         // can't call Class.forName() since that bypasses ClassFileTransformer.transform() if the
         // class hasn't already been loaded, so instead, call the package protected
         // ClassLoader.findLoadedClass()
-        Class<?> clazz = null;
-        try {
-            clazz = (Class<?>) findLoadedClassMethod.invoke(loader, className);
-        } catch (Exception e) {
-            logger.error(e.getMessage(), e);
-        }
+        Class<?> clazz = findLoadedClass(className, loader);
         if (clazz == null) {
             logger.debug("super class {} of {} not found in loader {}@{}", className, subClassName,
                     loader.getClass().getName(), loader.hashCode());
@@ -424,6 +511,15 @@ public class AnalyzedWorld {
         }
     }
 
+    private static @Nullable Class<?> findLoadedClass(String className, ClassLoader loader) {
+        try {
+            return (Class<?>) findLoadedClassMethod.invoke(loader, className);
+        } catch (Exception e) {
+            logger.error(e.getMessage(), e);
+            return null;
+        }
+    }
+
     // now that the type has been loaded anyways, build the analyzed class via reflection
     private static AnalyzedClass createAnalyzedClassPlanC(Class<?> clazz, List<Advice> advisors) {
         ImmutableAnalyzedClass.Builder classBuilder = ImmutableAnalyzedClass.builder();
@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2019 the original author or authors.
+ * Copyright 2015-2020 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -125,6 +125,11 @@ class ClassAnalyzer {
         // callers, and so it doesn't seem worth the (minor) performance hit to de-dup every
         // time
         List<AnalyzedClass> superAnalyzedClasses = Lists.newArrayList();
+        List<String> superTypeNames = Lists.newArrayList(interfaceNames);
+        if (!intf && !superClassName.equals("java.lang.Object")) {
+            superTypeNames.add(superClassName);
+        }
+        analyzedWorld.prefetchSuperTypes(superTypeNames, loader);
         for (String interfaceName : interfaceNames) {
             interfaceAnalyzedHierarchy.addAll(analyzedWorld.getAnalyzedHierarchy(interfaceName,
                     loader, className, parseContext));
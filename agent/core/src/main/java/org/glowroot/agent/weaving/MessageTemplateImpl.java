@@ -1,5 +1,5 @@
 /*
- * Copyright 2013-2019 the original author or authors.
+ * Copyright 2013-2020 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -317,6 +317,8 @@ public class MessageTemplateImpl implements MessageTemplate {
                     parts.add(0, currPart);
                     break;
                 }
+                // the accessor is evaluated on every call, so worth generating bytecode for it
+                accessor.compile();
                 accessors.add(accessor);
                 currType = accessor.getValueType();
             }
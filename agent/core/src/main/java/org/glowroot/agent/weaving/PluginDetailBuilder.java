@@ -1,5 +1,5 @@
 /*
- * Copyright 2018-2019 the original author or authors.
+ * Copyright 2018-2020 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -276,6 +276,7 @@ class PluginDetailBuilder {
         private int order;
         private String suppressibleUsingKey = "";
         private String suppressionKey = "";
+        private String enabledByProperty = "";
 
         private PointcutAnnotationVisitor() {
             super(ASM7);
@@ -307,6 +308,8 @@ class PluginDetailBuilder {
                 suppressibleUsingKey = (String) value;
             } else if ("suppressionKey".equals(name)) {
                 suppressionKey = (String) value;
+            } else if ("enabledByProperty".equals(name)) {
+                enabledByProperty = (String) value;
             } else {
                 throw new IllegalStateException("Unexpected @Pointcut attribute name: " + name);
             }
@@ -385,6 +388,10 @@ class PluginDetailBuilder {
                 public String suppressionKey() {
                     return suppressionKey;
                 }
+                @Override
+                public String enabledByProperty() {
+                    return enabledByProperty;
+                }
             };
         }
     }
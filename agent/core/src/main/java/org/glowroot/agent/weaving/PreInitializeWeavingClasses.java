@@ -1,5 +1,5 @@
 /*
- * Copyright 2012-2019 the original author or authors.
+ * Copyright 2012-2020 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -402,6 +402,11 @@ public class PreInitializeWeavingClasses {
         types.add("org.glowroot.agent.weaving.PointcutClassVisitor$PointcutMethodVisitor");
         types.add("org.glowroot.agent.weaving.PublicFinalMethod");
         types.add("org.glowroot.agent.weaving.ShimType");
+        types.add("org.glowroot.agent.weaving.SuperTypePrefetcher");
+        types.add("org.glowroot.agent.weaving.SuperTypePrefetcher$1");
+        types.add("org.glowroot.agent.weaving.SuperTypePrefetcher$PendingPrefetch");
+        types.add("org.glowroot.agent.weaving.SuperTypePrefetcher$PrefetchTask");
+        types.add("org.glowroot.agent.weaving.SuperTypePrefetcher$PrefetchedClass");
         types.add("org.glowroot.agent.weaving.ThinClassVisitor");
         types.add("org.glowroot.agent.weaving.ThinClassVisitor$AnnotationCaptureMethodVisitor");
         types.add("org.glowroot.agent.weaving.ThinClassVisitor$PointcutAnnotationVisitor");
@@ -0,0 +1,295 @@
+/*
+ * Copyright 2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+import com.google.common.io.Resources;
+import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.agent.util.ThreadFactories;
+import org.glowroot.common.util.OnlyUsedByTests;
+import org.glowroot.common.util.ScheduledRunnable;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+// reads the .class file bytes of super types on background threads, so that when a class with many
+// super types is analyzed, the resource lookups and reads for its interfaces are performed in
+// parallel while the weaving thread is working its way down the super class chain
+//
+// the weaving thread never waits on a prefetch (it is in the middle of
+// ClassFileTransformer.transform() and may be holding class loader locks that the prefetch needs),
+// if the prefetch has not completed by the time the weaving thread needs it, the weaving thread
+// just reads the .class file bytes itself
+public class SuperTypePrefetcher {
+
+    private static final Logger logger = LoggerFactory.getLogger(SuperTypePrefetcher.class);
+
+    private static final int THREAD_COUNT =
+            Integer.getInteger("glowroot.internal.superTypePrefetchThreads", 2);
+
+    // bounds the memory retained by prefetches that end up not being needed, e.g. when the super
+    // type is loaded by another thread before the weaving thread gets to it, or when the analysis
+    // of the class that requested the prefetch is aborted
+    private static final int MAX_PENDING_PER_LOADER = 1000;
+
+    // prefetches are only useful during the analysis of the class that requested them, so those
+    // that have not been taken by then are expired
+    private static final long PENDING_MAX_AGE_MILLIS = SECONDS.toMillis(10);
+
+    private final int threadCount;
+
+    private volatile @MonotonicNonNull ScheduledThreadPoolExecutor executor;
+
+    // weak keys to prevent retention of class loaders (see AnalyzedWorld)
+    private final Map<ClassLoader, ConcurrentMap<String, PendingPrefetch>> pending =
+            Collections.synchronizedMap(
+                    new WeakHashMap<ClassLoader, ConcurrentMap<String, PendingPrefetch>>());
+
+    private SuperTypePrefetcher(int threadCount) {
+        this.threadCount = threadCount;
+    }
+
+    public static @Nullable SuperTypePrefetcher create() {
+        return create(THREAD_COUNT);
+    }
+
+    static @Nullable SuperTypePrefetcher create(int threadCount) {
+        if (threadCount <= 0) {
+            return null;
+        }
+        return new SuperTypePrefetcher(threadCount);
+    }
+
+    // the executor classes (e.g. java.util.concurrent.FutureTask) are instrumented by the executor
+    // plugin, so this must be called after the weaving class file transformer has been added, and
+    // not from inside of ClassFileTransformer.transform() since weaving is not re-entrant
+    public void start() {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(threadCount,
+                ThreadFactories.create("Glowroot-Super-Type-Prefetch-%d"));
+        // the threads are started and a first task is submitted here so that the threads and the
+        // executor classes are not created and loaded lazily from inside of
+        // ClassFileTransformer.transform()
+        executor.prestartAllCoreThreads();
+        executor.submit(new PrefetchTask("java.lang.Object", ClassLoader.getSystemClassLoader()));
+        new ExpirePendingTask().scheduleWithFixedDelay(executor, PENDING_MAX_AGE_MILLIS,
+                PENDING_MAX_AGE_MILLIS, MILLISECONDS);
+        this.executor = executor;
+    }
+
+    void prefetch(List<String> classNames, ClassLoader loader) {
+        ScheduledThreadPoolExecutor executor = this.executor;
+        if (executor == null) {
+            // not started yet
+            return;
+        }
+        ConcurrentMap<String, PendingPrefetch> loaderPending = getPending(loader);
+        if (loaderPending.size() + classNames.size() > MAX_PENDING_PER_LOADER) {
+            // completed prefetches are the ones retaining class file bytes, and if they have not
+            // been taken yet then they are likely not going to be
+            removeCompleted(loaderPending);
+        }
+        for (String className : classNames) {
+            if (loaderPending.size() >= MAX_PENDING_PER_LOADER
+                    || loaderPending.containsKey(className)) {
+                continue;
+            }
+            Future<PrefetchedClass> future;
+            try {
+                future = executor.submit(new PrefetchTask(className, loader));
+            } catch (RejectedExecutionException e) {
+                // executor has been shut down
+                logger.debug(e.getMessage(), e);
+                return;
+            }
+            loaderPending.putIfAbsent(className,
+                    new PendingPrefetch(future, System.currentTimeMillis()));
+        }
+    }
+
+    // returns null if the prefetch was never requested, has not completed yet, or failed, in which
+    // case the caller needs to read the .class file bytes itself
+    @Nullable
+    PrefetchedClass take(String className, ClassLoader loader) {
+        ConcurrentMap<String, PendingPrefetch> loaderPending;
+        synchronized (pending) {
+            loaderPending = pending.get(loader);
+        }
+        if (loaderPending == null) {
+            return null;
+        }
+        PendingPrefetch pendingPrefetch = loaderPending.remove(className);
+        if (pendingPrefetch == null) {
+            return null;
+        }
+        Future<PrefetchedClass> future = pendingPrefetch.future;
+        if (!future.isDone()) {
+            return null;
+        }
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            // not waiting, since future is done
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            // the caller will encounter (and log) the same error when it reads the class itself
+            logger.debug(e.getMessage(), e);
+            return null;
+        }
+    }
+
+    // called when the super type turned out not to be needed from this loader
+    void discard(String className, ClassLoader loader) {
+        ConcurrentMap<String, PendingPrefetch> loaderPending;
+        synchronized (pending) {
+            loaderPending = pending.get(loader);
+        }
+        if (loaderPending != null) {
+            loaderPending.remove(className);
+        }
+    }
+
+    @OnlyUsedByTests
+    public void close() throws InterruptedException {
+        ScheduledThreadPoolExecutor executor = this.executor;
+        if (executor == null) {
+            return;
+        }
+        executor.shutdownNow();
+        if (!executor.awaitTermination(10, SECONDS)) {
+            throw new IllegalStateException("Could not terminate executor");
+        }
+    }
+
+    private ConcurrentMap<String, PendingPrefetch> getPending(ClassLoader loader) {
+        // this synchronization is for atomicity of get/put
+        synchronized (pending) {
+            ConcurrentMap<String, PendingPrefetch> loaderPending = pending.get(loader);
+            if (loaderPending == null) {
+                // intentionally avoiding Maps.newConcurrentMap(), see AnalyzedWorld
+                loaderPending = new ConcurrentHashMap<String, PendingPrefetch>();
+                pending.put(loader, loaderPending);
+            }
+            return loaderPending;
+        }
+    }
+
+    private void expirePending() {
+        List<ConcurrentMap<String, PendingPrefetch>> loaderPendings;
+        synchronized (pending) {
+            loaderPendings =
+                    new ArrayList<ConcurrentMap<String, PendingPrefetch>>(pending.values());
+        }
+        long expireBefore = System.currentTimeMillis() - PENDING_MAX_AGE_MILLIS;
+        for (ConcurrentMap<String, PendingPrefetch> loaderPending : loaderPendings) {
+            Iterator<PendingPrefetch> i = loaderPending.values().iterator();
+            while (i.hasNext()) {
+                PendingPrefetch pendingPrefetch = i.next();
+                if (pendingPrefetch.submitTime < expireBefore) {
+                    // no point in reading the bytes if still queued
+                    pendingPrefetch.future.cancel(false);
+                    i.remove();
+                }
+            }
+        }
+    }
+
+    private static void removeCompleted(ConcurrentMap<String, PendingPrefetch> loaderPending) {
+        Iterator<PendingPrefetch> i = loaderPending.values().iterator();
+        while (i.hasNext()) {
+            if (i.next().future.isDone()) {
+                i.remove();
+            }
+        }
+    }
+
+    private static class PendingPrefetch {
+
+        private final Future<PrefetchedClass> future;
+        private final long submitTime;
+
+        private PendingPrefetch(Future<PrefetchedClass> future, long submitTime) {
+            this.future = future;
+            this.submitTime = submitTime;
+        }
+    }
+
+    static class PrefetchedClass {
+
+        private final @Nullable URL url;
+        private final byte /*@Nullable*/ [] bytes;
+
+        private PrefetchedClass(@Nullable URL url, byte /*@Nullable*/ [] bytes) {
+            this.url = url;
+            this.bytes = bytes;
+        }
+
+        // null if the loader does not expose the .class file via getResource()
+        @Nullable
+        URL url() {
+            return url;
+        }
+
+        byte /*@Nullable*/ [] bytes() {
+            return bytes;
+        }
+    }
+
+    private class ExpirePendingTask extends ScheduledRunnable {
+        @Override
+        protected void runInternal() {
+            expirePending();
+        }
+    }
+
+    private static class PrefetchTask implements Callable<PrefetchedClass> {
+
+        private final String className;
+        private final ClassLoader loader;
+
+        private PrefetchTask(String className, ClassLoader loader) {
+            this.className = className;
+            this.loader = loader;
+        }
+
+        @Override
+        public PrefetchedClass call() throws Exception {
+            URL url = loader.getResource(ClassNames.toInternalName(className) + ".class");
+            if (url == null) {
+                return new PrefetchedClass(null, null);
+            }
+            return new PrefetchedClass(url, Resources.toByteArray(url));
+        }
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2018 the original author or authors.
+ * Copyright 2015-2020 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -46,4 +46,25 @@ public class NestedTimerMapTest {
             assertThat(map.get(entry.getKey())).isEqualTo(entry.getValue());
         }
     }
+
+    @Test
+    public void testIdsBeyondIndexedArray() {
+        // given
+        NestedTimerMap map = new NestedTimerMap();
+        Map<TimerNameImpl, TimerImpl> uniqueTimers = Maps.newHashMap();
+        for (int i = 0; i < NestedTimerMap.MAX_INDEXED_ID + 100; i++) {
+            uniqueTimers.put(ImmutableTimerNameImpl.of("timer-" + i, false),
+                    mock(TimerImpl.class));
+        }
+        TimerNameImpl missingTimerName = ImmutableTimerNameImpl.of("missing", false);
+        // when
+        for (Map.Entry<TimerNameImpl, TimerImpl> entry : uniqueTimers.entrySet()) {
+            map.put(entry.getKey(), entry.getValue());
+        }
+        // then
+        for (Map.Entry<TimerNameImpl, TimerImpl> entry : uniqueTimers.entrySet()) {
+            assertThat(map.get(entry.getKey())).isEqualTo(entry.getValue());
+        }
+        assertThat(map.get(missingTimerName)).isNull();
+    }
 }
@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2018 the original author or authors.
+ * Copyright 2015-2020 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -17,11 +17,15 @@ package org.glowroot.agent.impl;
 
 import org.junit.Test;
 
+import org.glowroot.agent.impl.NopTransactionService.NopTimer;
 import org.glowroot.agent.plugin.api.Message;
 import org.glowroot.agent.plugin.api.MessageSupplier;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class TraceEntryComponentTest {
@@ -34,7 +38,7 @@ public class TraceEntryComponentTest {
         when(messageSupplier.get()).thenReturn(Message.create("abc"));
         TimerImpl timer = mock(TimerImpl.class);
         TraceEntryComponent traceEntryComponent =
-                new TraceEntryComponent(threadContext, messageSupplier, timer, 0);
+                new TraceEntryComponent(threadContext, messageSupplier, timer, 0, null);
         // when
         traceEntryComponent.popEntry(traceEntryComponent.getRootEntry(), 0);
         traceEntryComponent.popEntry(traceEntryComponent.getRootEntry(), 0);
@@ -52,7 +56,7 @@ public class TraceEntryComponentTest {
         TimerImpl timer1 = mock(TimerImpl.class);
         TimerImpl timer2 = mock(TimerImpl.class);
         TraceEntryComponent traceEntryComponent =
-                new TraceEntryComponent(threadContext, messageSupplier1, timer1, 0);
+                new TraceEntryComponent(threadContext, messageSupplier1, timer1, 0, null);
         // when
         traceEntryComponent.pushEntry(0, messageSupplier2, timer2, null, null, 0);
         traceEntryComponent.popEntry(traceEntryComponent.getRootEntry(), 0);
@@ -71,11 +75,70 @@ public class TraceEntryComponentTest {
         TimerImpl timer1 = mock(TimerImpl.class);
         TimerImpl timer2 = mock(TimerImpl.class);
         TraceEntryComponent traceEntryComponent =
-                new TraceEntryComponent(threadContext, messageSupplier1, timer1, 0);
+                new TraceEntryComponent(threadContext, messageSupplier1, timer1, 0, null);
         // when
         traceEntryComponent.pushEntry(0, messageSupplier2, timer2, null, null, 0);
         traceEntryComponent.popEntry(mock(TraceEntryImpl.class), 0);
         // then
         assertThat(traceEntryComponent.isCompleted()).isFalse();
     }
+
+    @Test
+    public void testReleasedEntriesAreRecycled() {
+        // given
+        ThreadContextImpl threadContext = mock(ThreadContextImpl.class);
+        MessageSupplier messageSupplier1 = mock(MessageSupplier.class);
+        MessageSupplier messageSupplier2 = mock(MessageSupplier.class);
+        TimerImpl timer1 = mock(TimerImpl.class);
+        TimerImpl timer2 = mock(TimerImpl.class);
+        TraceEntryPool traceEntryPool = new TraceEntryPool();
+        TraceEntryComponent traceEntryComponent1 =
+                new TraceEntryComponent(threadContext, messageSupplier1, timer1, 0, traceEntryPool);
+        TraceEntryImpl entry1 =
+                traceEntryComponent1.pushEntry(0, messageSupplier1, timer1, null, null, 0);
+        TraceEntryImpl entry2 =
+                traceEntryComponent1.pushEntry(0, messageSupplier1, timer1, null, null, 0);
+        traceEntryComponent1.releaseEntries(traceEntryPool);
+        TraceEntryComponent traceEntryComponent2 =
+                new TraceEntryComponent(threadContext, messageSupplier2, timer2, 0, traceEntryPool);
+        // when
+        TraceEntryImpl entry3 =
+                traceEntryComponent2.pushEntry(0, messageSupplier2, timer2, null, null, 0);
+        TraceEntryImpl entry4 =
+                traceEntryComponent2.pushEntry(0, messageSupplier2, timer2, null, null, 0);
+        TraceEntryImpl entry5 =
+                traceEntryComponent2.pushEntry(0, messageSupplier2, timer2, null, null, 0);
+        // then
+        assertThat(entry3).isSameAs(entry1);
+        assertThat(entry4).isSameAs(entry2);
+        assertThat(entry5).isNotSameAs(entry1).isNotSameAs(entry2);
+        assertThat(entry3.getParentTraceEntry()).isSameAs(traceEntryComponent2.getRootEntry());
+        assertThat(entry4.getParentTraceEntry()).isSameAs(entry3);
+        assertThat(entry4.getMessageSupplier()).isSameAs(messageSupplier2);
+        assertThat(traceEntryComponent2.getRootEntry().getNextTraceEntry()).isSameAs(entry3);
+        assertThat(entry3.getNextTraceEntry()).isSameAs(entry4);
+        assertThat(entry4.getNextTraceEntry()).isSameAs(entry5);
+        assertThat(entry5.getNextTraceEntry()).isNull();
+    }
+
+    @Test
+    public void testReleasedEntryIsNotUsable() {
+        // given
+        ThreadContextImpl threadContext = mock(ThreadContextImpl.class);
+        MessageSupplier messageSupplier1 = mock(MessageSupplier.class);
+        MessageSupplier messageSupplier2 = mock(MessageSupplier.class);
+        TimerImpl timer1 = mock(TimerImpl.class);
+        TimerImpl timer2 = mock(TimerImpl.class);
+        TraceEntryPool traceEntryPool = new TraceEntryPool();
+        TraceEntryComponent traceEntryComponent =
+                new TraceEntryComponent(threadContext, messageSupplier1, timer1, 0, traceEntryPool);
+        TraceEntryImpl entry =
+                traceEntryComponent.pushEntry(0, messageSupplier2, timer2, null, null, 0);
+        // when
+        traceEntryComponent.releaseEntries(traceEntryPool);
+        entry.end();
+        // then
+        verify(timer2, never()).end(anyLong());
+        assertThat(entry.extend()).isSameAs(NopTimer.INSTANCE);
+    }
 }
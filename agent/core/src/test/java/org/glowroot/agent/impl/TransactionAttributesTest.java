@@ -0,0 +1,75 @@
+/*
+ * Copyright 2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import com.google.common.collect.SetMultimap;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TransactionAttributesTest {
+
+    @Test
+    public void shouldReturnEmpty() {
+        assertThat(new TransactionAttributes().get().isEmpty()).isTrue();
+    }
+
+    @Test
+    public void shouldOrderAndIgnoreDuplicates() {
+        // given
+        TransactionAttributes attributes = new TransactionAttributes();
+        // when
+        attributes.add("b", "2");
+        attributes.add("a", "y");
+        attributes.add("b", "1");
+        attributes.add("a", "x");
+        attributes.add("b", "2");
+        // then
+        SetMultimap<String, String> result = attributes.get();
+        assertThat(result.keySet()).containsExactly("a", "b");
+        assertThat(result.get("a")).containsExactly("x", "y");
+        assertThat(result.get("b")).containsExactly("1", "2");
+    }
+
+    @Test
+    public void shouldOverflowInlineAttributes() {
+        // given
+        TransactionAttributes attributes = new TransactionAttributes();
+        // when
+        for (int i = 0; i < 100; i++) {
+            attributes.add("key" + (i % 10), "value" + i);
+        }
+        attributes.add("key0", "value0");
+        attributes.add("key0", "value90");
+        // then
+        SetMultimap<String, String> result = attributes.get();
+        assertThat(result.keySet()).hasSize(10);
+        assertThat(result.size()).isEqualTo(100);
+        assertThat(result.get("key0")).hasSize(10);
+    }
+
+    @Test
+    public void shouldLimitValuesPerKey() {
+        // given
+        TransactionAttributes attributes = new TransactionAttributes();
+        // when
+        for (int i = 0; i < 2000; i++) {
+            attributes.add("key", "value" + i);
+        }
+        // then
+        assertThat(attributes.get().get("key")).hasSize(1000);
+    }
+}
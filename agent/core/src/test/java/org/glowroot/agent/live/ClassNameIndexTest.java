@@ -0,0 +1,107 @@
+/*
+ * Copyright 2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.live;
+
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ClassNameIndexTest {
+
+    private static final ClassNameIndex index = ClassNameIndex.create(ImmutableList.of(
+            "java.util.concurrent.ConcurrentHashMap",
+            "java.util.HashMap",
+            "java.util.Map",
+            "java.util.Map$Entry",
+            "java.util.AbstractMap$SimpleEntry",
+            "com.example.MapUtil",
+            "com.example.mapping.Mapper"));
+
+    @Test
+    public void shouldMatchPrefix() {
+        // when
+        List<String> classNames = index.getMatchingClassNames("java.util.Has", 10);
+        // then
+        assertThat(classNames).containsExactly("java.util.HashMap");
+    }
+
+    @Test
+    public void shouldMatchAfterDotOrDollar() {
+        // when
+        List<String> classNames = index.getMatchingClassNames("entry", 10);
+        // then
+        assertThat(classNames).containsExactly("java.util.Map$Entry");
+    }
+
+    @Test
+    public void shouldReturnFullMatchesFirst() {
+        // when
+        List<String> classNames = index.getMatchingClassNames("map", 10);
+        // then
+        assertThat(classNames).startsWith("java.util.Map");
+        assertThat(classNames).containsOnly("java.util.Map", "java.util.Map$Entry",
+                "com.example.MapUtil", "com.example.mapping.Mapper");
+    }
+
+    @Test
+    public void shouldHitLimit() {
+        // when
+        List<String> classNames = index.getMatchingClassNames("map", 2);
+        // then
+        assertThat(classNames).hasSize(2);
+        assertThat(classNames.get(0)).isEqualTo("java.util.Map");
+    }
+
+    @Test
+    public void shouldMatchCamelCase() {
+        // when
+        List<String> classNames = index.getMatchingClassNames("ConHMap", 10);
+        // then
+        assertThat(classNames).containsExactly("java.util.concurrent.ConcurrentHashMap");
+    }
+
+    @Test
+    public void shouldMatchCamelCaseAcrossSimpleNameOnly() {
+        // when
+        List<String> classNames = index.getMatchingClassNames("MapE", 10);
+        // then
+        assertThat(classNames).isEmpty();
+    }
+
+    @Test
+    public void shouldAddClassNames() {
+        // when
+        ClassNameIndex newIndex = index.plus(
+                ImmutableList.of("java.util.Map", "java.util.TreeMap", "a.TreeMapper"));
+        // then
+        assertThat(newIndex.size()).isEqualTo(index.size() + 2);
+        assertThat(newIndex.getClassNames()).isSorted();
+        assertThat(newIndex.getMatchingClassNames("treemap", 10))
+                .containsExactly("java.util.TreeMap", "a.TreeMapper");
+        assertThat(index.contains("java.util.TreeMap")).isFalse();
+    }
+
+    @Test
+    public void shouldReturnSameIndexWhenNothingAdded() {
+        // when
+        ClassNameIndex newIndex = index.plus(ImmutableList.of("java.util.Map"));
+        // then
+        assertThat(newIndex).isSameAs(index);
+    }
+}
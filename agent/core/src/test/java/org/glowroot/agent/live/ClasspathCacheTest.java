@@ -45,7 +45,7 @@ public class ClasspathCacheTest {
                 ImmutableList.of(badUrlsClassLoader, ClassLoader.getSystemClassLoader()));
         Instrumentation instrumentation = mock(Instrumentation.class);
         when(instrumentation.getAllLoadedClasses()).thenReturn(new Class[] {A.class});
-        classpathCache = new ClasspathCache(analyzedWorld, instrumentation);
+        classpathCache = new ClasspathCache(analyzedWorld, instrumentation, null);
     }
 
     @Test
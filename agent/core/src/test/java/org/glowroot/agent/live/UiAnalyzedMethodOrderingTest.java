@@ -37,7 +37,7 @@ public class UiAnalyzedMethodOrderingTest {
         AnalyzedWorld analyzedWorld = mock(AnalyzedWorld.class);
         when(analyzedWorld.getClassLoaders())
                 .thenReturn(ImmutableList.of(UiAnalyzedMethodOrderingTest.class.getClassLoader()));
-        ClasspathCache classpathCache = new ClasspathCache(analyzedWorld, null);
+        ClasspathCache classpathCache = new ClasspathCache(analyzedWorld, null, null);
         List<UiAnalyzedMethod> methods = classpathCache.getAnalyzedMethods(A.class.getName());
 
         // when
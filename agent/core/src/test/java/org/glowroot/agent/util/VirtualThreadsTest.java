@@ -0,0 +1,52 @@
+/*
+ * Copyright 2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.util;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class VirtualThreadsTest {
+
+    @Test
+    public void shouldNotDetectPlatformThread() {
+        assertThat(VirtualThreads.isVirtual(Thread.currentThread())).isFalse();
+        assertThat(VirtualThreads.isVirtual(new Thread())).isFalse();
+    }
+
+    @Test
+    public void shouldDetectVirtualThread() throws Exception {
+        if (!VirtualThreads.isSupported()) {
+            return;
+        }
+        // given
+        final AtomicBoolean virtual = new AtomicBoolean();
+        Runnable runnable = new Runnable() {
+            @Override
+            public void run() {
+                virtual.set(VirtualThreads.isVirtual(Thread.currentThread()));
+            }
+        };
+        // when
+        Thread thread = (Thread) Thread.class.getMethod("startVirtualThread", Runnable.class)
+                .invoke(null, runnable);
+        thread.join();
+        // then
+        assertThat(virtual.get()).isTrue();
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+import org.glowroot.agent.util.Reflections;
+import org.glowroot.agent.weaving.MessageTemplateImpl.PathEvaluator;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AccessorCompilerTest {
+
+    @Test
+    public void shouldCompileGetterMethod() throws Exception {
+        // given
+        Accessor accessor = Accessor.fromMethod(PublicObject.class.getMethod("getName"));
+        // when
+        accessor.compile();
+        // then
+        assertThat(accessor.isCompiled()).isTrue();
+        assertThat(accessor.evaluate(new PublicObject())).isEqualTo("abc");
+    }
+
+    @Test
+    public void shouldCompileAndBoxPrimitiveGetterMethod() throws Exception {
+        // given
+        Accessor accessor = Accessor.fromMethod(PublicObject.class.getMethod("isEnabled"));
+        // when
+        accessor.compile();
+        // then
+        assertThat(accessor.isCompiled()).isTrue();
+        assertThat(accessor.evaluate(new PublicObject())).isEqualTo(true);
+    }
+
+    @Test
+    public void shouldCompileFieldAccess() throws Exception {
+        // given
+        Accessor accessor = Accessor.fromField(PublicObject.class.getField("port"));
+        // when
+        accessor.compile();
+        // then
+        assertThat(accessor.isCompiled()).isTrue();
+        assertThat(accessor.evaluate(new PublicObject())).isEqualTo(6379L);
+    }
+
+    @Test
+    public void shouldCompileInterfaceMethod() throws Exception {
+        // given
+        Accessor accessor = Accessor.fromMethod(List.class.getMethod("size"));
+        // when
+        accessor.compile();
+        // then
+        assertThat(accessor.isCompiled()).isTrue();
+        assertThat(accessor.evaluate(ImmutableList.of("a", "b"))).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldNotCompileNonPublicClass() throws Exception {
+        // given
+        Accessor accessor = Accessor.fromMethod(
+                Reflections.getAnyMethod(PackagePrivateObject.class, "getName"));
+        // when
+        accessor.compile();
+        // then
+        assertThat(accessor.isCompiled()).isFalse();
+        assertThat(accessor.evaluate(new PackagePrivateObject())).isEqualTo("xyz");
+    }
+
+    @Test
+    public void shouldWrapExceptionLikeReflection() throws Exception {
+        // given
+        Accessor accessor = Accessor.fromMethod(PublicObject.class.getMethod("getError"));
+        accessor.compile();
+        // when
+        Exception exception = null;
+        try {
+            accessor.evaluate(new PublicObject());
+        } catch (Exception e) {
+            exception = e;
+        }
+        // then
+        assertThat(exception).isInstanceOf(InvocationTargetException.class);
+        assertThat(exception.getCause()).isInstanceOf(IllegalStateException.class);
+    }
+
+    @Test
+    public void shouldEvaluateCompiledNestedArrayPath() throws Exception {
+        // given
+        PathEvaluator pathEvaluator = PathEvaluator.create(PublicObject.class, "children.name");
+        // when
+        Object[] value = (Object[]) pathEvaluator.evaluateOnBase(new PublicObject());
+        // then
+        assertThat(value).containsExactly("child", "child");
+    }
+
+    public static class PublicObject {
+
+        public final long port = 6379;
+
+        public String getName() {
+            return "abc";
+        }
+
+        public boolean isEnabled() {
+            return true;
+        }
+
+        public String getError() {
+            throw new IllegalStateException("abc");
+        }
+
+        public Child[] getChildren() {
+            return new Child[] {new Child(), new Child()};
+        }
+    }
+
+    public static class Child {
+
+        public String getName() {
+            return "child";
+        }
+    }
+
+    static class PackagePrivateObject {
+
+        public String getName() {
+            return "xyz";
+        }
+    }
+}
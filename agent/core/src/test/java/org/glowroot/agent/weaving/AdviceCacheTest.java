@@ -0,0 +1,216 @@
+/*
+ * Copyright 2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.io.File;
+import java.lang.instrument.Instrumentation;
+import java.util.List;
+import java.util.Set;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.agent.config.ImmutablePluginConfig;
+import org.glowroot.agent.config.ImmutablePluginDescriptor;
+import org.glowroot.agent.config.PluginConfig;
+import org.glowroot.agent.config.PluginDescriptor;
+import org.glowroot.agent.live.LiveWeavingServiceImpl.PointcutClassName;
+import org.glowroot.agent.plugin.api.weaving.OnBefore;
+import org.glowroot.agent.plugin.api.weaving.Pointcut;
+import org.glowroot.common.config.InstrumentationConfig;
+import org.glowroot.common.config.PropertyValue;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class AdviceCacheTest {
+
+    private static final PluginDescriptor PLUGIN_DESCRIPTOR = ImmutablePluginDescriptor.builder()
+            .id("test")
+            .name("Test")
+            .addAspects(PropertyDependentAspect.class.getName())
+            .build();
+
+    private Instrumentation instrumentation;
+    private File tmpDir;
+
+    @Before
+    public void beforeEachTest() {
+        instrumentation = mock(Instrumentation.class);
+        when(instrumentation.isRetransformClassesSupported()).thenReturn(true);
+        tmpDir = Files.createTempDir();
+    }
+
+    @After
+    public void afterEachTest() {
+        File[] files = tmpDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        tmpDir.delete();
+    }
+
+    @Test
+    public void shouldOnlyIncludeEnabledPropertyDependentAdvisors() throws Exception {
+        // given
+        PluginConfig pluginConfig = createPluginConfig(true, "", ImmutableList.of("x"));
+        // when
+        AdviceCache adviceCache = createAdviceCache(pluginConfig);
+        // then
+        assertThat(getClassNames(adviceCache)).containsOnly("test.Always", "test.Boolean",
+                "test.List");
+    }
+
+    @Test
+    public void shouldIncludeAllAdvisorsWhenRetransformNotSupported() throws Exception {
+        // given
+        when(instrumentation.isRetransformClassesSupported()).thenReturn(false);
+        PluginConfig pluginConfig = createPluginConfig(false, "", ImmutableList.<String>of());
+        // when
+        AdviceCache adviceCache = createAdviceCache(pluginConfig);
+        // then
+        assertThat(getClassNames(adviceCache)).containsOnly("test.Always", "test.Boolean",
+                "test.String", "test.List");
+    }
+
+    @Test
+    public void shouldReturnChangedAdvisorsOnPropertyChange() throws Exception {
+        // given
+        AdviceCache adviceCache =
+                createAdviceCache(createPluginConfig(true, "", ImmutableList.of("x")));
+        // when
+        Set<PointcutClassName> pointcutClassNames = adviceCache.updatePluginConfigs(
+                ImmutableList.of(createPluginConfig(false, "abc", ImmutableList.of("x"))));
+        // then
+        assertThat(pointcutClassNames).containsOnly(
+                PointcutClassName.fromNonPattern("test.Boolean", null, false),
+                PointcutClassName.fromNonPattern("test.String", null, false));
+        assertThat(getClassNames(adviceCache)).containsOnly("test.Always", "test.String",
+                "test.List");
+    }
+
+    @Test
+    public void shouldReturnChangedAdvisorsOnListPropertyChange() throws Exception {
+        // given
+        AdviceCache adviceCache =
+                createAdviceCache(createPluginConfig(true, "", ImmutableList.of("x")));
+        // when
+        Set<PointcutClassName> pointcutClassNames = adviceCache.updatePluginConfigs(
+                ImmutableList.of(createPluginConfig(true, "", ImmutableList.<String>of())));
+        // then
+        assertThat(pointcutClassNames)
+                .containsOnly(PointcutClassName.fromNonPattern("test.List", null, false));
+        assertThat(getClassNames(adviceCache)).containsOnly("test.Always", "test.Boolean");
+    }
+
+    @Test
+    public void shouldReturnNothingWhenNoPropertyChange() throws Exception {
+        // given
+        AdviceCache adviceCache =
+                createAdviceCache(createPluginConfig(true, "", ImmutableList.of("x")));
+        // when
+        Set<PointcutClassName> pointcutClassNames = adviceCache.updatePluginConfigs(
+                ImmutableList.of(createPluginConfig(true, "", ImmutableList.of("y"))));
+        // then
+        assertThat(pointcutClassNames).isEmpty();
+        assertThat(getClassNames(adviceCache)).containsOnly("test.Always", "test.Boolean",
+                "test.List");
+    }
+
+    @Test
+    public void shouldIncludeAdvisorsWhenPropertyMissing() throws Exception {
+        // given
+        PluginConfig pluginConfig = ImmutablePluginConfig.builder()
+                .pluginDescriptor(PLUGIN_DESCRIPTOR)
+                .build();
+        // when
+        AdviceCache adviceCache = createAdviceCache(pluginConfig);
+        // then
+        assertThat(getClassNames(adviceCache)).containsOnly("test.Always", "test.Boolean",
+                "test.String", "test.List");
+    }
+
+    @Test
+    public void shouldIncludeAdvisorsWhenPluginConfigMissing() throws Exception {
+        // when
+        AdviceCache adviceCache = new AdviceCache(ImmutableList.of(PLUGIN_DESCRIPTOR),
+                ImmutableList.<PluginConfig>of(), ImmutableList.<InstrumentationConfig>of(),
+                instrumentation, tmpDir);
+        // then
+        assertThat(getClassNames(adviceCache)).containsOnly("test.Always", "test.Boolean",
+                "test.String", "test.List");
+    }
+
+    private AdviceCache createAdviceCache(PluginConfig pluginConfig) throws Exception {
+        return new AdviceCache(ImmutableList.of(PLUGIN_DESCRIPTOR), ImmutableList.of(pluginConfig),
+                ImmutableList.<InstrumentationConfig>of(), instrumentation, tmpDir);
+    }
+
+    private static PluginConfig createPluginConfig(boolean booleanValue, String stringValue,
+            List<String> listValue) {
+        return ImmutablePluginConfig.builder()
+                .pluginDescriptor(PLUGIN_DESCRIPTOR)
+                .putProperties("booleanProperty", new PropertyValue(booleanValue))
+                .putProperties("stringProperty", new PropertyValue(stringValue))
+                .putProperties("listProperty", new PropertyValue(listValue))
+                .build();
+    }
+
+    private static List<String> getClassNames(AdviceCache adviceCache) {
+        List<String> classNames = Lists.newArrayList();
+        for (Advice advice : adviceCache.getAdvisors()) {
+            classNames.add(advice.pointcut().className());
+        }
+        return classNames;
+    }
+
+    public static class PropertyDependentAspect {
+
+        @Pointcut(className = "test.Always", methodName = "execute", methodParameterTypes = {})
+        public static class AlwaysAdvice {
+            @OnBefore
+            public static void onBefore() {}
+        }
+
+        @Pointcut(className = "test.Boolean", methodName = "execute", methodParameterTypes = {},
+                enabledByProperty = "booleanProperty")
+        public static class BooleanAdvice {
+            @OnBefore
+            public static void onBefore() {}
+        }
+
+        @Pointcut(className = "test.String", methodName = "execute", methodParameterTypes = {},
+                enabledByProperty = "stringProperty")
+        public static class StringAdvice {
+            @OnBefore
+            public static void onBefore() {}
+        }
+
+        @Pointcut(className = "test.List", methodName = "execute", methodParameterTypes = {},
+                enabledByProperty = "listProperty")
+        public static class ListAdvice {
+            @OnBefore
+            public static void onBefore() {}
+        }
+    }
+}
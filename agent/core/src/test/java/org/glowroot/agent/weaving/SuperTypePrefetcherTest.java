@@ -0,0 +1,130 @@
+/*
+ * Copyright 2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.net.URL;
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.io.Resources;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.agent.weaving.SuperTypePrefetcher.PrefetchedClass;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SuperTypePrefetcherTest {
+
+    private SuperTypePrefetcher superTypePrefetcher;
+    private ClassLoader loader;
+
+    @Before
+    public void beforeEachTest() throws Exception {
+        superTypePrefetcher = SuperTypePrefetcher.create(2);
+        superTypePrefetcher.start();
+        loader = SuperTypePrefetcherTest.class.getClassLoader();
+    }
+
+    @After
+    public void afterEachTest() throws InterruptedException {
+        superTypePrefetcher.close();
+    }
+
+    @Test
+    public void shouldNotCreateWithZeroThreads() {
+        assertThat(SuperTypePrefetcher.create(0)).isNull();
+    }
+
+    @Test
+    public void shouldPrefetch() throws Exception {
+        // given
+        String className = SuperTypePrefetcherTest.class.getName();
+        // when
+        superTypePrefetcher.prefetch(ImmutableList.of(className), loader);
+        PrefetchedClass prefetchedClass = takeWhenDone(className);
+        // then
+        URL url = loader.getResource(ClassNames.toInternalName(className) + ".class");
+        assertThat(prefetchedClass.url().toExternalForm()).isEqualTo(url.toExternalForm());
+        assertThat(prefetchedClass.bytes()).isEqualTo(Resources.toByteArray(url));
+        assertThat(superTypePrefetcher.take(className, loader)).isNull();
+    }
+
+    @Test
+    public void shouldPrefetchNonExistentClass() throws Exception {
+        // given
+        String className = "org.glowroot.agent.weaving.DoesNotExist";
+        // when
+        superTypePrefetcher.prefetch(ImmutableList.of(className), loader);
+        PrefetchedClass prefetchedClass = takeWhenDone(className);
+        // then
+        assertThat(prefetchedClass.url()).isNull();
+        assertThat(prefetchedClass.bytes()).isNull();
+    }
+
+    @Test
+    public void shouldNotTakeDiscarded() throws Exception {
+        // given
+        String className = SuperTypePrefetcherTest.class.getName();
+        superTypePrefetcher.prefetch(ImmutableList.of(className), loader);
+        // when
+        superTypePrefetcher.discard(className, loader);
+        // then
+        MILLISECONDS.sleep(100);
+        assertThat(superTypePrefetcher.take(className, loader)).isNull();
+    }
+
+    @Test
+    public void shouldPrefetchAfterLimitReachedByCompletedPrefetches() throws Exception {
+        // given
+        List<String> classNames = Lists.newArrayList();
+        for (int i = 0; i < 1000; i++) {
+            classNames.add("org.glowroot.agent.weaving.DoesNotExist" + i);
+        }
+        superTypePrefetcher.prefetch(classNames, loader);
+        String className = SuperTypePrefetcherTest.class.getName();
+        // when
+        superTypePrefetcher.prefetch(ImmutableList.of(className), loader);
+        PrefetchedClass prefetchedClass = takeWhenDone(className);
+        // then
+        assertThat(prefetchedClass.bytes()).isNotNull();
+    }
+
+    @Test
+    public void shouldNotTakeNotPrefetched() {
+        assertThat(superTypePrefetcher.take(SuperTypePrefetcherTest.class.getName(), loader))
+                .isNull();
+    }
+
+    // take() intentionally does not wait for the prefetch to complete, so need to re-submit until
+    // it has had a chance to complete
+    private PrefetchedClass takeWhenDone(String className) throws InterruptedException {
+        long startNanos = System.nanoTime();
+        while (System.nanoTime() - startNanos < SECONDS.toNanos(10)) {
+            MILLISECONDS.sleep(10);
+            PrefetchedClass prefetchedClass = superTypePrefetcher.take(className, loader);
+            if (prefetchedClass != null) {
+                return prefetchedClass;
+            }
+            superTypePrefetcher.prefetch(ImmutableList.of(className), loader);
+        }
+        throw new AssertionError("prefetch did not complete within 10 seconds");
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2012-2019 the original author or authors.
+ * Copyright 2012-2020 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,7 +15,8 @@
  */
 package org.glowroot.agent.embedded.util;
 
-import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FilterOutputStream;
 import java.io.IOException;
@@ -24,26 +25,33 @@ import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
 
 import com.google.common.base.StandardSystemProperty;
 import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.io.ByteSource;
 import com.google.common.io.CharSource;
 import com.google.common.io.CountingOutputStream;
-import com.google.common.primitives.Longs;
 import com.google.protobuf.AbstractMessage;
 import com.google.protobuf.MessageLite;
 import com.google.protobuf.Parser;
-import com.ning.compress.lzf.LZFInputStream;
+import com.ning.compress.lzf.ChunkDecoder;
 import com.ning.compress.lzf.LZFOutputStream;
 import com.ning.compress.lzf.util.ChunkDecoderFactory;
 import com.ning.compress.lzf.util.ChunkEncoderFactory;
@@ -60,6 +68,13 @@ public class CappedDatabase {
 
     private static final Logger logger = LoggerFactory.getLogger(CappedDatabase.class);
 
+    // decompressed bytes
+    private static final long BLOCK_CACHE_SIZE_BYTES =
+            Integer.getInteger("glowroot.internal.cappedDatabase.blockCacheSizeKb", 4096) * 1024L;
+
+    // so that a single large block does not evict everything else
+    private static final long MAX_CACHED_BLOCK_SIZE_BYTES = BLOCK_CACHE_SIZE_BYTES / 8;
+
     private static final boolean USE_SAFE_LZF_ENCODER;
 
     static {
@@ -77,10 +92,25 @@ public class CappedDatabase {
     @GuardedBy("lock")
     private final CappedDatabaseOutputStream out;
     private final Thread shutdownHookThread;
-    @GuardedBy("lock")
+    // reads do not hold lock (so they do not wait on writes), they only hold the read lock of
+    // inFileLock which is held exclusively while inFile is closed or re-opened (e.g. during resize)
+    private final ReadWriteLock inFileLock = new ReentrantReadWriteLock();
+    @GuardedBy("inFileLock")
     private RandomAccessFile inFile;
     private volatile boolean closed = false;
 
+    // decompressed blocks keyed by capped id, capped ids are never reused so cached blocks never
+    // need to be updated, but they still need to be checked against isOverwritten() on each read
+    private final Cache<Long, byte[]> blockCache = CacheBuilder.newBuilder()
+            .maximumWeight(BLOCK_CACHE_SIZE_BYTES)
+            .weigher(new Weigher<Long, byte[]>() {
+                @Override
+                public int weigh(Long cappedId, byte[] block) {
+                    return block.length;
+                }
+            })
+            .build();
+
     private final Ticker ticker;
     private final Map<String, CappedDatabaseStats> statsByType = Maps.newHashMap();
 
@@ -176,20 +206,13 @@ public class CappedDatabase {
             // glowroot.capped.db
             return null;
         }
-        // it's important to wrap CappedBlockInputStream in a BufferedInputStream to prevent
-        // lots of small reads from the underlying RandomAccessFile
-        final int bufferSize = 32768;
-        InputStream input = newLZFInputStream(
-                new BufferedInputStream(new CappedBlockInputStream(cappedId), bufferSize));
         try {
-            return parser.parseFrom(input);
+            return parser.parseFrom(readBlock(cappedId));
         } catch (Exception e) {
             if (!out.isOverwritten(cappedId)) {
                 logger.error(e.getMessage(), e);
             }
             return null;
-        } finally {
-            input.close();
         }
     }
 
@@ -206,15 +229,11 @@ public class CappedDatabase {
             // glowroot.capped.db
             return ImmutableList.of();
         }
-        // it's important to wrap CappedBlockInputStream in a BufferedInputStream to prevent
-        // lots of small reads from the underlying RandomAccessFile
-        final int bufferSize = 32768;
-        InputStream input = newLZFInputStream(
-                new BufferedInputStream(new CappedBlockInputStream(cappedId), bufferSize));
         SizeLimitBypassingParser<T> sizeLimitBypassingParser =
                 new SizeLimitBypassingParser<T>(parser);
         List<T> messages = Lists.newArrayList();
         try {
+            InputStream input = new ByteArrayInputStream(readBlock(cappedId));
             T message;
             while ((message = sizeLimitBypassingParser.parseDelimitedFrom(input)) != null) {
                 messages.add(message);
@@ -224,8 +243,6 @@ public class CappedDatabase {
                 logger.error(e.getMessage(), e);
             }
             return ImmutableList.of();
-        } finally {
-            input.close();
         }
         return messages;
     }
@@ -248,9 +265,14 @@ public class CappedDatabase {
             if (closed) {
                 return;
             }
-            inFile.close();
-            out.resize(newSizeKb);
-            inFile = new RandomAccessFile(file, "r");
+            inFileLock.writeLock().lock();
+            try {
+                inFile.close();
+                out.resize(newSizeKb);
+                inFile = new RandomAccessFile(file, "r");
+            } finally {
+                inFileLock.writeLock().unlock();
+            }
         }
     }
 
@@ -259,11 +281,108 @@ public class CappedDatabase {
         synchronized (lock) {
             closed = true;
             out.close();
-            inFile.close();
+            closeInFile();
         }
         Runtime.getRuntime().removeShutdownHook(shutdownHookThread);
     }
 
+    // returns the decompressed block
+    private byte[] readBlock(long cappedId) throws IOException {
+        byte[] block = blockCache.getIfPresent(cappedId);
+        if (block == null) {
+            try {
+                block = readAndDecompressBlock(cappedId);
+            } catch (ClosedByInterruptException e) {
+                // the interrupt closed the channel which is shared by all readers
+                reopenInFileIfClosedByInterrupt();
+                throw e;
+            }
+            if (block.length <= MAX_CACHED_BLOCK_SIZE_BYTES) {
+                blockCache.put(cappedId, block);
+            }
+        }
+        // checking after reading the block since it could have been overwritten during the read
+        // (see CappedDatabaseOutputStream.write() for why this is sufficient), and also because
+        // cached blocks may have been overwritten since they were cached
+        if (out.isOverwritten(cappedId)) {
+            blockCache.invalidate(cappedId);
+            throw new CappedBlockRolledOverMidReadException("Block rolled over mid-read");
+        }
+        return block;
+    }
+
+    private byte[] readAndDecompressBlock(long cappedId) throws IOException {
+        byte[] compressed;
+        inFileLock.readLock().lock();
+        try {
+            if (closed) {
+                throw new IOException("Capped database is closed");
+            }
+            // using positional reads since the channel is shared by concurrent readers
+            FileChannel channel = inFile.getChannel();
+            long sizeBytes = out.getSizeKb() * 1024L;
+            ByteBuffer blockLengthBuffer =
+                    ByteBuffer.allocate(CappedDatabaseOutputStream.BLOCK_HEADER_SKIP_BYTES);
+            // block header is never split across the capped boundary
+            readFully(channel, blockLengthBuffer, CappedDatabaseOutputStream.HEADER_SKIP_BYTES
+                    + out.convertToFilePosition(cappedId));
+            long blockLength = blockLengthBuffer.getLong(0);
+            if (blockLength < 0 || blockLength > sizeBytes) {
+                if (out.isOverwritten(cappedId)) {
+                    throw new CappedBlockRolledOverMidReadException("Block rolled over mid-read");
+                }
+                throw new IOException("Invalid block length: " + blockLength);
+            }
+            compressed = new byte[(int) blockLength];
+            long filePosition = out.convertToFilePosition(
+                    cappedId + CappedDatabaseOutputStream.BLOCK_HEADER_SKIP_BYTES);
+            int numBeforeWrap = (int) Math.min(blockLength, sizeBytes - filePosition);
+            readFully(channel, ByteBuffer.wrap(compressed, 0, numBeforeWrap),
+                    CappedDatabaseOutputStream.HEADER_SKIP_BYTES + filePosition);
+            readFully(channel,
+                    ByteBuffer.wrap(compressed, numBeforeWrap, compressed.length - numBeforeWrap),
+                    CappedDatabaseOutputStream.HEADER_SKIP_BYTES);
+        } finally {
+            inFileLock.readLock().unlock();
+        }
+        if (out.isOverwritten(cappedId)) {
+            // no point in decompressing
+            throw new CappedBlockRolledOverMidReadException("Block rolled over mid-read");
+        }
+        return newChunkDecoder().decode(compressed);
+    }
+
+    private void reopenInFileIfClosedByInterrupt() throws IOException {
+        inFileLock.writeLock().lock();
+        try {
+            if (!closed && !inFile.getChannel().isOpen()) {
+                inFile = new RandomAccessFile(file, "r");
+            }
+        } finally {
+            inFileLock.writeLock().unlock();
+        }
+    }
+
+    private void closeInFile() throws IOException {
+        inFileLock.writeLock().lock();
+        try {
+            inFile.close();
+        } finally {
+            inFileLock.writeLock().unlock();
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n == -1) {
+                throw new EOFException();
+            }
+            position += n;
+        }
+    }
+
     private static LZFOutputStream newLZFOutputStream(OutputStream outputStream) {
         if (USE_SAFE_LZF_ENCODER) {
             return new LZFOutputStream(ChunkEncoderFactory.safeInstance(), outputStream);
@@ -272,11 +391,11 @@ public class CappedDatabase {
         }
     }
 
-    private static LZFInputStream newLZFInputStream(InputStream inputStream) throws IOException {
+    private static ChunkDecoder newChunkDecoder() {
         if (USE_SAFE_LZF_ENCODER) {
-            return new LZFInputStream(ChunkDecoderFactory.safeInstance(), inputStream);
+            return ChunkDecoderFactory.safeInstance();
         } else {
-            return new LZFInputStream(inputStream);
+            return ChunkDecoderFactory.optimalInstance();
         }
     }
 
@@ -291,62 +410,7 @@ public class CappedDatabase {
 
         @Override
         public Reader openStream() throws IOException {
-            // it's important to wrap CappedBlockInputStream in a BufferedInputStream to prevent
-            // lots of small reads from the underlying RandomAccessFile
-            final int bufferSize = 32768;
-            return new InputStreamReader(newLZFInputStream(
-                    new BufferedInputStream(new CappedBlockInputStream(cappedId), bufferSize)),
-                    UTF_8);
-        }
-    }
-
-    private class CappedBlockInputStream extends InputStream {
-
-        private final long cappedId;
-        private long blockLength = -1;
-        private long blockIndex;
-
-        private CappedBlockInputStream(long cappedId) {
-            this.cappedId = cappedId;
-        }
-
-        @Override
-        public int read(byte[] bytes, int off, int len) throws IOException {
-            if (blockIndex == blockLength) {
-                return -1;
-            }
-            synchronized (lock) {
-                if (out.isOverwritten(cappedId)) {
-                    throw new CappedBlockRolledOverMidReadException("Block rolled over mid-read");
-                }
-                if (blockLength == -1) {
-                    long filePosition = out.convertToFilePosition(cappedId);
-                    inFile.seek(CappedDatabaseOutputStream.HEADER_SKIP_BYTES + filePosition);
-                    blockLength = inFile.readLong();
-                }
-                long filePosition = out.convertToFilePosition(
-                        cappedId + CappedDatabaseOutputStream.BLOCK_HEADER_SKIP_BYTES + blockIndex);
-                inFile.seek(CappedDatabaseOutputStream.HEADER_SKIP_BYTES + filePosition);
-                long blockRemaining = blockLength - blockIndex;
-                long fileRemaining = out.getSizeKb() * 1024L - filePosition;
-                int numToRead = (int) Longs.min(len, blockRemaining, fileRemaining);
-                inFile.readFully(bytes, off, numToRead);
-                blockIndex += numToRead;
-                return numToRead;
-            }
-        }
-
-        @Override
-        public int read(byte[] bytes) throws IOException {
-            // this is never called since CappedBlockInputStream is always wrapped in a
-            // BufferedInputStream
-            return read(bytes, 0, bytes.length);
-        }
-
-        @Override
-        public int read() throws IOException {
-            throw new UnsupportedOperationException(
-                    "CappedBlockInputStream should always be wrapped in a BufferedInputStream");
+            return new InputStreamReader(new ByteArrayInputStream(readBlock(cappedId)), UTF_8);
         }
     }
 
@@ -360,7 +424,7 @@ public class CappedDatabase {
                 closed = true;
                 synchronized (lock) {
                     out.close();
-                    inFile.close();
+                    closeInFile();
                 }
             } catch (IOException e) {
                 logger.warn(e.getMessage(), e);
@@ -1,5 +1,5 @@
 /*
- * Copyright 2012-2018 the original author or authors.
+ * Copyright 2012-2020 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -157,4 +157,33 @@ public class CappedDatabaseTest {
         assertThat(exceptionClassName).isEqualTo("org.glowroot.agent.embedded.util.CappedDatabase"
                 + "$CappedBlockRolledOverMidReadException");
     }
+
+    @Test
+    public void shouldNotReturnCachedBlockAfterWrapOverIt() throws Exception {
+        // given
+        // use random text so that the lzf compressed text is also large and forces wrapping
+        Random random = new Random();
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 600; i++) {
+            sb.append((char) ('a' + random.nextInt(26)));
+        }
+        String text = sb.toString();
+        long cappedId = cappedDatabase.write(ByteSource.wrap(text.getBytes(UTF_8)), "test");
+        assertThat(cappedDatabase.read(cappedId).read()).isEqualTo(text);
+        assertThat(cappedDatabase.read(cappedId).read()).isEqualTo(text);
+        cappedDatabase.write(ByteSource.wrap(text.getBytes(UTF_8)), "test");
+
+        // when
+        cappedDatabase.write(ByteSource.wrap(text.getBytes(UTF_8)), "test");
+
+        // then
+        String exceptionClassName = null;
+        try {
+            cappedDatabase.read(cappedId).read();
+        } catch (Exception e) {
+            exceptionClassName = e.getClass().getName();
+        }
+        assertThat(exceptionClassName).isEqualTo("org.glowroot.agent.embedded.util.CappedDatabase"
+                + "$CappedBlockRolledOverMidReadException");
+    }
 }
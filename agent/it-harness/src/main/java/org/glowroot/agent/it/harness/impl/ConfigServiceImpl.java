@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2019 the original author or authors.
+ * Copyright 2015-2020 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -130,7 +130,13 @@ class ConfigServiceImpl implements ConfigService {
             }
             builder.addPluginConfig(pluginConfigBuilder.build());
         }
-        server.updateAgentConfig(builder.build());
+        AgentConfig agentConfig = builder.build();
+        boolean pluginConfigsChanged = !agentConfig.getPluginConfigList()
+                .equals(server.getAgentConfig().getPluginConfigList());
+        server.updateAgentConfig(agentConfig);
+        if (pluginConfigsChanged) {
+            waitForPluginConfigReweave();
+        }
     }
 
     private void updatePluginConfig(String pluginId, String name, PluginProperty.Value value)
@@ -187,6 +193,15 @@ class ConfigServiceImpl implements ConfigService {
                 .clearPluginConfig()
                 .addAllPluginConfig(pluginConfigs)
                 .build());
+        waitForPluginConfigReweave();
+    }
+
+    // plugin property changes are re-woven asynchronously by the agent, and reweave waits for that
+    // to complete, so that the test does not run ahead of the re-weaving
+    private void waitForPluginConfigReweave() throws Exception {
+        if (reweavable) {
+            server.reweave();
+        }
     }
 
     private static TransactionConfig getDefaultTransactionConfigForTests() {
@@ -1,5 +1,5 @@
 /*
- * Copyright 2012-2018 the original author or authors.
+ * Copyright 2012-2020 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -109,4 +109,18 @@ public @interface Pointcut {
     // will suppress nested even if pointcut is not enabled, and even if suppressed pointcut is on
     // same method but with lower order
     String suppressionKey() default "";
+
+    // advanced feature:
+    //
+    // name of a property of the plugin that this pointcut belongs to, the pointcut's advice is only
+    // woven while the property is enabled (a boolean property that is true, or a string or list
+    // property that is non-empty)
+    //
+    // this avoids the per-call overhead of calling @IsEnabled (and binding its parameters) in
+    // hot methods when the property is rarely enabled, and classes are re-woven when the property
+    // changes
+    //
+    // when the JVM does not support retransforming classes, the advice is always woven, so
+    // @IsEnabled should still check the property
+    String enabledByProperty() default "";
 }
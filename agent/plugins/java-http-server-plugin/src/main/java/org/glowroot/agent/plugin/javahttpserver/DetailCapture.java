@@ -1,5 +1,5 @@
 /*
- * Copyright 2017-2018 the original author or authors.
+ * Copyright 2017-2020 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -20,10 +20,8 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
-import java.util.regex.Pattern;
 
 import org.glowroot.agent.plugin.api.checker.Nullable;
 import org.glowroot.agent.plugin.api.util.ImmutableList;
@@ -36,25 +34,25 @@ class DetailCapture {
     private DetailCapture() {}
 
     static Map<String, Object> captureRequestHeaders(HttpExchange exchange) {
-        List<Pattern> capturePatterns = JavaHttpServerPluginProperties.captureRequestHeaders();
-        if (capturePatterns.isEmpty()) {
+        NameMatcher captureNames = JavaHttpServerPluginProperties.captureRequestHeaders();
+        if (captureNames.isEmpty()) {
             return Collections.emptyMap();
         }
-        return captureHeaders(capturePatterns, exchange.glowroot$getRequestHeaders(),
+        return captureHeaders(captureNames, exchange.glowroot$getRequestHeaders(),
                 JavaHttpServerPluginProperties.maskRequestHeaders());
     }
 
     static Map<String, Object> captureResponseHeaders(HttpExchange exchange) {
-        List<Pattern> capturePatterns = JavaHttpServerPluginProperties.captureResponseHeaders();
-        if (capturePatterns.isEmpty()) {
+        NameMatcher captureNames = JavaHttpServerPluginProperties.captureResponseHeaders();
+        if (captureNames.isEmpty()) {
             return Collections.emptyMap();
         }
-        return captureHeaders(capturePatterns, exchange.glowroot$getResponseHeaders(),
-                Collections.<Pattern>emptyList());
+        return captureHeaders(captureNames, exchange.glowroot$getResponseHeaders(),
+                NameMatcher.EMPTY);
     }
 
-    private static Map<String, Object> captureHeaders(List<Pattern> capturePatterns,
-            @Nullable Headers headers, List<Pattern> maskPatterns) {
+    private static Map<String, Object> captureHeaders(NameMatcher captureNames,
+            @Nullable Headers headers, NameMatcher maskNames) {
         if (headers == null) {
             return Collections.emptyMap();
         }
@@ -67,12 +65,10 @@ class DetailCapture {
             if (name == null) {
                 continue;
             }
-            // converted to lower case for case-insensitive matching (patterns are lower case)
-            String keyLowerCase = name.toLowerCase(Locale.ENGLISH);
-            if (!matchesOneOf(keyLowerCase, capturePatterns)) {
+            if (!captureNames.matches(name)) {
                 continue;
             }
-            if (matchesOneOf(keyLowerCase, maskPatterns)) {
+            if (maskNames.matches(name)) {
                 headersMap.put(name, "****");
                 continue;
             }
@@ -116,15 +112,6 @@ class DetailCapture {
         }
     }
 
-    private static boolean matchesOneOf(String key, List<Pattern> patterns) {
-        for (Pattern pattern : patterns) {
-            if (pattern.matcher(key).matches()) {
-                return true;
-            }
-        }
-        return false;
-    }
-
     private static void captureHeader(String name, List<String> values,
             Map<String, Object> header) {
         if (values.isEmpty()) {
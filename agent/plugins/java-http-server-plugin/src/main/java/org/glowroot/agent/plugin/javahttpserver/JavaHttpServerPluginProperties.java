@@ -1,5 +1,5 @@
 /*
- * Copyright 2017-2018 the original author or authors.
+ * Copyright 2017-2020 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,16 +15,9 @@
  */
 package org.glowroot.agent.plugin.javahttpserver;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
-import java.util.Locale;
-import java.util.regex.Pattern;
-
 import org.glowroot.agent.plugin.api.Agent;
 import org.glowroot.agent.plugin.api.config.ConfigListener;
 import org.glowroot.agent.plugin.api.config.ConfigService;
-import org.glowroot.agent.plugin.api.util.ImmutableList;
 
 class JavaHttpServerPluginProperties {
 
@@ -39,13 +32,13 @@ class JavaHttpServerPluginProperties {
 
     private static final ConfigService configService = Agent.getConfigService("java-http-server");
 
-    private static List<Pattern> captureRequestHeaders = Collections.emptyList();
-    private static List<Pattern> maskRequestHeaders = Collections.emptyList();
+    private static NameMatcher captureRequestHeaders = NameMatcher.EMPTY;
+    private static NameMatcher maskRequestHeaders = NameMatcher.EMPTY;
 
     private static boolean captureRequestRemoteAddr;
     private static boolean captureRequestRemoteHost;
 
-    private static List<Pattern> captureResponseHeaders = Collections.emptyList();
+    private static NameMatcher captureResponseHeaders = NameMatcher.EMPTY;
 
     private static boolean traceErrorOn4xxResponseCode;
 
@@ -55,11 +48,11 @@ class JavaHttpServerPluginProperties {
 
     private JavaHttpServerPluginProperties() {}
 
-    static List<Pattern> captureRequestHeaders() {
+    static NameMatcher captureRequestHeaders() {
         return captureRequestHeaders;
     }
 
-    static List<Pattern> maskRequestHeaders() {
+    static NameMatcher maskRequestHeaders() {
         return maskRequestHeaders;
     }
 
@@ -71,7 +64,7 @@ class JavaHttpServerPluginProperties {
         return captureRequestRemoteHost;
     }
 
-    static List<Pattern> captureResponseHeaders() {
+    static NameMatcher captureResponseHeaders() {
         return captureResponseHeaders;
     }
 
@@ -87,33 +80,19 @@ class JavaHttpServerPluginProperties {
         }
 
         private static void recalculateProperties() {
-            captureRequestHeaders = buildPatternList(CAPTURE_REQUEST_HEADER_PROPERTY_NAME);
-            maskRequestHeaders = buildPatternList(MASK_REQUEST_HEADER_PROPERTY_NAME);
+            captureRequestHeaders = buildNameMatcher(CAPTURE_REQUEST_HEADER_PROPERTY_NAME);
+            maskRequestHeaders = buildNameMatcher(MASK_REQUEST_HEADER_PROPERTY_NAME);
             captureRequestRemoteAddr = configService
                     .getBooleanProperty(CAPTURE_REQUEST_REMOTE_ADDR_PROPERTY_NAME).value();
             captureRequestRemoteHost = configService
                     .getBooleanProperty(CAPTURE_REQUEST_REMOTE_HOST_PROPERTY_NAME).value();
-            captureResponseHeaders = buildPatternList(CAPTURE_RESPONSE_HEADER_PROPERTY_NAME);
+            captureResponseHeaders = buildNameMatcher(CAPTURE_RESPONSE_HEADER_PROPERTY_NAME);
             traceErrorOn4xxResponseCode =
                     configService.getBooleanProperty(TRACE_ERROR_ON_4XX_RESPONSE_CODE).value();
         }
 
-        private static List<Pattern> buildPatternList(String propertyName) {
-            List<String> items = configService.getListProperty(propertyName).value();
-            List<Pattern> patterns = new ArrayList<Pattern>();
-            for (String parameter : items) {
-                // converted to lower case for case-insensitive matching
-                patterns.add(buildRegexPattern(parameter.trim().toLowerCase(Locale.ENGLISH)));
-            }
-            return ImmutableList.copyOf(patterns);
-        }
-
-        private static Pattern buildRegexPattern(String wildcardPattern) {
-            // convert * into .* and quote the rest of the text using \Q...\E
-            String regex = "\\Q" + wildcardPattern.replace("*", "\\E.*\\Q") + "\\E";
-            // strip off unnecessary \\Q\\E in case * appeared at beginning or end of part
-            regex = regex.replace("\\Q\\E", "");
-            return Pattern.compile(regex);
+        private static NameMatcher buildNameMatcher(String propertyName) {
+            return NameMatcher.create(configService.getListProperty(propertyName).value());
         }
     }
 }
@@ -1,5 +1,5 @@
 /*
- * Copyright 2011-2018 the original author or authors.
+ * Copyright 2011-2020 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,9 +15,9 @@
  */
 package org.glowroot.agent.plugin.jdbc;
 
-import java.util.Collection;
+import java.util.ArrayList;
 import java.util.Collections;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.List;
 
 import org.glowroot.agent.plugin.api.checker.Nullable;
 import org.glowroot.agent.plugin.jdbc.message.BindParameterList;
@@ -26,7 +26,9 @@ import org.glowroot.agent.plugin.jdbc.message.BindParameterList;
 // PreparedStatement values cannot be inspected after they have been set
 class PreparedStatementMirror extends StatementMirror {
 
-    private static final int CAPTURED_BATCH_SIZE_LIMIT = 1000;
+    // only the first and last parameter sets of large batches are captured
+    private static final int CAPTURED_BATCH_HEAD_LIMIT = 500;
+    private static final int CAPTURED_BATCH_TAIL_LIMIT = 500;
 
     private static final int PARAMETERS_INITIAL_CAPACITY = 4;
 
@@ -37,7 +39,10 @@ class PreparedStatementMirror extends StatementMirror {
     private boolean parametersShared;
     // ok for this field to be non-volatile since it is only temporary storage for a single thread
     // while that thread is setting parameter values into the prepared statement and executing it
-    private @Nullable Collection<BindParameterList> batchedParameters;
+    private @Nullable List<BindParameterList> batchedParametersHead;
+    // ring buffer of the most recent parameter sets once the batch exceeds the head limit, the
+    // elements are only referenced from here so they can be overwritten in place as the batch grows
+    private BindParameterList /*@Nullable*/ [] batchedParametersTail;
     private int batchSize;
 
     PreparedStatementMirror(String sql) {
@@ -48,21 +53,59 @@ class PreparedStatementMirror extends StatementMirror {
 
     void addBatch() {
         // synchronization isn't an issue here as this method is called only by the monitored thread
-        if (batchedParameters == null) {
-            batchedParameters = new ConcurrentLinkedQueue<BindParameterList>();
-        }
-        if (batchSize++ < CAPTURED_BATCH_SIZE_LIMIT) {
-            batchedParameters.add(parameters);
+        if (batchSize < CAPTURED_BATCH_HEAD_LIMIT) {
+            if (batchedParametersHead == null) {
+                batchedParametersHead = new ArrayList<BindParameterList>();
+            }
+            batchedParametersHead.add(parameters);
             parametersShared = true;
+        } else {
+            // separate method for less common path to not impact inlining budget of fast(er) path
+            addBatchTail();
+        }
+        batchSize++;
+    }
+
+    private void addBatchTail() {
+        if (batchedParametersTail == null) {
+            batchedParametersTail = new BindParameterList[CAPTURED_BATCH_TAIL_LIMIT];
+        }
+        int index = (batchSize - CAPTURED_BATCH_HEAD_LIMIT) % CAPTURED_BATCH_TAIL_LIMIT;
+        BindParameterList evicted = batchedParametersTail[index];
+        if (evicted == null) {
+            batchedParametersTail[index] = BindParameterList.copyOf(parameters);
+        } else {
+            // evicted parameters are not referenced from anywhere else, so can be re-used
+            evicted.copyFrom(parameters);
         }
     }
 
-    Collection<BindParameterList> getBatchedParameters() {
-        if (batchedParameters == null) {
+    List<BindParameterList> getBatchedParametersHead() {
+        if (batchedParametersHead == null) {
             return Collections.emptyList();
         } else {
-            return batchedParameters;
+            return batchedParametersHead;
+        }
+    }
+
+    // returns the tail parameter sets in the order they were added
+    List<BindParameterList> getBatchedParametersTail() {
+        if (batchedParametersTail == null) {
+            return Collections.emptyList();
+        }
+        int tailSize = Math.min(batchSize - CAPTURED_BATCH_HEAD_LIMIT, CAPTURED_BATCH_TAIL_LIMIT);
+        int start = (batchSize - CAPTURED_BATCH_HEAD_LIMIT) % CAPTURED_BATCH_TAIL_LIMIT;
+        if (tailSize < CAPTURED_BATCH_TAIL_LIMIT) {
+            start = 0;
+        }
+        List<BindParameterList> tail = new ArrayList<BindParameterList>(tailSize);
+        for (int i = 0; i < tailSize; i++) {
+            @SuppressWarnings("nullness") // all elements up to tailSize have been populated
+            BindParameterList oneParameters =
+                    batchedParametersTail[(start + i) % CAPTURED_BATCH_TAIL_LIMIT];
+            tail.add(oneParameters);
         }
+        return tail;
     }
 
     @Nullable
@@ -88,6 +131,42 @@ class PreparedStatementMirror extends StatementMirror {
         parameters.set(parameterIndex - 1, object);
     }
 
+    // primitive overloads are used so that primitive bind parameters are not boxed
+    void setParameterValue(int parameterIndex, boolean value) {
+        if (parametersShared) {
+            copyParameters();
+        }
+        parameters.setBoolean(parameterIndex - 1, value);
+    }
+
+    void setParameterValue(int parameterIndex, int value) {
+        if (parametersShared) {
+            copyParameters();
+        }
+        parameters.setInt(parameterIndex - 1, value);
+    }
+
+    void setParameterValue(int parameterIndex, long value) {
+        if (parametersShared) {
+            copyParameters();
+        }
+        parameters.setLong(parameterIndex - 1, value);
+    }
+
+    void setParameterValue(int parameterIndex, float value) {
+        if (parametersShared) {
+            copyParameters();
+        }
+        parameters.setFloat(parameterIndex - 1, value);
+    }
+
+    void setParameterValue(int parameterIndex, double value) {
+        if (parametersShared) {
+            copyParameters();
+        }
+        parameters.setDouble(parameterIndex - 1, value);
+    }
+
     private void copyParameters() {
         parameters = BindParameterList.copyOf(parameters);
         parametersShared = false;
@@ -110,7 +189,8 @@ class PreparedStatementMirror extends StatementMirror {
         } else {
             parameters.clear();
         }
-        batchedParameters = null;
+        batchedParametersHead = null;
+        batchedParametersTail = null;
         batchSize = 0;
     }
 
@@ -1,5 +1,5 @@
 /*
- * Copyright 2011-2018 the original author or authors.
+ * Copyright 2011-2020 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -44,7 +44,8 @@ public class ResultSetAspect {
     }
 
     @Pointcut(className = "java.sql.ResultSet", methodName = "next", methodParameterTypes = {},
-            nestingGroup = "jdbc")
+            nestingGroup = "jdbc",
+            enabledByProperty = "captureResultSetNavigate")
     public static class NextAdvice {
         private static final BooleanProperty timerEnabled =
                 configService.getBooleanProperty("captureResultSetNavigate");
@@ -86,7 +87,8 @@ public class ResultSetAspect {
 
     @Pointcut(className = "java.sql.ResultSet",
             methodName = "previous|relative|absolute|first|last", methodParameterTypes = "..",
-            nestingGroup = "jdbc")
+            nestingGroup = "jdbc",
+            enabledByProperty = "captureResultSetNavigate")
     public static class NavigateAdvice {
         private static final BooleanProperty timerEnabled =
                 configService.getBooleanProperty("captureResultSetNavigate");
@@ -124,7 +126,8 @@ public class ResultSetAspect {
     }
 
     @Pointcut(className = "java.sql.ResultSet", methodName = "get*",
-            methodParameterTypes = {"int", ".."}, nestingGroup = "jdbc")
+            methodParameterTypes = {"int", ".."}, nestingGroup = "jdbc",
+            enabledByProperty = "captureResultSetGet")
     public static class ValueAdvice {
         private static final BooleanProperty timerEnabled =
                 configService.getBooleanProperty("captureResultSetGet");
@@ -143,7 +146,8 @@ public class ResultSetAspect {
     }
 
     @Pointcut(className = "java.sql.ResultSet", methodName = "get*",
-            methodParameterTypes = {"java.lang.String", ".."}, nestingGroup = "jdbc")
+            methodParameterTypes = {"java.lang.String", ".."}, nestingGroup = "jdbc",
+            enabledByProperty = "captureResultSetGet")
     public static class ValueAdvice2 {
         private static final BooleanProperty timerEnabled =
                 configService.getBooleanProperty("captureResultSetGet");
@@ -1,5 +1,5 @@
 /*
- * Copyright 2011-2019 the original author or authors.
+ * Copyright 2011-2020 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -114,11 +114,15 @@ public class StatementAspect {
 
     // ================= Parameter Binding =================
 
+    // parameter binding advice is only woven while captureBindParametersIncludes is non-empty (see
+    // Pointcut.enabledByProperty()), but @IsEnabled still checks it since the advice is always
+    // woven when the JVM does not support retransforming classes
+
     @Pointcut(className = "java.sql.PreparedStatement",
-            methodName = "setArray|setBigDecimal"
-                    + "|setBoolean|setByte|setDate|setDouble|setFloat|setInt|setLong|setNString"
-                    + "|setRef|setRowId|setShort|setString|setTime|setTimestamp|setURL",
-            methodParameterTypes = {"int", "*", ".."})
+            methodName = "setArray|setBigDecimal|setDate|setNString|setRef|setRowId|setString"
+                    + "|setTime|setTimestamp|setURL",
+            methodParameterTypes = {"int", "*", ".."},
+            enabledByProperty = "captureBindParametersIncludes")
     public static class SetXAdvice {
         @IsEnabled
         public static boolean isEnabled() {
@@ -135,10 +139,110 @@ public class StatementAspect {
         }
     }
 
+    // primitive setters are captured by separate advice so that the weaver passes the values
+    // through without boxing them
+    @Pointcut(className = "java.sql.PreparedStatement", methodName = "setBoolean",
+            methodParameterTypes = {"int", "boolean"},
+            enabledByProperty = "captureBindParametersIncludes")
+    public static class SetBooleanAdvice {
+        @IsEnabled
+        public static boolean isEnabled() {
+            return captureBindParameters;
+        }
+        @OnReturn
+        public static void onReturn(@BindReceiver HasStatementMirrorMixin preparedStatement,
+                @BindParameter int parameterIndex, @BindParameter boolean x) {
+            PreparedStatementMirror mirror =
+                    (PreparedStatementMirror) preparedStatement.glowroot$getStatementMirror();
+            if (mirror != null) {
+                mirror.setParameterValue(parameterIndex, x);
+            }
+        }
+    }
+
+    // byte and short values are passed to the advice as int, which is how they are represented on
+    // the operand stack anyways
+    @Pointcut(className = "java.sql.PreparedStatement", methodName = "setByte|setShort|setInt",
+            methodParameterTypes = {"int", "byte|short|int"},
+            enabledByProperty = "captureBindParametersIncludes")
+    public static class SetIntAdvice {
+        @IsEnabled
+        public static boolean isEnabled() {
+            return captureBindParameters;
+        }
+        @OnReturn
+        public static void onReturn(@BindReceiver HasStatementMirrorMixin preparedStatement,
+                @BindParameter int parameterIndex, @BindParameter int x) {
+            PreparedStatementMirror mirror =
+                    (PreparedStatementMirror) preparedStatement.glowroot$getStatementMirror();
+            if (mirror != null) {
+                mirror.setParameterValue(parameterIndex, x);
+            }
+        }
+    }
+
+    @Pointcut(className = "java.sql.PreparedStatement", methodName = "setLong",
+            methodParameterTypes = {"int", "long"},
+            enabledByProperty = "captureBindParametersIncludes")
+    public static class SetLongAdvice {
+        @IsEnabled
+        public static boolean isEnabled() {
+            return captureBindParameters;
+        }
+        @OnReturn
+        public static void onReturn(@BindReceiver HasStatementMirrorMixin preparedStatement,
+                @BindParameter int parameterIndex, @BindParameter long x) {
+            PreparedStatementMirror mirror =
+                    (PreparedStatementMirror) preparedStatement.glowroot$getStatementMirror();
+            if (mirror != null) {
+                mirror.setParameterValue(parameterIndex, x);
+            }
+        }
+    }
+
+    @Pointcut(className = "java.sql.PreparedStatement", methodName = "setFloat",
+            methodParameterTypes = {"int", "float"},
+            enabledByProperty = "captureBindParametersIncludes")
+    public static class SetFloatAdvice {
+        @IsEnabled
+        public static boolean isEnabled() {
+            return captureBindParameters;
+        }
+        @OnReturn
+        public static void onReturn(@BindReceiver HasStatementMirrorMixin preparedStatement,
+                @BindParameter int parameterIndex, @BindParameter float x) {
+            PreparedStatementMirror mirror =
+                    (PreparedStatementMirror) preparedStatement.glowroot$getStatementMirror();
+            if (mirror != null) {
+                mirror.setParameterValue(parameterIndex, x);
+            }
+        }
+    }
+
+    @Pointcut(className = "java.sql.PreparedStatement", methodName = "setDouble",
+            methodParameterTypes = {"int", "double"},
+            enabledByProperty = "captureBindParametersIncludes")
+    public static class SetDoubleAdvice {
+        @IsEnabled
+        public static boolean isEnabled() {
+            return captureBindParameters;
+        }
+        @OnReturn
+        public static void onReturn(@BindReceiver HasStatementMirrorMixin preparedStatement,
+                @BindParameter int parameterIndex, @BindParameter double x) {
+            PreparedStatementMirror mirror =
+                    (PreparedStatementMirror) preparedStatement.glowroot$getStatementMirror();
+            if (mirror != null) {
+                mirror.setParameterValue(parameterIndex, x);
+            }
+        }
+    }
+
     @Pointcut(className = "java.sql.PreparedStatement",
             methodName = "setAsciiStream|setBinaryStream|setBlob|setCharacterStream|setClob"
                     + "|setNCharacterStream|setNClob|setSQLXML|setUnicodeStream",
-            methodParameterTypes = {"int", "*", ".."})
+            methodParameterTypes = {"int", "*", ".."},
+            enabledByProperty = "captureBindParametersIncludes")
     public static class SetStreamAdvice {
         @IsEnabled
         public static boolean isEnabled() {
@@ -161,7 +265,8 @@ public class StatementAspect {
     }
 
     @Pointcut(className = "java.sql.PreparedStatement", methodName = "setBytes",
-            methodParameterTypes = {"int", "byte[]"})
+            methodParameterTypes = {"int", "byte[]"},
+            enabledByProperty = "captureBindParametersIncludes")
     public static class SetBytesAdvice {
         @IsEnabled
         public static boolean isEnabled() {
@@ -188,7 +293,8 @@ public class StatementAspect {
     }
 
     @Pointcut(className = "java.sql.PreparedStatement", methodName = "setObject",
-            methodParameterTypes = {"int", "java.lang.Object", ".."})
+            methodParameterTypes = {"int", "java.lang.Object", ".."},
+            enabledByProperty = "captureBindParametersIncludes")
     public static class SetObjectAdvice {
         @IsEnabled
         public static boolean isEnabled() {
@@ -212,7 +318,8 @@ public class StatementAspect {
     }
 
     @Pointcut(className = "java.sql.PreparedStatement", methodName = "setNull",
-            methodParameterTypes = {"int", "int", ".."})
+            methodParameterTypes = {"int", "int", ".."},
+            enabledByProperty = "captureBindParametersIncludes")
     public static class SetNullAdvice {
         @IsEnabled
         public static boolean isEnabled() {
@@ -230,7 +337,8 @@ public class StatementAspect {
     }
 
     @Pointcut(className = "java.sql.PreparedStatement", methodName = "clearParameters",
-            methodParameterTypes = {})
+            methodParameterTypes = {},
+            enabledByProperty = "captureBindParametersIncludes")
     public static class ClearParametersAdvice {
         @IsEnabled
         public static boolean isEnabled() {
@@ -566,7 +674,8 @@ public class StatementAspect {
                 batchSize = 1;
             } else if (captureBindParameters) {
                 queryMessageSupplier = new BatchPreparedStatementMessageSupplier(
-                        mirror.getBatchedParameters(), batchSize);
+                        mirror.getBatchedParametersHead(), mirror.getBatchedParametersTail(),
+                        batchSize);
             } else {
                 queryMessageSupplier = new BatchPreparedStatementMessageSupplier2(batchSize);
             }
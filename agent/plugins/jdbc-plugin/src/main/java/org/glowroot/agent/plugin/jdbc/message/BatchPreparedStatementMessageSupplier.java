@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2018 the original author or authors.
+ * Copyright 2015-2020 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,7 +15,7 @@
  */
 package org.glowroot.agent.plugin.jdbc.message;
 
-import java.util.Collection;
+import java.util.List;
 
 import org.glowroot.agent.plugin.api.QueryMessage;
 import org.glowroot.agent.plugin.api.QueryMessageSupplier;
@@ -28,39 +28,33 @@ public class BatchPreparedStatementMessageSupplier extends QueryMessageSupplier
     private static final int MESSAGE_CHAR_LIMIT =
             Integer.getInteger("glowroot.message.char.limit", 512 * 1024);
 
-    private final Collection<BindParameterList> batchedParameters;
+    // the first and last parameter sets of the batch, with any parameter sets in between omitted
+    private final List<BindParameterList> batchedParametersHead;
+    private final List<BindParameterList> batchedParametersTail;
     private final int batchSize;
 
-    public BatchPreparedStatementMessageSupplier(Collection<BindParameterList> batchedParameters,
-            int batchSize) {
-        this.batchedParameters = batchedParameters;
+    public BatchPreparedStatementMessageSupplier(List<BindParameterList> batchedParametersHead,
+            List<BindParameterList> batchedParametersTail, int batchSize) {
+        this.batchedParametersHead = batchedParametersHead;
+        this.batchedParametersTail = batchedParametersTail;
         this.batchSize = batchSize;
     }
 
     @Override
     public QueryMessage get() {
-        // not using size() since capturedBatchSize is ConcurrentLinkedQueue
-        int capturedBatchSize = 0;
         String suffix;
-        if (batchedParameters.isEmpty()) {
+        if (batchedParametersHead.isEmpty()) {
             suffix = "";
         } else {
             StringBuilder sb = new StringBuilder();
-            boolean exceededMessageCharLimit = false;
-            for (BindParameterList oneParameters : batchedParameters) {
-                PreparedStatementMessageSupplier.appendParameters(sb, oneParameters);
-                capturedBatchSize++;
-                if (sb.length() > MESSAGE_CHAR_LIMIT) {
-                    sb.setLength(MESSAGE_CHAR_LIMIT);
-                    sb.append(" [truncated to ");
-                    sb.append(MESSAGE_CHAR_LIMIT);
-                    sb.append(" characters]");
-                    exceededMessageCharLimit = true;
-                    break;
+            boolean exceededMessageCharLimit = appendParameters(sb, batchedParametersHead);
+            if (!exceededMessageCharLimit) {
+                int capturedBatchSize =
+                        batchedParametersHead.size() + batchedParametersTail.size();
+                if (batchSize > capturedBatchSize) {
+                    sb.append(" ...");
                 }
-            }
-            if (!exceededMessageCharLimit && batchSize > capturedBatchSize) {
-                sb.append(" ...");
+                appendParameters(sb, batchedParametersTail);
             }
             suffix = sb.toString();
         }
@@ -73,4 +67,20 @@ public class BatchPreparedStatementMessageSupplier extends QueryMessageSupplier
         }
         return QueryMessage.create(prefix, suffix);
     }
+
+    // returns true if the message char limit was exceeded
+    private static boolean appendParameters(StringBuilder sb,
+            List<BindParameterList> batchedParameters) {
+        for (BindParameterList oneParameters : batchedParameters) {
+            oneParameters.appendTo(sb);
+            if (sb.length() > MESSAGE_CHAR_LIMIT) {
+                sb.setLength(MESSAGE_CHAR_LIMIT);
+                sb.append(" [truncated to ");
+                sb.append(MESSAGE_CHAR_LIMIT);
+                sb.append(" characters]");
+                return true;
+            }
+        }
+        return false;
+    }
 }
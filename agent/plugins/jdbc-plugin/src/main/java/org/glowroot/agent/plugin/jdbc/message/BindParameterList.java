@@ -1,5 +1,5 @@
 /*
- * Copyright 2014-2018 the original author or authors.
+ * Copyright 2014-2020 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -16,26 +16,32 @@
 package org.glowroot.agent.plugin.jdbc.message;
 
 import java.util.Arrays;
-import java.util.Iterator;
-import java.util.NoSuchElementException;
 
 import org.glowroot.agent.plugin.api.checker.Nullable;
 
 // micro-optimized list for bind parameters
-public class BindParameterList implements Iterable</*@Nullable*/ Object> {
+//
+// primitive bind parameters are stored unboxed in a parallel long array (with a marker in the
+// object array identifying the primitive type), and are only converted to strings when the query
+// message is materialized
+public class BindParameterList {
 
     private @Nullable Object[] parameters;
+    // lazy allocated since many prepared statements only bind non-primitive values
+    private long /*@Nullable*/ [] primitiveParameters;
     private int size;
 
     public static BindParameterList copyOf(BindParameterList bindParameterList) {
-        return new BindParameterList(bindParameterList.parameters, bindParameterList.size);
+        return new BindParameterList(bindParameterList.parameters,
+                bindParameterList.primitiveParameters, bindParameterList.size);
     }
 
     public BindParameterList(int capacity) {
         parameters = new Object[capacity];
     }
 
-    private BindParameterList(@Nullable Object[] parameters, int size) {
+    private BindParameterList(@Nullable Object[] parameters,
+            long /*@Nullable*/ [] primitiveParameters, int size) {
         if (parameters.length == size) {
             this.parameters = parameters.clone();
         } else {
@@ -44,24 +50,59 @@ public class BindParameterList implements Iterable</*@Nullable*/ Object> {
             this.parameters = new Object[size];
             System.arraycopy(parameters, 0, this.parameters, 0, size);
         }
+        if (primitiveParameters != null) {
+            this.primitiveParameters = new long[size];
+            System.arraycopy(primitiveParameters, 0, this.primitiveParameters, 0,
+                    Math.min(primitiveParameters.length, size));
+        }
         this.size = size;
     }
 
     public void set(int i, @Nullable Object parameter) {
-        int capacity = parameters.length;
-        if (i >= capacity) {
-            // using same capacity increase formula as ArrayList
-            capacity = capacity + (capacity >> 1);
-            if (i >= capacity) {
-                capacity = i + 1;
-            }
-            parameters = Arrays.copyOf(parameters, capacity);
-        }
+        ensureCapacity(i);
         parameters[i] = parameter;
-        int newSize = i + 1;
-        if (newSize > size) {
-            size = newSize;
+        updateSize(i);
+    }
+
+    public void setBoolean(int i, boolean parameter) {
+        setPrimitive(i, PrimitiveType.BOOLEAN, parameter ? 1 : 0);
+    }
+
+    // also used for byte and short parameters
+    public void setInt(int i, int parameter) {
+        setPrimitive(i, PrimitiveType.INT, parameter);
+    }
+
+    public void setLong(int i, long parameter) {
+        setPrimitive(i, PrimitiveType.LONG, parameter);
+    }
+
+    public void setFloat(int i, float parameter) {
+        setPrimitive(i, PrimitiveType.FLOAT, Float.floatToRawIntBits(parameter));
+    }
+
+    public void setDouble(int i, double parameter) {
+        setPrimitive(i, PrimitiveType.DOUBLE, Double.doubleToRawLongBits(parameter));
+    }
+
+    // copies the parameters into this list, re-using this list's arrays when they are large enough
+    public void copyFrom(BindParameterList bindParameterList) {
+        int otherSize = bindParameterList.size;
+        if (parameters.length < otherSize) {
+            parameters = new Object[otherSize];
+        } else if (size > otherSize) {
+            Arrays.fill(parameters, otherSize, size, null);
         }
+        System.arraycopy(bindParameterList.parameters, 0, parameters, 0, otherSize);
+        long[] otherPrimitiveParameters = bindParameterList.primitiveParameters;
+        if (otherPrimitiveParameters != null) {
+            if (primitiveParameters == null || primitiveParameters.length < parameters.length) {
+                primitiveParameters = new long[parameters.length];
+            }
+            System.arraycopy(otherPrimitiveParameters, 0, primitiveParameters, 0,
+                    Math.min(otherPrimitiveParameters.length, otherSize));
+        }
+        size = otherSize;
     }
 
     public int size() {
@@ -77,32 +118,86 @@ public class BindParameterList implements Iterable</*@Nullable*/ Object> {
         size = 0;
     }
 
-    @Override
-    public Iterator</*@Nullable*/ Object> iterator() {
-        return new ParameterIterator();
+    void appendTo(StringBuilder sb) {
+        sb.append(" [");
+        for (int i = 0; i < size; i++) {
+            if (i != 0) {
+                sb.append(", ");
+            }
+            Object parameter = parameters[i];
+            if (parameter instanceof String) {
+                sb.append("\'");
+                sb.append((String) parameter);
+                sb.append("\'");
+            } else if (parameter == null) {
+                sb.append("NULL");
+            } else if (parameter instanceof PrimitiveType) {
+                appendPrimitive(sb, (PrimitiveType) parameter, getPrimitiveParameter(i));
+            } else {
+                sb.append(String.valueOf(parameter));
+            }
+        }
+        sb.append("]");
     }
 
-    private class ParameterIterator implements Iterator</*@Nullable*/ Object> {
-
-        private int i;
-
-        @Override
-        public boolean hasNext() {
-            return i < size;
+    private void setPrimitive(int i, PrimitiveType type, long bits) {
+        ensureCapacity(i);
+        if (primitiveParameters == null) {
+            primitiveParameters = new long[parameters.length];
         }
+        parameters[i] = type;
+        primitiveParameters[i] = bits;
+        updateSize(i);
+    }
 
-        @Override
-        public @Nullable Object next() {
-            if (i < size) {
-                return parameters[i++];
-            } else {
-                throw new NoSuchElementException();
+    private void ensureCapacity(int i) {
+        int capacity = parameters.length;
+        if (i >= capacity) {
+            // using same capacity increase formula as ArrayList
+            capacity = capacity + (capacity >> 1);
+            if (i >= capacity) {
+                capacity = i + 1;
+            }
+            parameters = Arrays.copyOf(parameters, capacity);
+            if (primitiveParameters != null) {
+                primitiveParameters = Arrays.copyOf(primitiveParameters, capacity);
             }
         }
+    }
+
+    private void updateSize(int i) {
+        int newSize = i + 1;
+        if (newSize > size) {
+            size = newSize;
+        }
+    }
+
+    private long getPrimitiveParameter(int i) {
+        // primitiveParameters is always non-null if a primitive type marker has been set
+        return primitiveParameters == null ? 0 : primitiveParameters[i];
+    }
 
-        @Override
-        public void remove() {
-            throw new UnsupportedOperationException();
+    private static void appendPrimitive(StringBuilder sb, PrimitiveType type, long bits) {
+        if (type == PrimitiveType.BOOLEAN) {
+            sb.append(bits != 0);
+        } else if (type == PrimitiveType.INT) {
+            sb.append((int) bits);
+        } else if (type == PrimitiveType.LONG) {
+            sb.append(bits);
+        } else if (type == PrimitiveType.FLOAT) {
+            sb.append(Float.intBitsToFloat((int) bits));
+        } else {
+            sb.append(Double.longBitsToDouble(bits));
         }
     }
+
+    // marker stored in the parameters array in place of the boxed primitive value
+    private static class PrimitiveType {
+
+        private static final PrimitiveType BOOLEAN = new PrimitiveType();
+        private static final PrimitiveType INT = new PrimitiveType();
+        private static final PrimitiveType LONG = new PrimitiveType();
+        private static final PrimitiveType FLOAT = new PrimitiveType();
+        private static final PrimitiveType DOUBLE = new PrimitiveType();
+    }
 }
@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2019 the original author or authors.
+ * Copyright 2015-2020 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -80,7 +80,7 @@ public class PreparedStatementMessageSupplier extends QueryMessageSupplier {
         String suffix = "";
         if (parameters != null && !parameters.isEmpty() && capture()) {
             StringBuilder sb = new StringBuilder();
-            appendParameters(sb, parameters);
+            parameters.appendTo(sb);
             suffix = sb.toString();
         }
         return QueryMessage.create("jdbc query: ", suffix);
@@ -105,25 +105,4 @@ public class PreparedStatementMessageSupplier extends QueryMessageSupplier {
         }
         return true;
     }
-
-    static void appendParameters(StringBuilder sb, BindParameterList parameters) {
-        sb.append(" [");
-        boolean first = true;
-        for (Object parameter : parameters) {
-            if (!first) {
-                sb.append(", ");
-            }
-            if (parameter instanceof String) {
-                sb.append("\'");
-                sb.append((String) parameter);
-                sb.append("\'");
-            } else if (parameter == null) {
-                sb.append("NULL");
-            } else {
-                sb.append(String.valueOf(parameter));
-            }
-            first = false;
-        }
-        sb.append("]");
-    }
 }
@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2018 the original author or authors.
+ * Copyright 2015-2020 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -119,15 +119,19 @@ public class BatchIT {
                 .getFullText()).isEqualTo("insert into employee (name) values (?)");
         assertThat(entry.getQueryEntryMessage().getPrefix()).isEqualTo("jdbc query: 2002 x ");
         StringBuilder sb = new StringBuilder();
-        for (int j = 0; j < 1000; j++) {
+        for (int j = 0; j < 500; j++) {
+            sb.append(" ['name");
+            sb.append(j);
+            sb.append("']");
+        }
+        sb.append(" ...");
+        for (int j = 1502; j < 2002; j++) {
             sb.append(" ['name");
             sb.append(j);
             sb.append("']");
         }
         if (driverCapturesBatchRows) {
-            sb.append(" ... => 2002 rows");
-        } else {
-            sb.append(" ...");
+            sb.append(" => 2002 rows");
         }
         assertThat(entry.getQueryEntryMessage().getSuffix()).isEqualTo(sb.toString());
 
@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2019 the original author or authors.
+ * Copyright 2015-2020 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -398,6 +398,33 @@ public class PreparedStatementIT {
         assertThat(j.hasNext()).isFalse();
     }
 
+    @Test
+    public void testPreparedStatementWithPrimitives() throws Exception {
+        // given
+        container.getConfigService().setPluginProperty(PLUGIN_ID, "captureBindParametersIncludes",
+                ImmutableList.of(".*"));
+
+        // when
+        Trace trace = container.execute(ExecutePreparedStatementWithPrimitives.class);
+
+        // then
+        Iterator<Trace.Entry> i = trace.getEntryList().iterator();
+        List<Trace.SharedQueryText> sharedQueryTexts = trace.getSharedQueryTextList();
+
+        Trace.Entry entry = i.next();
+        assertThat(entry.getActive()).isFalse();
+        assertThat(entry.getDepth()).isEqualTo(0);
+        assertThat(entry.getMessage()).isEmpty();
+        assertThat(sharedQueryTexts.get(entry.getQueryEntryMessage().getSharedQueryTextIndex())
+                .getFullText()).isEqualTo("select * from employee where id <> ? and id <> ?"
+                        + " and id <> ? and id <> ? and id <> ? and id <> ? and name <> ?");
+        assertThat(entry.getQueryEntryMessage().getPrefix()).isEqualTo("jdbc query: ");
+        assertThat(entry.getQueryEntryMessage().getSuffix())
+                .isEqualTo(" [10, 20, 30, 40, 50.5, 60.25, true] => 3 rows");
+
+        assertThat(i.hasNext()).isFalse();
+    }
+
     @Test
     public void testPreparedStatementWithBinary() throws Exception {
         // given
@@ -973,6 +1000,41 @@ public class PreparedStatementIT {
         }
     }
 
+    public static class ExecutePreparedStatementWithPrimitives
+            implements AppUnderTest, TransactionMarker {
+        private Connection connection;
+        @Override
+        public void executeApp() throws Exception {
+            connection = Connections.createConnection();
+            try {
+                transactionMarker();
+            } finally {
+                Connections.closeConnection(connection);
+            }
+        }
+        @Override
+        public void transactionMarker() throws Exception {
+            PreparedStatement preparedStatement = connection.prepareStatement(
+                    "select * from employee where id <> ? and id <> ? and id <> ? and id <> ?"
+                            + " and id <> ? and id <> ? and name <> ?");
+            try {
+                preparedStatement.setByte(1, (byte) 10);
+                preparedStatement.setShort(2, (short) 20);
+                preparedStatement.setInt(3, 30);
+                preparedStatement.setLong(4, 40);
+                preparedStatement.setFloat(5, 50.5f);
+                preparedStatement.setDouble(6, 60.25);
+                preparedStatement.setBoolean(7, true);
+                ResultSet rs = preparedStatement.executeQuery();
+                while (rs.next()) {
+                    rs.getString(1);
+                }
+            } finally {
+                preparedStatement.close();
+            }
+        }
+    }
+
     public static class ExecutePreparedStatementWithBinary
             implements AppUnderTest, TransactionMarker {
         static {
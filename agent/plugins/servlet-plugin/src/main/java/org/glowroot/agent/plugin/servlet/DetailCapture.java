@@ -1,5 +1,5 @@
 /*
- * Copyright 2014-2019 the original author or authors.
+ * Copyright 2014-2020 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -20,15 +20,14 @@ import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
-import java.util.regex.Pattern;
 
 import javax.servlet.http.HttpServletRequest;
 
 import org.glowroot.agent.plugin.api.checker.Nullable;
 import org.glowroot.agent.plugin.api.util.ImmutableList;
 import org.glowroot.agent.plugin.api.util.ImmutableMap;
+import org.glowroot.agent.plugin.servlet._.NameMatcher;
 import org.glowroot.agent.plugin.servlet._.RequestHostAndPortDetail;
 import org.glowroot.agent.plugin.servlet._.RequestInvoker;
 import org.glowroot.agent.plugin.servlet._.ServletPluginProperties;
@@ -47,16 +46,14 @@ public class DetailCapture {
 
     public static Map<String, Object> captureRequestParameters(
             Map</*@Nullable*/ String, ?> requestParameters) {
-        List<Pattern> capturePatterns = ServletPluginProperties.captureRequestParameters();
+        NameMatcher captureNames = ServletPluginProperties.captureRequestParameters();
         Map<String, Object> map = new HashMap<String, Object>();
         for (Map.Entry</*@Nullable*/ String, ?> entry : requestParameters.entrySet()) {
             String name = entry.getKey();
             if (name == null) {
                 continue;
             }
-            // converted to lower case for case-insensitive matching (patterns are lower case)
-            String keyLowerCase = name.toLowerCase(Locale.ENGLISH);
-            if (!matchesOneOf(keyLowerCase, capturePatterns)) {
+            if (!captureNames.matches(name)) {
                 continue;
             }
             Object value = entry.getValue();
@@ -72,8 +69,8 @@ public class DetailCapture {
         if (e == null) {
             return Collections.emptyMap();
         }
-        List<Pattern> capturePatterns = ServletPluginProperties.captureRequestParameters();
-        List<Pattern> maskPatterns = ServletPluginProperties.maskRequestParameters();
+        NameMatcher captureNames = ServletPluginProperties.captureRequestParameters();
+        NameMatcher maskNames = ServletPluginProperties.maskRequestParameters();
         Map<String, Object> map = new HashMap<String, Object>();
         while (e.hasMoreElements()) {
             Object nameObj = e.nextElement();
@@ -84,12 +81,10 @@ public class DetailCapture {
                 continue;
             }
             String name = (String) nameObj;
-            // converted to lower case for case-insensitive matching (patterns are lower case)
-            String keyLowerCase = name.toLowerCase(Locale.ENGLISH);
-            if (!matchesOneOf(keyLowerCase, capturePatterns)) {
+            if (!captureNames.matches(name)) {
                 continue;
             }
-            if (matchesOneOf(keyLowerCase, maskPatterns)) {
+            if (maskNames.matches(name)) {
                 map.put(name, "****");
                 continue;
             }
@@ -117,8 +112,8 @@ public class DetailCapture {
     }
 
     public static Map<String, Object> captureRequestHeaders(HttpServletRequest request) {
-        List<Pattern> capturePatterns = ServletPluginProperties.captureRequestHeaders();
-        if (capturePatterns.isEmpty()) {
+        NameMatcher captureNames = ServletPluginProperties.captureRequestHeaders();
+        if (captureNames.isEmpty()) {
             return Collections.emptyMap();
         }
         Map<String, Object> requestHeaders = new HashMap<String, Object>();
@@ -131,9 +126,7 @@ public class DetailCapture {
             if (name == null) {
                 continue;
             }
-            // converted to lower case for case-insensitive matching (patterns are lower case)
-            String keyLowerCase = name.toLowerCase(Locale.ENGLISH);
-            if (!matchesOneOf(keyLowerCase, capturePatterns)) {
+            if (!captureNames.matches(name)) {
                 continue;
             }
             Enumeration</*@Nullable*/ String> values = request.getHeaders(name);
@@ -179,15 +172,6 @@ public class DetailCapture {
         }
     }
 
-    public static boolean matchesOneOf(String key, List<Pattern> patterns) {
-        for (Pattern pattern : patterns) {
-            if (pattern.matcher(key).matches()) {
-                return true;
-            }
-        }
-        return false;
-    }
-
     private static void captureRequestHeader(String name, Enumeration</*@Nullable*/ String> values,
             Map<String, Object> requestHeaders) {
         if (!values.hasMoreElements()) {
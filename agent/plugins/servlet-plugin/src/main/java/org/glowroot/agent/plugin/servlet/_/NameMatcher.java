@@ -0,0 +1,122 @@
+/*
+ * Copyright 2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.plugin.servlet._;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+// matches request parameter and header names (case-insensitive) against a configured list of
+// names, where the names can contain the wildcard *
+//
+// names without wildcard are matched using a hash set, and the (case sensitive) decision for each
+// name is cached so that the common case of the same header and parameter names on every request
+// does not lower case the name and run the regex patterns each time
+//
+// a new instance is built each time the config changes, which also discards the cached decisions
+public class NameMatcher {
+
+    public static final NameMatcher EMPTY = new NameMatcher(Collections.<String>emptySet(),
+            Collections.<Pattern>emptyList(), false);
+
+    // this is only to limit memory, since header and parameter names come from the client
+    private static final int MAX_CACHED_DECISIONS = 1000;
+
+    private final Set<String> literalNames;
+    private final List<Pattern> wildcardPatterns;
+    private final boolean matchesAll;
+    private final boolean empty;
+
+    private final ConcurrentMap<String, Boolean> decisions =
+            new ConcurrentHashMap<String, Boolean>();
+
+    private NameMatcher(Set<String> literalNames, List<Pattern> wildcardPatterns,
+            boolean matchesAll) {
+        this.literalNames = literalNames;
+        this.wildcardPatterns = wildcardPatterns;
+        this.matchesAll = matchesAll;
+        empty = literalNames.isEmpty() && wildcardPatterns.isEmpty() && !matchesAll;
+    }
+
+    public static NameMatcher create(List<String> names) {
+        Set<String> literalNames = new HashSet<String>();
+        List<Pattern> wildcardPatterns = new ArrayList<Pattern>();
+        boolean matchesAll = false;
+        for (String name : names) {
+            // converted to lower case for case-insensitive matching
+            String nameLowerCase = name.trim().toLowerCase(Locale.ENGLISH);
+            if (nameLowerCase.equals("*")) {
+                matchesAll = true;
+            } else if (nameLowerCase.indexOf('*') == -1) {
+                literalNames.add(nameLowerCase);
+            } else {
+                wildcardPatterns.add(buildRegexPattern(nameLowerCase));
+            }
+        }
+        return new NameMatcher(Collections.unmodifiableSet(literalNames),
+                Collections.unmodifiableList(wildcardPatterns), matchesAll);
+    }
+
+    public boolean isEmpty() {
+        return empty;
+    }
+
+    public boolean matches(String name) {
+        if (matchesAll) {
+            return true;
+        }
+        if (empty) {
+            return false;
+        }
+        Boolean decision = decisions.get(name);
+        if (decision != null) {
+            return decision;
+        }
+        boolean matches = matchesInternal(name);
+        if (decisions.size() < MAX_CACHED_DECISIONS) {
+            decisions.put(name, matches);
+        }
+        return matches;
+    }
+
+    private boolean matchesInternal(String name) {
+        // converted to lower case for case-insensitive matching (names and patterns are lower case)
+        String nameLowerCase = name.toLowerCase(Locale.ENGLISH);
+        if (literalNames.contains(nameLowerCase)) {
+            return true;
+        }
+        for (Pattern pattern : wildcardPatterns) {
+            if (pattern.matcher(nameLowerCase).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Pattern buildRegexPattern(String wildcardPattern) {
+        // convert * into .* and quote the rest of the text using \Q...\E
+        String regex = "\\Q" + wildcardPattern.replace("*", "\\E.*\\Q") + "\\E";
+        // strip off unnecessary \\Q\\E in case * appeared at beginning or end of part
+        regex = regex.replace("\\Q\\E", "");
+        return Pattern.compile(regex);
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2011-2019 the original author or authors.
+ * Copyright 2011-2020 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -20,11 +20,9 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
-import java.util.regex.Pattern;
 
 import org.glowroot.agent.plugin.api.Message;
 import org.glowroot.agent.plugin.api.MessageSupplier;
@@ -33,7 +31,6 @@ import org.glowroot.agent.plugin.api.checker.MonotonicNonNull;
 import org.glowroot.agent.plugin.api.checker.Nullable;
 import org.glowroot.agent.plugin.api.checker.RequiresNonNull;
 import org.glowroot.agent.plugin.api.util.Optional;
-import org.glowroot.agent.plugin.servlet.DetailCapture;
 
 // this class is thread-safe (unlike other MessageSuppliers) since it gets passed around to
 // auxiliary thread contexts for handling async servlets
@@ -88,16 +85,16 @@ public class ServletMessageSupplier extends MessageSupplier implements ServletRe
 
     @Override
     public Message get() {
-        List<Pattern> maskPatterns = ServletPluginProperties.maskRequestParameters();
+        NameMatcher maskNames = ServletPluginProperties.maskRequestParameters();
         Map<String, Object> detail = new LinkedHashMap<String, Object>();
         detail.put("Request http method", requestMethod);
-        String maskedRequestQueryString = maskRequestQueryString(requestQueryString, maskPatterns);
+        String maskedRequestQueryString = maskRequestQueryString(requestQueryString, maskNames);
         if (maskedRequestQueryString != null) {
             // including empty query string since that means request ended with ?
             detail.put("Request query string", maskedRequestQueryString);
         }
         Map<String, Object> maskedRequestParameters =
-                maskRequestParameters(requestParameters, maskPatterns);
+                maskRequestParameters(requestParameters, maskNames);
         if (maskedRequestParameters != null && !maskedRequestParameters.isEmpty()) {
             detail.put("Request parameters", maskedRequestParameters);
         }
@@ -268,11 +265,11 @@ public class ServletMessageSupplier extends MessageSupplier implements ServletRe
     }
 
     static @Nullable String maskRequestQueryString(@Nullable String requestQueryString,
-            List<Pattern> maskPatterns) {
+            NameMatcher maskNames) {
         if (requestQueryString == null) {
             return null;
         }
-        if (maskPatterns.isEmpty()) {
+        if (maskNames.isEmpty()) {
             return requestQueryString;
         }
         StringBuilder sb = new StringBuilder(requestQueryString.length());
@@ -296,10 +293,7 @@ public class ServletMessageSupplier extends MessageSupplier implements ServletRe
                     } else {
                         String key = sb.substring(keyStartIndex, sb.length());
                         sb.append('=');
-                        // converted to lower case for case-insensitive matching
-                        // (patterns are lower case)
-                        String keyLowerCase = key.toLowerCase(Locale.ENGLISH);
-                        if (DetailCapture.matchesOneOf(keyLowerCase, maskPatterns)) {
+                        if (maskNames.matches(key)) {
                             inMaskedValue = true;
                             sb.append(MASK_TEXT);
                             existMaskedParameters = true;
@@ -322,19 +316,17 @@ public class ServletMessageSupplier extends MessageSupplier implements ServletRe
     }
 
     private static @Nullable Map<String, Object> maskRequestParameters(
-            @Nullable Map<String, Object> requestParameters, List<Pattern> maskPatterns) {
+            @Nullable Map<String, Object> requestParameters, NameMatcher maskNames) {
         if (requestParameters == null) {
             return null;
         }
-        if (maskPatterns.isEmpty()) {
+        if (maskNames.isEmpty()) {
             return requestParameters;
         }
         Map<String, Object> maskedRequestParameters = new LinkedHashMap<String, Object>();
         for (Map.Entry<String, Object> entry : requestParameters.entrySet()) {
             String name = entry.getKey();
-            // converted to lower case for case-insensitive matching (patterns are lower case)
-            String keyLowerCase = name.toLowerCase(Locale.ENGLISH);
-            if (DetailCapture.matchesOneOf(keyLowerCase, maskPatterns)) {
+            if (maskNames.matches(name)) {
                 maskedRequestParameters.put(name, MASK_TEXT);
             } else {
                 maskedRequestParameters.put(name, entry.getValue());
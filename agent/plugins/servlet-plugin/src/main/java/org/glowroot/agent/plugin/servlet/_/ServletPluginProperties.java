@@ -1,5 +1,5 @@
 /*
- * Copyright 2011-2019 the original author or authors.
+ * Copyright 2011-2020 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -19,9 +19,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Locale;
 import java.util.Set;
-import java.util.regex.Pattern;
 
 import org.glowroot.agent.plugin.api.Agent;
 import org.glowroot.agent.plugin.api.checker.Nullable;
@@ -29,7 +27,6 @@ import org.glowroot.agent.plugin.api.config.ConfigListener;
 import org.glowroot.agent.plugin.api.config.ConfigService;
 import org.glowroot.agent.plugin.api.util.ImmutableList;
 import org.glowroot.agent.plugin.api.util.ImmutableSet;
-import org.glowroot.agent.plugin.servlet.DetailCapture;
 
 public class ServletPluginProperties {
 
@@ -37,9 +34,9 @@ public class ServletPluginProperties {
 
     private static final ConfigService configService = Agent.getConfigService("servlet");
 
-    private static List<Pattern> captureRequestParameters = Collections.emptyList();
-    private static List<Pattern> maskRequestParameters = Collections.emptyList();
-    private static List<Pattern> captureRequestHeaders = Collections.emptyList();
+    private static NameMatcher captureRequestParameters = NameMatcher.EMPTY;
+    private static NameMatcher maskRequestParameters = NameMatcher.EMPTY;
+    private static NameMatcher captureRequestHeaders = NameMatcher.EMPTY;
 
     private static boolean someRequestHostAndPortDetail;
     private static boolean captureRequestRemoteAddress;
@@ -51,7 +48,7 @@ public class ServletPluginProperties {
     private static boolean captureRequestServerHostname;
     private static boolean captureRequestServerPort;
 
-    private static List<Pattern> captureResponseHeaders = Collections.emptyList();
+    private static NameMatcher captureResponseHeaders = NameMatcher.EMPTY;
     private static boolean captureResponseHeadersNonEmpty;
     private static boolean captureContentLengthResponseHeader;
     private static boolean captureContentTypeResponseHeader;
@@ -72,15 +69,15 @@ public class ServletPluginProperties {
 
     private ServletPluginProperties() {}
 
-    public static List<Pattern> captureRequestParameters() {
+    public static NameMatcher captureRequestParameters() {
         return captureRequestParameters;
     }
 
-    public static List<Pattern> maskRequestParameters() {
+    public static NameMatcher maskRequestParameters() {
         return maskRequestParameters;
     }
 
-    public static List<Pattern> captureRequestHeaders() {
+    public static NameMatcher captureRequestHeaders() {
         return captureRequestHeaders;
     }
 
@@ -120,7 +117,7 @@ public class ServletPluginProperties {
         return captureRequestServerPort;
     }
 
-    public static List<Pattern> captureResponseHeaders() {
+    public static NameMatcher captureResponseHeaders() {
         return captureResponseHeaders;
     }
 
@@ -216,9 +213,9 @@ public class ServletPluginProperties {
         }
 
         private static void recalculateProperties() {
-            captureRequestParameters = buildPatternList("captureRequestParameters");
-            maskRequestParameters = buildPatternList("maskRequestParameters");
-            captureRequestHeaders = buildPatternList("captureRequestHeaders");
+            captureRequestParameters = buildNameMatcher("captureRequestParameters");
+            maskRequestParameters = buildNameMatcher("maskRequestParameters");
+            captureRequestHeaders = buildNameMatcher("captureRequestHeaders");
             captureRequestRemoteAddress =
                     configService.getBooleanProperty("captureRequestRemoteAddr").value();
             captureRequestRemoteHostname =
@@ -240,14 +237,12 @@ public class ServletPluginProperties {
                             || captureRequestRemotePort || captureRequestLocalAddress
                             || captureRequestLocalHostname || captureRequestLocalPort
                             || captureRequestServerHostname || captureRequestServerPort;
-            captureResponseHeaders = buildPatternList("captureResponseHeaders");
+            captureResponseHeaders = buildNameMatcher("captureResponseHeaders");
             captureResponseHeadersNonEmpty = !captureResponseHeaders.isEmpty();
-            captureContentLengthResponseHeader =
-                    DetailCapture.matchesOneOf("content-length", captureResponseHeaders);
-            captureContentTypeResponseHeader =
-                    DetailCapture.matchesOneOf("content-type", captureResponseHeaders);
+            captureContentLengthResponseHeader = captureResponseHeaders.matches("content-length");
+            captureContentTypeResponseHeader = captureResponseHeaders.matches("content-type");
             captureContentLanguageResponseHeader =
-                    DetailCapture.matchesOneOf("content-language", captureResponseHeaders);
+                    captureResponseHeaders.matches("content-language");
             userAttributePath = buildSessionAttributePath(
                     configService.getStringProperty("sessionUserAttribute").value());
             captureSessionAttributePaths = buildSessionAttributePaths(
@@ -259,14 +254,8 @@ public class ServletPluginProperties {
                     configService.getBooleanProperty("traceErrorOn4xxResponseCode").value();
         }
 
-        private static List<Pattern> buildPatternList(String propertyName) {
-            List<String> values = configService.getListProperty(propertyName).value();
-            List<Pattern> patterns = new ArrayList<Pattern>();
-            for (String value : values) {
-                // converted to lower case for case-insensitive matching
-                patterns.add(buildRegexPattern(value.trim().toLowerCase(Locale.ENGLISH)));
-            }
-            return ImmutableList.copyOf(patterns);
+        private static NameMatcher buildNameMatcher(String propertyName) {
+            return NameMatcher.create(configService.getListProperty(propertyName).value());
         }
 
         private static List<SessionAttributePath> buildSessionAttributePaths(
@@ -303,13 +292,5 @@ public class ServletPluginProperties {
             }
             return ImmutableSet.copyOf(names);
         }
-
-        private static Pattern buildRegexPattern(String wildcardPattern) {
-            // convert * into .* and quote the rest of the text using \Q...\E
-            String regex = "\\Q" + wildcardPattern.replace("*", "\\E.*\\Q") + "\\E";
-            // strip off unnecessary \\Q\\E in case * appeared at beginning or end of part
-            regex = regex.replace("\\Q\\E", "");
-            return Pattern.compile(regex);
-        }
     }
 }
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.plugin.servlet._;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class NameMatcherTest {
+
+    @Test
+    public void shouldMatchLiteralNamesCaseInsensitive() {
+        // given
+        NameMatcher nameMatcher = NameMatcher.create(ImmutableList.of(" Content-Type ", "host"));
+        // then
+        assertThat(nameMatcher.matches("content-type")).isTrue();
+        assertThat(nameMatcher.matches("Content-Type")).isTrue();
+        assertThat(nameMatcher.matches("HOST")).isTrue();
+        assertThat(nameMatcher.matches("content-length")).isFalse();
+        // second time uses cached decision
+        assertThat(nameMatcher.matches("Content-Type")).isTrue();
+        assertThat(nameMatcher.matches("content-length")).isFalse();
+    }
+
+    @Test
+    public void shouldMatchWildcardNames() {
+        // given
+        NameMatcher nameMatcher = NameMatcher.create(ImmutableList.of("x-*", "*password*"));
+        // then
+        assertThat(nameMatcher.matches("X-Forwarded-For")).isTrue();
+        assertThat(nameMatcher.matches("userPassword1")).isTrue();
+        assertThat(nameMatcher.matches("accept")).isFalse();
+        assertThat(nameMatcher.matches("ax-y")).isFalse();
+    }
+
+    @Test
+    public void shouldMatchAll() {
+        // given
+        NameMatcher nameMatcher = NameMatcher.create(ImmutableList.of("host", "*"));
+        // then
+        assertThat(nameMatcher.isEmpty()).isFalse();
+        assertThat(nameMatcher.matches("anything")).isTrue();
+    }
+
+    @Test
+    public void shouldMatchNothing() {
+        // given
+        NameMatcher nameMatcher = NameMatcher.create(ImmutableList.<String>of());
+        // then
+        assertThat(nameMatcher.isEmpty()).isTrue();
+        assertThat(nameMatcher.matches("host")).isFalse();
+        assertThat(NameMatcher.EMPTY.matches("host")).isFalse();
+    }
+}
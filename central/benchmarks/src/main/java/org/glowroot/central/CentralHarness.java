@@ -0,0 +1,133 @@
+/*
+ * Copyright 2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central;
+
+import java.io.File;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.PoolingOptions;
+import com.datastax.driver.core.QueryOptions;
+import com.datastax.driver.core.SocketOptions;
+import com.google.common.base.Strings;
+import com.google.common.io.Files;
+
+import org.glowroot.central.repo.CentralRepoModule;
+import org.glowroot.central.repo.SchemaUpgrade;
+import org.glowroot.central.support.CassandraWrapper;
+import org.glowroot.central.util.ClusterManager;
+import org.glowroot.central.util.Session;
+import org.glowroot.common.util.Clock;
+import org.glowroot.common2.repo.util.AlertingService;
+import org.glowroot.common2.repo.util.HttpClient;
+import org.glowroot.common2.repo.util.MailService;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+// wires up the central collector repositories and collector service the same way as
+// CentralModule, but against a locally started Cassandra (or an existing one if
+// -Dglowroot.cassandra.contactPoint=... is provided)
+class CentralHarness {
+
+    private static final String KEYSPACE = "glowroot_benchmarks";
+
+    private final boolean startedCassandra;
+    private final ClusterManager clusterManager;
+    private final Cluster cluster;
+    private final Session session;
+    private final ExecutorService asyncExecutor;
+    private final CentralRepoModule repos;
+    private final AlertingService alertingService;
+    private final CentralAlertingService centralAlertingService;
+    private final CollectorServiceImpl collectorService;
+
+    CentralHarness() throws Exception {
+        String contactPoint = System.getProperty("glowroot.cassandra.contactPoint");
+        if (Strings.isNullOrEmpty(contactPoint)) {
+            CassandraWrapper.start();
+            startedCassandra = true;
+            contactPoint = "127.0.0.1";
+        } else {
+            startedCassandra = false;
+        }
+        Clock clock = Clock.systemClock();
+        clusterManager = ClusterManager.create();
+        cluster = Cluster.builder().addContactPoint(contactPoint)
+                .withSocketOptions(new SocketOptions().setReadTimeoutMillis(30000))
+                .withQueryOptions(new QueryOptions().setDefaultIdempotence(true))
+                .build();
+        session = new Session(cluster.newSession(), KEYSPACE, null,
+                PoolingOptions.DEFAULT_MAX_QUEUE_SIZE);
+        SchemaUpgrade schemaUpgrade = new SchemaUpgrade(session, clock, false);
+        Integer initialSchemaVersion = schemaUpgrade.getInitialSchemaVersion();
+        if (initialSchemaVersion != null) {
+            schemaUpgrade.upgrade();
+        }
+        asyncExecutor = Executors.newCachedThreadPool();
+        File confDir = Files.createTempDir();
+        repos = new CentralRepoModule(clusterManager, session, confDir, "", false, false,
+                asyncExecutor, 10, 10, clock);
+        if (initialSchemaVersion == null) {
+            schemaUpgrade.updateSchemaVersionToCurent();
+        }
+        alertingService = new AlertingService(repos.getConfigRepository(),
+                repos.getIncidentDao(), repos.getAggregateDao(), repos.getGaugeValueDao(),
+                repos.getTraceDao(), repos.getRollupLevelService(), new MailService(),
+                new HttpClient(repos.getConfigRepository()),
+                clusterManager.createReplicatedLockSet("openingIncidentLockSet", 60, SECONDS),
+                clusterManager.createReplicatedLockSet("resolvingIncidentLockSet", 60, SECONDS),
+                clock);
+        HeartbeatAlertingService heartbeatAlertingService = new HeartbeatAlertingService(
+                repos.getHeartbeatDao(), repos.getIncidentDao(), alertingService,
+                repos.getConfigRepository());
+        centralAlertingService = new CentralAlertingService(repos.getConfigRepository(),
+                alertingService, heartbeatAlertingService, repos.getAlertingDisabledDao(), clock);
+        collectorService = new CollectorServiceImpl(repos.getAgentDisplayDao(),
+                repos.getAgentConfigDao(), repos.getActiveAgentDao(), repos.getEnvironmentDao(),
+                repos.getHeartbeatDao(), repos.getAggregateDao(), repos.getGaugeValueDao(),
+                repos.getTraceDao(), repos.getV09AgentRollupDao(),
+                new GrpcCommon(repos.getV09AgentRollupDao()), centralAlertingService, clock,
+                "benchmarks");
+    }
+
+    CentralRepoModule getRepos() {
+        return repos;
+    }
+
+    CollectorServiceImpl getCollectorService() {
+        return collectorService;
+    }
+
+    void truncateAll() throws Exception {
+        repos.getAggregateDao().truncateAll();
+        repos.getGaugeValueDao().truncateAll();
+        repos.getTraceDao().truncateAll();
+    }
+
+    void close() throws Exception {
+        centralAlertingService.close();
+        alertingService.close();
+        repos.close();
+        asyncExecutor.shutdown();
+        session.close();
+        cluster.close();
+        clusterManager.close();
+        if (startedCassandra) {
+            CassandraWrapper.stop();
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.grpc.stub.StreamObserver;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import org.glowroot.central.support.SyntheticPayloads;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateResponseMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateStreamMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateStreamMessage.AggregateStreamHeader;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.EmptyMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueResponseMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.TraceStreamMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.TraceStreamMessage.TraceStreamHeader;
+
+import static java.util.concurrent.TimeUnit.DAYS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+// measures the full ingestion path (collector service -> DAOs -> Cassandra), run with -prof gc to
+// also report allocation per operation
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+public class CollectorServiceBenchmark {
+
+    private static final String AGENT_ID = "benchmark-group::benchmark-agent";
+
+    @Param({"20", "200"})
+    private int transactionNameCount;
+
+    @Param({"200"})
+    private int traceEntryCount;
+
+    private CentralHarness harness;
+    private CollectorServiceImpl collectorService;
+
+    private int aggregateCount;
+    private List<AggregateStreamMessage> aggregateStream;
+    private List<TraceStreamMessage> traceStream;
+    private GaugeValueMessage gaugeValueMessage;
+
+    private long baseCaptureTime;
+    private final AtomicLong captureTimeCounter = new AtomicLong();
+
+    @Setup
+    public void setup() throws Exception {
+        harness = new CentralHarness();
+        harness.truncateAll();
+        collectorService = harness.getCollectorService();
+        SyntheticPayloads payloads = new SyntheticPayloads(transactionNameCount, traceEntryCount);
+        long now = System.currentTimeMillis();
+        aggregateCount = payloads.getAggregateCount();
+        aggregateStream = payloads.createAggregateStream(AGENT_ID, now);
+        traceStream = payloads.createTraceStream(AGENT_ID, now);
+        gaugeValueMessage = payloads.createGaugeValueMessage(AGENT_ID, now);
+        // aggregate capture times cycle through the past day
+        baseCaptureTime = (now - DAYS.toMillis(1)) / MINUTES.toMillis(1) * MINUTES.toMillis(1);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        harness.close();
+    }
+
+    @Benchmark
+    public void collectAggregateStream(Counters counters) {
+        CheckingStreamObserver<AggregateResponseMessage> responseObserver =
+                new CheckingStreamObserver<>();
+        StreamObserver<AggregateStreamMessage> requestObserver =
+                collectorService.collectAggregateStream(responseObserver);
+        requestObserver.onNext(AggregateStreamMessage.newBuilder()
+                .setStreamHeader(AggregateStreamHeader.newBuilder()
+                        .setAgentId(AGENT_ID)
+                        .setCaptureTime(nextCaptureTime())
+                        .setPostV09(true))
+                .build());
+        for (int i = 1; i < aggregateStream.size(); i++) {
+            requestObserver.onNext(aggregateStream.get(i));
+        }
+        requestObserver.onCompleted();
+        responseObserver.check();
+        counters.aggregates += aggregateCount;
+    }
+
+    @Benchmark
+    public void collectTraceStream(Counters counters) {
+        CheckingStreamObserver<EmptyMessage> responseObserver = new CheckingStreamObserver<>();
+        StreamObserver<TraceStreamMessage> requestObserver =
+                collectorService.collectTraceStream(responseObserver);
+        requestObserver.onNext(TraceStreamMessage.newBuilder()
+                .setStreamHeader(TraceStreamHeader.newBuilder()
+                        .setAgentId(AGENT_ID)
+                        .setTraceId(UUID.randomUUID().toString())
+                        .setPostV09(true))
+                .build());
+        for (int i = 1; i < traceStream.size(); i++) {
+            requestObserver.onNext(traceStream.get(i));
+        }
+        requestObserver.onCompleted();
+        responseObserver.check();
+        counters.traces++;
+    }
+
+    @Benchmark
+    public void collectGaugeValues() {
+        CheckingStreamObserver<GaugeValueResponseMessage> responseObserver =
+                new CheckingStreamObserver<>();
+        collectorService.collectGaugeValues(gaugeValueMessage, responseObserver);
+        responseObserver.check();
+    }
+
+    private long nextCaptureTime() {
+        long minutes = captureTimeCounter.getAndIncrement() % DAYS.toMinutes(1);
+        return baseCaptureTime + MINUTES.toMillis(minutes);
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters {
+
+        public long aggregates;
+        public long traces;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            aggregates = 0;
+            traces = 0;
+        }
+    }
+
+    private static class CheckingStreamObserver<T> implements StreamObserver<T> {
+
+        private volatile boolean completed;
+        private volatile @Nullable Throwable error;
+
+        @Override
+        public void onNext(T value) {}
+
+        @Override
+        public void onError(Throwable t) {
+            error = t;
+        }
+
+        @Override
+        public void onCompleted() {
+            completed = true;
+        }
+
+        private void check() {
+            if (error != null) {
+                throw new IllegalStateException(error);
+            }
+            if (!completed) {
+                throw new IllegalStateException("Response was not completed");
+            }
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.Lists;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.glowroot.common.model.HistogramMerger;
+import org.glowroot.common.model.LazyHistogram;
+import org.glowroot.common.model.LazyHistogram.ScratchBuffer;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+
+// measures merging stored duration histograms (one per aggregate row, as read by
+// readPercentileAggregates) and computing the percentiles shown in the ui and used by alerts
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@State(Scope.Benchmark)
+public class PercentileMergeBenchmark {
+
+    private static final double[] PERCENTILES = {50, 95, 99};
+
+    // number of aggregate rows
+    @Param({"60", "1440"})
+    private int histogramCount;
+
+    // transactions per aggregate row (more than LazyHistogram.MAX_VALUES are stored encoded)
+    @Param({"100", "10000"})
+    private int transactionCount;
+
+    private List<Aggregate.Histogram> histograms;
+
+    private HistogramMerger merger;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(0);
+        histograms = Lists.newArrayList();
+        ScratchBuffer scratchBuffer = new ScratchBuffer();
+        for (int i = 0; i < histogramCount; i++) {
+            LazyHistogram histogram = new LazyHistogram();
+            for (int j = 0; j < transactionCount; j++) {
+                // log-uniform from 1 millisecond to 10 seconds
+                histogram.add((long) Math.pow(10, 6 + random.nextDouble() * 4));
+            }
+            histograms.add(histogram.toProto(scratchBuffer));
+        }
+        merger = new HistogramMerger();
+    }
+
+    @Benchmark
+    public long[] lazyHistogram() {
+        LazyHistogram mergedHistogram = new LazyHistogram();
+        for (Aggregate.Histogram histogram : histograms) {
+            mergedHistogram.merge(histogram);
+        }
+        long[] values = new long[PERCENTILES.length];
+        for (int i = 0; i < PERCENTILES.length; i++) {
+            values[i] = mergedHistogram.getValueAtPercentile(PERCENTILES[i]);
+        }
+        return values;
+    }
+
+    @Benchmark
+    public long[] histogramMerger() {
+        merger.reset();
+        for (Aggregate.Histogram histogram : histograms) {
+            merger.merge(histogram);
+        }
+        return merger.getValuesAtPercentiles(PERCENTILES);
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import org.glowroot.central.repo.AggregateDao;
+import org.glowroot.central.repo.GaugeValueDao;
+import org.glowroot.central.repo.TraceDao;
+import org.glowroot.central.support.SyntheticPayloads;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.wire.api.model.AggregateOuterClass.OldAggregatesByType;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueMessage.GaugeValue;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+import static java.util.concurrent.TimeUnit.DAYS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+// same as CollectorServiceBenchmark, but calling the DAOs directly in order to isolate the
+// repository (serialization + Cassandra write) cost from the collector service overhead
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+public class RepoStoreBenchmark {
+
+    private static final String AGENT_ID = "benchmark-group::benchmark-agent";
+
+    @Param({"20", "200"})
+    private int transactionNameCount;
+
+    @Param({"200"})
+    private int traceEntryCount;
+
+    private CentralHarness harness;
+    private AggregateDao aggregateDao;
+    private GaugeValueDao gaugeValueDao;
+    private TraceDao traceDao;
+
+    private int aggregateCount;
+    private List<OldAggregatesByType> aggregatesByTypeList;
+    private List<Aggregate.SharedQueryText> sharedQueryTexts;
+    private List<GaugeValue> gaugeValues;
+    private Trace trace;
+
+    private long baseCaptureTime;
+    private final AtomicLong captureTimeCounter = new AtomicLong();
+
+    @Setup
+    public void setup() throws Exception {
+        harness = new CentralHarness();
+        harness.truncateAll();
+        aggregateDao = harness.getRepos().getAggregateDao();
+        gaugeValueDao = harness.getRepos().getGaugeValueDao();
+        traceDao = harness.getRepos().getTraceDao();
+        SyntheticPayloads payloads = new SyntheticPayloads(transactionNameCount, traceEntryCount);
+        long now = System.currentTimeMillis();
+        aggregateCount = payloads.getAggregateCount();
+        aggregatesByTypeList = payloads.createAggregatesByTypeList();
+        sharedQueryTexts = payloads.createSharedQueryTexts();
+        gaugeValues = payloads.createGaugeValues(now);
+        trace = payloads.createTrace(now);
+        // aggregate capture times cycle through the past day
+        baseCaptureTime = (now - DAYS.toMillis(1)) / MINUTES.toMillis(1) * MINUTES.toMillis(1);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        harness.close();
+    }
+
+    @Benchmark
+    public void storeAggregates(CollectorServiceBenchmark.Counters counters) throws Exception {
+        aggregateDao.store(AGENT_ID, nextCaptureTime(), aggregatesByTypeList, sharedQueryTexts);
+        counters.aggregates += aggregateCount;
+    }
+
+    @Benchmark
+    public void storeTrace(CollectorServiceBenchmark.Counters counters) throws Exception {
+        traceDao.store(AGENT_ID, trace.toBuilder()
+                .setId(UUID.randomUUID().toString())
+                .build());
+        counters.traces++;
+    }
+
+    @Benchmark
+    public void storeGaugeValues() throws Exception {
+        gaugeValueDao.store(AGENT_ID, gaugeValues);
+    }
+
+    private long nextCaptureTime() {
+        long minutes = captureTimeCounter.getAndIncrement() % DAYS.toMinutes(1);
+        return baseCaptureTime + MINUTES.toMillis(minutes);
+    }
+}
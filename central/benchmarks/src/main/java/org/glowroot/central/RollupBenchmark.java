@@ -0,0 +1,107 @@
+/*
+ * Copyright 2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.glowroot.central.repo.AggregateDao;
+import org.glowroot.central.repo.GaugeValueDao;
+import org.glowroot.central.support.SyntheticPayloads;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.wire.api.model.AggregateOuterClass.OldAggregatesByType;
+
+import static java.util.concurrent.TimeUnit.DAYS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+// measures the time of a single rollup pass (agent and its parent agent rollup) over five minutes
+// of freshly stored aggregates and gauge values
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 10)
+@Measurement(iterations = 50)
+@State(Scope.Benchmark)
+public class RollupBenchmark {
+
+    private static final String AGENT_ROLLUP_ID = "benchmark-group::";
+    private static final String AGENT_ID = AGENT_ROLLUP_ID + "benchmark-agent";
+
+    @Param({"20", "200"})
+    private int transactionNameCount;
+
+    private CentralHarness harness;
+    private AggregateDao aggregateDao;
+    private GaugeValueDao gaugeValueDao;
+    private SyntheticPayloads payloads;
+    private List<OldAggregatesByType> aggregatesByTypeList;
+    private List<Aggregate.SharedQueryText> sharedQueryTexts;
+
+    private long nextCaptureTime;
+
+    @Setup
+    public void setup() throws Exception {
+        harness = new CentralHarness();
+        harness.truncateAll();
+        aggregateDao = harness.getRepos().getAggregateDao();
+        gaugeValueDao = harness.getRepos().getGaugeValueDao();
+        payloads = new SyntheticPayloads(transactionNameCount, 0);
+        aggregatesByTypeList = payloads.createAggregatesByTypeList();
+        sharedQueryTexts = payloads.createSharedQueryTexts();
+        long rollupIntervalMillis = MINUTES.toMillis(5);
+        nextCaptureTime = (System.currentTimeMillis() - DAYS.toMillis(1)) / rollupIntervalMillis
+                * rollupIntervalMillis;
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        harness.close();
+    }
+
+    @Setup(Level.Invocation)
+    public void storeFiveMinutes() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            nextCaptureTime += MINUTES.toMillis(1);
+            aggregateDao.store(AGENT_ID, nextCaptureTime, aggregatesByTypeList, sharedQueryTexts);
+            for (int j = 0; j < 6; j++) {
+                gaugeValueDao.store(AGENT_ID, payloads.createGaugeValues(
+                        nextCaptureTime - MINUTES.toMillis(1) + SECONDS.toMillis(10 * (j + 1))));
+            }
+        }
+    }
+
+    @Benchmark
+    public void rollup() throws Exception {
+        // same order as RollupService
+        aggregateDao.rollup(AGENT_ID);
+        gaugeValueDao.rollup(AGENT_ID);
+        aggregateDao.rollup(AGENT_ROLLUP_ID);
+        gaugeValueDao.rollup(AGENT_ROLLUP_ID);
+    }
+}
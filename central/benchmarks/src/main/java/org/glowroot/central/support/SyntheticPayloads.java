@@ -0,0 +1,315 @@
+/*
+ * Copyright 2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.support;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.wire.api.model.AggregateOuterClass.OldAggregatesByType;
+import org.glowroot.wire.api.model.AggregateOuterClass.OldTransactionAggregate;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateStreamMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateStreamMessage.AggregateStreamHeader;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateStreamMessage.OverallAggregate;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateStreamMessage.TransactionAggregate;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueMessage.GaugeValue;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.TraceStreamMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.TraceStreamMessage.Queries;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.TraceStreamMessage.TraceStreamCounts;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.TraceStreamMessage.TraceStreamHeader;
+import org.glowroot.wire.api.model.Proto;
+import org.glowroot.wire.api.model.Proto.OptionalInt64;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+// generates payloads that are shaped like what a typical web application agent sends to the
+// central collector (a couple of transaction types, many transaction names, a handful of queries
+// and service calls per transaction, and traces with a few hundred entries)
+public class SyntheticPayloads {
+
+    private static final List<String> TRANSACTION_TYPES = Arrays.asList("Web", "Background");
+
+    private static final List<String> GAUGE_NAMES = Arrays.asList(
+            "java.lang:type=Memory:HeapMemoryUsage.used",
+            "java.lang:type=Memory:NonHeapMemoryUsage.used",
+            "java.lang:type=OperatingSystem:ProcessCpuLoad",
+            "java.lang:type=OperatingSystem:SystemCpuLoad",
+            "java.lang:type=Threading:ThreadCount",
+            "java.lang:type=GarbageCollector,name=PS Scavenge:CollectionTime[counter]",
+            "java.lang:type=GarbageCollector,name=PS Scavenge:CollectionCount[counter]",
+            "java.lang:type=GarbageCollector,name=PS MarkSweep:CollectionTime[counter]",
+            "java.lang:type=GarbageCollector,name=PS MarkSweep:CollectionCount[counter]",
+            "java.lang:type=ClassLoading:LoadedClassCount");
+
+    private static final int SHARED_QUERY_TEXT_COUNT = 50;
+    private static final int QUERIES_PER_AGGREGATE = 5;
+    private static final int HISTOGRAM_RAW_VALUE_COUNT = 100;
+
+    private final int transactionNameCount;
+    private final int traceEntryCount;
+
+    private final List<String> sharedQueryTexts;
+
+    // fixed seed so that runs are comparable
+    private final Random random = new Random(0);
+
+    public SyntheticPayloads(int transactionNameCount, int traceEntryCount) {
+        this.transactionNameCount = transactionNameCount;
+        this.traceEntryCount = traceEntryCount;
+        sharedQueryTexts = new ArrayList<>();
+        for (int i = 0; i < SHARED_QUERY_TEXT_COUNT; i++) {
+            sharedQueryTexts.add("select id, name, description, created_at from table" + i
+                    + " where customer_id = ? and status = ?");
+        }
+    }
+
+    // number of aggregates (overall + transaction) in each aggregate stream / aggregate list
+    public int getAggregateCount() {
+        return TRANSACTION_TYPES.size() * (transactionNameCount + 1);
+    }
+
+    public List<AggregateStreamMessage> createAggregateStream(String agentId, long captureTime) {
+        List<AggregateStreamMessage> messages = new ArrayList<>();
+        messages.add(AggregateStreamMessage.newBuilder()
+                .setStreamHeader(AggregateStreamHeader.newBuilder()
+                        .setAgentId(agentId)
+                        .setCaptureTime(captureTime)
+                        .setPostV09(true))
+                .build());
+        for (String sharedQueryText : sharedQueryTexts) {
+            messages.add(AggregateStreamMessage.newBuilder()
+                    .setSharedQueryText(Aggregate.SharedQueryText.newBuilder()
+                            .setFullText(sharedQueryText))
+                    .build());
+        }
+        for (String transactionType : TRANSACTION_TYPES) {
+            messages.add(AggregateStreamMessage.newBuilder()
+                    .setOverallAggregate(OverallAggregate.newBuilder()
+                            .setTransactionType(transactionType)
+                            .setAggregate(createAggregate(transactionNameCount * 10)))
+                    .build());
+            for (int i = 0; i < transactionNameCount; i++) {
+                messages.add(AggregateStreamMessage.newBuilder()
+                        .setTransactionAggregate(TransactionAggregate.newBuilder()
+                                .setTransactionType(transactionType)
+                                .setTransactionName(getTransactionName(i))
+                                .setAggregate(createAggregate(10)))
+                        .build());
+            }
+        }
+        return messages;
+    }
+
+    public List<OldAggregatesByType> createAggregatesByTypeList() {
+        List<OldAggregatesByType> aggregatesByTypeList = new ArrayList<>();
+        for (String transactionType : TRANSACTION_TYPES) {
+            OldAggregatesByType.Builder builder = OldAggregatesByType.newBuilder()
+                    .setTransactionType(transactionType)
+                    .setOverallAggregate(createAggregate(transactionNameCount * 10));
+            for (int i = 0; i < transactionNameCount; i++) {
+                builder.addTransactionAggregate(OldTransactionAggregate.newBuilder()
+                        .setTransactionName(getTransactionName(i))
+                        .setAggregate(createAggregate(10)));
+            }
+            aggregatesByTypeList.add(builder.build());
+        }
+        return aggregatesByTypeList;
+    }
+
+    public List<Aggregate.SharedQueryText> createSharedQueryTexts() {
+        List<Aggregate.SharedQueryText> list = new ArrayList<>();
+        for (String sharedQueryText : sharedQueryTexts) {
+            list.add(Aggregate.SharedQueryText.newBuilder()
+                    .setFullText(sharedQueryText)
+                    .build());
+        }
+        return list;
+    }
+
+    public GaugeValueMessage createGaugeValueMessage(String agentId, long captureTime) {
+        return GaugeValueMessage.newBuilder()
+                .setAgentId(agentId)
+                .addAllGaugeValue(createGaugeValues(captureTime))
+                .setPostV09(true)
+                .build();
+    }
+
+    public List<GaugeValue> createGaugeValues(long captureTime) {
+        List<GaugeValue> gaugeValues = new ArrayList<>();
+        for (String gaugeName : GAUGE_NAMES) {
+            GaugeValue.Builder builder = GaugeValue.newBuilder()
+                    .setGaugeName(gaugeName)
+                    .setCaptureTime(captureTime)
+                    .setValue(random.nextInt(1000000));
+            if (gaugeName.endsWith("[counter]")) {
+                builder.setWeight(SECONDS.toNanos(5));
+            } else {
+                builder.setWeight(1);
+            }
+            gaugeValues.add(builder.build());
+        }
+        return gaugeValues;
+    }
+
+    public List<TraceStreamMessage> createTraceStream(String agentId, long captureTime) {
+        Trace trace = createTrace(captureTime);
+        List<TraceStreamMessage> messages = new ArrayList<>();
+        messages.add(TraceStreamMessage.newBuilder()
+                .setStreamHeader(TraceStreamHeader.newBuilder()
+                        .setAgentId(agentId)
+                        .setTraceId(trace.getId())
+                        .setPostV09(true))
+                .build());
+        for (Trace.SharedQueryText sharedQueryText : trace.getSharedQueryTextList()) {
+            messages.add(TraceStreamMessage.newBuilder()
+                    .setSharedQueryText(sharedQueryText)
+                    .build());
+        }
+        for (Trace.Entry entry : trace.getEntryList()) {
+            messages.add(TraceStreamMessage.newBuilder()
+                    .setEntry(entry)
+                    .build());
+        }
+        messages.add(TraceStreamMessage.newBuilder()
+                .setQueries(Queries.newBuilder()
+                        .addAllQuery(trace.getQueryList()))
+                .build());
+        messages.add(TraceStreamMessage.newBuilder()
+                .setHeader(trace.getHeader())
+                .build());
+        messages.add(TraceStreamMessage.newBuilder()
+                .setStreamCounts(TraceStreamCounts.newBuilder()
+                        .setSharedQueryTextCount(trace.getSharedQueryTextCount())
+                        .setEntryCount(trace.getEntryCount()))
+                .build());
+        return messages;
+    }
+
+    public Trace createTrace(long captureTime) {
+        long durationNanos = MILLISECONDS.toNanos(500 + random.nextInt(5000));
+        Trace.Builder builder = Trace.newBuilder()
+                .setId(UUID.randomUUID().toString());
+        for (String sharedQueryText : sharedQueryTexts) {
+            builder.addSharedQueryText(Trace.SharedQueryText.newBuilder()
+                    .setFullText(sharedQueryText));
+        }
+        for (int i = 0; i < traceEntryCount; i++) {
+            builder.addEntry(Trace.Entry.newBuilder()
+                    .setDepth(i == 0 ? 0 : 1)
+                    .setStartOffsetNanos(durationNanos * i / traceEntryCount)
+                    .setDurationNanos(durationNanos / (traceEntryCount * 2))
+                    .setQueryEntryMessage(Trace.QueryEntryMessage.newBuilder()
+                            .setSharedQueryTextIndex(i % SHARED_QUERY_TEXT_COUNT)
+                            .setPrefix("jdbc query: ")
+                            .setSuffix(" => 1 row"))
+                    .addLocationStackTraceElement(Proto.StackTraceElement.newBuilder()
+                            .setClassName("com.example.CustomerRepository")
+                            .setMethodName("findByStatus")
+                            .setFileName("CustomerRepository.java")
+                            .setLineNumber(100 + i % 50)));
+        }
+        for (int i = 0; i < QUERIES_PER_AGGREGATE; i++) {
+            builder.addQuery(Aggregate.Query.newBuilder()
+                    .setType("SQL")
+                    .setSharedQueryTextIndex(i)
+                    .setTotalDurationNanos(durationNanos / (QUERIES_PER_AGGREGATE * 2))
+                    .setExecutionCount(traceEntryCount / QUERIES_PER_AGGREGATE)
+                    .setTotalRows(OptionalInt64.newBuilder().setValue(traceEntryCount)));
+        }
+        builder.setHeader(Trace.Header.newBuilder()
+                .setSlow(true)
+                .setStartTime(captureTime - NANOSECONDS.toMillis(durationNanos))
+                .setCaptureTime(captureTime)
+                .setDurationNanos(durationNanos)
+                .setTransactionType(TRANSACTION_TYPES.get(0))
+                .setTransactionName(getTransactionName(random.nextInt(transactionNameCount)))
+                .setHeadline("/customers/" + random.nextInt(100000))
+                .setUser("user" + random.nextInt(1000))
+                .addAttribute(Trace.Attribute.newBuilder()
+                        .setName("Tenant")
+                        .addValue("tenant" + random.nextInt(10)))
+                .addDetailEntry(Trace.DetailEntry.newBuilder()
+                        .setName("Request http method")
+                        .addValue(Trace.DetailValue.newBuilder().setString("GET")))
+                .setMainThreadRootTimer(Trace.Timer.newBuilder()
+                        .setName("http request")
+                        .setTotalNanos(durationNanos)
+                        .setCount(1)
+                        .addChildTimer(Trace.Timer.newBuilder()
+                                .setName("jdbc query")
+                                .setTotalNanos(durationNanos / 2)
+                                .setCount(traceEntryCount)))
+                .setEntryCount(traceEntryCount)
+                .setQueryCount(QUERIES_PER_AGGREGATE));
+        return builder.build();
+    }
+
+    private Aggregate createAggregate(int transactionCount) {
+        double totalDurationNanos = 0;
+        long[] rawValues = new long[Math.min(transactionCount, HISTOGRAM_RAW_VALUE_COUNT)];
+        for (int i = 0; i < rawValues.length; i++) {
+            rawValues[i] = MILLISECONDS.toNanos(1 + random.nextInt(2000));
+            totalDurationNanos += rawValues[i];
+        }
+        Arrays.sort(rawValues);
+        Aggregate.Histogram.Builder histogram = Aggregate.Histogram.newBuilder();
+        for (long rawValue : rawValues) {
+            histogram.addOrderedRawValue(rawValue);
+        }
+        Aggregate.Builder builder = Aggregate.newBuilder()
+                .setTotalDurationNanos(totalDurationNanos)
+                .setTransactionCount(transactionCount)
+                .setErrorCount(random.nextInt(Math.max(transactionCount / 10, 1)))
+                .addMainThreadRootTimer(Aggregate.Timer.newBuilder()
+                        .setName("http request")
+                        .setTotalNanos(totalDurationNanos)
+                        .setCount(transactionCount)
+                        .addChildTimer(Aggregate.Timer.newBuilder()
+                                .setName("jdbc query")
+                                .setTotalNanos(totalDurationNanos / 2)
+                                .setCount(transactionCount * 20))
+                        .addChildTimer(Aggregate.Timer.newBuilder()
+                                .setName("http client request")
+                                .setTotalNanos(totalDurationNanos / 4)
+                                .setCount(transactionCount)))
+                .setDurationNanosHistogram(histogram);
+        for (int i = 0; i < QUERIES_PER_AGGREGATE; i++) {
+            builder.addQuery(Aggregate.Query.newBuilder()
+                    .setType("SQL")
+                    .setSharedQueryTextIndex(random.nextInt(SHARED_QUERY_TEXT_COUNT))
+                    .setTotalDurationNanos(totalDurationNanos / (QUERIES_PER_AGGREGATE * 2))
+                    .setExecutionCount(transactionCount * 4)
+                    .setTotalRows(OptionalInt64.newBuilder().setValue(transactionCount * 4)));
+        }
+        builder.addServiceCall(Aggregate.ServiceCall.newBuilder()
+                .setType("HTTP")
+                .setText("GET http://inventory/items")
+                .setTotalDurationNanos(totalDurationNanos / 4)
+                .setExecutionCount(transactionCount));
+        return builder.build();
+    }
+
+    private static String getTransactionName(int index) {
+        return "/api/resource" + index + "/*";
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2019 the original author or authors.
+ * Copyright 2015-2020 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -198,7 +198,9 @@ public class CentralModule {
             }
             repoAsyncExecutor = MoreExecutors2.newCachedThreadPool("Repo-Async-Worker-%d");
             repos = new CentralRepoModule(clusterManager, session, directories.getConfDir(),
-                    centralConfig.cassandraSymmetricEncryptionKey(), repoAsyncExecutor,
+                    centralConfig.cassandraSymmetricEncryptionKey(),
+                    centralConfig.cassandraGaugeValueBlocks(),
+                    centralConfig.cassandraTraceSearchIndex(), repoAsyncExecutor,
                     TARGET_MAX_ACTIVE_AGENTS_IN_PAST_7_DAYS, TARGET_MAX_CENTRAL_UI_USERS, clock);
 
             if (initialSchemaVersion == null) {
@@ -227,7 +229,8 @@ public class CentralModule {
 
             grpcServer = new GrpcServer(centralConfig.grpcBindAddress(),
                     centralConfig.grpcHttpPort(), centralConfig.grpcHttpsPort(),
-                    directories.getConfDir(), repos.getAgentDisplayDao(), repos.getAgentConfigDao(),
+                    directories.getConfDir(), directories.getHeapDumpDir(),
+                    repos.getAgentDisplayDao(), repos.getAgentConfigDao(),
                     repos.getActiveAgentDao(), repos.getEnvironmentDao(), repos.getHeartbeatDao(),
                     repos.getAggregateDao(), repos.getGaugeValueDao(), repos.getTraceDao(),
                     repos.getV09AgentRollupDao(), centralAlertingService, clusterManager, clock,
@@ -456,7 +459,9 @@ public class CentralModule {
             startupLogger.info("creating glowroot central schema...");
             repoAsyncExecutor = MoreExecutors2.newCachedThreadPool("Repo-Async-Worker-%d");
             repos = new CentralRepoModule(ClusterManager.create(), session, centralDir,
-                    centralConfig.cassandraSymmetricEncryptionKey(), repoAsyncExecutor, 10, 10,
+                    centralConfig.cassandraSymmetricEncryptionKey(),
+                    centralConfig.cassandraGaugeValueBlocks(),
+                    centralConfig.cassandraTraceSearchIndex(), repoAsyncExecutor, 10, 10,
                     Clock.systemClock());
             schemaUpgrade.updateSchemaVersionToCurent();
         } finally {
@@ -582,7 +587,9 @@ public class CentralModule {
             }
             repoAsyncExecutor = MoreExecutors2.newCachedThreadPool("Repo-Async-Worker-%d");
             repos = new CentralRepoModule(ClusterManager.create(), session, centralDir,
-                    centralConfig.cassandraSymmetricEncryptionKey(), repoAsyncExecutor, 10, 10,
+                    centralConfig.cassandraSymmetricEncryptionKey(),
+                    centralConfig.cassandraGaugeValueBlocks(),
+                    centralConfig.cassandraTraceSearchIndex(), repoAsyncExecutor, 10, 10,
                     Clock.systemClock());
             if (initialSchemaVersion == null) {
                 schemaUpgrade.updateSchemaVersionToCurent();
@@ -667,6 +674,14 @@ public class CentralModule {
         if (!Strings.isNullOrEmpty(cassandraMaxConcurrentQueries)) {
             builder.cassandraMaxConcurrentQueries(Integer.parseInt(cassandraMaxConcurrentQueries));
         }
+        String cassandraGaugeValueBlocks = properties.get("glowroot.cassandra.gaugeValueBlocks");
+        if (!Strings.isNullOrEmpty(cassandraGaugeValueBlocks)) {
+            builder.cassandraGaugeValueBlocks(Boolean.parseBoolean(cassandraGaugeValueBlocks));
+        }
+        String cassandraTraceSearchIndex = properties.get("glowroot.cassandra.traceSearchIndex");
+        if (!Strings.isNullOrEmpty(cassandraTraceSearchIndex)) {
+            builder.cassandraTraceSearchIndex(Boolean.parseBoolean(cassandraTraceSearchIndex));
+        }
         String cassandraPoolTimeoutMillis = properties.get("glowroot.cassandra.pool.timeoutMillis");
         if (!Strings.isNullOrEmpty(cassandraPoolTimeoutMillis)) {
             builder.cassandraPoolTimeoutMillis(Integer.parseInt(cassandraPoolTimeoutMillis));
@@ -1074,6 +1089,16 @@ public class CentralModule {
             return 1024;
         }
 
+        @Value.Default
+        boolean cassandraGaugeValueBlocks() {
+            return false;
+        }
+
+        @Value.Default
+        boolean cassandraTraceSearchIndex() {
+            return false;
+        }
+
         @Value.Default
         int cassandraPoolTimeoutMillis() {
             // central runs lots of parallel async queries and is very spiky since all aggregates
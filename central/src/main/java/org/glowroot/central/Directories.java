@@ -27,6 +27,8 @@ class Directories {
 
     private final File confDir;
     private final File logDir;
+    // when configured, agent heap dumps are streamed (compressed) to this directory
+    private final @Nullable File heapDumpDir;
 
     Directories(File centralDir) throws IOException {
         File propFile = new File(centralDir, "glowroot-central.properties");
@@ -48,6 +50,7 @@ class Directories {
 
         this.confDir = confDir;
         this.logDir = logDir;
+        heapDumpDir = getDir("heapDump", props);
     }
 
     File getConfDir() {
@@ -58,6 +61,11 @@ class Directories {
         return logDir;
     }
 
+    @Nullable
+    File getHeapDumpDir() {
+        return heapDumpDir;
+    }
+
     // similar method from agent org.glowroot.agent.Directories
     private static @Nullable File getDir(String shortName, Properties props)
             throws IOException {
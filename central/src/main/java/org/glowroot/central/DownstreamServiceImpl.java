@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2019 the original author or authors.
+ * Copyright 2015-2020 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,7 +15,16 @@
  */
 package org.glowroot.central;
 
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.Serializable;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.Date;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Exchanger;
@@ -64,6 +73,7 @@ import org.glowroot.wire.api.model.DownstreamServiceOuterClass.CentralRequest;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.CurrentTimeRequest;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.EntriesRequest;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.EntriesResponse;
+import org.glowroot.wire.api.model.DownstreamServiceOuterClass.ExceptionResponse;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.ExplicitGcDisabledRequest;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.ForceGcRequest;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.FullTraceRequest;
@@ -98,6 +108,7 @@ import org.glowroot.wire.api.model.DownstreamServiceOuterClass.PreloadClasspathC
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.QueriesRequest;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.QueriesResponse;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.ReweaveRequest;
+import org.glowroot.wire.api.model.DownstreamServiceOuterClass.ReweaveResponse;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.SystemPropertiesRequest;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.ThreadDump;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.ThreadDumpRequest;
@@ -114,14 +125,21 @@ class DownstreamServiceImpl extends DownstreamServiceImplBase {
 
     private static final Logger logger = LoggerFactory.getLogger(DownstreamServiceImpl.class);
 
+    private static final int HEAP_HISTOGRAM_PAGE_SIZE = 10000;
+
     private final GrpcCommon grpcCommon;
 
+    // heap dumps are only streamed to the central collector when this is configured
+    private final @Nullable File heapDumpDir;
+
     private final DistributedExecutionMap<String, ConnectedAgent> connectedAgents;
 
     private final ReadWriteLock shuttingDownLock = new ReentrantReadWriteLock(true);
 
-    DownstreamServiceImpl(GrpcCommon grpcCommon, ClusterManager clusterManager) {
+    DownstreamServiceImpl(GrpcCommon grpcCommon, ClusterManager clusterManager,
+            @Nullable File heapDumpDir) {
         this.grpcCommon = grpcCommon;
+        this.heapDumpDir = heapDumpDir;
         connectedAgents = clusterManager.createDistributedExecutionMap("connectedAgents");
     }
 
@@ -203,7 +221,8 @@ class DownstreamServiceImpl extends DownstreamServiceImplBase {
     HeapDumpFileInfo heapDump(String agentId, String directory) throws Exception {
         AgentResponse responseWrapper = runOnCluster(agentId, CentralRequest.newBuilder()
                 .setHeapDumpRequest(HeapDumpRequest.newBuilder()
-                        .setDirectory(directory))
+                        .setDirectory(directory)
+                        .setStream(heapDumpDir != null))
                 .build());
         HeapDumpResponse response = responseWrapper.getHeapDumpResponse();
         if (response.getDirectoryDoesNotExist()) {
@@ -214,7 +233,8 @@ class DownstreamServiceImpl extends DownstreamServiceImplBase {
 
     HeapHistogram heapHistogram(String agentId) throws Exception {
         AgentResponse responseWrapper = runOnCluster(agentId, CentralRequest.newBuilder()
-                .setHeapHistogramRequest(HeapHistogramRequest.newBuilder())
+                .setHeapHistogramRequest(HeapHistogramRequest.newBuilder()
+                        .setPageSize(HEAP_HISTOGRAM_PAGE_SIZE))
                 .build());
         HeapHistogramResponse response = responseWrapper.getHeapHistogramResponse();
         if (response.getUnavailableDueToRunningInJre()) {
@@ -334,11 +354,11 @@ class DownstreamServiceImpl extends DownstreamServiceImplBase {
         return responseWrapper.getMethodSignaturesResponse().getMethodSignatureList();
     }
 
-    int reweave(String agentId) throws Exception {
+    ReweaveResponse reweave(String agentId) throws Exception {
         AgentResponse responseWrapper = runOnCluster(agentId, CentralRequest.newBuilder()
                 .setReweaveRequest(ReweaveRequest.getDefaultInstance())
                 .build());
-        return responseWrapper.getReweaveResponse().getClassUpdateCount();
+        return responseWrapper.getReweaveResponse();
     }
 
     Trace. /*@Nullable*/ Header getHeader(String agentId, String traceId) throws Exception {
@@ -444,7 +464,12 @@ class DownstreamServiceImpl extends DownstreamServiceImplBase {
                 timeoutSeconds = 5;
                 break;
             case HEAP_DUMP_REQUEST:
-                timeoutSeconds = 300;
+                if (centralRequest.getHeapDumpRequest().getStream()) {
+                    // this also includes the time to stream the (compressed) heap dump
+                    timeoutSeconds = 3600;
+                } else {
+                    timeoutSeconds = 300;
+                }
                 break;
             default:
                 timeoutSeconds = 60;
@@ -558,12 +583,24 @@ class DownstreamServiceImpl extends DownstreamServiceImplBase {
                 return;
             }
             long requestId = value.getRequestId();
+            if (isPartialResponse(value)) {
+                ResponseHolder responseHolder = responseHolders.getIfPresent(requestId);
+                if (responseHolder == null) {
+                    // request has already timed out (and the error was already logged at that
+                    // point)
+                    logger.debug("no response holder for request id: {}", requestId);
+                    return;
+                }
+                responseHolder.onPartialResponse(value);
+                return;
+            }
             ResponseHolder responseHolder = responseHolders.getIfPresent(requestId);
             responseHolders.invalidate(requestId);
             if (responseHolder == null) {
                 logger.error("no response holder for request id: {}", requestId);
                 return;
             }
+            value = responseHolder.complete(value, agentId);
             try {
                 // this shouldn't timeout since it is the other side of the exchange that is waiting
                 responseHolder.response.exchange(value, 1, MINUTES);
@@ -599,19 +636,36 @@ class DownstreamServiceImpl extends DownstreamServiceImplBase {
                         .build();
             }
             try {
-                CentralRequest request = CentralRequest.newBuilder(requestWithoutRequestId)
-                        .setRequestId(nextRequestId.getAndIncrement())
-                        .build();
+                CentralRequest.Builder request = CentralRequest.newBuilder(requestWithoutRequestId)
+                        .setRequestId(nextRequestId.getAndIncrement());
                 ResponseHolder responseHolder = new ResponseHolder();
+                if (request.getHeapDumpRequest().getStream()) {
+                    if (heapDumpDir == null) {
+                        // the agent is connected to a central collector node that doesn't have a
+                        // heap dump directory configured
+                        request.getHeapDumpRequestBuilder().setStream(false);
+                    } else {
+                        responseHolder.heapDumpFile = new File(heapDumpDir,
+                                "heap-dump-" + request.getRequestId() + "-"
+                                        + System.currentTimeMillis() + ".partial");
+                    }
+                }
                 responseHolders.put(request.getRequestId(), responseHolder);
                 // synchronization required since individual StreamObservers are not thread-safe
                 synchronized (requestObserver) {
-                    requestObserver.onNext(request);
+                    requestObserver.onNext(request.build());
                 }
                 // timeout is in case agent never responds
                 // passing AgentResponse.getDefaultInstance() is just dummy (non-null) value
-                AgentResponse response = responseHolder.response
-                        .exchange(AgentResponse.getDefaultInstance(), timeoutSeconds, SECONDS);
+                AgentResponse response;
+                try {
+                    response = responseHolder.response.exchange(
+                            AgentResponse.getDefaultInstance(), timeoutSeconds, SECONDS);
+                } catch (InterruptedException | TimeoutException e) {
+                    responseHolders.invalidate(request.getRequestId());
+                    responseHolder.abort();
+                    throw e;
+                }
                 return ImmutableAgentResult.builder()
                         .value(response)
                         .build();
@@ -656,8 +710,155 @@ class DownstreamServiceImpl extends DownstreamServiceImplBase {
         }
     }
 
+    private static boolean isPartialResponse(AgentResponse response) {
+        switch (response.getMessageCase()) {
+            case HEAP_DUMP_CHUNK:
+                return true;
+            case HEAP_HISTOGRAM_RESPONSE:
+                return response.getHeapHistogramResponse().getMorePages();
+            default:
+                return false;
+        }
+    }
+
+    // returns the file name without the ".gz" extension
+    private static String getHeapDumpFileBaseName(String agentId, String agentFilePath) {
+        // agent file path is from the agent's file system, so can have either separator
+        String agentFileName =
+                agentFilePath.substring(Math.max(agentFilePath.lastIndexOf('/'),
+                        agentFilePath.lastIndexOf('\\')) + 1);
+        if (agentFileName.isEmpty()) {
+            agentFileName = "heap-dump-"
+                    + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + ".hprof";
+        }
+        return agentId.replaceAll("[^a-zA-Z0-9._-]", "_") + "-" + agentFileName;
+    }
+
     private static class ResponseHolder {
+
         private final Exchanger<AgentResponse> response = new Exchanger<>();
+
+        // only used when streaming heap dump
+        private @Nullable File heapDumpFile;
+        private @Nullable OutputStream heapDumpOut;
+        private boolean heapDumpFailed;
+
+        // only used when receiving heap histogram in pages
+        private HeapHistogram.@Nullable Builder heapHistogram;
+
+        // chunks are written to disk as they are received, and gRPC doesn't request the next
+        // message from the agent until this returns, which is what keeps memory usage constant
+        private synchronized void onPartialResponse(AgentResponse partialResponse) {
+            if (partialResponse.getMessageCase() == AgentResponse.MessageCase.HEAP_DUMP_CHUNK) {
+                writeHeapDumpChunk(partialResponse.getHeapDumpChunk().getData().toByteArray());
+            } else {
+                if (heapHistogram == null) {
+                    heapHistogram = HeapHistogram.newBuilder();
+                }
+                heapHistogram.addAllClassInfo(partialResponse.getHeapHistogramResponse()
+                        .getHeapHistogram().getClassInfoList());
+            }
+        }
+
+        private synchronized AgentResponse complete(AgentResponse finalResponse, String agentId) {
+            if (finalResponse.getMessageCase() == AgentResponse.MessageCase.HEAP_DUMP_RESPONSE
+                    && finalResponse.getHeapDumpResponse().getStreamed()) {
+                return completeHeapDump(finalResponse, agentId);
+            }
+            abort();
+            if (heapHistogram != null && finalResponse
+                    .getMessageCase() == AgentResponse.MessageCase.HEAP_HISTOGRAM_RESPONSE) {
+                return finalResponse.toBuilder()
+                        .setHeapHistogramResponse(HeapHistogramResponse.newBuilder()
+                                .setHeapHistogram(heapHistogram.addAllClassInfo(finalResponse
+                                        .getHeapHistogramResponse()
+                                        .getHeapHistogram()
+                                        .getClassInfoList())))
+                        .build();
+            }
+            return finalResponse;
+        }
+
+        private synchronized void abort() {
+            closeHeapDumpOut();
+            if (heapDumpFile != null && heapDumpFile.exists() && !heapDumpFile.delete()) {
+                logger.warn("unable to delete partial heap dump file: {}",
+                        heapDumpFile.getAbsolutePath());
+            }
+            heapDumpFile = null;
+        }
+
+        private void writeHeapDumpChunk(byte[] data) {
+            if (heapDumpFile == null || heapDumpFailed) {
+                return;
+            }
+            try {
+                if (heapDumpOut == null) {
+                    heapDumpOut = new BufferedOutputStream(new FileOutputStream(heapDumpFile));
+                }
+                heapDumpOut.write(data);
+            } catch (IOException e) {
+                logger.error(e.getMessage(), e);
+                heapDumpFailed = true;
+                closeHeapDumpOut();
+            }
+        }
+
+        private AgentResponse completeHeapDump(AgentResponse finalResponse, String agentId) {
+            File partialFile = heapDumpFile;
+            closeHeapDumpOut();
+            if (partialFile == null || heapDumpFailed || !partialFile.exists()) {
+                abort();
+                return AgentResponse.newBuilder()
+                        .setRequestId(finalResponse.getRequestId())
+                        .setExceptionResponse(ExceptionResponse.getDefaultInstance())
+                        .build();
+            }
+            HeapDumpFileInfo agentFileInfo =
+                    finalResponse.getHeapDumpResponse().getHeapDumpFileInfo();
+            String baseName = getHeapDumpFileBaseName(agentId, agentFileInfo.getFilePath());
+            File file = new File(partialFile.getParentFile(), baseName + ".gz");
+            // the same agent file name can be streamed more than once (e.g. from different agents
+            // with the same sanitized agent id), and an existing heap dump is never overwritten
+            for (int i = 1;; i++) {
+                try {
+                    Files.move(partialFile.toPath(), file.toPath());
+                    break;
+                } catch (FileAlreadyExistsException e) {
+                    logger.debug(e.getMessage(), e);
+                    file = new File(partialFile.getParentFile(), baseName + "-" + i + ".gz");
+                } catch (IOException e) {
+                    logger.error("unable to rename partial heap dump file: {}",
+                            partialFile.getAbsolutePath(), e);
+                    abort();
+                    return AgentResponse.newBuilder()
+                            .setRequestId(finalResponse.getRequestId())
+                            .setExceptionResponse(ExceptionResponse.getDefaultInstance())
+                            .build();
+                }
+            }
+            heapDumpFile = null;
+            return finalResponse.toBuilder()
+                    .setHeapDumpResponse(HeapDumpResponse.newBuilder()
+                            .setHeapDumpFileInfo(HeapDumpFileInfo.newBuilder()
+                                    .setFilePath(file.getAbsolutePath())
+                                    .setFileSizeBytes(file.length()))
+                            .setStreamed(true))
+                    .build();
+        }
+
+        private void closeHeapDumpOut() {
+            if (heapDumpOut == null) {
+                return;
+            }
+            try {
+                heapDumpOut.close();
+            } catch (IOException e) {
+                logger.error(e.getMessage(), e);
+                heapDumpFailed = true;
+            }
+            heapDumpOut = null;
+        }
     }
 
     @SuppressWarnings("serial")
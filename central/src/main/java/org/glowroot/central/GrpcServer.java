@@ -75,14 +75,15 @@ class GrpcServer {
     private final @Nullable ExecutorService confDirWatchExecutor;
 
     GrpcServer(String bindAddress, @Nullable Integer httpPort, @Nullable Integer httpsPort,
-            File confDir, AgentDisplayDao agentDisplayDao, AgentConfigDao agentConfigDao,
-            ActiveAgentDao activeAgentDao, EnvironmentDao environmentDao, HeartbeatDao heartbeatDao,
+            File confDir, @Nullable File heapDumpDir, AgentDisplayDao agentDisplayDao,
+            AgentConfigDao agentConfigDao, ActiveAgentDao activeAgentDao,
+            EnvironmentDao environmentDao, HeartbeatDao heartbeatDao,
             AggregateDao aggregateDao, GaugeValueDao gaugeValueDao, TraceDao traceDao,
             V09AgentRollupDao v09AgentRollupDao, CentralAlertingService centralAlertingService,
             ClusterManager clusterManager, Clock clock, String version) throws IOException {
 
         GrpcCommon grpcCommon = new GrpcCommon(v09AgentRollupDao);
-        downstreamService = new DownstreamServiceImpl(grpcCommon, clusterManager);
+        downstreamService = new DownstreamServiceImpl(grpcCommon, clusterManager, heapDumpDir);
 
         CollectorServiceImpl collectorService = new CollectorServiceImpl(agentDisplayDao,
                 agentConfigDao, activeAgentDao, environmentDao, heartbeatDao, aggregateDao,
@@ -1,5 +1,5 @@
 /*
- * Copyright 2016 the original author or authors.
+ * Copyright 2016-2020 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -20,6 +20,7 @@ import java.util.List;
 import org.glowroot.common.live.LiveWeavingService;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.GlobalMeta;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.MethodSignature;
+import org.glowroot.wire.api.model.DownstreamServiceOuterClass.ReweaveResponse;
 
 class LiveWeavingServiceImpl implements LiveWeavingService {
 
@@ -58,7 +59,7 @@ class LiveWeavingServiceImpl implements LiveWeavingService {
     }
 
     @Override
-    public int reweave(String agentId) throws Exception {
+    public ReweaveResponse reweave(String agentId) throws Exception {
         return downstreamService.reweave(agentId);
     }
 }
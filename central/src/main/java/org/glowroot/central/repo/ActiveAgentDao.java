@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2019 the original author or authors.
+ * Copyright 2015-2020 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,6 +15,7 @@
  */
 package org.glowroot.central.repo;
 
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Comparator;
@@ -25,6 +26,7 @@ import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Future;
 
 import javax.annotation.Nullable;
@@ -33,15 +35,32 @@ import com.datastax.driver.core.BoundStatement;
 import com.datastax.driver.core.PreparedStatement;
 import com.datastax.driver.core.ResultSet;
 import com.datastax.driver.core.Row;
+import com.google.common.base.Function;
 import com.google.common.base.Joiner;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSetMultimap;
 import com.google.common.collect.Multimap;
+import com.google.common.collect.SetMultimap;
 import com.google.common.primitives.Ints;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.immutables.serial.Serial;
+import org.immutables.value.Value;
 
+import org.glowroot.central.util.AsyncCache;
+import org.glowroot.central.util.AsyncCache.AsyncCacheLoader;
+import org.glowroot.central.util.ClusterManager;
+import org.glowroot.central.util.MoreFutures;
+import org.glowroot.central.util.RateLimiter;
 import org.glowroot.central.util.Session;
 import org.glowroot.common.util.CaptureTimes;
 import org.glowroot.common.util.Clock;
+import org.glowroot.common.util.Styles;
 import org.glowroot.common2.repo.ActiveAgentRepository;
 import org.glowroot.common2.repo.ConfigRepository.RollupConfig;
 import org.glowroot.common2.repo.ImmutableAgentRollup;
@@ -54,14 +73,30 @@ import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 import static java.util.concurrent.TimeUnit.DAYS;
 import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.MINUTES;
 
 public class ActiveAgentDao implements ActiveAgentRepository {
 
+    // agents continue to be written to a rollup capture time for a short time after it ends, since
+    // aggregates are collected once a minute
+    private static final long WRITE_WINDOW_MILLIS = MINUTES.toMillis(5);
+
+    // cache entries that were loaded before the end of their capture time's write window are only
+    // re-used for this long, so that an entry that missed a write (e.g. the write and its
+    // invalidation completing while the entry was being loaded) is not kept around indefinitely
+    private static final long PROVISIONAL_ENTRY_MAX_AGE_MILLIS = MINUTES.toMillis(1);
+
+    // rollup capture times are loaded (and cached) in blocks, so that reading a wide time range on
+    // a cold cache costs one top level read (plus one child read per top level rollup) per block,
+    // instead of per capture time
+    private static final int CAPTURE_TIMES_PER_BLOCK = 12;
+
     private final Session session;
     private final AgentDisplayDao agentDisplayDao;
     private final AgentConfigDao agentConfigDao;
     private final ConfigRepositoryImpl configRepository;
     private final RollupLevelService rollupLevelService;
+    private final Executor asyncExecutor;
     private final Clock clock;
 
     private final ImmutableList<PreparedStatement> insertTopLevelPS;
@@ -70,14 +105,22 @@ public class ActiveAgentDao implements ActiveAgentRepository {
     private final ImmutableList<PreparedStatement> insertChildPS;
     private final ImmutableList<PreparedStatement> readChildPS;
 
+    private final AsyncCache<ActiveAgentsKey, ActiveAgents> activeAgentsCache;
+
+    // this is used to only write (and invalidate the above cache) once per agent per rollup capture
+    // time, instead of on every aggregate collection
+    private final RateLimiter<ActiveAgentKey> rateLimiter;
+
     ActiveAgentDao(Session session, AgentDisplayDao agentDisplayDao, AgentConfigDao agentConfigDao,
             ConfigRepositoryImpl configRepository, RollupLevelService rollupLevelService,
-            Clock clock) throws Exception {
+            ClusterManager clusterManager, Executor asyncExecutor,
+            int targetMaxActiveAgentsInPast7Days, Clock clock) throws Exception {
         this.session = session;
         this.agentDisplayDao = agentDisplayDao;
         this.agentConfigDao = agentConfigDao;
         this.configRepository = configRepository;
         this.rollupLevelService = rollupLevelService;
+        this.asyncExecutor = asyncExecutor;
         this.clock = clock;
 
         int count = configRepository.getRollupConfigs().size();
@@ -94,8 +137,9 @@ public class ActiveAgentDao implements ActiveAgentRepository {
                     + " capture_time, top_level_id))", rollupExpirationHours.get(i));
             insertTopLevelPS.add(session.prepare("insert into active_top_level_rollup_" + i
                     + " (one, capture_time, top_level_id) values (1, ?, ?) using ttl ?"));
-            readTopLevelPS.add(session.prepare("select top_level_id from active_top_level_rollup_"
-                    + i + " where one = 1 and capture_time >= ? and capture_time <= ?"));
+            readTopLevelPS.add(session.prepare("select capture_time, top_level_id from"
+                    + " active_top_level_rollup_" + i + " where one = 1 and capture_time >= ? and"
+                    + " capture_time <= ?"));
             session.createTableWithTWCS("create table if not exists active_child_rollup_" + i
                     + " (top_level_id varchar, capture_time timestamp, child_agent_id varchar,"
                     + " primary key (top_level_id, capture_time, child_agent_id))",
@@ -103,31 +147,37 @@ public class ActiveAgentDao implements ActiveAgentRepository {
             insertChildPS.add(session.prepare("insert into active_child_rollup_" + i
                     + " (top_level_id, capture_time, child_agent_id) values (?, ?, ?) using"
                     + " ttl ?"));
-            readChildPS.add(session.prepare("select child_agent_id from active_child_rollup_" + i
-                    + " where top_level_id = ? and capture_time >= ? and capture_time <= ?"));
+            readChildPS.add(session.prepare("select capture_time, child_agent_id from"
+                    + " active_child_rollup_" + i + " where top_level_id = ? and capture_time >= ?"
+                    + " and capture_time <= ?"));
         }
         this.insertTopLevelPS = ImmutableList.copyOf(insertTopLevelPS);
         this.readTopLevelPS = ImmutableList.copyOf(readTopLevelPS);
         this.insertChildPS = ImmutableList.copyOf(insertChildPS);
         this.readChildPS = ImmutableList.copyOf(readChildPS);
+
+        // sized to cover the past day at every rollup level (e.g. 32 blocks with the default
+        // rollup intervals), since each entry holds all of the agents active in its block of
+        // capture times, and older capture times are read much less often
+        int cacheSize = 0;
+        for (int i = 0; i < count; i++) {
+            cacheSize += Ints.saturatedCast(DAYS.toMillis(1) / getBlockMillis(i)) + 1;
+        }
+        activeAgentsCache = clusterManager.createPerAgentAsyncCache("activeAgentsCache",
+                cacheSize, new ActiveAgentsCacheLoader());
+        // each agent is normally active in two rollup capture times per rollup level (the current
+        // and the prior), and there are 4 rollup levels
+        rateLimiter = new RateLimiter<>(targetMaxActiveAgentsInPast7Days * 8, false);
     }
 
     @Override
     public List<TopLevelAgentRollup> readActiveTopLevelAgentRollups(long from, long to)
             throws Exception {
-        int rollupLevel = rollupLevelService.getRollupLevelForView(from, to, DataKind.GENERAL);
-        long rollupIntervalMillis =
-                getRollupIntervalMillis(configRepository.getRollupConfigs(), rollupLevel);
-        long revisedTo = CaptureTimes.getRollup(to, rollupIntervalMillis);
+        return readActiveTopLevelAgentRollups(readActiveAgents(from, to).keySet());
+    }
 
-        Set<String> topLevelIds = new HashSet<>();
-        BoundStatement boundStatement = readTopLevelPS.get(rollupLevel).bind();
-        boundStatement.setTimestamp(0, new Date(from));
-        boundStatement.setTimestamp(1, new Date(revisedTo));
-        ResultSet results = session.read(boundStatement);
-        for (Row row : results) {
-            topLevelIds.add(checkNotNull(row.getString(0)));
-        }
+    private List<TopLevelAgentRollup> readActiveTopLevelAgentRollups(Set<String> topLevelIds)
+            throws Exception {
         Map<String, Future<String>> topLevelDisplayFutureMap = new HashMap<>();
         for (String topLevelId : topLevelIds) {
             topLevelDisplayFutureMap.put(topLevelId,
@@ -147,7 +197,11 @@ public class ActiveAgentDao implements ActiveAgentRepository {
     @Override
     public List<AgentRollup> readActiveChildAgentRollups(String topLevelId, long from, long to)
             throws Exception {
-        return readActiveChildAgentRollups(topLevelId, from, to, true);
+        Set<String> childAgentIds = readActiveAgents(from, to).get(topLevelId);
+        if (childAgentIds == null) {
+            return ImmutableList.of();
+        }
+        return readActiveChildAgentRollups(topLevelId, childAgentIds, true);
     }
 
     @Override
@@ -158,7 +212,9 @@ public class ActiveAgentDao implements ActiveAgentRepository {
 
     @Override
     public List<AgentRollup> readActiveAgentRollups(long from, long to) throws Exception {
-        List<TopLevelAgentRollup> topLevelAgentRollups = readActiveTopLevelAgentRollups(from, to);
+        Map<String, Set<String>> activeAgents = readActiveAgents(from, to);
+        List<TopLevelAgentRollup> topLevelAgentRollups =
+                readActiveTopLevelAgentRollups(activeAgents.keySet());
         List<AgentRollup> agentRollups = new ArrayList<>();
         for (TopLevelAgentRollup topLevelAgentRollup : topLevelAgentRollups) {
             ImmutableAgentRollup.Builder builder = ImmutableAgentRollup.builder()
@@ -166,8 +222,8 @@ public class ActiveAgentDao implements ActiveAgentRepository {
                     .display(topLevelAgentRollup.display())
                     .lastDisplayPart(topLevelAgentRollup.display());
             if (topLevelAgentRollup.id().endsWith("::")) {
-                builder.addAllChildren(
-                        readActiveChildAgentRollups(topLevelAgentRollup.id(), from, to, false));
+                builder.addAllChildren(readActiveChildAgentRollups(topLevelAgentRollup.id(),
+                        checkNotNull(activeAgents.get(topLevelAgentRollup.id())), false));
             }
             agentRollups.add(builder.build());
         }
@@ -198,46 +254,108 @@ public class ActiveAgentDao implements ActiveAgentRepository {
         for (int rollupLevel = 0; rollupLevel < rollupConfigs.size(); rollupLevel++) {
             long rollupIntervalMillis = getRollupIntervalMillis(rollupConfigs, rollupLevel);
             long rollupCaptureTime = CaptureTimes.getRollup(captureTime, rollupIntervalMillis);
+            ActiveAgentsKey activeAgentsKey = ImmutableActiveAgentsKey.of(rollupLevel,
+                    getBlockStartTime(rollupCaptureTime, getBlockMillis(rollupLevel)));
+            ActiveAgentKey rateLimiterKey =
+                    ImmutableActiveAgentKey.of(agentId, rollupLevel, rollupCaptureTime);
+            if (!rateLimiter.tryAcquire(rateLimiterKey)) {
+                continue;
+            }
             int ttl = Ints.saturatedCast(HOURS.toSeconds(rollupExpirationHours.get(rollupLevel)));
             int adjustedTTL = Common.getAdjustedTTL(ttl, rollupCaptureTime, clock);
 
-            BoundStatement boundStatement = insertTopLevelPS.get(rollupLevel).bind();
-            int i = 0;
-            boundStatement.setTimestamp(i++, new Date(rollupCaptureTime));
-            boundStatement.setString(i++, topLevelId);
-            boundStatement.setInt(i++, adjustedTTL);
-            futures.add(session.writeAsync(boundStatement));
-
-            if (childAgentId != null) {
-                boundStatement = insertChildPS.get(rollupLevel).bind();
-                i = 0;
-                boundStatement.setString(i++, topLevelId);
+            ListenableFuture<?> future;
+            try {
+                List<ListenableFuture<?>> levelFutures = new ArrayList<>();
+                BoundStatement boundStatement = insertTopLevelPS.get(rollupLevel).bind();
+                int i = 0;
                 boundStatement.setTimestamp(i++, new Date(rollupCaptureTime));
-                boundStatement.setString(i++, childAgentId);
+                boundStatement.setString(i++, topLevelId);
                 boundStatement.setInt(i++, adjustedTTL);
-                futures.add(session.writeAsync(boundStatement));
+                levelFutures.add(session.writeAsync(boundStatement));
+
+                if (childAgentId != null) {
+                    boundStatement = insertChildPS.get(rollupLevel).bind();
+                    i = 0;
+                    boundStatement.setString(i++, topLevelId);
+                    boundStatement.setTimestamp(i++, new Date(rollupCaptureTime));
+                    boundStatement.setString(i++, childAgentId);
+                    boundStatement.setInt(i++, adjustedTTL);
+                    levelFutures.add(session.writeAsync(boundStatement));
+                }
+                future = Futures.allAsList(levelFutures);
+            } catch (Exception e) {
+                rateLimiter.release(rateLimiterKey);
+                throw e;
             }
+            // invalidation is cluster-wide, so the next read on any central node will pick up
+            // this agent
+            futures.add(MoreFutures.onSuccessAndFailure(future,
+                    () -> activeAgentsCache.invalidate(activeAgentsKey),
+                    () -> rateLimiter.release(rateLimiterKey)));
         }
         return futures;
     }
 
-    private List<AgentRollup> readActiveChildAgentRollups(String topLevelId, long from, long to,
-            boolean stripTopLevelDisplay) throws Exception {
+    // returns map of top level id to child agent ids (empty for top level agents)
+    private Map<String, Set<String>> readActiveAgents(long from, long to) throws Exception {
         int rollupLevel = rollupLevelService.getRollupLevelForView(from, to, DataKind.GENERAL);
         long rollupIntervalMillis =
                 getRollupIntervalMillis(configRepository.getRollupConfigs(), rollupLevel);
+        long blockMillis = getBlockMillis(rollupLevel);
+        long revisedFrom = CaptureTimes.getRollup(from, rollupIntervalMillis);
         long revisedTo = CaptureTimes.getRollup(to, rollupIntervalMillis);
 
+        // cache misses are all loaded in parallel
+        List<ActiveAgentsKey> keys = new ArrayList<>();
+        List<ListenableFuture<ActiveAgents>> futures = new ArrayList<>();
+        for (long blockStartTime = getBlockStartTime(revisedFrom, blockMillis);
+                blockStartTime <= revisedTo; blockStartTime += blockMillis) {
+            ActiveAgentsKey key = ImmutableActiveAgentsKey.of(rollupLevel, blockStartTime);
+            keys.add(key);
+            futures.add(activeAgentsCache.get(key));
+        }
+        // provisional entries that are too old are re-loaded (also in parallel)
+        long now = clock.currentTimeMillis();
+        for (int i = 0; i < keys.size(); i++) {
+            ActiveAgentsKey key = keys.get(i);
+            ActiveAgents value = futures.get(i).get();
+            long lastCaptureTime = key.blockStartTime() + blockMillis - rollupIntervalMillis;
+            if (value.loadTime() < lastCaptureTime + WRITE_WINDOW_MILLIS
+                    && value.loadTime() < now - PROVISIONAL_ENTRY_MAX_AGE_MILLIS) {
+                activeAgentsCache.invalidate(key);
+                futures.set(i, activeAgentsCache.get(key));
+            }
+        }
+        Map<String, Set<String>> activeAgents = new HashMap<>();
+        for (ListenableFuture<ActiveAgents> future : futures) {
+            for (Map.Entry<Long, ImmutableMap<String, ImmutableSet<String>>> captureTimeEntry :
+                    future.get().agents().entrySet()) {
+                long captureTime = captureTimeEntry.getKey();
+                if (captureTime < revisedFrom || captureTime > revisedTo) {
+                    continue;
+                }
+                for (Map.Entry<String, ImmutableSet<String>> entry : captureTimeEntry.getValue()
+                        .entrySet()) {
+                    Set<String> childAgentIds = activeAgents.get(entry.getKey());
+                    if (childAgentIds == null) {
+                        childAgentIds = new HashSet<>();
+                        activeAgents.put(entry.getKey(), childAgentIds);
+                    }
+                    childAgentIds.addAll(entry.getValue());
+                }
+            }
+        }
+        return activeAgents;
+    }
+
+    private List<AgentRollup> readActiveChildAgentRollups(String topLevelId,
+            Set<String> childAgentIds, boolean stripTopLevelDisplay) throws Exception {
         Set<String> allAgentRollupIds = new HashSet<>();
         Set<String> directChildAgentRollupIds = new HashSet<>();
         Multimap<String, String> childMultimap = HashMultimap.create();
-        BoundStatement boundStatement = readChildPS.get(rollupLevel).bind();
-        boundStatement.setString(0, topLevelId);
-        boundStatement.setTimestamp(1, new Date(from));
-        boundStatement.setTimestamp(2, new Date(revisedTo));
-        ResultSet results = session.read(boundStatement);
-        for (Row row : results) {
-            String agentId = topLevelId + checkNotNull(row.getString(0));
+        for (String childAgentId : childAgentIds) {
+            String agentId = topLevelId + childAgentId;
             List<String> agentRollupIds = AgentRollupIds.getAgentRollupIds(agentId);
             allAgentRollupIds.addAll(agentRollupIds);
             if (agentRollupIds.size() == 2) {
@@ -304,6 +422,37 @@ public class ActiveAgentDao implements ActiveAgentRepository {
         }
     }
 
+    private long getBlockMillis(int rollupLevel) {
+        return getRollupIntervalMillis(configRepository.getRollupConfigs(), rollupLevel)
+                * CAPTURE_TIMES_PER_BLOCK;
+    }
+
+    private static long getBlockStartTime(long captureTime, long blockMillis) {
+        return (captureTime / blockMillis) * blockMillis;
+    }
+
+    // returns map of capture time to child agent ids
+    private ListenableFuture<ImmutableSetMultimap<Long, String>> readChildAgentIds(
+            int rollupLevel, String topLevelId, long from, long to) throws Exception {
+        BoundStatement boundStatement = readChildPS.get(rollupLevel).bind();
+        boundStatement.setString(0, topLevelId);
+        boundStatement.setTimestamp(1, new Date(from));
+        boundStatement.setTimestamp(2, new Date(to));
+        return Futures.transform(session.readAsync(boundStatement),
+                new Function<ResultSet, ImmutableSetMultimap<Long, String>>() {
+                    @Override
+                    public ImmutableSetMultimap<Long, String> apply(ResultSet results) {
+                        ImmutableSetMultimap.Builder<Long, String> childAgentIds =
+                                ImmutableSetMultimap.builder();
+                        for (Row row : results) {
+                            childAgentIds.put(checkNotNull(row.getTimestamp(0)).getTime(),
+                                    checkNotNull(row.getString(1)));
+                        }
+                        return childAgentIds.build();
+                    }
+                }, asyncExecutor);
+    }
+
     private static @Nullable AgentRollup getAgentRollup(List<AgentRollup> agentRollups,
             String topLevelAgentRollupId) {
         for (AgentRollup agentRollup : agentRollups) {
@@ -313,4 +462,94 @@ public class ActiveAgentDao implements ActiveAgentRepository {
         }
         return null;
     }
+
+    @Value.Immutable
+    @Serial.Structural
+    @Styles.AllParameters
+    interface ActiveAgentsKey extends Serializable {
+        int rollupLevel();
+        long blockStartTime();
+    }
+
+    @Value.Immutable
+    @Styles.AllParameters
+    interface ActiveAgentKey {
+        String agentId();
+        int rollupLevel();
+        long captureTime();
+    }
+
+    @Value.Immutable
+    @Styles.AllParameters
+    interface ActiveAgents {
+        // map of rollup capture time to map of top level id to child agent ids (empty for top level
+        // agents), for each rollup capture time in a single block
+        ImmutableMap<Long, ImmutableMap<String, ImmutableSet<String>>> agents();
+        // this is the time the load started, since agents written after that may be missing
+        long loadTime();
+    }
+
+    private class ActiveAgentsCacheLoader
+            implements AsyncCacheLoader<ActiveAgentsKey, ActiveAgents> {
+        @Override
+        public ListenableFuture<ActiveAgents> load(ActiveAgentsKey key) throws Exception {
+            long loadTime = clock.currentTimeMillis();
+            long blockEndTime = key.blockStartTime() + getBlockMillis(key.rollupLevel()) - 1;
+            BoundStatement boundStatement = readTopLevelPS.get(key.rollupLevel()).bind();
+            boundStatement.setTimestamp(0, new Date(key.blockStartTime()));
+            boundStatement.setTimestamp(1, new Date(blockEndTime));
+            return Futures.transformAsync(session.readAsync(boundStatement),
+                    new AsyncFunction<ResultSet, ActiveAgents>() {
+                        @Override
+                        public ListenableFuture<ActiveAgents> apply(ResultSet results)
+                                throws Exception {
+                            return readChildAgentIds(key, blockEndTime, results, loadTime);
+                        }
+                    }, asyncExecutor);
+        }
+
+        private ListenableFuture<ActiveAgents> readChildAgentIds(ActiveAgentsKey key,
+                long blockEndTime, ResultSet topLevelResults, long loadTime) throws Exception {
+            // map of capture time to top level ids
+            SetMultimap<Long, String> topLevelIds = HashMultimap.create();
+            for (Row row : topLevelResults) {
+                topLevelIds.put(checkNotNull(row.getTimestamp(0)).getTime(),
+                        checkNotNull(row.getString(1)));
+            }
+            // child agent ids for all of the top level rollups are read (each for the whole block)
+            // in parallel
+            List<String> parentIds = new ArrayList<>();
+            List<ListenableFuture<ImmutableSetMultimap<Long, String>>> futures = new ArrayList<>();
+            for (String topLevelId : new HashSet<>(topLevelIds.values())) {
+                if (topLevelId.endsWith("::")) {
+                    parentIds.add(topLevelId);
+                    futures.add(ActiveAgentDao.this.readChildAgentIds(key.rollupLevel(),
+                            topLevelId, key.blockStartTime(), blockEndTime));
+                }
+            }
+            return Futures.transform(Futures.allAsList(futures), childAgentIds -> {
+                Map<String, ImmutableSetMultimap<Long, String>> childAgentIdsMap = new HashMap<>();
+                for (int i = 0; i < parentIds.size(); i++) {
+                    childAgentIdsMap.put(parentIds.get(i), checkNotNull(childAgentIds).get(i));
+                }
+                Map<Long, ImmutableMap<String, ImmutableSet<String>>> blockAgents = new HashMap<>();
+                for (Map.Entry<Long, Collection<String>> entry : topLevelIds.asMap().entrySet()) {
+                    long captureTime = entry.getKey();
+                    ImmutableMap.Builder<String, ImmutableSet<String>> agents =
+                            ImmutableMap.builder();
+                    for (String topLevelId : entry.getValue()) {
+                        ImmutableSetMultimap<Long, String> childAgentIdsForTopLevel =
+                                childAgentIdsMap.get(topLevelId);
+                        if (childAgentIdsForTopLevel == null) {
+                            agents.put(topLevelId, ImmutableSet.of());
+                        } else {
+                            agents.put(topLevelId, childAgentIdsForTopLevel.get(captureTime));
+                        }
+                    }
+                    blockAgents.put(captureTime, agents.build());
+                }
+                return ImmutableActiveAgents.of(blockAgents, loadTime);
+            }, MoreExecutors.directExecutor());
+        }
+    }
 }
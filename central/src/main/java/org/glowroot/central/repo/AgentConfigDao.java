@@ -1,5 +1,5 @@
 /*
- * Copyright 2017-2019 the original author or authors.
+ * Copyright 2017-2020 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -34,6 +34,7 @@ import org.immutables.value.Value;
 
 import org.glowroot.central.util.Cache;
 import org.glowroot.central.util.Cache.CacheLoader;
+import org.glowroot.central.util.Cache.ValueCodec;
 import org.glowroot.central.util.ClusterManager;
 import org.glowroot.central.util.Session;
 import org.glowroot.common2.repo.ConfigRepository.OptimisticLockException;
@@ -48,6 +49,9 @@ import static java.util.concurrent.TimeUnit.MILLISECONDS;
 // TODO agent config records never expire for abandoned agent rollup ids
 public class AgentConfigDao {
 
+    // agent configs are typically well under this, so it is just used for sizing the cache
+    private static final int ESTIMATED_AGENT_CONFIG_SIZE_BYTES = 32 * 1024;
+
     private final Session session;
     private final AgentDisplayDao agentDisplayDao;
 
@@ -84,8 +88,9 @@ public class AgentConfigDao {
                 + " config_update_token = null where agent_rollup_id = ? if config_update_token"
                 + " = ?");
 
-        agentConfigCache = clusterManager.createPerAgentCache("agentConfigCache",
-                targetMaxActiveAgentsInPast7Days, new AgentConfigCacheLoader());
+        agentConfigCache = clusterManager.createPerAgentOffHeapCache("agentConfigCache",
+                (long) targetMaxActiveAgentsInPast7Days * ESTIMATED_AGENT_CONFIG_SIZE_BYTES,
+                new AgentConfigCodec(), new AgentConfigCacheLoader());
     }
 
     public AgentConfig store(String agentId, AgentConfig agentConfig, boolean overwriteExisting)
@@ -303,6 +308,54 @@ public class AgentConfigDao {
         }
     }
 
+    // agent config is kept in its serialized protobuf form in the cache, and parsed on each read
+    private static class AgentConfigCodec
+            implements ValueCodec<Optional<AgentConfigAndUpdateToken>> {
+
+        private static final byte ABSENT = 0;
+        private static final byte PRESENT_WITHOUT_UPDATE_TOKEN = 1;
+        private static final byte PRESENT_WITH_UPDATE_TOKEN = 2;
+
+        @Override
+        public byte[] encode(Optional<AgentConfigAndUpdateToken> value) {
+            if (!value.isPresent()) {
+                return new byte[] {ABSENT};
+            }
+            AgentConfigAndUpdateToken agentConfigAndUpdateToken = value.get();
+            byte[] config = agentConfigAndUpdateToken.config().toByteArray();
+            UUID updateToken = agentConfigAndUpdateToken.updateToken();
+            if (updateToken == null) {
+                return ByteBuffer.allocate(1 + config.length)
+                        .put(PRESENT_WITHOUT_UPDATE_TOKEN)
+                        .put(config)
+                        .array();
+            }
+            return ByteBuffer.allocate(17 + config.length)
+                    .put(PRESENT_WITH_UPDATE_TOKEN)
+                    .putLong(updateToken.getMostSignificantBits())
+                    .putLong(updateToken.getLeastSignificantBits())
+                    .put(config)
+                    .array();
+        }
+
+        @Override
+        public Optional<AgentConfigAndUpdateToken> decode(byte[] bytes) throws Exception {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            byte type = buffer.get();
+            if (type == ABSENT) {
+                return Optional.absent();
+            }
+            @Nullable UUID updateToken = null;
+            if (type == PRESENT_WITH_UPDATE_TOKEN) {
+                updateToken = new UUID(buffer.getLong(), buffer.getLong());
+            }
+            return Optional.of(ImmutableAgentConfigAndUpdateToken.builder()
+                    .config(AgentConfig.parseFrom(buffer))
+                    .updateToken(updateToken)
+                    .build());
+        }
+    }
+
     interface AgentConfigUpdater {
         AgentConfig updateAgentConfig(AgentConfig agentConfig) throws Exception;
     }
@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2019 the original author or authors.
+ * Copyright 2015-2020 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -33,7 +33,6 @@ import com.datastax.driver.core.BoundStatement;
 import com.datastax.driver.core.PreparedStatement;
 import com.datastax.driver.core.ResultSet;
 import com.datastax.driver.core.Row;
-import com.datastax.driver.core.utils.UUIDs;
 import com.google.common.base.Strings;
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ImmutableList;
@@ -48,12 +47,15 @@ import com.google.protobuf.AbstractMessage;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.immutables.value.Value;
 
-import org.glowroot.central.repo.Common.NeedsRollup;
-import org.glowroot.central.repo.Common.NeedsRollupFromChildren;
+import org.glowroot.central.repo.CaptureTimeRanges.CaptureTimeRange;
+import org.glowroot.central.repo.NeedsRollupTracker.NeedsRollup;
+import org.glowroot.central.repo.NeedsRollupTracker.NeedsRollupFromChildren;
+import org.glowroot.central.util.ClusterManager;
 import org.glowroot.central.util.Messages;
 import org.glowroot.central.util.MoreFutures;
 import org.glowroot.central.util.MoreFutures.DoRollup;
 import org.glowroot.central.util.Session;
+import org.glowroot.central.util.Session.RowConsumer;
 import org.glowroot.common.ConfigDefaults;
 import org.glowroot.common.Constants;
 import org.glowroot.common.live.ImmutableAggregateQuery;
@@ -104,6 +106,9 @@ public class AggregateDaoImpl implements AggregateDao {
     @SuppressWarnings("deprecation")
     private static final HashFunction SHA_1 = Hashing.sha1();
 
+    // query and service call merges can scan lots of rows for wide time ranges
+    private static final int MERGE_FETCH_SIZE = 1000;
+
     private static final Table summaryTable = ImmutableTable.builder()
             .partialName("summary")
             .addColumns(ImmutableColumn.of("total_duration_nanos", "double"))
@@ -225,20 +230,14 @@ public class AggregateDaoImpl implements AggregateDao {
     private final List<PreparedStatement> existsAuxThreadProfileOverallPS;
     private final List<PreparedStatement> existsAuxThreadProfileTransactionPS;
 
-    private final List<PreparedStatement> insertNeedsRollup;
-    private final List<PreparedStatement> readNeedsRollup;
-    private final List<PreparedStatement> deleteNeedsRollup;
-
-    private final PreparedStatement insertNeedsRollupFromChild;
-    private final PreparedStatement readNeedsRollupFromChild;
-    private final PreparedStatement deleteNeedsRollupFromChild;
+    private final NeedsRollupTracker needsRollupTracker;
 
     private final ImmutableList<Table> allTables;
 
     AggregateDaoImpl(Session session, ActiveAgentDao activeAgentDao,
             TransactionTypeDao transactionTypeDao, FullQueryTextDao fullQueryTextDao,
-            ConfigRepositoryImpl configRepository, Executor asyncExecutor, Clock clock)
-            throws Exception {
+            ConfigRepositoryImpl configRepository, ClusterManager clusterManager,
+            Executor asyncExecutor, Clock clock) throws Exception {
         this.session = session;
         this.activeAgentDao = activeAgentDao;
         this.transactionTypeDao = transactionTypeDao;
@@ -389,9 +388,6 @@ public class AggregateDaoImpl implements AggregateDao {
             deleteNeedsRollup.add(session.prepare("delete from aggregate_needs_rollup_" + i
                     + " where agent_rollup = ? and capture_time = ? and uniqueness = ?"));
         }
-        this.insertNeedsRollup = insertNeedsRollup;
-        this.readNeedsRollup = readNeedsRollup;
-        this.deleteNeedsRollup = deleteNeedsRollup;
 
         session.createTableWithLCS("create table if not exists aggregate_needs_rollup_from_child"
                 + " (agent_rollup varchar, capture_time timestamp, uniqueness timeuuid,"
@@ -400,14 +396,20 @@ public class AggregateDaoImpl implements AggregateDao {
                 + needsRollupGcGraceSeconds, true);
         // TTL is used to prevent non-idempotent rolling up of partially expired aggregates
         // (e.g. "needs rollup" record resurrecting due to small gc_grace_seconds)
-        insertNeedsRollupFromChild = session.prepare("insert into aggregate_needs_rollup_from_child"
-                + " (agent_rollup, capture_time, uniqueness, child_agent_rollup, transaction_types)"
-                + " values (?, ?, ?, ?, ?) using TTL ?");
-        readNeedsRollupFromChild = session.prepare("select capture_time, uniqueness,"
-                + " child_agent_rollup, transaction_types from aggregate_needs_rollup_from_child"
-                + " where agent_rollup = ?");
-        deleteNeedsRollupFromChild = session.prepare("delete from aggregate_needs_rollup_from_child"
-                + " where agent_rollup = ? and capture_time = ? and uniqueness = ?");
+        PreparedStatement insertNeedsRollupFromChild = session.prepare("insert into"
+                + " aggregate_needs_rollup_from_child (agent_rollup, capture_time, uniqueness,"
+                + " child_agent_rollup, transaction_types) values (?, ?, ?, ?, ?) using TTL ?");
+        PreparedStatement readNeedsRollupFromChild = session.prepare("select capture_time,"
+                + " uniqueness, child_agent_rollup, transaction_types from"
+                + " aggregate_needs_rollup_from_child where agent_rollup = ?");
+        PreparedStatement deleteNeedsRollupFromChild = session.prepare("delete from"
+                + " aggregate_needs_rollup_from_child where agent_rollup = ? and capture_time = ?"
+                + " and uniqueness = ?");
+
+        needsRollupTracker = new NeedsRollupTracker("aggregateNeedsRollup", session,
+                clusterManager, insertNeedsRollup, readNeedsRollup, deleteNeedsRollup,
+                insertNeedsRollupFromChild, readNeedsRollupFromChild, deleteNeedsRollupFromChild,
+                clock);
     }
 
     @Override
@@ -491,28 +493,14 @@ public class AggregateDaoImpl implements AggregateDao {
         int needsRollupAdjustedTTL =
                 Common.getNeedsRollupAdjustedTTL(adjustedTTL.generalTTL(), rollupConfigs);
         if (agentRollupIds.size() > 1) {
-            BoundStatement boundStatement = insertNeedsRollupFromChild.bind();
-            int i = 0;
-            boundStatement.setString(i++, agentRollupIds.get(1));
-            boundStatement.setTimestamp(i++, new Date(captureTime));
-            boundStatement.setUUID(i++, UUIDs.timeBased());
-            boundStatement.setString(i++, agentId);
-            boundStatement.setSet(i++, transactionTypes);
-            boundStatement.setInt(i++, needsRollupAdjustedTTL);
-            futures.add(session.writeAsync(boundStatement));
+            needsRollupTracker.insertNeedsRollupFromChild(agentRollupIds.get(1), agentId,
+                    captureTime, transactionTypes, needsRollupAdjustedTTL);
         }
         // insert into aggregate_needs_rollup_1
         long intervalMillis = rollupConfigs.get(1).intervalMillis();
         long rollupCaptureTime = CaptureTimes.getRollup(captureTime, intervalMillis);
-        BoundStatement boundStatement = insertNeedsRollup.get(0).bind();
-        int i = 0;
-        boundStatement.setString(i++, agentId);
-        boundStatement.setTimestamp(i++, new Date(rollupCaptureTime));
-        boundStatement.setUUID(i++, UUIDs.timeBased());
-        boundStatement.setSet(i++, transactionTypes);
-        boundStatement.setInt(i++, needsRollupAdjustedTTL);
-        futures.add(session.writeAsync(boundStatement));
-        MoreFutures.waitForAll(futures);
+        needsRollupTracker.insertNeedsRollup(agentId, 1, rollupCaptureTime, transactionTypes,
+                intervalMillis, needsRollupAdjustedTTL);
     }
 
     // query.from() is non-inclusive
@@ -697,11 +685,9 @@ public class AggregateDaoImpl implements AggregateDao {
     @Override
     public void mergeQueriesInto(String agentRollupId, AggregateQuery query,
             QueryCollector collector) throws Exception {
-        ResultSet results = executeQuery(agentRollupId, query, queryTable);
-        long captureTime = Long.MIN_VALUE;
-        for (Row row : results) {
+        readInCaptureTimeRanges(agentRollupId, query, queryTable, row -> {
             int i = 0;
-            captureTime = Math.max(captureTime, checkNotNull(row.getTimestamp(i++)).getTime());
+            long captureTime = checkNotNull(row.getTimestamp(i++)).getTime();
             String queryType = checkNotNull(row.getString(i++));
             String truncatedText = checkNotNull(row.getString(i++));
             // full_query_text_sha1 cannot be null since it is used in clustering key
@@ -710,29 +696,31 @@ public class AggregateDaoImpl implements AggregateDao {
             long executionCount = row.getLong(i++);
             boolean hasTotalRows = !row.isNull(i);
             long totalRows = row.getLong(i++);
-            collector.mergeQuery(queryType, truncatedText, fullTextSha1, totalDurationNanos,
-                    executionCount, hasTotalRows, totalRows);
-            collector.updateLastCaptureTime(captureTime);
-        }
+            synchronized (collector) {
+                collector.mergeQuery(queryType, truncatedText, fullTextSha1, totalDurationNanos,
+                        executionCount, hasTotalRows, totalRows);
+                collector.updateLastCaptureTime(captureTime);
+            }
+        });
     }
 
     // query.from() is non-inclusive
     @Override
     public void mergeServiceCallsInto(String agentRollupId, AggregateQuery query,
             ServiceCallCollector collector) throws Exception {
-        ResultSet results = executeQuery(agentRollupId, query, serviceCallTable);
-        long captureTime = Long.MIN_VALUE;
-        for (Row row : results) {
+        readInCaptureTimeRanges(agentRollupId, query, serviceCallTable, row -> {
             int i = 0;
-            captureTime = Math.max(captureTime, checkNotNull(row.getTimestamp(i++)).getTime());
+            long captureTime = checkNotNull(row.getTimestamp(i++)).getTime();
             String serviceCallType = checkNotNull(row.getString(i++));
             String serviceCallText = checkNotNull(row.getString(i++));
             double totalDurationNanos = row.getDouble(i++);
             long executionCount = row.getLong(i++);
-            collector.mergeServiceCall(serviceCallType, serviceCallText, totalDurationNanos,
-                    executionCount);
-            collector.updateLastCaptureTime(captureTime);
-        }
+            synchronized (collector) {
+                collector.mergeServiceCall(serviceCallType, serviceCallText, totalDurationNanos,
+                        executionCount);
+                collector.updateLastCaptureTime(captureTime);
+            }
+        });
     }
 
     // query.from() is non-inclusive
@@ -843,13 +831,14 @@ public class AggregateDaoImpl implements AggregateDao {
             session.updateSchemaWithRetry("truncate aggregate_needs_rollup_" + i);
         }
         session.updateSchemaWithRetry("truncate aggregate_needs_rollup_from_child");
+        needsRollupTracker.clear();
     }
 
     private void rollupFromChildren(String agentRollupId, String agentRollupIdForMeta,
             @Nullable String parentAgentRollupId, TTL ttl) throws Exception {
         final int rollupLevel = 0;
-        List<NeedsRollupFromChildren> needsRollupFromChildrenList = Common
-                .getNeedsRollupFromChildrenList(agentRollupId, readNeedsRollupFromChild, session);
+        List<NeedsRollupFromChildren> needsRollupFromChildrenList =
+                needsRollupTracker.getNeedsRollupFromChildrenList(agentRollupId);
         List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
         long nextRollupIntervalMillis = rollupConfigs.get(rollupLevel + 1).intervalMillis();
         for (NeedsRollupFromChildren needsRollupFromChildren : needsRollupFromChildrenList) {
@@ -874,15 +863,12 @@ public class AggregateDaoImpl implements AggregateDao {
             if (parentAgentRollupId != null) {
                 // insert needs to happen first before call to postRollup(), see method-level
                 // comment on postRollup
-                Common.insertNeedsRollupFromChild(agentRollupId, parentAgentRollupId,
-                        insertNeedsRollupFromChild, needsRollupFromChildren, captureTime,
-                        needsRollupAdjustedTTL, session);
+                needsRollupTracker.insertNeedsRollupFromChild(parentAgentRollupId, agentRollupId,
+                        captureTime, needsRollupFromChildren.getKeys().keySet(),
+                        needsRollupAdjustedTTL);
             }
-            Common.postRollup(agentRollupId, needsRollupFromChildren.getCaptureTime(),
-                    needsRollupFromChildren.getKeys().keySet(),
-                    needsRollupFromChildren.getUniquenessKeysForDeletion(),
-                    nextRollupIntervalMillis, insertNeedsRollup.get(rollupLevel),
-                    deleteNeedsRollupFromChild, needsRollupAdjustedTTL, session);
+            needsRollupTracker.postRollupFromChildren(agentRollupId, needsRollupFromChildren,
+                    rollupLevel + 1, nextRollupIntervalMillis, needsRollupAdjustedTTL);
         }
     }
 
@@ -890,8 +876,8 @@ public class AggregateDaoImpl implements AggregateDao {
             throws Exception {
         List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
         long rollupIntervalMillis = rollupConfigs.get(rollupLevel).intervalMillis();
-        Collection<NeedsRollup> needsRollupList = Common.getNeedsRollupList(agentRollupId,
-                rollupLevel, rollupIntervalMillis, readNeedsRollup, session, clock);
+        List<NeedsRollup> needsRollupList = needsRollupTracker.getNeedsRollupList(agentRollupId,
+                rollupLevel, rollupIntervalMillis);
         Long nextRollupIntervalMillis = null;
         if (rollupLevel + 1 < rollupConfigs.size()) {
             nextRollupIntervalMillis = rollupConfigs.get(rollupLevel + 1).intervalMillis();
@@ -914,20 +900,14 @@ public class AggregateDaoImpl implements AggregateDao {
                 // this can happen there is an old "needs rollup" record that was created prior to
                 // TTL was introduced in 0.9.6, and when the "last needs rollup" record wasn't
                 // processed (also prior to 0.9.6), and when the corresponding old data has expired
-                Common.postRollup(agentRollupId, needsRollup.getCaptureTime(), transactionTypes,
-                        needsRollup.getUniquenessKeysForDeletion(), null, null,
-                        deleteNeedsRollup.get(rollupLevel - 1), -1, session);
+                needsRollupTracker.postRollup(agentRollupId, needsRollup, null, -1);
                 continue;
             }
             // wait for above async work to ensure rollup complete before proceeding
             MoreFutures.waitForAll(futures);
 
-            PreparedStatement insertNeedsRollup = nextRollupIntervalMillis == null ? null
-                    : this.insertNeedsRollup.get(rollupLevel);
-            PreparedStatement deleteNeedsRollup = this.deleteNeedsRollup.get(rollupLevel - 1);
-            Common.postRollup(agentRollupId, needsRollup.getCaptureTime(), transactionTypes,
-                    needsRollup.getUniquenessKeysForDeletion(), nextRollupIntervalMillis,
-                    insertNeedsRollup, deleteNeedsRollup, needsRollupAdjustedTTL, session);
+            needsRollupTracker.postRollup(agentRollupId, needsRollup, nextRollupIntervalMillis,
+                    needsRollupAdjustedTTL);
         }
     }
 
@@ -1970,6 +1950,26 @@ public class AggregateDaoImpl implements AggregateDao {
 
     private ResultSet executeQuery(String agentRollupId, AggregateQuery query, Table table)
             throws Exception {
+        return session.read(bindReadQuery(agentRollupId, query, table));
+    }
+
+    // wide time ranges are split into concurrent queries, each of which passes rows to the consumer
+    // one page at a time, so the consumer must be thread safe
+    private void readInCaptureTimeRanges(String agentRollupId, AggregateQuery query, Table table,
+            RowConsumer consumer) throws Exception {
+        List<ListenableFuture<?>> futures = new ArrayList<>();
+        for (CaptureTimeRange range : CaptureTimeRanges.split(query.from(), query.to())) {
+            AggregateQuery rangeQuery = ImmutableAggregateQuery.copyOf(query)
+                    .withFrom(range.from())
+                    .withTo(range.to());
+            futures.add(session.readAsync(bindReadQuery(agentRollupId, rangeQuery, table),
+                    MERGE_FETCH_SIZE, asyncExecutor, consumer));
+        }
+        MoreFutures.waitForAll(futures);
+    }
+
+    private BoundStatement bindReadQuery(String agentRollupId, AggregateQuery query,
+            Table table) {
         BoundStatement boundStatement;
         if (query.transactionName() == null) {
             boundStatement = checkNotNull(readOverallPS.get(table)).get(query.rollupLevel()).bind();
@@ -1978,7 +1978,7 @@ public class AggregateDaoImpl implements AggregateDao {
                     checkNotNull(readTransactionPS.get(table)).get(query.rollupLevel()).bind();
         }
         bindQuery(boundStatement, agentRollupId, query);
-        return session.read(boundStatement);
+        return boundStatement;
     }
 
     private ListenableFuture<ResultSet> executeQueryForRollup(String agentRollupId,
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.repo;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.immutables.value.Value;
+
+import org.glowroot.common.util.Styles;
+
+import static java.util.concurrent.TimeUnit.HOURS;
+
+// splits wide capture time ranges so they can be read using concurrent queries
+class CaptureTimeRanges {
+
+    private static final long MIN_RANGE_MILLIS = HOURS.toMillis(1);
+    private static final int MAX_RANGES = 4;
+
+    private CaptureTimeRanges() {}
+
+    // from is non-inclusive and to is inclusive (same as the queries), and the returned ranges are
+    // in capture time order
+    static List<CaptureTimeRange> split(long from, long to) {
+        long rangeMillis = to - from;
+        int count = (int) Math.min(MAX_RANGES, Math.max(1, rangeMillis / MIN_RANGE_MILLIS));
+        List<CaptureTimeRange> ranges = new ArrayList<>(count);
+        long rangeFrom = from;
+        for (int i = 1; i < count; i++) {
+            long rangeTo = from + rangeMillis * i / count;
+            ranges.add(ImmutableCaptureTimeRange.of(rangeFrom, rangeTo));
+            rangeFrom = rangeTo;
+        }
+        ranges.add(ImmutableCaptureTimeRange.of(rangeFrom, to));
+        return ranges;
+    }
+
+    @Value.Immutable
+    @Styles.AllParameters
+    interface CaptureTimeRange {
+        long from();
+        long to();
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2017-2019 the original author or authors.
+ * Copyright 2017-2020 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -66,9 +66,10 @@ public class CentralRepoModule {
     private final V09AgentRollupDao v09AgentRollupDao;
 
     public CentralRepoModule(ClusterManager clusterManager, Session session, File confDir,
-            String cassandraSymmetricEncryptionKey, ExecutorService asyncExecutor,
-            int targetMaxActiveAgentsInPast7Days, int targetMaxCentralUiUsers, Clock clock)
-            throws Exception {
+            String cassandraSymmetricEncryptionKey, boolean cassandraGaugeValueBlocks,
+            boolean cassandraTraceSearchIndex, ExecutorService asyncExecutor,
+            int targetMaxActiveAgentsInPast7Days,
+            int targetMaxCentralUiUsers, Clock clock) throws Exception {
 
         boolean populateFromAdminDefault = session.getTable("central_config") == null;
 
@@ -84,7 +85,8 @@ public class CentralRepoModule {
         alertingDisabledDao = new AlertingDisabledDao(session, clock);
         rollupLevelService = new RollupLevelService(configRepository, clock);
         activeAgentDao = new ActiveAgentDao(session, agentDisplayDao, agentConfigDao,
-                configRepository, rollupLevelService, clock);
+                configRepository, rollupLevelService, clusterManager, asyncExecutor,
+                targetMaxActiveAgentsInPast7Days, clock);
         environmentDao = new EnvironmentDao(session);
         heartbeatDao = new HeartbeatDao(session, clock);
         incidentDao = new IncidentDao(session, clock);
@@ -136,11 +138,12 @@ public class CentralRepoModule {
             v09TraceLastExpirationTime = checkNotNull(row.getTimestamp(i++)).getTime();
             v09AggregateLastExpirationTime = checkNotNull(row.getTimestamp(i++)).getTime();
         }
-        fullQueryTextDao = new FullQueryTextDao(session, configRepository, asyncExecutor);
+        fullQueryTextDao = new FullQueryTextDao(session, configRepository, asyncExecutor, clock);
         AggregateDaoImpl aggregateDaoImpl = new AggregateDaoImpl(session, activeAgentDao,
-                transactionTypeDao, fullQueryTextDao, configRepository, asyncExecutor, clock);
+                transactionTypeDao, fullQueryTextDao, configRepository, clusterManager,
+                asyncExecutor, clock);
         GaugeValueDaoImpl gaugeValueDaoImpl = new GaugeValueDaoImpl(session, configRepository,
-                clusterManager, asyncExecutor, clock);
+                clusterManager, asyncExecutor, cassandraGaugeValueBlocks, clock);
         SyntheticResultDaoImpl syntheticResultDaoImpl = new SyntheticResultDaoImpl(session,
                 configRepository, asyncExecutor, clock);
         if (v09AggregateLastExpirationTime < clock.currentTimeMillis()) {
@@ -156,7 +159,8 @@ public class CentralRepoModule {
                     v09LastCaptureTime, clock, syntheticResultDaoImpl);
         }
         TraceDaoImpl traceDaoImpl = new TraceDaoImpl(session, transactionTypeDao, fullQueryTextDao,
-                traceAttributeNameDao, configRepository, clock);
+                traceAttributeNameDao, configRepository, asyncExecutor, cassandraTraceSearchIndex,
+                clock);
         if (v09TraceLastExpirationTime < clock.currentTimeMillis()) {
             traceDao = traceDaoImpl;
         } else {
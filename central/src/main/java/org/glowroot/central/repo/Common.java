@@ -1,5 +1,5 @@
 /*
- * Copyright 2017-2018 the original author or authors.
+ * Copyright 2017-2020 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -31,10 +31,7 @@ import com.datastax.driver.core.PreparedStatement;
 import com.datastax.driver.core.ResultSet;
 import com.datastax.driver.core.Row;
 import com.datastax.driver.core.utils.UUIDs;
-import com.google.common.collect.HashMultimap;
-import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
-import com.google.common.collect.Multimap;
 import com.google.common.primitives.Ints;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
@@ -80,8 +77,8 @@ class Common {
     static Collection<NeedsRollup> getNeedsRollupList(String agentRollupId, int rollupLevel,
             long rollupIntervalMillis, List<PreparedStatement> readNeedsRollup, Session session,
             Clock clock) throws Exception {
-        // capture current time before reading data to prevent race condition with optimization
-        // that prevents duplicate needs rollup data which is also based on current time
+        // capture current time before reading data to prevent race condition with needs rollup data
+        // that is still being added
         long currentTimeMillis = clock.currentTimeMillis();
         BoundStatement boundStatement = readNeedsRollup.get(rollupLevel - 1).bind();
         boundStatement.setString(0, agentRollupId);
@@ -98,10 +95,6 @@ class Common {
                 // assumes when it finds rolled up data, it doesn't check for non-rolled up data for
                 // same interval
                 //
-                // and now another reason: optimization for gauge_needs_rollup_1 relies on it being
-                // safe to not re-insert the same data up until rollupIntervalMillis after the
-                // rollup capture time
-                //
                 // safe to "break" instead of just "continue" since results are ordered by
                 // capture_time
                 break;
@@ -119,46 +112,6 @@ class Common {
         return needsRollupMap.values();
     }
 
-    static List<NeedsRollupFromChildren> getNeedsRollupFromChildrenList(String agentRollupId,
-            PreparedStatement readNeedsRollupFromChild, Session session) throws Exception {
-        BoundStatement boundStatement = readNeedsRollupFromChild.bind();
-        boundStatement.setString(0, agentRollupId);
-        ResultSet results = session.read(boundStatement);
-        Map<Long, NeedsRollupFromChildren> needsRollupFromChildrenMap = new LinkedHashMap<>();
-        for (Row row : results) {
-            int i = 0;
-            long captureTime = checkNotNull(row.getTimestamp(i++)).getTime();
-            UUID uniqueness = row.getUUID(i++);
-            String childAgentRollupId = checkNotNull(row.getString(i++));
-            Set<String> keys = checkNotNull(row.getSet(i++, String.class));
-            NeedsRollupFromChildren needsRollup = needsRollupFromChildrenMap.get(captureTime);
-            if (needsRollup == null) {
-                needsRollup = new NeedsRollupFromChildren(captureTime);
-                needsRollupFromChildrenMap.put(captureTime, needsRollup);
-            }
-            for (String key : keys) {
-                needsRollup.keys.put(key, childAgentRollupId);
-            }
-            needsRollup.uniquenessKeysForDeletion.add(uniqueness);
-        }
-        return ImmutableList.copyOf(needsRollupFromChildrenMap.values());
-    }
-
-    static void insertNeedsRollupFromChild(String agentRollupId, String parentAgentRollupId,
-            PreparedStatement insertNeedsRollupFromChild,
-            NeedsRollupFromChildren needsRollupFromChildren, long captureTime,
-            int needsRollupAdjustedTTL, Session session) throws Exception {
-        BoundStatement boundStatement = insertNeedsRollupFromChild.bind();
-        int i = 0;
-        boundStatement.setString(i++, parentAgentRollupId);
-        boundStatement.setTimestamp(i++, new Date(captureTime));
-        boundStatement.setUUID(i++, UUIDs.timeBased());
-        boundStatement.setString(i++, agentRollupId);
-        boundStatement.setSet(i++, needsRollupFromChildren.getKeys().keySet());
-        boundStatement.setInt(i++, needsRollupAdjustedTTL);
-        session.write(boundStatement);
-    }
-
     // it is important that the insert into next needs_rollup happens after present
     // rollup and before deleting present rollup
     // if insert before present rollup then possible for the next rollup to occur before
@@ -222,29 +175,4 @@ class Common {
             return uniquenessKeysForDeletion;
         }
     }
-
-    static class NeedsRollupFromChildren {
-
-        private final long captureTime;
-        // map keys are transaction types or gauge names
-        // map values are childAgentRollupIds
-        private final Multimap<String, String> keys = HashMultimap.create();
-        private final Set<UUID> uniquenessKeysForDeletion = new HashSet<>();
-
-        private NeedsRollupFromChildren(long captureTime) {
-            this.captureTime = captureTime;
-        }
-
-        long getCaptureTime() {
-            return captureTime;
-        }
-
-        Multimap<String, String> getKeys() {
-            return keys;
-        }
-
-        Set<UUID> getUniquenessKeysForDeletion() {
-            return uniquenessKeysForDeletion;
-        }
-    }
 }
@@ -1,5 +1,5 @@
 /*
- * Copyright 2016-2019 the original author or authors.
+ * Copyright 2016-2020 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -38,7 +38,9 @@ import org.immutables.value.Value;
 import org.glowroot.central.util.MoreFutures;
 import org.glowroot.central.util.MoreFutures.DoWithResults;
 import org.glowroot.central.util.RateLimiter;
+import org.glowroot.central.util.RecentKeyFilter;
 import org.glowroot.central.util.Session;
+import org.glowroot.common.util.Clock;
 import org.glowroot.common.util.Styles;
 import org.glowroot.common2.config.CentralStorageConfig;
 import org.glowroot.common2.repo.ConfigRepository.RollupConfig;
@@ -49,6 +51,15 @@ import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
 class FullQueryTextDao {
 
+    // the recently stored filter only suppresses re-writes for up to 2 generations (24 hours),
+    // which is well within the 2 days that getTTL() adds to account for rate limiting
+    private static final long RECENTLY_STORED_GENERATION_MILLIS = HOURS.toMillis(12);
+
+    private static final double RECENTLY_STORED_FPP = Double.parseDouble(
+            System.getProperty("glowroot.internal.fullQueryTextFilterFpp", "0.0001"));
+
+    private static final int RECENTLY_STORED_MIN_EXPECTED_INSERTIONS = 100000;
+
     private final Session session;
     private final ConfigRepositoryImpl configRepository;
     private final Executor asyncExecutor;
@@ -63,11 +74,17 @@ class FullQueryTextDao {
 
     private final RateLimiter<String> rateLimiter = new RateLimiter<>(100000, true);
 
-    FullQueryTextDao(Session session, ConfigRepositoryImpl configRepository, Executor asyncExecutor)
-            throws Exception {
+    // per-node filter of check rows and full texts that were stored recently, so that the agents
+    // re-sending the same full query texts don't cost a write (or a read) for each one
+    private final RecentKeyFilter recentlyStored;
+
+    FullQueryTextDao(Session session, ConfigRepositoryImpl configRepository, Executor asyncExecutor,
+            Clock clock) throws Exception {
         this.session = session;
         this.configRepository = configRepository;
         this.asyncExecutor = asyncExecutor;
+        recentlyStored = new RecentKeyFilter(RECENTLY_STORED_GENERATION_MILLIS,
+                RECENTLY_STORED_FPP, RECENTLY_STORED_MIN_EXPECTED_INSERTIONS, clock);
 
         session.createTableWithSTCS("create table if not exists full_query_text_check (agent_rollup"
                 + " varchar, full_query_text_sha1 varchar, primary key (agent_rollup,"
@@ -96,6 +113,8 @@ class FullQueryTextDao {
         MBeanServer platformMBeanServer = ManagementFactory.getPlatformMBeanServer();
         platformMBeanServer.registerMBean(rateLimiter.getLocalCacheStats(), ObjectName
                 .getInstance("org.glowroot.central:type=FullQueryTextRateLimiter"));
+        platformMBeanServer.registerMBean(recentlyStored.getLocalCacheStats(), ObjectName
+                .getInstance("org.glowroot.central:type=FullQueryTextRecentlyStoredFilter"));
     }
 
     @Nullable
@@ -112,12 +131,22 @@ class FullQueryTextDao {
         // relying on agent side to rate limit (re-)sending the same full text
         List<Future<?>> futures = new ArrayList<>();
         for (String agentRollupId : agentRollupIds) {
+            // sha1 is fixed length, so this cannot collide with another agent rollup's check key
+            // or with the full text key below
+            String checkKey = agentRollupId + ':' + fullTextSha1;
+            if (recentlyStored.mightContain(checkKey)) {
+                continue;
+            }
             BoundStatement boundStatement = insertCheckV2PS.bind();
             int i = 0;
             boundStatement.setString(i++, agentRollupId);
             boundStatement.setString(i++, fullTextSha1);
             boundStatement.setInt(i++, getTTL());
-            futures.add(session.writeAsync(boundStatement));
+            futures.add(MoreFutures.onSuccessAndFailure(session.writeAsync(boundStatement),
+                    () -> recentlyStored.put(checkKey), () -> {}));
+        }
+        if (recentlyStored.mightContain(fullTextSha1)) {
+            return futures;
         }
         if (!rateLimiter.tryAcquire(fullTextSha1)) {
             return futures;
@@ -129,7 +158,8 @@ class FullQueryTextDao {
             rateLimiter.release(fullTextSha1);
             throw t;
         }
-        futures.add(MoreFutures.onFailure(future2, () -> rateLimiter.release(fullTextSha1)));
+        futures.add(MoreFutures.onSuccessAndFailure(future2,
+                () -> recentlyStored.put(fullTextSha1), () -> rateLimiter.release(fullTextSha1)));
         return futures;
     }
 
@@ -207,6 +237,8 @@ class FullQueryTextDao {
         MBeanServer platformMBeanServer = ManagementFactory.getPlatformMBeanServer();
         platformMBeanServer.unregisterMBean(ObjectName
                 .getInstance("org.glowroot.central:type=FullQueryTextRateLimiter"));
+        platformMBeanServer.unregisterMBean(ObjectName
+                .getInstance("org.glowroot.central:type=FullQueryTextRecentlyStoredFilter"));
     }
 
     @Value.Immutable
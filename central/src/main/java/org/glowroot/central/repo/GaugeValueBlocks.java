@@ -0,0 +1,253 @@
+/*
+ * Copyright 2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.repo;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueMessage.GaugeValue;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+// packs a sorted run of gauge values into a single blob using the encoding from "Gorilla: A Fast,
+// Scalable, In-Memory Time Series Database" (http://www.vldb.org/pvldb/vol8/p1816-teller.pdf)
+//
+// capture times are stored as delta-of-deltas, values are stored as the XOR with the prior value,
+// and weights are stored as deltas (using the same buckets as capture times), so a block of evenly
+// spaced gauge values with constant weight costs a couple of bytes per value
+class GaugeValueBlocks {
+
+    private static final byte VERSION = 1;
+
+    private GaugeValueBlocks() {}
+
+    // gauge values must be sorted by capture time
+    static ByteBuffer encode(List<GaugeValue> gaugeValues) {
+        BitWriter out = new BitWriter(16 + gaugeValues.size() * 4);
+        out.writeBits(VERSION, 8);
+        out.writeBits(gaugeValues.size(), 32);
+        if (gaugeValues.isEmpty()) {
+            return out.toByteBuffer();
+        }
+        GaugeValue first = gaugeValues.get(0);
+        long priorCaptureTime = first.getCaptureTime();
+        long priorValueBits = Double.doubleToRawLongBits(first.getValue());
+        long priorWeight = first.getWeight();
+        out.writeBits(priorCaptureTime, 64);
+        out.writeBits(priorValueBits, 64);
+        out.writeBits(priorWeight, 64);
+        long priorDelta = 0;
+        int priorLeadingZeros = -1;
+        int priorTrailingZeros = 0;
+        for (int i = 1; i < gaugeValues.size(); i++) {
+            GaugeValue gaugeValue = gaugeValues.get(i);
+            long captureTime = gaugeValue.getCaptureTime();
+            long delta = captureTime - priorCaptureTime;
+            checkArgument(delta > 0, "gauge values must be sorted by capture time");
+            writeDelta(out, delta - priorDelta);
+            priorCaptureTime = captureTime;
+            priorDelta = delta;
+
+            long valueBits = Double.doubleToRawLongBits(gaugeValue.getValue());
+            long xor = valueBits ^ priorValueBits;
+            priorValueBits = valueBits;
+            if (xor == 0) {
+                out.writeBit(false);
+            } else {
+                out.writeBit(true);
+                // leading zeros are capped so they fit in 5 bits
+                int leadingZeros = Math.min(Long.numberOfLeadingZeros(xor), 31);
+                int trailingZeros = Long.numberOfTrailingZeros(xor);
+                if (priorLeadingZeros != -1 && leadingZeros >= priorLeadingZeros
+                        && trailingZeros >= priorTrailingZeros) {
+                    // meaningful bits fall within the prior window
+                    out.writeBit(false);
+                    out.writeBits(xor >>> priorTrailingZeros,
+                            64 - priorLeadingZeros - priorTrailingZeros);
+                } else {
+                    int significantBits = 64 - leadingZeros - trailingZeros;
+                    out.writeBit(true);
+                    out.writeBits(leadingZeros, 5);
+                    // significantBits is in [1, 64], so 64 is written as 0 to fit in 6 bits
+                    out.writeBits(significantBits & 0x3F, 6);
+                    out.writeBits(xor >>> trailingZeros, significantBits);
+                    priorLeadingZeros = leadingZeros;
+                    priorTrailingZeros = trailingZeros;
+                }
+            }
+
+            long weight = gaugeValue.getWeight();
+            writeDelta(out, weight - priorWeight);
+            priorWeight = weight;
+        }
+        return out.toByteBuffer();
+    }
+
+    static List<GaugeValue> decode(ByteBuffer buffer) {
+        BitReader in = new BitReader(buffer);
+        int version = (int) in.readBits(8);
+        if (version != VERSION) {
+            throw new IllegalStateException("Unexpected gauge value block version: " + version);
+        }
+        int count = (int) in.readBits(32);
+        List<GaugeValue> gaugeValues = new ArrayList<>(count);
+        if (count == 0) {
+            return gaugeValues;
+        }
+        long captureTime = in.readBits(64);
+        long valueBits = in.readBits(64);
+        long weight = in.readBits(64);
+        gaugeValues.add(newGaugeValue(captureTime, valueBits, weight));
+        long delta = 0;
+        int leadingZeros = -1;
+        int trailingZeros = 0;
+        for (int i = 1; i < count; i++) {
+            delta += readDelta(in);
+            captureTime += delta;
+            if (in.readBit()) {
+                if (in.readBit()) {
+                    leadingZeros = (int) in.readBits(5);
+                    int significantBits = (int) in.readBits(6);
+                    if (significantBits == 0) {
+                        significantBits = 64;
+                    }
+                    trailingZeros = 64 - leadingZeros - significantBits;
+                }
+                valueBits ^= in.readBits(64 - leadingZeros - trailingZeros) << trailingZeros;
+            }
+            weight += readDelta(in);
+            gaugeValues.add(newGaugeValue(captureTime, valueBits, weight));
+        }
+        return gaugeValues;
+    }
+
+    // '0' for zero, then progressively wider buckets for small deltas, falling back to 64 bits
+    private static void writeDelta(BitWriter out, long delta) {
+        if (delta == 0) {
+            out.writeBits(0x0, 1);
+        } else if (fitsInBits(delta, 7)) {
+            out.writeBits(0x2, 2);
+            out.writeBits(delta, 7);
+        } else if (fitsInBits(delta, 9)) {
+            out.writeBits(0x6, 3);
+            out.writeBits(delta, 9);
+        } else if (fitsInBits(delta, 12)) {
+            out.writeBits(0xE, 4);
+            out.writeBits(delta, 12);
+        } else {
+            out.writeBits(0xF, 4);
+            out.writeBits(delta, 64);
+        }
+    }
+
+    private static long readDelta(BitReader in) {
+        if (!in.readBit()) {
+            return 0;
+        }
+        if (!in.readBit()) {
+            return signExtend(in.readBits(7), 7);
+        }
+        if (!in.readBit()) {
+            return signExtend(in.readBits(9), 9);
+        }
+        if (!in.readBit()) {
+            return signExtend(in.readBits(12), 12);
+        }
+        return in.readBits(64);
+    }
+
+    private static boolean fitsInBits(long value, int bits) {
+        long limit = 1L << (bits - 1);
+        return value >= -limit && value < limit;
+    }
+
+    private static long signExtend(long value, int bits) {
+        int shift = 64 - bits;
+        return (value << shift) >> shift;
+    }
+
+    private static GaugeValue newGaugeValue(long captureTime, long valueBits, long weight) {
+        return GaugeValue.newBuilder()
+                .setCaptureTime(captureTime)
+                .setValue(Double.longBitsToDouble(valueBits))
+                .setWeight(weight)
+                .build();
+    }
+
+    private static class BitWriter {
+
+        private byte[] bytes;
+        private int bitPosition;
+
+        private BitWriter(int initialCapacity) {
+            bytes = new byte[initialCapacity];
+        }
+
+        private void writeBit(boolean bit) {
+            writeBits(bit ? 1 : 0, 1);
+        }
+
+        // writes the low order numBits of value, most significant bit first
+        private void writeBits(long value, int numBits) {
+            ensureCapacity(bitPosition + numBits);
+            for (int i = numBits - 1; i >= 0; i--) {
+                if (((value >>> i) & 1) != 0) {
+                    bytes[bitPosition >>> 3] |= (byte) (0x80 >>> (bitPosition & 7));
+                }
+                bitPosition++;
+            }
+        }
+
+        private void ensureCapacity(int numBits) {
+            int numBytes = (numBits + 7) >>> 3;
+            if (numBytes > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(numBytes, bytes.length * 2));
+            }
+        }
+
+        private ByteBuffer toByteBuffer() {
+            return ByteBuffer.wrap(bytes, 0, (bitPosition + 7) >>> 3);
+        }
+    }
+
+    private static class BitReader {
+
+        private final ByteBuffer buffer;
+        private final int start;
+        private int bitPosition;
+
+        private BitReader(ByteBuffer buffer) {
+            this.buffer = buffer;
+            start = buffer.position();
+        }
+
+        private boolean readBit() {
+            return readBits(1) != 0;
+        }
+
+        private long readBits(int numBits) {
+            long value = 0;
+            for (int i = 0; i < numBits; i++) {
+                int b = buffer.get(start + (bitPosition >>> 3));
+                value = (value << 1) | ((b >>> (7 - (bitPosition & 7))) & 1);
+                bitPosition++;
+            }
+            return value;
+        }
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2018 the original author or authors.
+ * Copyright 2015-2020 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,16 +15,15 @@
  */
 package org.glowroot.central.repo;
 
-import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
 import java.util.Set;
-import java.util.concurrent.ConcurrentMap;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 
@@ -32,29 +31,29 @@ import com.datastax.driver.core.BoundStatement;
 import com.datastax.driver.core.PreparedStatement;
 import com.datastax.driver.core.ResultSet;
 import com.datastax.driver.core.Row;
-import com.datastax.driver.core.utils.UUIDs;
+import com.google.common.base.Function;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Multimaps;
 import com.google.common.collect.SetMultimap;
 import com.google.common.primitives.Ints;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import org.checkerframework.checker.nullness.qual.Nullable;
-import org.immutables.serial.Serial;
-import org.immutables.value.Value;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-import org.glowroot.central.repo.Common.NeedsRollup;
-import org.glowroot.central.repo.Common.NeedsRollupFromChildren;
+import org.glowroot.central.repo.NeedsRollupTracker.NeedsRollup;
+import org.glowroot.central.repo.NeedsRollupTracker.NeedsRollupFromChildren;
 import org.glowroot.central.util.ClusterManager;
 import org.glowroot.central.util.MoreFutures;
-import org.glowroot.central.util.MoreFutures.DoRollup;
+import org.glowroot.central.util.MoreFutures.DoRollupValues;
 import org.glowroot.central.util.Session;
 import org.glowroot.common.util.CaptureTimes;
 import org.glowroot.common.util.Clock;
 import org.glowroot.common.util.OnlyUsedByTests;
-import org.glowroot.common.util.Styles;
 import org.glowroot.common2.repo.ConfigRepository.RollupConfig;
 import org.glowroot.common2.repo.util.Gauges;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueMessage.GaugeValue;
@@ -63,10 +62,23 @@ import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 import static java.util.concurrent.TimeUnit.DAYS;
 import static java.util.concurrent.TimeUnit.HOURS;
-import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
 
 public class GaugeValueDaoImpl implements GaugeValueDao {
 
+    private static final Logger logger = LoggerFactory.getLogger(GaugeValueDaoImpl.class);
+
+    // block sizes are chosen so that each block holds roughly this many gauge values
+    private static final int VALUES_PER_BLOCK = 240;
+
+    // agents collect gauge values every 5 seconds by default
+    private static final long NOMINAL_GAUGE_INTERVAL_MILLIS = SECONDS.toMillis(5);
+
+    // when storing gauge values in blocks, the individual rows only need to live until their block
+    // has been sealed, this is the additional time allowed for the sealing rollup to run
+    private static final long BLOCK_SEAL_MARGIN_MILLIS = DAYS.toMillis(1);
+
     private final Session session;
     private final ConfigRepositoryImpl configRepository;
     private final ExecutorService asyncExecutor;
@@ -78,24 +90,19 @@ public class GaugeValueDaoImpl implements GaugeValueDao {
     private final ImmutableList<PreparedStatement> insertValuePS;
     private final ImmutableList<PreparedStatement> readValuePS;
     private final ImmutableList<PreparedStatement> readOldestCaptureTimePS;
-    private final ImmutableList<PreparedStatement> readValueForRollupPS;
-    private final PreparedStatement readValueForRollupFromChildPS;
-
-    private final List<PreparedStatement> insertNeedsRollup;
-    private final List<PreparedStatement> readNeedsRollup;
-    private final List<PreparedStatement> deleteNeedsRollup;
 
-    private final PreparedStatement insertNeedsRollupFromChild;
-    private final PreparedStatement readNeedsRollupFromChild;
-    private final PreparedStatement deleteNeedsRollupFromChild;
+    // index is rollupLevel, these are empty unless gauge value blocks are enabled, and the top
+    // rollup level is never stored in blocks
+    private final ImmutableList<Long> blockMillis;
+    private final ImmutableList<PreparedStatement> insertBlockPS;
+    private final ImmutableList<PreparedStatement> readBlockPS;
+    private final ImmutableList<PreparedStatement> readOldestBlockPS;
 
-    // needs rollup caches are only to reduce pressure on the needs rollup tables by reducing
-    // duplicate entries
-    private final ConcurrentMap<NeedsRollupKey, ImmutableSet<String>> needsRollupCache1;
+    private final NeedsRollupTracker needsRollupTracker;
 
     GaugeValueDaoImpl(Session session, ConfigRepositoryImpl configRepository,
-            ClusterManager clusterManager, ExecutorService asyncExecutor, Clock clock)
-            throws Exception {
+            ClusterManager clusterManager, ExecutorService asyncExecutor, boolean gaugeValueBlocks,
+            Clock clock) throws Exception {
         this.session = session;
         this.configRepository = configRepository;
         this.asyncExecutor = asyncExecutor;
@@ -111,7 +118,6 @@ public class GaugeValueDaoImpl implements GaugeValueDao {
         List<PreparedStatement> insertValuePS = new ArrayList<>();
         List<PreparedStatement> readValuePS = new ArrayList<>();
         List<PreparedStatement> readOldestCaptureTimePS = new ArrayList<>();
-        List<PreparedStatement> readValueForRollupPS = new ArrayList<>();
         for (int i = 0; i <= count; i++) {
             // name already has "[counter]" suffix when it is a counter
             session.createTableWithTWCS("create table if not exists gauge_value_rollup_" + i
@@ -127,17 +133,45 @@ public class GaugeValueDaoImpl implements GaugeValueDao {
             readOldestCaptureTimePS.add(session.prepare("select capture_time from"
                     + " gauge_value_rollup_" + i + " where agent_rollup = ? and gauge_name = ?"
                     + " limit 1"));
-            readValueForRollupPS.add(session.prepare("select value, weight from gauge_value_rollup_"
-                    + i + " where agent_rollup = ? and gauge_name = ? and capture_time > ? and"
-                    + " capture_time <= ?"));
         }
         this.insertValuePS = ImmutableList.copyOf(insertValuePS);
         this.readValuePS = ImmutableList.copyOf(readValuePS);
         this.readOldestCaptureTimePS = ImmutableList.copyOf(readOldestCaptureTimePS);
-        this.readValueForRollupPS = ImmutableList.copyOf(readValueForRollupPS);
-        this.readValueForRollupFromChildPS = session.prepare("select value, weight from"
-                + " gauge_value_rollup_1 where agent_rollup = ? and gauge_name = ? and"
-                + " capture_time = ?");
+
+        List<Long> blockMillis = new ArrayList<>();
+        List<PreparedStatement> insertBlockPS = new ArrayList<>();
+        List<PreparedStatement> readBlockPS = new ArrayList<>();
+        List<PreparedStatement> readOldestBlockPS = new ArrayList<>();
+        if (gaugeValueBlocks) {
+            List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
+            for (int i = 0; i < count; i++) {
+                long intervalMillis = i == 0 ? NOMINAL_GAUGE_INTERVAL_MILLIS
+                        : rollupConfigs.get(i - 1).intervalMillis();
+                long nextIntervalMillis = rollupConfigs.get(i).intervalMillis();
+                // block boundaries are aligned with the next rollup level's capture times, so that
+                // the next rollup level always visits the end of each block
+                blockMillis.add(nextIntervalMillis
+                        * Math.max(1, VALUES_PER_BLOCK * intervalMillis / nextIntervalMillis));
+                // block_time is the (inclusive) end of the block, same as rollup capture times
+                session.createTableWithTWCS("create table if not exists gauge_value_block_rollup_"
+                        + i + " (agent_rollup varchar, gauge_name varchar, block_time timestamp,"
+                        + " data blob, primary key ((agent_rollup, gauge_name), block_time))",
+                        rollupExpirationHours.get(i));
+                insertBlockPS.add(session.prepare("insert into gauge_value_block_rollup_" + i
+                        + " (agent_rollup, gauge_name, block_time, data) values (?, ?, ?, ?) using"
+                        + " ttl ?"));
+                readBlockPS.add(session.prepare("select data from gauge_value_block_rollup_" + i
+                        + " where agent_rollup = ? and gauge_name = ? and block_time >= ? and"
+                        + " block_time < ?"));
+                readOldestBlockPS.add(session.prepare("select data from"
+                        + " gauge_value_block_rollup_" + i + " where agent_rollup = ? and"
+                        + " gauge_name = ? limit 1"));
+            }
+        }
+        this.blockMillis = ImmutableList.copyOf(blockMillis);
+        this.insertBlockPS = ImmutableList.copyOf(insertBlockPS);
+        this.readBlockPS = ImmutableList.copyOf(readBlockPS);
+        this.readOldestBlockPS = ImmutableList.copyOf(readOldestBlockPS);
 
         // since rollup operations are idempotent, any records resurrected after gc_grace_seconds
         // would just create extra work, but not have any other effect
@@ -164,26 +198,25 @@ public class GaugeValueDaoImpl implements GaugeValueDao {
             deleteNeedsRollup.add(session.prepare("delete from gauge_needs_rollup_" + i + " where"
                     + " agent_rollup = ? and capture_time = ? and uniqueness = ?"));
         }
-        this.insertNeedsRollup = insertNeedsRollup;
-        this.readNeedsRollup = readNeedsRollup;
-        this.deleteNeedsRollup = deleteNeedsRollup;
 
         session.createTableWithLCS("create table if not exists gauge_needs_rollup_from_child"
                 + " (agent_rollup varchar, capture_time timestamp, uniqueness timeuuid,"
                 + " child_agent_rollup varchar, gauge_names set<varchar>, primary key"
                 + " (agent_rollup, capture_time, uniqueness)) with gc_grace_seconds = "
                 + needsRollupGcGraceSeconds, true);
-        insertNeedsRollupFromChild = session.prepare("insert into gauge_needs_rollup_from_child"
-                + " (agent_rollup, capture_time, uniqueness, child_agent_rollup, gauge_names)"
-                + " values (?, ?, ?, ?, ?) using TTL ?");
-        readNeedsRollupFromChild = session.prepare("select capture_time, uniqueness,"
-                + " child_agent_rollup, gauge_names from gauge_needs_rollup_from_child where"
-                + " agent_rollup = ?");
-        deleteNeedsRollupFromChild = session.prepare("delete from gauge_needs_rollup_from_child"
-                + " where agent_rollup = ? and capture_time = ? and uniqueness = ?");
-
-        needsRollupCache1 =
-                clusterManager.createReplicatedMap("gaugeNeedsRollupCache1", 5, MINUTES);
+        PreparedStatement insertNeedsRollupFromChild = session.prepare("insert into"
+                + " gauge_needs_rollup_from_child (agent_rollup, capture_time, uniqueness,"
+                + " child_agent_rollup, gauge_names) values (?, ?, ?, ?, ?) using TTL ?");
+        PreparedStatement readNeedsRollupFromChild = session.prepare("select capture_time,"
+                + " uniqueness, child_agent_rollup, gauge_names from gauge_needs_rollup_from_child"
+                + " where agent_rollup = ?");
+        PreparedStatement deleteNeedsRollupFromChild = session.prepare("delete from"
+                + " gauge_needs_rollup_from_child where agent_rollup = ? and capture_time = ? and"
+                + " uniqueness = ?");
+
+        needsRollupTracker = new NeedsRollupTracker("gaugeNeedsRollup", session, clusterManager,
+                insertNeedsRollup, readNeedsRollup, deleteNeedsRollup, insertNeedsRollupFromChild,
+                readNeedsRollupFromChild, deleteNeedsRollupFromChild, clock);
     }
 
     @Override
@@ -211,7 +244,7 @@ public class GaugeValueDaoImpl implements GaugeValueDao {
             boundStatement.setTimestamp(i++, new Date(captureTime));
             boundStatement.setDouble(i++, gaugeValue.getValue());
             boundStatement.setLong(i++, gaugeValue.getWeight());
-            boundStatement.setInt(i++, adjustedTTL);
+            boundStatement.setInt(i++, getValueTTL(0, captureTime, adjustedTTL));
             futures.add(session.writeAsync(boundStatement));
             for (String agentRollupIdForMeta : agentRollupIdsForMeta) {
                 futures.addAll(gaugeNameDao.insert(agentRollupIdForMeta, captureTime, gaugeName));
@@ -223,49 +256,17 @@ public class GaugeValueDaoImpl implements GaugeValueDao {
         futures.clear();
 
         // insert into gauge_needs_rollup_1
-        Map<NeedsRollupKey, ImmutableSet<String>> updatesForNeedsRollupCache1 = new HashMap<>();
+        List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
         SetMultimap<Long, String> rollupCaptureTimes = getRollupCaptureTimes(gaugeValues);
         for (Map.Entry<Long, Set<String>> entry : Multimaps.asMap(rollupCaptureTimes).entrySet()) {
             Long captureTime = entry.getKey();
             Set<String> gaugeNames = entry.getValue();
-            NeedsRollupKey needsRollupKey = ImmutableNeedsRollupKey.of(agentId, captureTime);
-            ImmutableSet<String> needsRollupGaugeNames = needsRollupCache1.get(needsRollupKey);
-            if (needsRollupGaugeNames == null) {
-                // first insert for this key
-                updatesForNeedsRollupCache1.put(needsRollupKey,
-                        ImmutableSet.copyOf(gaugeNames));
-            } else if (needsRollupGaugeNames.containsAll(gaugeNames)) {
-                // capture current time after getting data from cache to prevent race condition with
-                // reading the data in Common.getNeedsRollupList()
-                if (!Common.isOldEnoughToRollup(captureTime, clock.currentTimeMillis(),
-                        configRepository.getRollupConfigs().get(0).intervalMillis())) {
-                    // completely covered by prior inserts that haven't been rolled up yet so no
-                    // need to re-insert same data
-                    continue;
-                }
-            } else {
-                // merge will maybe help prevent a few subsequent inserts
-                Set<String> combined = new HashSet<>(needsRollupGaugeNames);
-                combined.addAll(gaugeNames);
-                updatesForNeedsRollupCache1.put(needsRollupKey,
-                        ImmutableSet.copyOf(gaugeNames));
-            }
-            BoundStatement boundStatement = insertNeedsRollup.get(0).bind();
             int adjustedTTL = Common.getAdjustedTTL(ttl, captureTime, clock);
-            int needsRollupAdjustedTTL = Common.getNeedsRollupAdjustedTTL(adjustedTTL,
-                    configRepository.getRollupConfigs());
-            int i = 0;
-            boundStatement.setString(i++, agentId);
-            boundStatement.setTimestamp(i++, new Date(captureTime));
-            boundStatement.setUUID(i++, UUIDs.timeBased());
-            boundStatement.setSet(i++, gaugeNames);
-            boundStatement.setInt(i++, needsRollupAdjustedTTL);
-            futures.add(session.writeAsync(boundStatement));
+            int needsRollupAdjustedTTL =
+                    Common.getNeedsRollupAdjustedTTL(adjustedTTL, rollupConfigs);
+            needsRollupTracker.insertNeedsRollup(agentId, 1, captureTime, gaugeNames,
+                    rollupConfigs.get(0).intervalMillis(), needsRollupAdjustedTTL);
         }
-        MoreFutures.waitForAll(futures);
-
-        // update the cache now that the above inserts were successful
-        needsRollupCache1.putAll(updatesForNeedsRollupCache1);
     }
 
     @Override
@@ -288,23 +289,11 @@ public class GaugeValueDaoImpl implements GaugeValueDao {
     @Override
     public List<GaugeValue> readGaugeValues(String agentRollupId, String gaugeName, long from,
             long to, int rollupLevel) throws Exception {
-        BoundStatement boundStatement = readValuePS.get(rollupLevel).bind();
-        int i = 0;
-        boundStatement.setString(i++, agentRollupId);
-        boundStatement.setString(i++, gaugeName);
-        boundStatement.setTimestamp(i++, new Date(from));
-        boundStatement.setTimestamp(i++, new Date(to));
-        ResultSet results = session.read(boundStatement);
-        List<GaugeValue> gaugeValues = new ArrayList<>();
-        for (Row row : results) {
-            i = 0;
-            gaugeValues.add(GaugeValue.newBuilder()
-                    .setCaptureTime(checkNotNull(row.getTimestamp(i++)).getTime())
-                    .setValue(row.getDouble(i++))
-                    .setWeight(row.getLong(i++))
-                    .build());
+        try {
+            return readGaugeValuesAsync(rollupLevel, agentRollupId, gaugeName, from, to).get();
+        } catch (ExecutionException e) {
+            throw MoreFutures.unwrapDriverException(e);
         }
-        return gaugeValues;
     }
 
     @Override
@@ -316,7 +305,25 @@ public class GaugeValueDaoImpl implements GaugeValueDao {
         boundStatement.setString(i++, gaugeName);
         ResultSet results = session.read(boundStatement);
         Row row = results.one();
-        return row == null ? Long.MAX_VALUE : checkNotNull(row.getTimestamp(0)).getTime();
+        long oldestCaptureTime =
+                row == null ? Long.MAX_VALUE : checkNotNull(row.getTimestamp(0)).getTime();
+        if (isBlockLevel(rollupLevel)) {
+            boundStatement = readOldestBlockPS.get(rollupLevel).bind();
+            i = 0;
+            boundStatement.setString(i++, agentRollupId);
+            boundStatement.setString(i++, gaugeName);
+            results = session.read(boundStatement);
+            row = results.one();
+            if (row != null) {
+                List<GaugeValue> gaugeValues =
+                        GaugeValueBlocks.decode(checkNotNull(row.getBytes(0)));
+                if (!gaugeValues.isEmpty()) {
+                    oldestCaptureTime =
+                            Math.min(oldestCaptureTime, gaugeValues.get(0).getCaptureTime());
+                }
+            }
+        }
+        return oldestCaptureTime;
     }
 
     @Override
@@ -341,8 +348,7 @@ public class GaugeValueDaoImpl implements GaugeValueDao {
             rollupLevel = 2;
         }
         while (rollupLevel <= configRepository.getRollupConfigs().size()) {
-            int ttl = ttls.get(rollupLevel);
-            rollup(agentRollupId, parentAgentRollupId, rollupLevel, ttl);
+            rollup(agentRollupId, parentAgentRollupId, rollupLevel, ttls);
             rollupLevel++;
         }
     }
@@ -356,6 +362,10 @@ public class GaugeValueDaoImpl implements GaugeValueDao {
             long intervalMillis = rollupConfigs.get(0).intervalMillis();
             long rollupCaptureTime = CaptureTimes.getRollup(captureTime, intervalMillis);
             rollupCaptureTimes.put(rollupCaptureTime, gaugeName);
+            if (isBlockLevel(0)) {
+                // the block is sealed when the rollup reaches the end of the block
+                rollupCaptureTimes.put(getBlockEnd(0, captureTime), gaugeName);
+            }
         }
         return rollupCaptureTimes;
     }
@@ -363,8 +373,8 @@ public class GaugeValueDaoImpl implements GaugeValueDao {
     private void rollupFromChildren(String agentRollupId, @Nullable String parentAgentRollupId,
             int ttl) throws Exception {
         final int rollupLevel = 1;
-        List<NeedsRollupFromChildren> needsRollupFromChildrenList = Common
-                .getNeedsRollupFromChildrenList(agentRollupId, readNeedsRollupFromChild, session);
+        List<NeedsRollupFromChildren> needsRollupFromChildrenList =
+                needsRollupTracker.getNeedsRollupFromChildrenList(agentRollupId);
         List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
         long nextRollupIntervalMillis = rollupConfigs.get(rollupLevel).intervalMillis();
         for (NeedsRollupFromChildren needsRollupFromChildren : needsRollupFromChildrenList) {
@@ -384,27 +394,29 @@ public class GaugeValueDaoImpl implements GaugeValueDao {
 
             int needsRollupAdjustedTTL =
                     Common.getNeedsRollupAdjustedTTL(adjustedTTL, rollupConfigs);
+            // insert needs to happen first before call to postRollup(), see method-level comment
+            // on postRollup
+            insertNeedsRollupForBlockEnd(agentRollupId, rollupLevel, captureTime,
+                    needsRollupFromChildren.getKeys().keySet(), needsRollupAdjustedTTL);
             if (parentAgentRollupId != null) {
                 // insert needs to happen first before call to postRollup(), see method-level
                 // comment on postRollup
-                Common.insertNeedsRollupFromChild(agentRollupId, parentAgentRollupId,
-                        insertNeedsRollupFromChild, needsRollupFromChildren, captureTime,
-                        needsRollupAdjustedTTL, session);
+                needsRollupTracker.insertNeedsRollupFromChild(parentAgentRollupId, agentRollupId,
+                        captureTime, needsRollupFromChildren.getKeys().keySet(),
+                        needsRollupAdjustedTTL);
             }
-            Common.postRollup(agentRollupId, needsRollupFromChildren.getCaptureTime(),
-                    needsRollupFromChildren.getKeys().keySet(),
-                    needsRollupFromChildren.getUniquenessKeysForDeletion(),
-                    nextRollupIntervalMillis, insertNeedsRollup.get(rollupLevel),
-                    deleteNeedsRollupFromChild, needsRollupAdjustedTTL, session);
+            needsRollupTracker.postRollupFromChildren(agentRollupId, needsRollupFromChildren,
+                    rollupLevel + 1, nextRollupIntervalMillis, needsRollupAdjustedTTL);
         }
     }
 
     private void rollup(String agentRollupId, @Nullable String parentAgentRollupId, int rollupLevel,
-            int ttl) throws Exception {
+            List<Integer> ttls) throws Exception {
+        int ttl = ttls.get(rollupLevel);
         List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
         long rollupIntervalMillis = rollupConfigs.get(rollupLevel - 1).intervalMillis();
-        Collection<NeedsRollup> needsRollupList = Common.getNeedsRollupList(agentRollupId,
-                rollupLevel, rollupIntervalMillis, readNeedsRollup, session, clock);
+        List<NeedsRollup> needsRollupList = needsRollupTracker.getNeedsRollupList(agentRollupId,
+                rollupLevel, rollupIntervalMillis);
         Long nextRollupIntervalMillis = null;
         if (rollupLevel < rollupConfigs.size()) {
             nextRollupIntervalMillis = rollupConfigs.get(rollupLevel).intervalMillis();
@@ -414,100 +426,118 @@ public class GaugeValueDaoImpl implements GaugeValueDao {
             long from = captureTime - rollupIntervalMillis;
             int adjustedTTL = Common.getAdjustedTTL(ttl, captureTime, clock);
             Set<String> gaugeNames = needsRollup.getKeys();
+            // at the end of a block, gauge names may have been added only to trigger sealing the
+            // block, so it is expected that some of them have no values in this interval
+            boolean sealBlock = isBlockLevel(rollupLevel - 1)
+                    && captureTime == getBlockEnd(rollupLevel - 1, captureTime);
             List<ListenableFuture<?>> futures = new ArrayList<>();
             for (String gaugeName : gaugeNames) {
                 futures.add(rollupOne(rollupLevel, agentRollupId, gaugeName, from, captureTime,
-                        adjustedTTL));
+                        adjustedTTL, !sealBlock));
             }
             if (futures.isEmpty()) {
                 // no rollups occurred, warning already logged inside rollupOne() above
                 // this can happen there is an old "needs rollup" record that was created prior to
                 // TTL was introduced in 0.9.6, and when the "last needs rollup" record wasn't
                 // processed (also prior to 0.9.6), and when the corresponding old data has expired
-                Common.postRollup(agentRollupId, needsRollup.getCaptureTime(), gaugeNames,
-                        needsRollup.getUniquenessKeysForDeletion(), null, null,
-                        deleteNeedsRollup.get(rollupLevel - 1), -1, session);
+                needsRollupTracker.postRollup(agentRollupId, needsRollup, null, -1);
                 continue;
             }
             // wait for above async work to ensure rollup complete before proceeding
             MoreFutures.waitForAll(futures);
 
+            if (sealBlock) {
+                // sealing needs to complete before deleting the needs rollup record so that it will
+                // be retried on failure
+                futures = new ArrayList<>();
+                for (String gaugeName : gaugeNames) {
+                    futures.add(sealBlock(rollupLevel - 1, agentRollupId, gaugeName, captureTime,
+                            ttls.get(rollupLevel - 1)));
+                }
+                MoreFutures.waitForAll(futures);
+            }
+
             int needsRollupAdjustedTTL =
                     Common.getNeedsRollupAdjustedTTL(adjustedTTL, rollupConfigs);
+            // insert needs to happen first before call to postRollup(), see method-level comment
+            // on postRollup
+            insertNeedsRollupForBlockEnd(agentRollupId, rollupLevel, captureTime, gaugeNames,
+                    needsRollupAdjustedTTL);
             if (rollupLevel == 1 && parentAgentRollupId != null) {
                 // insert needs to happen first before call to postRollup(), see method-level
                 // comment on postRollup
-                BoundStatement boundStatement = insertNeedsRollupFromChild.bind();
-                int i = 0;
-                boundStatement.setString(i++, parentAgentRollupId);
-                boundStatement.setTimestamp(i++, new Date(captureTime));
-                boundStatement.setUUID(i++, UUIDs.timeBased());
-                boundStatement.setString(i++, agentRollupId);
-                boundStatement.setSet(i++, gaugeNames);
-                boundStatement.setInt(i++, needsRollupAdjustedTTL);
-                session.write(boundStatement);
+                needsRollupTracker.insertNeedsRollupFromChild(parentAgentRollupId, agentRollupId,
+                        captureTime, gaugeNames, needsRollupAdjustedTTL);
             }
-            PreparedStatement insertNeedsRollup = nextRollupIntervalMillis == null ? null
-                    : this.insertNeedsRollup.get(rollupLevel);
-            PreparedStatement deleteNeedsRollup = this.deleteNeedsRollup.get(rollupLevel - 1);
-            Common.postRollup(agentRollupId, needsRollup.getCaptureTime(), gaugeNames,
-                    needsRollup.getUniquenessKeysForDeletion(), nextRollupIntervalMillis,
-                    insertNeedsRollup, deleteNeedsRollup, needsRollupAdjustedTTL, session);
+            needsRollupTracker.postRollup(agentRollupId, needsRollup, nextRollupIntervalMillis,
+                    needsRollupAdjustedTTL);
         }
     }
 
     private ListenableFuture<?> rollupOneFromChildren(int rollupLevel, String agentRollupId,
             String gaugeName, Collection<String> childAgentRollupIds, long captureTime,
             int adjustedTTL) throws Exception {
-        List<ListenableFuture<ResultSet>> futures = new ArrayList<>();
+        List<ListenableFuture<List<GaugeValue>>> futures = new ArrayList<>();
         for (String childAgentRollupId : childAgentRollupIds) {
-            BoundStatement boundStatement = readValueForRollupFromChildPS.bind();
-            int i = 0;
-            boundStatement.setString(i++, childAgentRollupId);
-            boundStatement.setString(i++, gaugeName);
-            boundStatement.setTimestamp(i++, new Date(captureTime));
-            futures.add(session.readAsyncWarnIfNoRows(boundStatement, "no gauge value table"
-                    + " records found for agentRollupId={}, gaugeName={}, captureTime={}, level={}",
+            ListenableFuture<List<GaugeValue>> future = readGaugeValuesAsync(rollupLevel,
+                    childAgentRollupId, gaugeName, captureTime, captureTime);
+            futures.add(warnIfNoValues(future, "no gauge value table records found for"
+                    + " agentRollupId={}, gaugeName={}, captureTime={}, level={}",
                     childAgentRollupId, gaugeName, captureTime, rollupLevel));
         }
-        return MoreFutures.rollupAsync(futures, asyncExecutor, new DoRollup() {
-            @Override
-            public ListenableFuture<?> execute(Iterable<Row> rows) throws Exception {
-                return rollupOneFromRows(rollupLevel, agentRollupId, gaugeName, captureTime,
-                        adjustedTTL, rows);
-            }
-        });
+        ListenableFuture<List<GaugeValue>> future = Futures.transform(Futures.allAsList(futures),
+                new Function<List<List<GaugeValue>>, List<GaugeValue>>() {
+                    @Override
+                    public List<GaugeValue> apply(List<List<GaugeValue>> list) {
+                        List<GaugeValue> gaugeValues = new ArrayList<>();
+                        for (List<GaugeValue> childGaugeValues : list) {
+                            gaugeValues.addAll(childGaugeValues);
+                        }
+                        return gaugeValues;
+                    }
+                },
+                MoreExecutors.directExecutor());
+        return MoreFutures.rollupValuesAsync(future, asyncExecutor,
+                new DoRollupValues<GaugeValue>() {
+                    @Override
+                    public ListenableFuture<?> execute(List<GaugeValue> gaugeValues)
+                            throws Exception {
+                        return rollupOneFromValues(rollupLevel, agentRollupId, gaugeName,
+                                captureTime, adjustedTTL, gaugeValues);
+                    }
+                });
     }
 
     // from is non-inclusive
     private ListenableFuture<?> rollupOne(int rollupLevel, String agentRollupId,
-            String gaugeName, long from, long to, int adjustedTTL) throws Exception {
-        BoundStatement boundStatement = readValueForRollupPS.get(rollupLevel - 1).bind();
-        int i = 0;
-        boundStatement.setString(i++, agentRollupId);
-        boundStatement.setString(i++, gaugeName);
-        boundStatement.setTimestamp(i++, new Date(from));
-        boundStatement.setTimestamp(i++, new Date(to));
-        ListenableFuture<ResultSet> future = session.readAsyncWarnIfNoRows(boundStatement,
-                "no gauge value table records found for agentRollupId={}, gaugeName={}, from={},"
-                        + " to={}, level={}",
-                agentRollupId, gaugeName, from, to, rollupLevel);
-        return MoreFutures.rollupAsync(future, asyncExecutor, new DoRollup() {
-            @Override
-            public ListenableFuture<?> execute(Iterable<Row> rows) throws Exception {
-                return rollupOneFromRows(rollupLevel, agentRollupId, gaugeName, to, adjustedTTL,
-                        rows);
-            }
-        });
+            String gaugeName, long from, long to, int adjustedTTL, boolean warnIfNoValues)
+            throws Exception {
+        ListenableFuture<List<GaugeValue>> future =
+                readGaugeValuesAsync(rollupLevel - 1, agentRollupId, gaugeName, from + 1, to);
+        if (warnIfNoValues) {
+            future = warnIfNoValues(future, "no gauge value table records found for"
+                    + " agentRollupId={}, gaugeName={}, from={}, to={}, level={}",
+                    agentRollupId, gaugeName, from, to, rollupLevel);
+        }
+        return MoreFutures.rollupValuesAsync(future, asyncExecutor,
+                new DoRollupValues<GaugeValue>() {
+                    @Override
+                    public ListenableFuture<?> execute(List<GaugeValue> gaugeValues)
+                            throws Exception {
+                        return rollupOneFromValues(rollupLevel, agentRollupId, gaugeName, to,
+                                adjustedTTL, gaugeValues);
+                    }
+                });
     }
 
-    private ListenableFuture<?> rollupOneFromRows(int rollupLevel, String agentRollupId,
-            String gaugeName, long to, int adjustedTTL, Iterable<Row> rows) throws Exception {
+    private ListenableFuture<?> rollupOneFromValues(int rollupLevel, String agentRollupId,
+            String gaugeName, long to, int adjustedTTL, List<GaugeValue> gaugeValues)
+            throws Exception {
         double totalWeightedValue = 0;
         long totalWeight = 0;
-        for (Row row : rows) {
-            double value = row.getDouble(0);
-            long weight = row.getLong(1);
+        for (GaugeValue gaugeValue : gaugeValues) {
+            double value = gaugeValue.getValue();
+            long weight = gaugeValue.getWeight();
             totalWeightedValue += value * weight;
             totalWeight += weight;
         }
@@ -516,15 +546,142 @@ public class GaugeValueDaoImpl implements GaugeValueDao {
         boundStatement.setString(i++, agentRollupId);
         boundStatement.setString(i++, gaugeName);
         boundStatement.setTimestamp(i++, new Date(to));
-        // individual gauge value weights cannot be zero, and rows is non-empty
+        // individual gauge value weights cannot be zero, and gaugeValues is non-empty
         // (see callers of this method), so totalWeight is guaranteed non-zero
         checkState(totalWeight != 0);
         boundStatement.setDouble(i++, totalWeightedValue / totalWeight);
         boundStatement.setLong(i++, totalWeight);
-        boundStatement.setInt(i++, adjustedTTL);
+        boundStatement.setInt(i++, getValueTTL(rollupLevel, to, adjustedTTL));
         return session.writeAsync(boundStatement);
     }
 
+    // from is INCLUSIVE
+    //
+    // when gauge value blocks are enabled, values are read from both the sealed blocks and the
+    // individual rows (which hold the values for blocks that have not been sealed yet), so that
+    // results are the same regardless of storage format
+    private ListenableFuture<List<GaugeValue>> readGaugeValuesAsync(int rollupLevel,
+            String agentRollupId, String gaugeName, long from, long to) throws Exception {
+        BoundStatement boundStatement = readValuePS.get(rollupLevel).bind();
+        int i = 0;
+        boundStatement.setString(i++, agentRollupId);
+        boundStatement.setString(i++, gaugeName);
+        boundStatement.setTimestamp(i++, new Date(from));
+        boundStatement.setTimestamp(i++, new Date(to));
+        ListenableFuture<ResultSet> future = session.readAsync(boundStatement);
+        if (!isBlockLevel(rollupLevel)) {
+            return Futures.transform(future, new Function<ResultSet, List<GaugeValue>>() {
+                @Override
+                public List<GaugeValue> apply(ResultSet results) {
+                    List<GaugeValue> gaugeValues = new ArrayList<>();
+                    for (Row row : results) {
+                        gaugeValues.add(readGaugeValue(row));
+                    }
+                    return gaugeValues;
+                }
+            }, asyncExecutor);
+        }
+        boundStatement = readBlockPS.get(rollupLevel).bind();
+        i = 0;
+        boundStatement.setString(i++, agentRollupId);
+        boundStatement.setString(i++, gaugeName);
+        boundStatement.setTimestamp(i++, new Date(from));
+        // block_time is the end of the block, so the last block overlapping "to" ends before this
+        boundStatement.setTimestamp(i++, new Date(to + blockMillis.get(rollupLevel)));
+        ListenableFuture<ResultSet> blockFuture = session.readAsync(boundStatement);
+        return Futures.transform(Futures.allAsList(blockFuture, future),
+                new Function<List<ResultSet>, List<GaugeValue>>() {
+                    @Override
+                    public List<GaugeValue> apply(List<ResultSet> list) {
+                        // rows take precedence over blocks since a row may have been written after
+                        // its block was sealed (e.g. agent catching up after network outage)
+                        NavigableMap<Long, GaugeValue> gaugeValues = new TreeMap<>();
+                        for (Row row : list.get(0)) {
+                            for (GaugeValue gaugeValue : GaugeValueBlocks
+                                    .decode(checkNotNull(row.getBytes(0)))) {
+                                long captureTime = gaugeValue.getCaptureTime();
+                                if (captureTime >= from && captureTime <= to) {
+                                    gaugeValues.put(captureTime, gaugeValue);
+                                }
+                            }
+                        }
+                        for (Row row : list.get(1)) {
+                            GaugeValue gaugeValue = readGaugeValue(row);
+                            gaugeValues.put(gaugeValue.getCaptureTime(), gaugeValue);
+                        }
+                        return new ArrayList<>(gaugeValues.values());
+                    }
+                },
+                asyncExecutor);
+    }
+
+    // re-encodes the block from the prior sealed block (if any) plus the individual rows
+    //
+    // the individual rows are never deleted, they expire shortly after the block is sealed (see
+    // getValueTTL()), which avoids a tombstone per value
+    private ListenableFuture<?> sealBlock(int rollupLevel, String agentRollupId, String gaugeName,
+            long blockEnd, int ttl) throws Exception {
+        long blockStart = blockEnd - blockMillis.get(rollupLevel);
+        ListenableFuture<List<GaugeValue>> future = readGaugeValuesAsync(rollupLevel,
+                agentRollupId, gaugeName, blockStart + 1, blockEnd);
+        return MoreFutures.rollupValuesAsync(future, asyncExecutor,
+                new DoRollupValues<GaugeValue>() {
+                    @Override
+                    public ListenableFuture<?> execute(List<GaugeValue> gaugeValues)
+                            throws Exception {
+                        BoundStatement boundStatement = insertBlockPS.get(rollupLevel).bind();
+                        int i = 0;
+                        boundStatement.setString(i++, agentRollupId);
+                        boundStatement.setString(i++, gaugeName);
+                        boundStatement.setTimestamp(i++, new Date(blockEnd));
+                        boundStatement.setBytes(i++, GaugeValueBlocks.encode(gaugeValues));
+                        // the block expires along with its oldest value, so that no value is
+                        // retained longer than it would be as an individual row
+                        boundStatement.setInt(i++, Common.getAdjustedTTL(ttl,
+                                gaugeValues.get(0).getCaptureTime(), clock));
+                        return session.writeAsync(boundStatement);
+                    }
+                });
+    }
+
+    // makes sure the next rollup level visits the end of the block containing captureTime, even if
+    // there are no more values in the block after captureTime
+    private void insertNeedsRollupForBlockEnd(String agentRollupId, int rollupLevel,
+            long captureTime, Set<String> gaugeNames, int needsRollupAdjustedTTL) throws Exception {
+        if (!isBlockLevel(rollupLevel)) {
+            return;
+        }
+        long blockEnd = getBlockEnd(rollupLevel, captureTime);
+        long nextRollupIntervalMillis =
+                configRepository.getRollupConfigs().get(rollupLevel).intervalMillis();
+        if (blockEnd == CaptureTimes.getRollup(captureTime, nextRollupIntervalMillis)) {
+            // already covered by postRollup()
+            return;
+        }
+        needsRollupTracker.insertNeedsRollup(agentRollupId, rollupLevel + 1, blockEnd, gaugeNames,
+                nextRollupIntervalMillis, needsRollupAdjustedTTL);
+    }
+
+    private boolean isBlockLevel(int rollupLevel) {
+        return rollupLevel < blockMillis.size();
+    }
+
+    private long getBlockEnd(int rollupLevel, long captureTime) {
+        return CaptureTimes.getRollup(captureTime, blockMillis.get(rollupLevel));
+    }
+
+    // individual rows belonging to a block only need to be retained until the block is sealed
+    private int getValueTTL(int rollupLevel, long captureTime, int adjustedTTL) {
+        if (!isBlockLevel(rollupLevel)) {
+            return adjustedTTL;
+        }
+        long blockEnd = getBlockEnd(rollupLevel, captureTime);
+        long retainMillis =
+                Math.max(blockEnd - clock.currentTimeMillis(), 0) + BLOCK_SEAL_MARGIN_MILLIS;
+        int ttl = Ints.saturatedCast(MILLISECONDS.toSeconds(retainMillis));
+        return adjustedTTL == 0 ? ttl : Math.min(ttl, adjustedTTL);
+    }
+
     private List<Integer> getTTLs() throws Exception {
         List<Integer> rollupExpirationHours = Lists
                 .newArrayList(configRepository.getCentralStorageConfig().rollupExpirationHours());
@@ -542,18 +699,37 @@ public class GaugeValueDaoImpl implements GaugeValueDao {
         for (int i = 0; i <= configRepository.getRollupConfigs().size(); i++) {
             session.updateSchemaWithRetry("truncate gauge_value_rollup_" + i);
         }
+        for (int i = 0; i < blockMillis.size(); i++) {
+            session.updateSchemaWithRetry("truncate gauge_value_block_rollup_" + i);
+        }
         for (int i = 1; i <= configRepository.getRollupConfigs().size(); i++) {
             session.updateSchemaWithRetry("truncate gauge_needs_rollup_" + i);
         }
         session.updateSchemaWithRetry("truncate gauge_name");
         session.updateSchemaWithRetry("truncate gauge_needs_rollup_from_child");
+        needsRollupTracker.clear();
     }
 
-    @Value.Immutable
-    @Serial.Structural
-    @Styles.AllParameters
-    interface NeedsRollupKey extends Serializable {
-        String agentRollupId();
-        long captureTime();
+    private static GaugeValue readGaugeValue(Row row) {
+        int i = 0;
+        return GaugeValue.newBuilder()
+                .setCaptureTime(checkNotNull(row.getTimestamp(i++)).getTime())
+                .setValue(row.getDouble(i++))
+                .setWeight(row.getLong(i++))
+                .build();
+    }
+
+    private static ListenableFuture<List<GaugeValue>> warnIfNoValues(
+            ListenableFuture<List<GaugeValue>> future, String warningMessage,
+            Object... warningArguments) {
+        return Futures.transform(future, new Function<List<GaugeValue>, List<GaugeValue>>() {
+            @Override
+            public List<GaugeValue> apply(List<GaugeValue> gaugeValues) {
+                if (gaugeValues.isEmpty()) {
+                    logger.warn(warningMessage, warningArguments);
+                }
+                return gaugeValues;
+            }
+        }, MoreExecutors.directExecutor());
     }
 }
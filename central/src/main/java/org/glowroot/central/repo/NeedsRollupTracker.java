@@ -0,0 +1,316 @@
+/*
+ * Copyright 2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.repo;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.utils.UUIDs;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Multimap;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.immutables.serial.Serial;
+import org.immutables.value.Value;
+
+import org.glowroot.central.util.ClusterManager;
+import org.glowroot.central.util.MoreFutures;
+import org.glowroot.central.util.Session;
+import org.glowroot.common.util.CaptureTimes;
+import org.glowroot.common.util.Clock;
+import org.glowroot.common.util.OnlyUsedByTests;
+import org.glowroot.common.util.Styles;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.DAYS;
+
+// tracks pending "needs rollup" work in the needs rollup tables, which are the source of truth for
+// the pending work, so that it is never lost (e.g. when a central node dies uncleanly)
+//
+// work is coalesced per agent rollup, needs rollup level and capture time, so that repeated stores
+// for the same capture time only write a single needs rollup row (e.g. level 1 aggregates are
+// stored once a minute but rolled up every 5 minutes), which reduces both the inserts and the
+// tombstones from the subsequent deletes
+//
+// skipping the write is safe since the capture time cannot be rolled up (and so the prior row
+// cannot be deleted) until it is old enough to rollup (see getNeedsRollupList())
+//
+// the record of which keys have already been written is replicated across the central cluster, but
+// it is only an optimization: when it is stale or missing, the only effect is an extra row
+class NeedsRollupTracker {
+
+    private final Session session;
+    private final Clock clock;
+
+    // index is needs rollup level - 1
+    private final List<PreparedStatement> insertNeedsRollup;
+    private final List<PreparedStatement> readNeedsRollup;
+    private final List<PreparedStatement> deleteNeedsRollup;
+
+    private final PreparedStatement insertNeedsRollupFromChild;
+    private final PreparedStatement readNeedsRollupFromChild;
+    private final PreparedStatement deleteNeedsRollupFromChild;
+
+    // map values are the keys that have already been written to the needs rollup table
+    //
+    // entries are removed once rolled up, the expiration is only a safety net for entries whose
+    // rows expire before being rolled up
+    private final ConcurrentMap<WrittenKey, ImmutableSet<String>> written;
+
+    NeedsRollupTracker(String name, Session session, ClusterManager clusterManager,
+            List<PreparedStatement> insertNeedsRollup, List<PreparedStatement> readNeedsRollup,
+            List<PreparedStatement> deleteNeedsRollup, PreparedStatement insertNeedsRollupFromChild,
+            PreparedStatement readNeedsRollupFromChild,
+            PreparedStatement deleteNeedsRollupFromChild, Clock clock) {
+        this.session = session;
+        this.clock = clock;
+        this.insertNeedsRollup = insertNeedsRollup;
+        this.readNeedsRollup = readNeedsRollup;
+        this.deleteNeedsRollup = deleteNeedsRollup;
+        this.insertNeedsRollupFromChild = insertNeedsRollupFromChild;
+        this.readNeedsRollupFromChild = readNeedsRollupFromChild;
+        this.deleteNeedsRollupFromChild = deleteNeedsRollupFromChild;
+        written = clusterManager.createReplicatedMap(name, 1, DAYS);
+    }
+
+    // rollupIntervalMillis is the interval that needsRollupLevel is rolled up with (see
+    // getNeedsRollupList())
+    void insertNeedsRollup(String agentRollupId, int needsRollupLevel, long captureTime,
+            Set<String> keys, long rollupIntervalMillis, int needsRollupAdjustedTTL)
+            throws Exception {
+        WrittenKey writtenKey = ImmutableWrittenKey.of(agentRollupId, needsRollupLevel, captureTime);
+        ImmutableSet<String> writtenKeys = written.get(writtenKey);
+        // capture current time after getting data from the map to prevent race condition with
+        // reading the data in getNeedsRollupList()
+        if (writtenKeys != null && writtenKeys.containsAll(keys) && !Common
+                .isOldEnoughToRollup(captureTime, clock.currentTimeMillis(), rollupIntervalMillis)) {
+            // completely covered by prior writes that haven't been rolled up yet
+            return;
+        }
+        BoundStatement boundStatement = insertNeedsRollup.get(needsRollupLevel - 1).bind();
+        int i = 0;
+        boundStatement.setString(i++, agentRollupId);
+        boundStatement.setTimestamp(i++, new Date(captureTime));
+        boundStatement.setUUID(i++, UUIDs.timeBased());
+        boundStatement.setSet(i++, keys);
+        boundStatement.setInt(i++, needsRollupAdjustedTTL);
+        session.write(boundStatement);
+        // update the map now that the above write was successful
+        if (writtenKeys == null) {
+            written.put(writtenKey, ImmutableSet.copyOf(keys));
+        } else {
+            written.put(writtenKey, ImmutableSet.<String>builder()
+                    .addAll(writtenKeys)
+                    .addAll(keys)
+                    .build());
+        }
+    }
+
+    // "needs rollup from child" work is not coalesced, since it is rolled up without waiting for
+    // the capture time to be old enough (see getNeedsRollupFromChildrenList())
+    void insertNeedsRollupFromChild(String agentRollupId, String childAgentRollupId,
+            long captureTime, Set<String> keys, int needsRollupAdjustedTTL) throws Exception {
+        BoundStatement boundStatement = insertNeedsRollupFromChild.bind();
+        int i = 0;
+        boundStatement.setString(i++, agentRollupId);
+        boundStatement.setTimestamp(i++, new Date(captureTime));
+        boundStatement.setUUID(i++, UUIDs.timeBased());
+        boundStatement.setString(i++, childAgentRollupId);
+        boundStatement.setSet(i++, keys);
+        boundStatement.setInt(i++, needsRollupAdjustedTTL);
+        session.write(boundStatement);
+    }
+
+    List<NeedsRollup> getNeedsRollupList(String agentRollupId, int needsRollupLevel,
+            long rollupIntervalMillis) throws Exception {
+        // capture current time before reading data to prevent race condition with work being
+        // coalesced in insertNeedsRollup()
+        long currentTimeMillis = clock.currentTimeMillis();
+        BoundStatement boundStatement = readNeedsRollup.get(needsRollupLevel - 1).bind();
+        boundStatement.setString(0, agentRollupId);
+        ResultSet results = session.read(boundStatement);
+        Map<Long, NeedsRollup> needsRollupMap = new LinkedHashMap<>();
+        for (Row row : results) {
+            int i = 0;
+            long captureTime = checkNotNull(row.getTimestamp(i++)).getTime();
+            if (!Common.isOldEnoughToRollup(captureTime, currentTimeMillis,
+                    rollupIntervalMillis)) {
+                // normally, the last "needs rollup" capture time is in the near future, so don't
+                // roll it up since it is likely still being added to
+                //
+                // this is mostly to avoid rolling up this data twice, but also currently the UI
+                // assumes when it finds rolled up data, it doesn't check for non-rolled up data for
+                // same interval
+                //
+                // and now another reason: insertNeedsRollup() relies on it being safe to not
+                // re-insert the same data up until rollupIntervalMillis after the capture time
+                //
+                // safe to "break" instead of just "continue" since results are ordered by
+                // capture_time
+                break;
+            }
+            UUID uniqueness = checkNotNull(row.getUUID(i++));
+            Set<String> keys = checkNotNull(row.getSet(i++, String.class));
+            NeedsRollup needsRollup = needsRollupMap.get(captureTime);
+            if (needsRollup == null) {
+                needsRollup = new NeedsRollup(needsRollupLevel, captureTime);
+                needsRollupMap.put(captureTime, needsRollup);
+            }
+            needsRollup.keys.addAll(keys);
+            needsRollup.uniquenessKeysForDeletion.add(uniqueness);
+        }
+        return ImmutableList.copyOf(needsRollupMap.values());
+    }
+
+    List<NeedsRollupFromChildren> getNeedsRollupFromChildrenList(String agentRollupId)
+            throws Exception {
+        BoundStatement boundStatement = readNeedsRollupFromChild.bind();
+        boundStatement.setString(0, agentRollupId);
+        ResultSet results = session.read(boundStatement);
+        Map<Long, NeedsRollupFromChildren> needsRollupFromChildrenMap = new LinkedHashMap<>();
+        for (Row row : results) {
+            int i = 0;
+            long captureTime = checkNotNull(row.getTimestamp(i++)).getTime();
+            UUID uniqueness = checkNotNull(row.getUUID(i++));
+            String childAgentRollupId = checkNotNull(row.getString(i++));
+            Set<String> keys = checkNotNull(row.getSet(i++, String.class));
+            NeedsRollupFromChildren needsRollup = needsRollupFromChildrenMap.get(captureTime);
+            if (needsRollup == null) {
+                needsRollup = new NeedsRollupFromChildren(captureTime);
+                needsRollupFromChildrenMap.put(captureTime, needsRollup);
+            }
+            for (String key : keys) {
+                needsRollup.keys.put(key, childAgentRollupId);
+            }
+            needsRollup.uniquenessKeysForDeletion.add(uniqueness);
+        }
+        return ImmutableList.copyOf(needsRollupFromChildrenMap.values());
+    }
+
+    // it is important that the insert into next needs rollup level happens after present rollup and
+    // before deleting present rollup, see comment on Common.postRollup()
+    void postRollup(String agentRollupId, NeedsRollup needsRollup,
+            @Nullable Long nextRollupIntervalMillis, int needsRollupAdjustedTTL)
+            throws Exception {
+        if (nextRollupIntervalMillis != null) {
+            long rollupCaptureTime =
+                    CaptureTimes.getRollup(needsRollup.captureTime, nextRollupIntervalMillis);
+            insertNeedsRollup(agentRollupId, needsRollup.needsRollupLevel + 1, rollupCaptureTime,
+                    needsRollup.keys, nextRollupIntervalMillis, needsRollupAdjustedTTL);
+        }
+        delete(deleteNeedsRollup.get(needsRollup.needsRollupLevel - 1), agentRollupId,
+                needsRollup.captureTime, needsRollup.uniquenessKeysForDeletion);
+        // the capture time is now old enough to rollup, so the entry is no longer used anyways
+        written.remove(ImmutableWrittenKey.of(agentRollupId, needsRollup.needsRollupLevel,
+                needsRollup.captureTime));
+    }
+
+    void postRollupFromChildren(String agentRollupId,
+            NeedsRollupFromChildren needsRollupFromChildren, int nextNeedsRollupLevel,
+            long nextRollupIntervalMillis, int needsRollupAdjustedTTL) throws Exception {
+        long rollupCaptureTime = CaptureTimes.getRollup(needsRollupFromChildren.captureTime,
+                nextRollupIntervalMillis);
+        insertNeedsRollup(agentRollupId, nextNeedsRollupLevel, rollupCaptureTime,
+                needsRollupFromChildren.keys.keySet(), nextRollupIntervalMillis,
+                needsRollupAdjustedTTL);
+        delete(deleteNeedsRollupFromChild, agentRollupId, needsRollupFromChildren.captureTime,
+                needsRollupFromChildren.uniquenessKeysForDeletion);
+    }
+
+    @OnlyUsedByTests
+    void clear() {
+        written.clear();
+    }
+
+    private void delete(PreparedStatement deleteStatement, String agentRollupId, long captureTime,
+            Set<UUID> uniquenessKeysForDeletion) throws Exception {
+        List<Future<?>> futures = new ArrayList<>();
+        for (UUID uniqueness : uniquenessKeysForDeletion) {
+            BoundStatement boundStatement = deleteStatement.bind();
+            int i = 0;
+            boundStatement.setString(i++, agentRollupId);
+            boundStatement.setTimestamp(i++, new Date(captureTime));
+            boundStatement.setUUID(i++, uniqueness);
+            futures.add(session.writeAsync(boundStatement));
+        }
+        MoreFutures.waitForAll(futures);
+    }
+
+    static class NeedsRollup {
+
+        private final int needsRollupLevel;
+        private final long captureTime;
+        private final Set<String> keys = new HashSet<>(); // transaction types or gauge names
+        private final Set<UUID> uniquenessKeysForDeletion = new HashSet<>();
+
+        private NeedsRollup(int needsRollupLevel, long captureTime) {
+            this.needsRollupLevel = needsRollupLevel;
+            this.captureTime = captureTime;
+        }
+
+        long getCaptureTime() {
+            return captureTime;
+        }
+
+        Set<String> getKeys() {
+            return keys;
+        }
+    }
+
+    static class NeedsRollupFromChildren {
+
+        private final long captureTime;
+        // map keys are transaction types or gauge names
+        // map values are childAgentRollupIds
+        private final Multimap<String, String> keys = HashMultimap.create();
+        private final Set<UUID> uniquenessKeysForDeletion = new HashSet<>();
+
+        private NeedsRollupFromChildren(long captureTime) {
+            this.captureTime = captureTime;
+        }
+
+        long getCaptureTime() {
+            return captureTime;
+        }
+
+        Multimap<String, String> getKeys() {
+            return keys;
+        }
+    }
+
+    @Value.Immutable
+    @Serial.Structural
+    @Styles.AllParameters
+    interface WrittenKey extends Serializable {
+        String agentRollupId();
+        int needsRollupLevel();
+        long captureTime();
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2016-2019 the original author or authors.
+ * Copyright 2016-2020 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -32,6 +32,10 @@ import java.util.Properties;
 import java.util.Queue;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import com.datastax.driver.core.BoundStatement;
 import com.datastax.driver.core.PreparedStatement;
@@ -48,20 +52,26 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Stopwatch;
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.Multimaps;
 import com.google.common.collect.Ordering;
 import com.google.common.collect.Sets;
 import com.google.common.primitives.Ints;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.protobuf.InvalidProtocolBufferException;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.immutables.value.Value;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.glowroot.central.util.MoreExecutors2;
 import org.glowroot.central.util.MoreFutures;
 import org.glowroot.central.util.Session;
 import org.glowroot.common.ConfigDefaults;
@@ -107,7 +117,14 @@ public class SchemaUpgrade {
 
     private static final ObjectMapper mapper = ObjectMappers.create();
 
-    private static final int CURR_SCHEMA_VERSION = 90;
+    private static final int CURR_SCHEMA_VERSION = 91;
+
+    // large tables are rewritten by scanning token ranges in parallel, and completed token ranges
+    // are recorded in the schema_version table so that an interrupted upgrade can resume
+    private static final int TOKEN_RANGE_COUNT = 256;
+    private static final int TOKEN_RANGE_PARALLELISM = 8;
+    private static final int TOKEN_RANGE_FETCH_SIZE = 1000;
+    private static final int MAX_PENDING_WRITES_PER_TOKEN_RANGE = 100;
 
     private final Session session;
     private final Clock clock;
@@ -535,6 +552,11 @@ public class SchemaUpgrade {
             splitActiveAgentRollupTables(3);
             updateSchemaVersion(90);
         }
+        // 0.13.5 to 0.13.6
+        if (initialSchemaVersion < 91) {
+            createTraceEntryChunkTable();
+            updateSchemaVersion(91);
+        }
 
         // when adding new schema upgrade, make sure to update CURR_SCHEMA_VERSION above
         startupLogger.info("upgraded glowroot central schema from version {} to version {}",
@@ -2083,8 +2105,11 @@ public class SchemaUpgrade {
         logger.info("populating trace_tt_slow_count_partial and trace_tt_slow_point_partial tables"
                 + " - this could take several minutes on large data sets...");
         CentralStorageConfig storageConfig = getCentralStorageConfig(session);
-        dropTableIfExists("trace_tt_slow_count_partial");
-        dropTableIfExists("trace_tt_slow_point_partial");
+        String stepName = "populateTraceTtSlowCountAndPointPartial";
+        if (!hasUpgradeProgress(stepName)) {
+            dropTableIfExists("trace_tt_slow_count_partial");
+            dropTableIfExists("trace_tt_slow_point_partial");
+        }
         session.createTableWithTWCS("create table if not exists trace_tt_slow_count_partial"
                 + " (agent_rollup varchar, transaction_type varchar, capture_time timestamp,"
                 + " agent_id varchar, trace_id varchar, primary key ((agent_rollup,"
@@ -2104,17 +2129,13 @@ public class SchemaUpgrade {
                 + " agent_id, trace_id, duration_nanos, error, headline, user, attributes) values"
                 + " (?, ?, ?, ?, ?, ?, ?, ?, ?, ?) using ttl ?");
         int ttl = getCentralStorageConfig(session).getTraceTTL();
-        ResultSet results = session.read("select agent_rollup, transaction_type, capture_time,"
+        rewriteByTokenRange(stepName, "select agent_rollup, transaction_type, capture_time,"
                 + " agent_id, trace_id, duration_nanos, error, headline, user, attributes, partial"
-                + " from trace_tt_slow_point");
-        Queue<ListenableFuture<?>> futures = new ArrayDeque<>();
-        Stopwatch stopwatch = Stopwatch.createStarted();
-        int rowCount = 0;
-        for (Row row : results) {
+                + " from trace_tt_slow_point", "agent_rollup, transaction_type", (row, futures) -> {
             if (!row.getBool(10)) { // partial
                 // unfortunately cannot use "where partial = true allow filtering" in the query
                 // above as that leads to ReadTimeoutException
-                continue;
+                return;
             }
             BoundStatement boundStatement = insertCountPartialPS.bind();
             int i = 0;
@@ -2142,15 +2163,7 @@ public class SchemaUpgrade {
             copyBytes(row, boundStatement, i++); // attributes
             boundStatement.setInt(i++, adjustedTTL);
             futures.add(session.writeAsync(boundStatement));
-
-            rowCount++;
-            if (stopwatch.elapsed(SECONDS) > 60) {
-                logger.info("processed {} records", rowCount);
-                stopwatch.reset().start();
-            }
-            waitForSome(futures);
-        }
-        MoreFutures.waitForAll(futures);
+        });
         logger.info("populating trace_tt_slow_count_partial and trace_tt_slow_point_partial tables"
                 + " - complete");
     }
@@ -2166,10 +2179,10 @@ public class SchemaUpgrade {
         PreparedStatement deletePointPS = session.prepare("delete from trace_tt_slow_point where"
                 + " agent_rollup = ? and transaction_type = ? and capture_time = ? and agent_id = ?"
                 + " and trace_id = ?");
-        ResultSet results = session.read("select agent_rollup, transaction_type, capture_time,"
-                + " agent_id, trace_id from trace_tt_slow_count_partial");
-        Queue<ListenableFuture<?>> futures = new ArrayDeque<>();
-        for (Row row : results) {
+        rewriteByTokenRange("removeTraceTtSlowCountAndPointPartial", "select agent_rollup,"
+                + " transaction_type, capture_time, agent_id, trace_id from"
+                + " trace_tt_slow_count_partial", "agent_rollup, transaction_type",
+                (row, futures) -> {
             BoundStatement boundStatement = deleteCountPS.bind();
             int i = 0;
             copyString(row, boundStatement, i++); // agent_rollup
@@ -2187,9 +2200,7 @@ public class SchemaUpgrade {
             copyString(row, boundStatement, i++); // agent_id
             copyString(row, boundStatement, i++); // trace_id
             futures.add(session.writeAsync(boundStatement));
-            waitForSome(futures);
-        }
-        MoreFutures.waitForAll(futures);
+        });
         dropColumnIfExists("trace_tt_slow_point", "partial");
     }
 
@@ -2197,8 +2208,11 @@ public class SchemaUpgrade {
         logger.info("populating trace_tn_slow_count_partial and trace_tn_slow_point_partial tables"
                 + " - this could take several minutes on large data sets...");
         CentralStorageConfig storageConfig = getCentralStorageConfig(session);
-        dropTableIfExists("trace_tn_slow_count_partial");
-        dropTableIfExists("trace_tn_slow_point_partial");
+        String stepName = "populateTraceTnSlowCountAndPointPartial";
+        if (!hasUpgradeProgress(stepName)) {
+            dropTableIfExists("trace_tn_slow_count_partial");
+            dropTableIfExists("trace_tn_slow_point_partial");
+        }
         session.createTableWithTWCS("create table if not exists trace_tn_slow_count_partial"
                 + " (agent_rollup varchar, transaction_type varchar, transaction_name varchar,"
                 + " capture_time timestamp, agent_id varchar, trace_id varchar, primary key"
@@ -2218,17 +2232,14 @@ public class SchemaUpgrade {
                 + " capture_time, agent_id, trace_id, duration_nanos, error, headline, user,"
                 + " attributes) values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?) using ttl ?");
         int ttl = getCentralStorageConfig(session).getTraceTTL();
-        ResultSet results = session.read("select agent_rollup, transaction_type,"
-                + " transaction_name, capture_time, agent_id, trace_id, duration_nanos, error,"
-                + " headline, user, attributes, partial from trace_tn_slow_point");
-        Queue<ListenableFuture<?>> futures = new ArrayDeque<>();
-        Stopwatch stopwatch = Stopwatch.createStarted();
-        int rowCount = 0;
-        for (Row row : results) {
+        rewriteByTokenRange(stepName, "select agent_rollup, transaction_type, transaction_name,"
+                + " capture_time, agent_id, trace_id, duration_nanos, error, headline, user,"
+                + " attributes, partial from trace_tn_slow_point",
+                "agent_rollup, transaction_type, transaction_name", (row, futures) -> {
             if (!row.getBool(11)) { // partial
                 // unfortunately cannot use "where partial = true allow filtering" in the query
                 // above as that leads to ReadTimeoutException
-                continue;
+                return;
             }
             BoundStatement boundStatement = insertCountPartialPS.bind();
             int i = 0;
@@ -2258,15 +2269,7 @@ public class SchemaUpgrade {
             copyBytes(row, boundStatement, i++); // attributes
             boundStatement.setInt(i++, adjustedTTL);
             futures.add(session.writeAsync(boundStatement));
-
-            rowCount++;
-            if (stopwatch.elapsed(SECONDS) > 60) {
-                logger.info("processed {} records", rowCount);
-                stopwatch.reset().start();
-            }
-            waitForSome(futures);
-        }
-        MoreFutures.waitForAll(futures);
+        });
         logger.info("populating trace_tn_slow_count_partial and trace_tn_slow_point_partial tables"
                 + " - complete");
     }
@@ -2282,11 +2285,10 @@ public class SchemaUpgrade {
         PreparedStatement deletePointPS = session.prepare("delete from trace_tn_slow_point where"
                 + " agent_rollup = ? and transaction_type = ? and transaction_name = ? and"
                 + " capture_time = ? and agent_id = ? and trace_id = ?");
-        ResultSet results = session.read("select agent_rollup, transaction_type,"
-                + " transaction_name, capture_time, agent_id, trace_id from"
-                + " trace_tn_slow_count_partial");
-        Queue<ListenableFuture<?>> futures = new ArrayDeque<>();
-        for (Row row : results) {
+        rewriteByTokenRange("removeTraceTnSlowCountAndPointPartial", "select agent_rollup,"
+                + " transaction_type, transaction_name, capture_time, agent_id, trace_id from"
+                + " trace_tn_slow_count_partial",
+                "agent_rollup, transaction_type, transaction_name", (row, futures) -> {
             BoundStatement boundStatement = deleteCountPS.bind();
             int i = 0;
             copyString(row, boundStatement, i++); // agent_rollup
@@ -2306,9 +2308,7 @@ public class SchemaUpgrade {
             copyString(row, boundStatement, i++); // agent_id
             copyString(row, boundStatement, i++); // trace_id
             futures.add(session.writeAsync(boundStatement));
-            waitForSome(futures);
-        }
-        MoreFutures.waitForAll(futures);
+        });
         dropColumnIfExists("trace_tn_slow_point", "partial");
     }
 
@@ -2781,6 +2781,13 @@ public class SchemaUpgrade {
         addColumnIfNotExists("trace_tn_slow_point_partial", "real_capture_time", "timestamp");
     }
 
+    private void createTraceEntryChunkTable() throws Exception {
+        // existing trace_entry_v2 rows are not migrated, they are still read (as fallback) until
+        // they expire
+        TraceDaoImpl.createEntryChunkTable(session,
+                getCentralStorageConfig(session).traceExpirationHours());
+    }
+
     private void splitActiveAgentRollupTables(int rollupLevel) throws Exception {
         logger.info("populating active_top_level_rollup_{} and active_child_rollup_{} tables - this"
                 + " could take several minutes on large data sets...", rollupLevel);
@@ -2892,10 +2899,171 @@ public class SchemaUpgrade {
         session.updateSchemaWithRetry("drop table if exists " + tableName);
     }
 
+    private void rewriteByTokenRange(String stepName, String selectQuery, String partitionKey,
+            RowRewriter rewriter) throws Exception {
+        Set<String> completedTokenRanges = readUpgradeProgress(stepName);
+        List<TokenRange> tokenRanges;
+        PreparedStatement readPS;
+        if (session.getCluster().getMetadata().getPartitioner()
+                .equals("org.apache.cassandra.dht.Murmur3Partitioner")) {
+            tokenRanges = splitTokenRing(TOKEN_RANGE_COUNT);
+            readPS = session.prepare(selectQuery + " where token(" + partitionKey + ") > ? and"
+                    + " token(" + partitionKey + ") <= ?");
+        } else {
+            // token ranges are only split for the default partitioner, in which case the whole
+            // table is treated as a single token range
+            tokenRanges = ImmutableList.of(ImmutableTokenRange.of(Long.MIN_VALUE, Long.MAX_VALUE));
+            readPS = session.prepare(selectQuery);
+        }
+        boolean bindTokenRange = !readPS.getVariables().asList().isEmpty();
+        PreparedStatement updateProgressPS = session.prepare("update schema_version set"
+                + " upgrade_progress = upgrade_progress + ? where one = 1");
+        ExecutorService executor =
+                MoreExecutors2.newCachedThreadPool("Schema-Upgrade-Worker-%d");
+        Semaphore tokenRangePermits = new Semaphore(TOKEN_RANGE_PARALLELISM);
+        AtomicReference</*@Nullable*/ Throwable> failure = new AtomicReference<>();
+        AtomicLong rowCount = new AtomicLong();
+        AtomicLong completedCount = new AtomicLong(completedTokenRanges.size());
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        Stopwatch logStopwatch = Stopwatch.createStarted();
+        if (!completedTokenRanges.isEmpty()) {
+            logger.info("{}: resuming with {} of {} token ranges already complete", stepName,
+                    completedTokenRanges.size(), tokenRanges.size());
+        }
+        List<ListenableFuture<?>> futures = new ArrayList<>();
+        try {
+            for (TokenRange tokenRange : tokenRanges) {
+                String progress = stepName + ":" + tokenRange.start();
+                if (completedTokenRanges.contains(progress)) {
+                    continue;
+                }
+                while (!tokenRangePermits.tryAcquire(10, SECONDS)) {
+                    logThroughputIfDue(stepName, rowCount, completedCount, tokenRanges.size(),
+                            stopwatch, logStopwatch);
+                }
+                if (failure.get() != null) {
+                    tokenRangePermits.release();
+                    break;
+                }
+                BoundStatement boundStatement = readPS.bind();
+                if (bindTokenRange) {
+                    boundStatement.setLong(0, tokenRange.start());
+                    boundStatement.setLong(1, tokenRange.end());
+                }
+                Queue<ListenableFuture<?>> writeFutures = new ArrayDeque<>();
+                ListenableFuture<?> readFuture = session.readAsync(boundStatement,
+                        TOKEN_RANGE_FETCH_SIZE, executor, row -> {
+                            rewriter.rewrite(row, writeFutures);
+                            rowCount.incrementAndGet();
+                            waitForSome(writeFutures, MAX_PENDING_WRITES_PER_TOKEN_RANGE);
+                        });
+                ListenableFuture<?> future = Futures.transformAsync(readFuture, ignored -> {
+                    MoreFutures.waitForAll(writeFutures);
+                    // only record progress after all writes for the token range have completed
+                    BoundStatement updateProgressBoundStatement = updateProgressPS.bind();
+                    updateProgressBoundStatement.setSet(0, ImmutableSet.of(progress));
+                    return session.writeAsync(updateProgressBoundStatement);
+                }, executor);
+                Futures.addCallback(future, new FutureCallback<Object>() {
+                    @Override
+                    public void onSuccess(@Nullable Object result) {
+                        completedCount.incrementAndGet();
+                        tokenRangePermits.release();
+                    }
+                    @Override
+                    public void onFailure(Throwable t) {
+                        failure.compareAndSet(null, t);
+                        tokenRangePermits.release();
+                    }
+                }, MoreExecutors.directExecutor());
+                futures.add(future);
+            }
+            while (!tokenRangePermits.tryAcquire(TOKEN_RANGE_PARALLELISM, 10, SECONDS)) {
+                logThroughputIfDue(stepName, rowCount, completedCount, tokenRanges.size(),
+                        stopwatch, logStopwatch);
+            }
+            MoreFutures.waitForAll(futures);
+        } finally {
+            executor.shutdown();
+        }
+        logger.info("{}: processed {} rows in {} seconds", stepName, rowCount.get(),
+                stopwatch.elapsed(SECONDS));
+        clearUpgradeProgress(stepName);
+    }
+
+    private boolean hasUpgradeProgress(String stepName) throws Exception {
+        return !readUpgradeProgress(stepName).isEmpty();
+    }
+
+    private Set<String> readUpgradeProgress(String stepName) throws Exception {
+        addColumnIfNotExists("schema_version", "upgrade_progress", "set<varchar>");
+        ResultSet results =
+                session.read("select upgrade_progress from schema_version where one = 1");
+        Row row = results.one();
+        if (row == null) {
+            return ImmutableSet.of();
+        }
+        Set<String> progress = new HashSet<>();
+        for (String value : row.getSet(0, String.class)) {
+            if (value.startsWith(stepName + ":")) {
+                progress.add(value);
+            }
+        }
+        return progress;
+    }
+
+    private void clearUpgradeProgress(String stepName) throws Exception {
+        Set<String> progress = readUpgradeProgress(stepName);
+        if (progress.isEmpty()) {
+            return;
+        }
+        PreparedStatement clearProgressPS = session.prepare("update schema_version set"
+                + " upgrade_progress = upgrade_progress - ? where one = 1");
+        BoundStatement boundStatement = clearProgressPS.bind();
+        boundStatement.setSet(0, progress);
+        session.write(boundStatement);
+    }
+
+    private static void logThroughputIfDue(String stepName, AtomicLong rowCount,
+            AtomicLong completedCount, int tokenRangeCount, Stopwatch stopwatch,
+            Stopwatch logStopwatch) {
+        if (logStopwatch.elapsed(SECONDS) < 60) {
+            return;
+        }
+        long rows = rowCount.get();
+        logger.info("{}: processed {} rows ({} rows/second), {} of {} token ranges complete",
+                stepName, rows, rows / Math.max(1, stopwatch.elapsed(SECONDS)),
+                completedCount.get(), tokenRangeCount);
+        logStopwatch.reset().start();
+    }
+
+    // splits the Murmur3Partitioner token ring into evenly sized ranges, each of which is
+    // non-inclusive of the start token and inclusive of the end token
+    @VisibleForTesting
+    static List<TokenRange> splitTokenRing(int count) {
+        List<TokenRange> tokenRanges = new ArrayList<>(count);
+        // using doubles to avoid overflow, which means the boundaries are not exactly even, but
+        // that doesn't matter as long as they are contiguous
+        double width = ((double) Long.MAX_VALUE - Long.MIN_VALUE) / count;
+        long start = Long.MIN_VALUE;
+        for (int i = 1; i < count; i++) {
+            long end = (long) (Long.MIN_VALUE + width * i);
+            tokenRanges.add(ImmutableTokenRange.of(start, end));
+            start = end;
+        }
+        tokenRanges.add(ImmutableTokenRange.of(start, Long.MAX_VALUE));
+        return tokenRanges;
+    }
+
     // this is needed to prevent OOM due to ever expanding list of futures (and the result sets that
     // they retain)
     private static void waitForSome(Queue<ListenableFuture<?>> futures) throws Exception {
-        while (futures.size() > 1000) {
+        waitForSome(futures, 1000);
+    }
+
+    private static void waitForSome(Queue<ListenableFuture<?>> futures, int maxSize)
+            throws Exception {
+        while (futures.size() > maxSize) {
             futures.remove().get();
         }
     }
@@ -3152,6 +3320,10 @@ public class SchemaUpgrade {
         }
     }
 
+    private interface RowRewriter {
+        void rewrite(Row row, Queue<ListenableFuture<?>> futures) throws Exception;
+    }
+
     private static void copyString(Row row, BoundStatement boundStatement, int i) {
         boundStatement.setString(i, row.getString(i));
     }
@@ -3203,6 +3375,13 @@ public class SchemaUpgrade {
         String syntheticMonitorId();
     }
 
+    @Value.Immutable
+    @Styles.AllParameters
+    interface TokenRange {
+        long start();
+        long end();
+    }
+
     @Value.Immutable
     interface V09AgentRollup {
         boolean agent();
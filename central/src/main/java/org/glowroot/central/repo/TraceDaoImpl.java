@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2019 the original author or authors.
+ * Copyright 2015-2020 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -23,11 +23,14 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Locale;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Set;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Future;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
@@ -36,13 +39,16 @@ import com.datastax.driver.core.BoundStatement;
 import com.datastax.driver.core.PreparedStatement;
 import com.datastax.driver.core.ResultSet;
 import com.datastax.driver.core.Row;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Strings;
 import com.google.common.collect.Ordering;
 import com.google.common.hash.HashFunction;
 import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ListenableFuture;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.immutables.value.Value;
 
+import org.glowroot.central.repo.CaptureTimeRanges.CaptureTimeRange;
 import org.glowroot.central.util.CassandraWriteMetrics;
 import org.glowroot.central.util.Messages;
 import org.glowroot.central.util.MoreFutures;
@@ -58,15 +64,18 @@ import org.glowroot.common.live.LiveTraceRepository.Existence;
 import org.glowroot.common.live.LiveTraceRepository.Queries;
 import org.glowroot.common.live.LiveTraceRepository.TracePoint;
 import org.glowroot.common.live.LiveTraceRepository.TracePointFilter;
+import org.glowroot.common.live.StringComparator;
 import org.glowroot.common.model.Result;
 import org.glowroot.common.util.CaptureTimes;
 import org.glowroot.common.util.Clock;
 import org.glowroot.common.util.NotAvailableAware;
 import org.glowroot.common.util.OnlyUsedByTests;
+import org.glowroot.common.util.Styles;
 import org.glowroot.common2.repo.ImmutableErrorMessageCount;
 import org.glowroot.common2.repo.ImmutableErrorMessagePoint;
 import org.glowroot.common2.repo.ImmutableErrorMessageResult;
 import org.glowroot.common2.repo.ImmutableHeaderPlus;
+import org.glowroot.common2.repo.ImmutableTraceQuery;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
 import org.glowroot.wire.api.model.Proto;
@@ -76,6 +85,7 @@ import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.HOURS;
 import static java.util.concurrent.TimeUnit.MINUTES;
 
 public class TraceDaoImpl implements TraceDao {
@@ -83,15 +93,30 @@ public class TraceDaoImpl implements TraceDao {
     @SuppressWarnings("deprecation")
     private static final HashFunction SHA_1 = Hashing.sha1();
 
+    // number of trace entries stored per row in trace_entry_chunk
+    private static final int ENTRY_CHUNK_SIZE = 256;
+
+    // trace point queries can scan hundreds of thousands of rows for wide time ranges
+    private static final int POINT_FETCH_SIZE = 1000;
+
+    private static final long SEARCH_INDEX_BUCKET_MILLIS = HOURS.toMillis(1);
+
+    // longer values are not indexed, since cassandra limits the size of partition keys
+    private static final int SEARCH_INDEX_MAX_TOKEN_LENGTH = 1024;
+
     private final Session session;
     private final TransactionTypeDao transactionTypeDao;
     private final FullQueryTextDao fullQueryTextDao;
     private final TraceAttributeNameDao traceAttributeNameDao;
     private final ConfigRepositoryImpl configRepository;
+    private final Executor asyncExecutor;
     private final Clock clock;
 
     private final boolean cassandra2x;
 
+    // traces captured after this time are in trace_search_index (null when the index is disabled)
+    private final @Nullable Long searchIndexSince;
+
     private final PreparedStatement insertOverallSlowCount;
     private final PreparedStatement insertOverallSlowCountPartial;
     private final PreparedStatement insertTransactionSlowCount;
@@ -112,7 +137,7 @@ public class TraceDaoImpl implements TraceDao {
     private final PreparedStatement insertTransactionErrorMessage;
 
     private final PreparedStatement insertHeaderV2;
-    private final PreparedStatement insertEntryV2;
+    private final PreparedStatement insertEntryChunk;
     private final PreparedStatement insertQueryV2;
     private final PreparedStatement insertSharedQueryTextV2;
     private final PreparedStatement insertMainThreadProfileV2;
@@ -145,6 +170,7 @@ public class TraceDaoImpl implements TraceDao {
 
     private final PreparedStatement readHeaderV2;
     private final PreparedStatement readEntriesV2;
+    private final PreparedStatement readEntryChunks;
     private final PreparedStatement readQueriesV2;
     private final PreparedStatement readSharedQueryTextsV2;
     private final PreparedStatement readMainThreadProfileV2;
@@ -156,14 +182,20 @@ public class TraceDaoImpl implements TraceDao {
     private final PreparedStatement deleteOverallSlowPointPartial;
     private final PreparedStatement deleteTransactionSlowPointPartial;
 
+    private final @Nullable PreparedStatement insertSearchIndex;
+    private final @Nullable PreparedStatement readSlowSearchIndex;
+    private final @Nullable PreparedStatement readErrorSearchIndex;
+
     TraceDaoImpl(Session session, TransactionTypeDao transactionTypeDao,
             FullQueryTextDao fullQueryTextDao, TraceAttributeNameDao traceAttributeNameDao,
-            ConfigRepositoryImpl configRepository, Clock clock) throws Exception {
+            ConfigRepositoryImpl configRepository, Executor asyncExecutor, boolean searchIndex,
+            Clock clock) throws Exception {
         this.session = session;
         this.transactionTypeDao = transactionTypeDao;
         this.fullQueryTextDao = fullQueryTextDao;
         this.traceAttributeNameDao = traceAttributeNameDao;
         this.configRepository = configRepository;
+        this.asyncExecutor = asyncExecutor;
         this.clock = clock;
 
         ResultSet results =
@@ -335,6 +367,10 @@ public class TraceDaoImpl implements TraceDao {
                 + " (agent_id varchar, trace_id varchar, profile blob, primary key ((agent_id,"
                 + " trace_id)))", expirationHours);
 
+        // ===== trace entry chunks =====
+
+        createEntryChunkTable(session, expirationHours);
+
         insertOverallSlowCount = session.prepare("insert into trace_tt_slow_count (agent_rollup,"
                 + " transaction_type, capture_time, agent_id, trace_id) values (?, ?, ?, ?, ?)"
                 + " using ttl ?");
@@ -401,11 +437,8 @@ public class TraceDaoImpl implements TraceDao {
         insertHeaderV2 = session.prepare("insert into trace_header_v2 (agent_id, trace_id, header)"
                 + " values (?, ?, ?) using ttl ?");
 
-        insertEntryV2 = session.prepare("insert into trace_entry_v2 (agent_id, trace_id, index_,"
-                + " depth, start_offset_nanos, duration_nanos, active, message,"
-                + " shared_query_text_index, query_message_prefix, query_message_suffix, detail,"
-                + " location_stack_trace, error) values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)"
-                + " using ttl ?");
+        insertEntryChunk = session.prepare("insert into trace_entry_chunk (agent_id, trace_id,"
+                + " chunk_index, entries) values (?, ?, ?, ?) using ttl ?");
 
         insertQueryV2 = session.prepare("insert into trace_query_v2 (agent_id, trace_id, type,"
                 + " shared_query_text_index, total_duration_nanos, execution_count, total_rows,"
@@ -545,6 +578,9 @@ public class TraceDaoImpl implements TraceDao {
                 + " detail, location_stack_trace, error from trace_entry_v2 where agent_id = ? and"
                 + " trace_id = ?");
 
+        readEntryChunks = session.prepare("select entries from trace_entry_chunk where agent_id = ?"
+                + " and trace_id = ?");
+
         readQueriesV2 = session.prepare("select type, shared_query_text_index,"
                 + " total_duration_nanos, execution_count, total_rows, active from trace_query_v2"
                 + " where agent_id = ? and trace_id = ?");
@@ -574,6 +610,60 @@ public class TraceDaoImpl implements TraceDao {
         deleteTransactionSlowPointPartial = session.prepare("delete from"
                 + " trace_tn_slow_point_partial where agent_rollup = ? and transaction_type = ? and"
                 + " transaction_name = ? and capture_time = ? and agent_id = ? and trace_id = ?");
+
+        if (searchIndex) {
+            // inverted index from user and attribute values to completed slow and error traces,
+            // so that searches by these don't need to read every point in the time range
+            //
+            // token values are stored upper case since the search comparison is case insensitive,
+            // and the point columns are duplicated here so that no second read is needed
+            session.createTableWithTWCS("create table if not exists trace_search_index"
+                    + " (agent_rollup varchar, transaction_type varchar, token_type varchar,"
+                    + " token_name varchar, token_value varchar, bucket timestamp, capture_time"
+                    + " timestamp, agent_id varchar, trace_id varchar, transaction_name varchar,"
+                    + " slow boolean, duration_nanos bigint, error boolean, error_message varchar,"
+                    + " headline varchar, user varchar, attributes blob, primary key"
+                    + " ((agent_rollup, transaction_type, token_type, token_name, token_value,"
+                    + " bucket), capture_time, agent_id, trace_id))", expirationHours);
+            session.createTableWithSTCS("create table if not exists trace_search_index_since"
+                    + " (one int, since timestamp, primary key (one))");
+            BoundStatement boundStatement = session.prepare("insert into trace_search_index_since"
+                    + " (one, since) values (1, ?) if not exists").bind();
+            boundStatement.setTimestamp(0, new Date(clock.currentTimeMillis()));
+            session.update(boundStatement);
+            results = session.read("select since from trace_search_index_since where one = 1");
+            row = checkNotNull(results.one());
+            searchIndexSince = checkNotNull(row.getTimestamp(0)).getTime();
+
+            insertSearchIndex = session.prepare("insert into trace_search_index (agent_rollup,"
+                    + " transaction_type, token_type, token_name, token_value, bucket,"
+                    + " capture_time, agent_id, trace_id, transaction_name, slow, duration_nanos,"
+                    + " error, error_message, headline, user, attributes) values (?, ?, ?, ?, ?,"
+                    + " ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?) using ttl ?");
+            // the first 8 columns match the trace_tt_slow_point and trace_tt_error_point columns
+            // read by toTracePoint()
+            readSlowSearchIndex = session.prepare("select agent_id, trace_id, capture_time,"
+                    + " duration_nanos, error, headline, user, attributes, transaction_name, slow"
+                    + " from trace_search_index where agent_rollup = ? and transaction_type = ?"
+                    + " and token_type = ? and token_name = ? and token_value = ? and bucket = ?"
+                    + " and capture_time > ? and capture_time <= ?");
+            readErrorSearchIndex = session.prepare("select agent_id, trace_id, capture_time,"
+                    + " duration_nanos, error_message, headline, user, attributes,"
+                    + " transaction_name, slow from trace_search_index where agent_rollup = ? and"
+                    + " transaction_type = ? and token_type = ? and token_name = ? and token_value"
+                    + " = ? and bucket = ? and capture_time > ? and capture_time <= ?");
+        } else {
+            if (session.getTable("trace_search_index_since") != null) {
+                // so that traces stored while the index was disabled are not missed if it is
+                // enabled again later
+                session.write(session.prepare("delete from trace_search_index_since where one = 1")
+                        .bind());
+            }
+            searchIndexSince = null;
+            insertSearchIndex = null;
+            readSlowSearchIndex = null;
+            readErrorSearchIndex = null;
+        }
     }
 
     @Override
@@ -741,6 +831,19 @@ public class TraceDaoImpl implements TraceDao {
                 futures.add(session.writeAsync(boundStatement));
             }
         }
+        if (insertSearchIndex != null && !header.getPartial()
+                && (header.getSlow() || header.hasError())) {
+            // partial traces are not indexed, since they are relatively few and can be searched
+            // directly (and this avoids having to clean up the index when the trace is complete)
+            for (String agentRollupId : agentRollupIds) {
+                for (SearchIndexToken token : getSearchIndexTokens(header)) {
+                    BoundStatement boundStatement = insertSearchIndex.bind();
+                    bindSearchIndex(boundStatement, agentRollupId, agentId, traceId, header, token,
+                            adjustedTTL);
+                    futures.add(session.writeAsync(boundStatement));
+                }
+            }
+        }
         for (String agentRollupIdForMeta : agentRollupIdsForMeta) {
             for (Trace.Attribute attributeName : header.getAttributeList()) {
                 traceAttributeNameDao.store(agentRollupIdForMeta,
@@ -756,48 +859,18 @@ public class TraceDaoImpl implements TraceDao {
         boundStatement.setInt(i++, adjustedTTL);
         futures.add(session.writeAsync(boundStatement));
 
-        int index = 0;
-        for (Trace.Entry entry : trace.getEntryList()) {
-            boundStatement = insertEntryV2.bind();
+        // entries are written in chunks (instead of one row per entry) since large traces can
+        // contain thousands of entries, and these are always read back all together
+        List<Trace.Entry> entries = trace.getEntryList();
+        for (int fromIndex = 0; fromIndex < entries.size(); fromIndex += ENTRY_CHUNK_SIZE) {
+            int toIndex = Math.min(fromIndex + ENTRY_CHUNK_SIZE, entries.size());
+            boundStatement = insertEntryChunk.bind();
             i = 0;
             boundStatement.setString(i++, agentId);
             boundStatement.setString(i++, traceId);
-            boundStatement.setInt(i++, index++);
-            boundStatement.setInt(i++, entry.getDepth());
-            boundStatement.setLong(i++, entry.getStartOffsetNanos());
-            boundStatement.setLong(i++, entry.getDurationNanos());
-            boundStatement.setBool(i++, entry.getActive());
-            if (entry.hasQueryEntryMessage()) {
-                boundStatement.setToNull(i++);
-                boundStatement.setInt(i++, entry.getQueryEntryMessage().getSharedQueryTextIndex());
-                boundStatement.setString(i++,
-                        Strings.emptyToNull(entry.getQueryEntryMessage().getPrefix()));
-                boundStatement.setString(i++,
-                        Strings.emptyToNull(entry.getQueryEntryMessage().getSuffix()));
-            } else {
-                // message is empty for trace entries added using addErrorEntry()
-                boundStatement.setString(i++, Strings.emptyToNull(entry.getMessage()));
-                boundStatement.setToNull(i++);
-                boundStatement.setToNull(i++);
-                boundStatement.setToNull(i++);
-            }
-            List<Trace.DetailEntry> detailEntries = entry.getDetailEntryList();
-            if (detailEntries.isEmpty()) {
-                boundStatement.setToNull(i++);
-            } else {
-                boundStatement.setBytes(i++, Messages.toByteBuffer(detailEntries));
-            }
-            List<StackTraceElement> location = entry.getLocationStackTraceElementList();
-            if (location.isEmpty()) {
-                boundStatement.setToNull(i++);
-            } else {
-                boundStatement.setBytes(i++, Messages.toByteBuffer(location));
-            }
-            if (entry.hasError()) {
-                boundStatement.setBytes(i++, ByteBuffer.wrap(entry.getError().toByteArray()));
-            } else {
-                boundStatement.setToNull(i++);
-            }
+            boundStatement.setInt(i++, fromIndex / ENTRY_CHUNK_SIZE);
+            boundStatement.setBytes(i++,
+                    Messages.toCompressedByteBuffer(entries.subList(fromIndex, toIndex)));
             boundStatement.setInt(i++, adjustedTTL);
             futures.add(session.writeAsync(boundStatement));
         }
@@ -821,7 +894,7 @@ public class TraceDaoImpl implements TraceDao {
             futures.add(session.writeAsync(boundStatement));
         }
 
-        index = 0;
+        int index = 0;
         for (Trace.SharedQueryText sharedQueryText : sharedQueryTexts) {
             boundStatement = insertSharedQueryTextV2.bind();
             i = 0;
@@ -884,25 +957,27 @@ public class TraceDaoImpl implements TraceDao {
     @Override
     public Result<TracePoint> readSlowPoints(String agentRollupId, TraceQuery query,
             TracePointFilter filter, int limit) throws Exception {
-        BoundStatement boundStatement;
-        BoundStatement boundStatementPartial;
-        String transactionName = query.transactionName();
-        if (transactionName == null) {
-            boundStatement = readOverallSlowPoint.bind();
-            boundStatementPartial = readOverallSlowPointPartial.bind();
-            bindTraceQuery(boundStatement, agentRollupId, query, true);
-            bindTraceQueryPartial(boundStatementPartial, agentRollupId, query, true, cassandra2x);
-        } else {
-            boundStatement = readTransactionSlowPoint.bind();
-            boundStatementPartial = readTransactionSlowPointPartial.bind();
-            bindTraceQuery(boundStatement, agentRollupId, query, false);
-            bindTraceQueryPartial(boundStatementPartial, agentRollupId, query, false, cassandra2x);
-        }
-        Future<ResultSet> future = session.readAsync(boundStatement);
-        Future<ResultSet> futurePartial = session.readAsync(boundStatementPartial);
-        List<TracePoint> completedPoints = processPoints(future.get(), filter, false, false);
-        List<TracePoint> partialPoints = processPoints(futurePartial.get(), filter, true, false);
-        return combine(completedPoints, partialPoints, limit);
+        boolean overall = query.transactionName() == null;
+        PreparedStatement readPS = overall ? readOverallSlowPoint : readTransactionSlowPoint;
+        List<TracePointCollector> collectors = new ArrayList<>();
+        List<ListenableFuture<?>> futures = new ArrayList<>();
+        readCompletedPoints(agentRollupId, query, overall, readPS, filter, false, limit,
+                collectors, futures);
+        // partial points are not split or limited since there are relatively few of them, and
+        // they all need to be checked for duplicates against the completed points
+        BoundStatement boundStatementPartial = overall ? readOverallSlowPointPartial.bind()
+                : readTransactionSlowPointPartial.bind();
+        bindTraceQueryPartial(boundStatementPartial, agentRollupId, query, overall, cassandra2x);
+        List<TracePoint> partialPoints = new ArrayList<>();
+        futures.add(session.readAsync(boundStatementPartial, POINT_FETCH_SIZE, asyncExecutor,
+                row -> {
+                    TracePoint tracePoint = toTracePoint(row, filter, true, false);
+                    if (tracePoint != null) {
+                        partialPoints.add(tracePoint);
+                    }
+                }));
+        MoreFutures.waitForAll(futures);
+        return combine(TracePointCollector.merge(collectors, limit), partialPoints, limit);
     }
 
     @Override
@@ -923,18 +998,15 @@ public class TraceDaoImpl implements TraceDao {
     @Override
     public Result<TracePoint> readErrorPoints(String agentRollupId, TraceQuery query,
             TracePointFilter filter, int limit) throws Exception {
-        BoundStatement boundStatement;
-        String transactionName = query.transactionName();
-        if (transactionName == null) {
-            boundStatement = readOverallErrorPoint.bind();
-            bindTraceQuery(boundStatement, agentRollupId, query, true);
-        } else {
-            boundStatement = readTransactionErrorPoint.bind();
-            bindTraceQuery(boundStatement, agentRollupId, query, false);
-        }
-        ResultSet results = session.read(boundStatement);
-        List<TracePoint> errorPoints = processPoints(results, filter, false, true);
-        return createResult(errorPoints, limit);
+        boolean overall = query.transactionName() == null;
+        PreparedStatement readPS = overall ? readOverallErrorPoint : readTransactionErrorPoint;
+        List<TracePointCollector> collectors = new ArrayList<>();
+        List<ListenableFuture<?>> futures = new ArrayList<>();
+        readCompletedPoints(agentRollupId, query, overall, readPS, filter, true, limit,
+                collectors, futures);
+        MoreFutures.waitForAll(futures);
+        TracePointCollector collector = TracePointCollector.merge(collectors, limit);
+        return createResult(collector.getTracePoints(), collector.count, limit);
     }
 
     @Override
@@ -1157,13 +1229,34 @@ public class TraceDaoImpl implements TraceDao {
     }
 
     private List<Trace.Entry> readEntriesInternal(String agentId, String traceId) throws Exception {
-        List<Trace.Entry> entries = readEntriesUsingPS(agentId, traceId, readEntriesV2);
+        List<Trace.Entry> entries = readEntryChunks(agentId, traceId);
+        if (!entries.isEmpty()) {
+            return entries;
+        }
+        // fall back to one row per entry format (used prior to trace_entry_chunk)
+        entries = readEntriesUsingPS(agentId, traceId, readEntriesV2);
         if (!entries.isEmpty()) {
             return entries;
         }
         return readEntriesUsingPS(agentId, traceId, readEntriesV1);
     }
 
+    private List<Trace.Entry> readEntryChunks(String agentId, String traceId) throws Exception {
+        BoundStatement boundStatement = readEntryChunks.bind();
+        boundStatement.setString(0, agentId);
+        boundStatement.setString(1, traceId);
+        ResultSet results = session.read(boundStatement);
+        List<Trace.Entry> entries = new ArrayList<>();
+        // rows are in order by chunk_index, and each chunk is only decoded once its row is reached
+        // (rows are fetched from Cassandra in pages, so not all chunks are in memory at once)
+        while (!results.isExhausted()) {
+            Row row = results.one();
+            entries.addAll(Messages.parseCompressedDelimitedFrom(row.getBytes(0),
+                    Trace.Entry.parser()));
+        }
+        return entries;
+    }
+
     private List<Trace.Entry> readEntriesUsingPS(String agentId, String traceId,
             PreparedStatement readPS) throws Exception {
         BoundStatement boundStatement = readPS.bind();
@@ -1302,6 +1395,18 @@ public class TraceDaoImpl implements TraceDao {
         session.updateSchemaWithRetry("truncate table trace_shared_query_text_v2");
         session.updateSchemaWithRetry("truncate table trace_main_thread_profile_v2");
         session.updateSchemaWithRetry("truncate table trace_aux_thread_profile_v2");
+        session.updateSchemaWithRetry("truncate table trace_entry_chunk");
+        if (insertSearchIndex != null) {
+            session.updateSchemaWithRetry("truncate table trace_search_index");
+        }
+    }
+
+    static void createEntryChunkTable(Session session, int expirationHours) throws Exception {
+        // chunk_index is used to provide uniqueness and ordering
+        // entries is a compressed list of length-delimited Trace.Entry messages
+        session.createTableWithTWCS("create table if not exists trace_entry_chunk (agent_id"
+                + " varchar, trace_id varchar, chunk_index int, entries blob, primary key"
+                + " ((agent_id, trace_id), chunk_index))", expirationHours);
     }
 
     private static void bindSlowPoint(BoundStatement boundStatement, String agentRollupId,
@@ -1389,6 +1494,40 @@ public class TraceDaoImpl implements TraceDao {
         return i;
     }
 
+    private static void bindSearchIndex(BoundStatement boundStatement, String agentRollupId,
+            String agentId, String traceId, Trace.Header header, SearchIndexToken token,
+            int adjustedTTL) throws IOException {
+        int i = 0;
+        boundStatement.setString(i++, agentRollupId);
+        boundStatement.setString(i++, header.getTransactionType());
+        boundStatement.setString(i++, token.type());
+        boundStatement.setString(i++, token.name());
+        boundStatement.setString(i++, token.value());
+        boundStatement.setTimestamp(i++, new Date(
+                CaptureTimes.getRollup(header.getCaptureTime(), SEARCH_INDEX_BUCKET_MILLIS)));
+        boundStatement.setTimestamp(i++, new Date(header.getCaptureTime()));
+        boundStatement.setString(i++, agentId);
+        boundStatement.setString(i++, traceId);
+        boundStatement.setString(i++, header.getTransactionName());
+        boundStatement.setBool(i++, header.getSlow());
+        boundStatement.setLong(i++, header.getDurationNanos());
+        boundStatement.setBool(i++, header.hasError());
+        if (header.hasError()) {
+            boundStatement.setString(i++, header.getError().getMessage());
+        } else {
+            boundStatement.setToNull(i++);
+        }
+        boundStatement.setString(i++, header.getHeadline());
+        boundStatement.setString(i++, Strings.emptyToNull(header.getUser()));
+        List<Trace.Attribute> attributes = header.getAttributeList();
+        if (attributes.isEmpty()) {
+            boundStatement.setToNull(i++);
+        } else {
+            boundStatement.setBytes(i++, Messages.toByteBuffer(attributes));
+        }
+        boundStatement.setInt(i++, adjustedTTL);
+    }
+
     private static void bindThreadProfile(BoundStatement boundStatement, String agentId,
             String traceId, Profile profile, int adjustedTTL) {
         int i = 0;
@@ -1430,69 +1569,205 @@ public class TraceDaoImpl implements TraceDao {
         }
     }
 
+    @VisibleForTesting
+    static Set<SearchIndexToken> getSearchIndexTokens(Trace.Header header) {
+        Set<SearchIndexToken> tokens = new LinkedHashSet<>();
+        String user = header.getUser();
+        if (!user.isEmpty()) {
+            addIfNotNull(tokens, createSearchIndexToken(SearchIndexToken.USER, "", user));
+        }
+        for (Trace.Attribute attribute : header.getAttributeList()) {
+            for (String value : attribute.getValueList()) {
+                addIfNotNull(tokens, createSearchIndexToken(SearchIndexToken.ATTRIBUTE,
+                        attribute.getName(), value));
+            }
+        }
+        return tokens;
+    }
+
+    // only exact (case insensitive) user and attribute value matches can be looked up in the
+    // search index, any other filters are applied to the rows read from it
+    @VisibleForTesting
+    static @Nullable SearchIndexToken getSearchIndexToken(TracePointFilter filter) {
+        String user = filter.user();
+        if (filter.userComparator() == StringComparator.EQUALS && !Strings.isNullOrEmpty(user)) {
+            SearchIndexToken token = createSearchIndexToken(SearchIndexToken.USER, "", user);
+            if (token != null) {
+                return token;
+            }
+        }
+        String attributeName = filter.attributeName();
+        String attributeValue = filter.attributeValue();
+        if (!Strings.isNullOrEmpty(attributeName)
+                && filter.attributeValueComparator() == StringComparator.EQUALS
+                && !Strings.isNullOrEmpty(attributeValue)) {
+            return createSearchIndexToken(SearchIndexToken.ATTRIBUTE, attributeName,
+                    attributeValue);
+        }
+        return null;
+    }
+
+    private static @Nullable SearchIndexToken createSearchIndexToken(String type, String name,
+            String value) {
+        String upperName = name.toUpperCase(Locale.ENGLISH);
+        String upperValue = value.toUpperCase(Locale.ENGLISH);
+        if (upperName.length() + upperValue.length() > SEARCH_INDEX_MAX_TOKEN_LENGTH) {
+            return null;
+        }
+        return ImmutableSearchIndexToken.of(type, upperName, upperValue);
+    }
+
+    private static <T> void addIfNotNull(Set<T> set, @Nullable T item) {
+        if (item != null) {
+            set.add(item);
+        }
+    }
+
     private static long getCaptureTimePartialRollup(long captureTime) {
         // it's not really relevant that the 30-min interval matches any of the aggregate rollups,
         // this is just to help reduce proliferation of Cassandra tombstones
         return CaptureTimes.getRollup(captureTime, MINUTES.toMillis(30));
     }
 
-    private static List<TracePoint> processPoints(ResultSet results, TracePointFilter filter,
-            boolean partial, boolean errorPoints) throws IOException {
-        List<TracePoint> tracePoints = new ArrayList<>();
-        for (Row row : results) {
+    // uses the search index for the part of the time range that it covers, when the filter has a
+    // user or attribute value that can be looked up in it
+    private void readCompletedPoints(String agentRollupId, TraceQuery query, boolean overall,
+            PreparedStatement readPS, TracePointFilter filter, boolean errorPoints, int limit,
+            List<TracePointCollector> collectors, List<ListenableFuture<?>> futures)
+            throws Exception {
+        SearchIndexToken token = getSearchIndexToken(filter);
+        if (token == null || searchIndexSince == null || query.to() <= searchIndexSince) {
+            readPoints(agentRollupId, query, overall, readPS, filter, errorPoints, limit,
+                    collectors, futures);
+            return;
+        }
+        long since = searchIndexSince;
+        if (query.from() < since) {
+            readPoints(agentRollupId, ImmutableTraceQuery.copyOf(query).withTo(since), overall,
+                    readPS, filter, errorPoints, limit, collectors, futures);
+            query = ImmutableTraceQuery.copyOf(query).withFrom(since);
+        }
+        readPointsFromSearchIndex(agentRollupId, query, token, filter, errorPoints, limit,
+                collectors, futures);
+    }
+
+    private void readPointsFromSearchIndex(String agentRollupId, TraceQuery query,
+            SearchIndexToken token, TracePointFilter filter, boolean errorPoints, int limit,
+            List<TracePointCollector> collectors, List<ListenableFuture<?>> futures)
+            throws Exception {
+        PreparedStatement readPS =
+                checkNotNull(errorPoints ? readErrorSearchIndex : readSlowSearchIndex);
+        String transactionName = query.transactionName();
+        // capture_time > from, so the first bucket is the one containing from + 1
+        long bucket = CaptureTimes.getRollup(query.from() + 1, SEARCH_INDEX_BUCKET_MILLIS);
+        long lastBucket = CaptureTimes.getRollup(query.to(), SEARCH_INDEX_BUCKET_MILLIS);
+        for (; bucket <= lastBucket; bucket += SEARCH_INDEX_BUCKET_MILLIS) {
+            BoundStatement boundStatement = readPS.bind();
             int i = 0;
-            String agentId = checkNotNull(row.getString(i++));
-            String traceId = checkNotNull(row.getString(i++));
-            long captureTime = checkNotNull(row.getTimestamp(i++)).getTime();
-            if (partial) {
-                // real_capture_time is only present for data written starting with 0.13.1
-                Date realCaptureTime = row.getTimestamp(i++);
-                if (realCaptureTime != null) {
-                    captureTime = realCaptureTime.getTime();
-                }
-            }
-            long durationNanos = row.getLong(i++);
-            boolean error = errorPoints || row.getBool(i++);
-            // error points are defined by having an error message, so safe to checkNotNull
-            String errorMessage = errorPoints ? checkNotNull(row.getString(i++)) : "";
-            // headline is null for data inserted prior to 0.9.7
-            String headline = Strings.nullToEmpty(row.getString(i++));
-            String user = Strings.nullToEmpty(row.getString(i++));
-            ByteBuffer attributeBytes = row.getBytes(i++);
-            List<Trace.Attribute> attrs =
-                    Messages.parseDelimitedFrom(attributeBytes, Trace.Attribute.parser());
-            Map<String, List<String>> attributes = attrs.stream().collect(
-                    Collectors.toMap(Trace.Attribute::getName, Trace.Attribute::getValueList));
-            if (filter.matchesDuration(durationNanos)
-                    && filter.matchesHeadline(headline)
-                    && filter.matchesError(errorMessage)
-                    && filter.matchesUser(user)
-                    && filter.matchesAttributes(attributes)) {
-                tracePoints.add(ImmutableTracePoint.builder()
-                        .agentId(agentId)
-                        .traceId(traceId)
-                        .captureTime(captureTime)
-                        .durationNanos(durationNanos)
-                        .partial(partial)
-                        .error(error)
-                        .checkLiveTraces(false)
-                        .build());
+            boundStatement.setString(i++, agentRollupId);
+            boundStatement.setString(i++, query.transactionType());
+            boundStatement.setString(i++, token.type());
+            boundStatement.setString(i++, token.name());
+            boundStatement.setString(i++, token.value());
+            boundStatement.setTimestamp(i++, new Date(bucket));
+            boundStatement.setTimestamp(i++, new Date(query.from()));
+            boundStatement.setTimestamp(i++, new Date(query.to()));
+            TracePointCollector collector = new TracePointCollector(limit);
+            futures.add(session.readAsync(boundStatement, POINT_FETCH_SIZE, asyncExecutor,
+                    row -> {
+                        if (transactionName != null
+                                && !transactionName.equals(row.getString(8))) {
+                            return;
+                        }
+                        // error_message (for error points) is null when the trace is only slow,
+                        // and slow is false when the trace only has an error
+                        if (errorPoints ? row.isNull(4) : !row.getBool(9)) {
+                            return;
+                        }
+                        collector.add(toTracePoint(row, filter, false, errorPoints));
+                    }));
+            collectors.add(collector);
+        }
+    }
+
+    // wide time ranges are split into concurrent queries, each only retaining the slowest points
+    private void readPoints(String agentRollupId, TraceQuery query, boolean overall,
+            PreparedStatement readPS, TracePointFilter filter, boolean errorPoints, int limit,
+            List<TracePointCollector> collectors, List<ListenableFuture<?>> futures)
+            throws Exception {
+        for (CaptureTimeRange range : CaptureTimeRanges.split(query.from(), query.to())) {
+            TraceQuery rangeQuery = ImmutableTraceQuery.copyOf(query)
+                    .withFrom(range.from())
+                    .withTo(range.to());
+            BoundStatement boundStatement = readPS.bind();
+            bindTraceQuery(boundStatement, agentRollupId, rangeQuery, overall);
+            TracePointCollector collector = new TracePointCollector(limit);
+            futures.add(session.readAsync(boundStatement, POINT_FETCH_SIZE, asyncExecutor,
+                    row -> collector.add(toTracePoint(row, filter, false, errorPoints))));
+            collectors.add(collector);
+        }
+    }
+
+    private static @Nullable TracePoint toTracePoint(Row row, TracePointFilter filter,
+            boolean partial, boolean errorPoints) throws IOException {
+        int i = 0;
+        String agentId = checkNotNull(row.getString(i++));
+        String traceId = checkNotNull(row.getString(i++));
+        long captureTime = checkNotNull(row.getTimestamp(i++)).getTime();
+        if (partial) {
+            // real_capture_time is only present for data written starting with 0.13.1
+            Date realCaptureTime = row.getTimestamp(i++);
+            if (realCaptureTime != null) {
+                captureTime = realCaptureTime.getTime();
             }
         }
-        return tracePoints;
+        long durationNanos = row.getLong(i++);
+        boolean error = errorPoints || row.getBool(i++);
+        // error points are defined by having an error message, so safe to checkNotNull
+        String errorMessage = errorPoints ? checkNotNull(row.getString(i++)) : "";
+        // headline is null for data inserted prior to 0.9.7
+        String headline = Strings.nullToEmpty(row.getString(i++));
+        String user = Strings.nullToEmpty(row.getString(i++));
+        if (!filter.matchesDuration(durationNanos)
+                || !filter.matchesHeadline(headline)
+                || !filter.matchesError(errorMessage)
+                || !filter.matchesUser(user)) {
+            // checked before parsing attributes since that is the most expensive part
+            return null;
+        }
+        ByteBuffer attributeBytes = row.getBytes(i++);
+        List<Trace.Attribute> attrs =
+                Messages.parseDelimitedFrom(attributeBytes, Trace.Attribute.parser());
+        Map<String, List<String>> attributes = attrs.stream().collect(
+                Collectors.toMap(Trace.Attribute::getName, Trace.Attribute::getValueList));
+        if (!filter.matchesAttributes(attributes)) {
+            return null;
+        }
+        return ImmutableTracePoint.builder()
+                .agentId(agentId)
+                .traceId(traceId)
+                .captureTime(captureTime)
+                .durationNanos(durationNanos)
+                .partial(partial)
+                .error(error)
+                .checkLiveTraces(false)
+                .build();
     }
 
-    private static Result<TracePoint> combine(List<TracePoint> completedPoints,
+    private static Result<TracePoint> combine(TracePointCollector completed,
             List<TracePoint> partialPoints, int limit) {
+        List<TracePoint> completedPoints = completed.getTracePoints();
         if (partialPoints.isEmpty()) {
             // optimization of common path
-            return createResult(completedPoints, limit);
+            return createResult(completedPoints, completed.count, limit);
         }
+        // the completed points that were not retained are all faster than the retained ones, so
+        // any partial points that duplicate them will not make the limit anyways
         removeDuplicatePartialPoints(completedPoints, partialPoints);
         List<TracePoint> allPoints = new ArrayList<>(completedPoints.size() + partialPoints.size());
         allPoints.addAll(completedPoints);
         allPoints.addAll(partialPoints);
-        if (allPoints.size() > limit) {
+        if (completed.count + partialPoints.size() > limit) {
             allPoints = applyLimitByDurationNanosAndThenSortByCaptureTime(allPoints, limit);
             return new Result<>(allPoints, true);
         } else {
@@ -1503,12 +1778,15 @@ public class TraceDaoImpl implements TraceDao {
         }
     }
 
-    private static Result<TracePoint> createResult(List<TracePoint> tracePoints, int limit) {
-        if (tracePoints.size() > limit) {
+    private static Result<TracePoint> createResult(List<TracePoint> tracePoints, long count,
+            int limit) {
+        if (count > limit) {
             return new Result<>(
                     applyLimitByDurationNanosAndThenSortByCaptureTime(tracePoints, limit), true);
         } else {
-            return new Result<>(tracePoints, false);
+            // sort by capture time needed since points are collected out of order
+            return new Result<>(Ordering.from(Comparator.comparingLong(TracePoint::captureTime))
+                    .sortedCopy(tracePoints), false);
         }
     }
 
@@ -1554,6 +1832,18 @@ public class TraceDaoImpl implements TraceDao {
         return true;
     }
 
+    @Value.Immutable
+    @Styles.AllParameters
+    interface SearchIndexToken {
+
+        String USER = "user";
+        String ATTRIBUTE = "attribute";
+
+        String type();
+        String name();
+        String value();
+    }
+
     @Value.Immutable
     abstract static class TraceKey {
 
@@ -1568,6 +1858,60 @@ public class TraceDaoImpl implements TraceDao {
         }
     }
 
+    // only the slowest points are retained, since that is all that is needed to apply the limit
+    // (see applyLimitByDurationNanosAndThenSortByCaptureTime()), but all matching points are
+    // counted
+    private static class TracePointCollector {
+
+        private final int limit;
+        private final PriorityQueue<TracePoint> slowestPoints =
+                new PriorityQueue<>(Comparator.comparingLong(TracePoint::durationNanos));
+        private long count;
+
+        private TracePointCollector(int limit) {
+            this.limit = limit;
+        }
+
+        private void add(@Nullable TracePoint tracePoint) {
+            if (tracePoint != null) {
+                count++;
+                retainIfSlowest(tracePoint);
+            }
+        }
+
+        private List<TracePoint> getTracePoints() {
+            return new ArrayList<>(slowestPoints);
+        }
+
+        private void retainIfSlowest(TracePoint tracePoint) {
+            if (slowestPoints.size() < limit) {
+                slowestPoints.add(tracePoint);
+                return;
+            }
+            TracePoint fastestPoint = slowestPoints.peek();
+            if (fastestPoint != null
+                    && tracePoint.durationNanos() > fastestPoint.durationNanos()) {
+                slowestPoints.poll();
+                slowestPoints.add(tracePoint);
+            }
+        }
+
+        private static TracePointCollector merge(List<TracePointCollector> collectors,
+                int limit) {
+            if (collectors.size() == 1) {
+                return collectors.get(0);
+            }
+            TracePointCollector merged = new TracePointCollector(limit);
+            for (TracePointCollector collector : collectors) {
+                for (TracePoint tracePoint : collector.slowestPoints) {
+                    merged.retainIfSlowest(tracePoint);
+                }
+                merged.count += collector.count;
+            }
+            return merged;
+        }
+    }
+
     private static class MutableLong {
         private long value;
         private void increment() {
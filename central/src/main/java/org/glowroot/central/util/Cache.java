@@ -1,5 +1,5 @@
 /*
- * Copyright 2017 the original author or authors.
+ * Copyright 2017-2020 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -27,4 +27,11 @@ public interface Cache<K extends /*@NonNull*/ Serializable, V extends /*@NonNull
     interface CacheLoader<K, V> {
         V load(K key) throws Exception;
     }
+
+    // used by caches that hold values in serialized form (e.g. off-heap), so decode() is called on
+    // every get
+    interface ValueCodec<V> {
+        byte[] encode(V value) throws Exception;
+        V decode(byte[] bytes) throws Exception;
+    }
 }
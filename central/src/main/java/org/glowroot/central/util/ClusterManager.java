@@ -1,5 +1,5 @@
 /*
- * Copyright 2017-2019 the original author or authors.
+ * Copyright 2017-2020 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -17,7 +17,10 @@ package org.glowroot.central.util;
 
 import java.io.File;
 import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Queue;
@@ -25,12 +28,20 @@ import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Supplier;
 import java.util.regex.Pattern;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.cache.AbstractCache.SimpleStatsCounter;
+import com.google.common.cache.AbstractCache.StatsCounter;
 import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
 import com.google.common.collect.Maps;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
@@ -40,6 +51,7 @@ import org.checkerframework.checker.nullness.qual.Nullable;
 import org.infinispan.configuration.cache.CacheMode;
 import org.infinispan.configuration.cache.Configuration;
 import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.configuration.cache.StorageType;
 import org.infinispan.configuration.global.GlobalConfiguration;
 import org.infinispan.configuration.global.GlobalConfigurationBuilder;
 import org.infinispan.eviction.EvictionStrategy;
@@ -54,18 +66,22 @@ import org.slf4j.LoggerFactory;
 
 import org.glowroot.central.util.AsyncCache.AsyncCacheLoader;
 import org.glowroot.central.util.Cache.CacheLoader;
+import org.glowroot.central.util.Cache.ValueCodec;
 import org.glowroot.common2.repo.util.LockSet;
 import org.glowroot.common2.repo.util.LockSet.LockSetImpl;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 public abstract class ClusterManager {
 
     private static final Logger logger = LoggerFactory.getLogger(ClusterManager.class);
 
+    private final List<ObjectName> cacheStatsObjectNames = new CopyOnWriteArrayList<>();
+
     public static ClusterManager create() {
         return new NonClusterManager();
     }
@@ -92,6 +108,12 @@ public abstract class ClusterManager {
     public abstract <K extends /*@NonNull*/ Serializable, V extends /*@NonNull*/ Object> AsyncCache<K, V> createPerAgentAsyncCache(
             String cacheName, int size, AsyncCacheLoader<K, V> loader);
 
+    // values are held off-heap in serialized form and bounded by total size in bytes (instead of
+    // by number of entries), which is a better fit for large values, e.g. protobuf agent configs
+    public abstract <V extends /*@NonNull*/ Object> Cache<String, V> createPerAgentOffHeapCache(
+            String cacheName, long maxSizeBytes, ValueCodec<V> codec, CacheLoader<String, V> loader)
+            throws Exception;
+
     public abstract <K extends /*@NonNull*/ Serializable, V extends /*@NonNull*/ Object> Cache<K, V> createSelfBoundedCache(
             String cacheName, CacheLoader<K, V> loader);
 
@@ -107,7 +129,23 @@ public abstract class ClusterManager {
     public abstract <K extends /*@NonNull*/ Serializable, V extends /*@NonNull*/ Object> DistributedExecutionMap<K, V> createDistributedExecutionMap(
             String cacheName);
 
-    public abstract void close() throws InterruptedException;
+    public abstract void close() throws Exception;
+
+    void registerCacheStats(String cacheName, LocalCacheStats localCacheStats)
+            throws Exception {
+        ObjectName objectName =
+                ObjectName.getInstance("org.glowroot.central:type=Cache,name=" + cacheName);
+        ManagementFactory.getPlatformMBeanServer().registerMBean(localCacheStats, objectName);
+        cacheStatsObjectNames.add(objectName);
+    }
+
+    void unregisterCacheStats() throws Exception {
+        MBeanServer platformMBeanServer = ManagementFactory.getPlatformMBeanServer();
+        for (ObjectName objectName : cacheStatsObjectNames) {
+            platformMBeanServer.unregisterMBean(objectName);
+        }
+        cacheStatsObjectNames.clear();
+    }
 
     private static class ClusterManagerImpl extends ClusterManager {
 
@@ -143,6 +181,29 @@ public abstract class ClusterManager {
             return new AsyncCacheImpl<K, V>(cacheManager.getCache(cacheName), loader, executor);
         }
 
+        @Override
+        public <V extends /*@NonNull*/ Object> Cache<String, V> createPerAgentOffHeapCache(
+                String cacheName, long maxSizeBytes, ValueCodec<V> codec,
+                CacheLoader<String, V> loader) throws Exception {
+            ConfigurationBuilder configurationBuilder = new ConfigurationBuilder();
+            configurationBuilder.clustering()
+                    .cacheMode(CacheMode.INVALIDATION_ASYNC)
+                    .expiration()
+                    .maxIdle(30, MINUTES)
+                    .memory()
+                    .storageType(StorageType.OFF_HEAP)
+                    .size(maxSizeBytes)
+                    .evictionType(EvictionType.MEMORY)
+                    .evictionStrategy(EvictionStrategy.REMOVE)
+                    .jmxStatistics()
+                    .enable();
+            cacheManager.defineConfiguration(cacheName, configurationBuilder.build());
+            OffHeapCacheImpl<V> cache =
+                    new OffHeapCacheImpl<V>(cacheManager.getCache(cacheName), codec, loader);
+            registerCacheStats(cacheName, new LocalCacheStats(cache::stats));
+            return cache;
+        }
+
         @Override
         public <K extends /*@NonNull*/ Serializable, V extends /*@NonNull*/ Object> Cache<K, V> createSelfBoundedCache(
                 String cacheName, CacheLoader<K, V> loader) {
@@ -194,7 +255,8 @@ public abstract class ClusterManager {
         }
 
         @Override
-        public void close() throws InterruptedException {
+        public void close() throws Exception {
+            unregisterCacheStats();
             cacheManager.stop();
             // org.infinispan.factories.NamedExecutorsFactory.stop() calls shutdownNow() on all
             // executors, but does not awaitTermination(), so sleep a bit to allow time
@@ -273,7 +335,17 @@ public abstract class ClusterManager {
         @Override
         public <K extends /*@NonNull*/ Serializable, V extends /*@NonNull*/ Object> AsyncCache<K, V> createPerAgentAsyncCache(
                 String cacheName, int size, AsyncCacheLoader<K, V> loader) {
-            return new NonClusterAsyncCacheImpl<K, V>(loader);
+            return new NonClusterAsyncCacheImpl<K, V>(size, loader);
+        }
+
+        @Override
+        public <V extends /*@NonNull*/ Object> Cache<String, V> createPerAgentOffHeapCache(
+                String cacheName, long maxSizeBytes, ValueCodec<V> codec,
+                CacheLoader<String, V> loader) throws Exception {
+            NonClusterOffHeapCacheImpl<V> cache =
+                    new NonClusterOffHeapCacheImpl<V>(maxSizeBytes, codec, loader);
+            registerCacheStats(cacheName, new LocalCacheStats(cache::stats));
+            return cache;
         }
 
         @Override
@@ -310,7 +382,9 @@ public abstract class ClusterManager {
         }
 
         @Override
-        public void close() {}
+        public void close() throws Exception {
+            unregisterCacheStats();
+        }
     }
 
     private static class CacheImpl<K extends /*@NonNull*/ Serializable, V extends /*@NonNull*/ Object>
@@ -380,6 +454,136 @@ public abstract class ClusterManager {
         }
     }
 
+    private abstract static class AbstractOffHeapCache<V extends /*@NonNull*/ Object>
+            implements Cache<String, V> {
+
+        private final ValueCodec<V> codec;
+        private final CacheLoader<String, V> loader;
+        private final StatsCounter statsCounter = new SimpleStatsCounter();
+
+        private AbstractOffHeapCache(ValueCodec<V> codec, CacheLoader<String, V> loader) {
+            this.codec = codec;
+            this.loader = loader;
+        }
+
+        @Override
+        public V get(String key) throws Exception {
+            byte[] bytes = getBytes(key);
+            if (bytes != null) {
+                statsCounter.recordHits(1);
+                return codec.decode(bytes);
+            }
+            statsCounter.recordMisses(1);
+            Stopwatch stopwatch = Stopwatch.createStarted();
+            V value;
+            try {
+                value = loader.load(key);
+            } catch (Exception e) {
+                statsCounter.recordLoadException(stopwatch.elapsed(NANOSECONDS));
+                throw e;
+            }
+            statsCounter.recordLoadSuccess(stopwatch.elapsed(NANOSECONDS));
+            // FIXME there's a race condition if invalidation is received at this point
+            putBytes(key, codec.encode(value));
+            return value;
+        }
+
+        CacheStats stats() {
+            CacheStats stats = statsCounter.snapshot();
+            return stats.plus(new CacheStats(0, 0, 0, 0, 0, getEvictionCount()));
+        }
+
+        abstract byte /*@Nullable*/ [] getBytes(String key);
+
+        abstract void putBytes(String key, byte[] bytes);
+
+        abstract long getEvictionCount();
+    }
+
+    private static class OffHeapCacheImpl<V extends /*@NonNull*/ Object>
+            extends AbstractOffHeapCache<V> {
+
+        private final org.infinispan.Cache<String, byte[]> cache;
+
+        private OffHeapCacheImpl(org.infinispan.Cache<String, byte[]> cache, ValueCodec<V> codec,
+                CacheLoader<String, V> loader) {
+            super(codec, loader);
+            this.cache = cache;
+        }
+
+        @Override
+        byte /*@Nullable*/ [] getBytes(String key) {
+            return cache.get(key);
+        }
+
+        @Override
+        void putBytes(String key, byte[] bytes) {
+            cache.putForExternalRead(key, bytes);
+        }
+
+        @Override
+        long getEvictionCount() {
+            return cache.getAdvancedCache().getStats().getEvictions();
+        }
+
+        @Override
+        public void invalidate(String key) {
+            cache.remove(key);
+        }
+    }
+
+    // without infinispan, direct byte buffers are used to keep the values off-heap
+    private static class NonClusterOffHeapCacheImpl<V extends /*@NonNull*/ Object>
+            extends AbstractOffHeapCache<V> {
+
+        private final com.google.common.cache.Cache<String, ByteBuffer> cache;
+        private final StatsCounter evictionCounter = new SimpleStatsCounter();
+
+        private NonClusterOffHeapCacheImpl(long maxSizeBytes, ValueCodec<V> codec,
+                CacheLoader<String, V> loader) {
+            super(codec, loader);
+            cache = CacheBuilder.newBuilder()
+                    .maximumWeight(maxSizeBytes)
+                    .<String, ByteBuffer>weigher((key, value) -> value.capacity())
+                    .expireAfterAccess(30, MINUTES)
+                    .<String, ByteBuffer>removalListener(notification -> {
+                        if (notification.wasEvicted()) {
+                            evictionCounter.recordEviction();
+                        }
+                    })
+                    .build();
+        }
+
+        @Override
+        byte /*@Nullable*/ [] getBytes(String key) {
+            ByteBuffer buffer = cache.getIfPresent(key);
+            if (buffer == null) {
+                return null;
+            }
+            byte[] bytes = new byte[buffer.capacity()];
+            buffer.duplicate().get(bytes);
+            return bytes;
+        }
+
+        @Override
+        void putBytes(String key, byte[] bytes) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+            buffer.put(bytes);
+            buffer.flip();
+            cache.put(key, buffer);
+        }
+
+        @Override
+        long getEvictionCount() {
+            return evictionCounter.snapshot().evictionCount();
+        }
+
+        @Override
+        public void invalidate(String key) {
+            cache.invalidate(key);
+        }
+    }
+
     private static class NonClusterCacheImpl<K extends /*@NonNull*/ Serializable, V extends /*@NonNull*/ Object>
             implements Cache<K, V> {
 
@@ -410,10 +614,16 @@ public abstract class ClusterManager {
     private static class NonClusterAsyncCacheImpl<K extends /*@NonNull*/ Serializable, V extends /*@NonNull*/ Object>
             implements AsyncCache<K, V> {
 
-        private final ConcurrentMap<K, V> cache = new ConcurrentHashMap<>();
+        private final ConcurrentMap<K, V> cache;
         private final AsyncCacheLoader<K, V> loader;
 
-        private NonClusterAsyncCacheImpl(AsyncCacheLoader<K, V> loader) {
+        private NonClusterAsyncCacheImpl(int size, AsyncCacheLoader<K, V> loader) {
+            // same bounds as the cluster cache configuration (see createCacheConfiguration())
+            cache = CacheBuilder.newBuilder()
+                    .maximumSize(size)
+                    .expireAfterAccess(30, MINUTES)
+                    .<K, V>build()
+                    .asMap();
             this.loader = loader;
         }
 
@@ -432,7 +642,7 @@ public abstract class ClusterManager {
                 }
                 @Override
                 public void onFailure(Throwable t) {}
-                // ok to use direct executor since the cache is just a simple ConcurrentHashMap
+                // ok to use direct executor since the cache is just a simple local guava cache
             }, MoreExecutors.directExecutor());
             return future;
         }
@@ -1,5 +1,5 @@
 /*
- * Copyright 2018 the original author or authors.
+ * Copyright 2018-2020 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,18 +15,25 @@
  */
 package org.glowroot.central.util;
 
+import java.util.function.Supplier;
+
 import com.google.common.cache.Cache;
+import com.google.common.cache.CacheStats;
 
 public class LocalCacheStats implements LocalCacheStatsMXBean {
 
-    private final Cache<?, ?> cache;
+    private final Supplier<CacheStats> stats;
 
     public LocalCacheStats(Cache<?, ?> cache) {
-        this.cache = cache;
+        this(cache::stats);
+    }
+
+    LocalCacheStats(Supplier<CacheStats> stats) {
+        this.stats = stats;
     }
 
     @Override
     public LocalCacheStatsWrapper getStats() {
-        return new LocalCacheStatsWrapper(cache.stats());
+        return new LocalCacheStatsWrapper(stats.get());
     }
 }
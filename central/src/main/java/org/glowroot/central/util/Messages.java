@@ -18,9 +18,13 @@ package org.glowroot.central.util;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
 
 import com.google.common.collect.ImmutableList;
 import com.google.protobuf.AbstractMessage;
@@ -43,19 +47,53 @@ public class Messages {
         return ByteBuffer.wrap(output.toByteArray());
     }
 
+    public static ByteBuffer toCompressedByteBuffer(List<? extends AbstractMessage> messages)
+            throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        // using BEST_SPEED since this is on the collector write path, and the blobs end up being
+        // compressed again by Cassandra anyways
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            try (OutputStream out = new DeflaterOutputStream(output, deflater)) {
+                for (AbstractMessage message : messages) {
+                    message.writeDelimitedTo(out);
+                }
+            }
+        } finally {
+            // DeflaterOutputStream only releases the native resources of its default deflater
+            deflater.end();
+        }
+        return ByteBuffer.wrap(output.toByteArray());
+    }
+
     public static <T extends /*@NonNull*/ AbstractMessage> List<T> parseDelimitedFrom(
             @Nullable ByteBuffer byteBuf, Parser<T> parser) throws IOException {
         if (byteBuf == null) {
             return ImmutableList.of();
         }
+        try (InputStream input = new ByteBufferInputStream(byteBuf)) {
+            return parseDelimitedFrom(input, parser);
+        }
+    }
+
+    public static <T extends /*@NonNull*/ AbstractMessage> List<T> parseCompressedDelimitedFrom(
+            @Nullable ByteBuffer byteBuf, Parser<T> parser) throws IOException {
+        if (byteBuf == null) {
+            return ImmutableList.of();
+        }
+        try (InputStream input = new InflaterInputStream(new ByteBufferInputStream(byteBuf))) {
+            return parseDelimitedFrom(input, parser);
+        }
+    }
+
+    private static <T extends /*@NonNull*/ AbstractMessage> List<T> parseDelimitedFrom(
+            InputStream input, Parser<T> parser) throws IOException {
         SizeLimitBypassingParser<T> sizeLimitBypassingParser =
                 new SizeLimitBypassingParser<>(parser);
         List<T> messages = new ArrayList<>();
-        try (InputStream input = new ByteBufferInputStream(byteBuf)) {
-            T message;
-            while ((message = sizeLimitBypassingParser.parseDelimitedFrom(input)) != null) {
-                messages.add(message);
-            }
+        T message;
+        while ((message = sizeLimitBypassingParser.parseDelimitedFrom(input)) != null) {
+            messages.add(message);
         }
         return messages;
     }
@@ -1,5 +1,5 @@
 /*
- * Copyright 2016-2019 the original author or authors.
+ * Copyright 2016-2020 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -136,6 +136,22 @@ public class MoreFutures {
                 });
     }
 
+    public static <V> ListenableFuture<?> rollupValuesAsync(ListenableFuture<List<V>> input,
+            Executor asyncExecutor, DoRollupValues<V> function) {
+        return transformAsync(input, asyncExecutor,
+                new AsyncFunction<List<V>, /*@Nullable*/ Object>() {
+                    @Override
+                    @SuppressWarnings("unchecked")
+                    public ListenableFuture</*@Nullable*/ Object> apply(List<V> values)
+                            throws Exception {
+                        if (values.isEmpty()) {
+                            return Futures.immediateFuture(null);
+                        }
+                        return (ListenableFuture</*@Nullable*/ Object>) function.execute(values);
+                    }
+                });
+    }
+
     public static ListenableFuture<?> transformAsync(ListenableFuture<ResultSet> input,
             Executor asyncExecutor, DoWithResults function) {
         return transformAsync(input, asyncExecutor,
@@ -189,4 +205,8 @@ public class MoreFutures {
     public interface DoRollup {
         ListenableFuture<?> execute(Iterable<Row> rows) throws Exception;
     }
+
+    public interface DoRollupValues<V> {
+        ListenableFuture<?> execute(List<V> values) throws Exception;
+    }
 }
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.cache.CacheStats;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnel;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import org.glowroot.common.util.Clock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+// remembers keys that were put within roughly the last two generations, using a pair of bloom
+// filters (current and previous generation) so that memory stays bounded regardless of the number
+// of distinct keys
+//
+// mightContain() can return a false positive (at approximately the configured rate), and a key is
+// remembered for at most two generations (less if generations fill up early), so callers must only
+// use it to skip work that is safe to skip for up to two generations
+//
+// each generation is sized from the number of keys put during the prior generation, and starts a
+// new generation early if it fills up, so the false positive rate holds as cardinality grows
+public class RecentKeyFilter {
+
+    private static final int MAX_EXPECTED_INSERTIONS = 10000000;
+
+    private final long generationMillis;
+    private final double fpp;
+    private final int minExpectedInsertions;
+    private final Clock clock;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    // guarded by this
+    private Generation current;
+    private @Nullable Generation previous;
+    private long generationNumber;
+
+    public RecentKeyFilter(long generationMillis, double fpp, int minExpectedInsertions,
+            Clock clock) {
+        checkArgument(generationMillis > 0, "generationMillis must be positive");
+        checkArgument(fpp > 0 && fpp < 1, "fpp must be between 0 and 1 (exclusive)");
+        checkArgument(minExpectedInsertions > 0, "minExpectedInsertions must be positive");
+        this.generationMillis = generationMillis;
+        this.fpp = fpp;
+        this.minExpectedInsertions = minExpectedInsertions;
+        this.clock = clock;
+        current = new Generation(generationNumber++, clock.currentTimeMillis(),
+                minExpectedInsertions, fpp);
+    }
+
+    public boolean mightContain(String key) {
+        boolean mightContain;
+        synchronized (this) {
+            rotateIfNeeded();
+            mightContain = current.filter.mightContain(key)
+                    || previous != null && previous.filter.mightContain(key);
+        }
+        if (mightContain) {
+            hitCount.getAndIncrement();
+        } else {
+            missCount.getAndIncrement();
+        }
+        return mightContain;
+    }
+
+    public void put(String key) {
+        synchronized (this) {
+            rotateIfNeeded();
+            if (current.filter.put(key)) {
+                current.insertions++;
+            }
+        }
+    }
+
+    public LocalCacheStats getLocalCacheStats() {
+        return new LocalCacheStats(
+                () -> new CacheStats(hitCount.get(), missCount.get(), 0, 0, 0, 0));
+    }
+
+    // guarded by this
+    private void rotateIfNeeded() {
+        long currentTimeMillis = clock.currentTimeMillis();
+        long elapsedMillis = currentTimeMillis - current.startTimeMillis;
+        boolean full = current.insertions >= current.expectedInsertions;
+        if (elapsedMillis < generationMillis && !full) {
+            return;
+        }
+        int expectedInsertions = (int) Math.min(
+                Math.max(2L * current.insertions, minExpectedInsertions), MAX_EXPECTED_INSERTIONS);
+        if (elapsedMillis >= 2 * generationMillis) {
+            // keys in the current generation are already older than a full generation
+            previous = null;
+        } else {
+            previous = current;
+        }
+        current = new Generation(generationNumber++, currentTimeMillis, expectedInsertions, fpp);
+    }
+
+    private static class Generation {
+
+        private final BloomFilter<String> filter;
+        private final long startTimeMillis;
+        private final int expectedInsertions;
+
+        // guarded by RecentKeyFilter.this
+        private int insertions;
+
+        private Generation(long generationNumber, long startTimeMillis, int expectedInsertions,
+                double fpp) {
+            // salting each generation's hashes so that a false positive in one generation is
+            // independent of false positives in the others
+            filter = BloomFilter.create(saltedFunnel(generationNumber), expectedInsertions, fpp);
+            this.startTimeMillis = startTimeMillis;
+            this.expectedInsertions = expectedInsertions;
+        }
+
+        private static Funnel<String> saltedFunnel(long salt) {
+            return (from, into) -> into.putLong(salt).putUnencodedChars(from);
+        }
+    }
+}
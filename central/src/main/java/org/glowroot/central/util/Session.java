@@ -1,5 +1,5 @@
 /*
- * Copyright 2017-2019 the original author or authors.
+ * Copyright 2017-2020 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -19,6 +19,7 @@ import java.lang.management.ManagementFactory;
 import java.util.Collection;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Semaphore;
 
 import javax.management.MBeanServer;
@@ -30,7 +31,7 @@ import com.datastax.driver.core.ConsistencyLevel;
 import com.datastax.driver.core.KeyspaceMetadata;
 import com.datastax.driver.core.PreparedStatement;
 import com.datastax.driver.core.ResultSet;
-import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Row;
 import com.datastax.driver.core.SimpleStatement;
 import com.datastax.driver.core.Statement;
 import com.datastax.driver.core.TableMetadata;
@@ -49,6 +50,7 @@ import org.checkerframework.checker.nullness.qual.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import static com.google.common.base.Preconditions.checkNotNull;
 import static java.util.concurrent.TimeUnit.HOURS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
@@ -211,6 +213,19 @@ public class Session {
         return throttleRead(() -> wrappedSession.executeAsync(statement));
     }
 
+    // reads one page of (at most) fetchSize rows at a time, passing each row to the consumer, and
+    // only fetching the next page once the prior page has been consumed, so that large scans do not
+    // need to hold all rows in memory at once
+    //
+    // the consumer is called from the executor (never concurrently for the same read), since
+    // fetching the next page waits on the read query limit which must not block the cassandra
+    // driver thread
+    public ListenableFuture<?> readAsync(Statement statement, int fetchSize, Executor executor,
+            RowConsumer consumer) throws Exception {
+        statement.setFetchSize(fetchSize);
+        return consumePages(readAsync(statement), executor, consumer, inRollupThread.get());
+    }
+
     public ListenableFuture<?> writeAsync(Statement statement) throws Exception {
         if (statement.getConsistencyLevel() == null && writeConsistencyLevel != null) {
             statement.setConsistencyLevel(writeConsistencyLevel);
@@ -400,11 +415,41 @@ public class Session {
         }
     }
 
+    private ListenableFuture<?> consumePages(ListenableFuture<ResultSet> future,
+            Executor executor, RowConsumer consumer, boolean inRollupThread) {
+        return Futures.transformAsync(future, new AsyncFunction<ResultSet, /*@Nullable*/ Object>() {
+            @Override
+            public ListenableFuture</*@Nullable*/ Object> apply(ResultSet results)
+                    throws Exception {
+                // rows that are available without fetching are the remainder of the current page
+                int available = results.getAvailableWithoutFetching();
+                for (int i = 0; i < available; i++) {
+                    consumer.accept(checkNotNull(results.one()));
+                }
+                if (results.isFullyFetched()) {
+                    return Futures.immediateFuture(null);
+                }
+                boolean priorInRollupThread = isInRollupThread();
+                setInRollupThread(inRollupThread);
+                try {
+                    @SuppressWarnings("unchecked")
+                    ListenableFuture</*@Nullable*/ Object> nextPages =
+                            (ListenableFuture</*@Nullable*/ Object>) consumePages(
+                                    throttleRead(results::fetchMoreResults), executor, consumer,
+                                    inRollupThread);
+                    return nextPages;
+                } finally {
+                    setInRollupThread(priorInRollupThread);
+                }
+            }
+        }, executor);
+    }
+
     private static ListenableFuture<ResultSet> throttle(DoUnderThrottle doUnderThrottle,
             Semaphore overallSemaphore) throws Exception {
         overallSemaphore.acquire();
         SettableFuture<ResultSet> outerFuture = SettableFuture.create();
-        ResultSetFuture innerFuture;
+        ListenableFuture<ResultSet> innerFuture;
         try {
             innerFuture = doUnderThrottle.execute();
         } catch (Throwable t) {
@@ -495,7 +540,11 @@ public class Session {
         return getTwcsCompactionClause("HOURS", getCompactionWindowSizeHours(expirationHours));
     }
 
+    public interface RowConsumer {
+        void accept(Row row) throws Exception;
+    }
+
     private interface DoUnderThrottle {
-        ResultSetFuture execute();
+        ListenableFuture<ResultSet> execute();
     }
 }
@@ -34,7 +34,7 @@ public class DownstreamServiceNotConnectedTest {
     private static ClusterManager clusterManager;
 
     private DownstreamServiceImpl downstreamService =
-            new DownstreamServiceImpl(mock(GrpcCommon.class), clusterManager);
+            new DownstreamServiceImpl(mock(GrpcCommon.class), clusterManager, null);
 
     @Rule
     public ExpectedException thrown = ExpectedException.none();
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.repo;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import org.glowroot.central.repo.CaptureTimeRanges.CaptureTimeRange;
+
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CaptureTimeRangesTest {
+
+    @Test
+    public void shouldNotSplitNarrowRange() {
+        // when
+        List<CaptureTimeRange> ranges = CaptureTimeRanges.split(0, MINUTES.toMillis(90));
+        // then
+        assertThat(ranges).containsExactly(ImmutableCaptureTimeRange.of(0, MINUTES.toMillis(90)));
+    }
+
+    @Test
+    public void shouldSplitWideRange() {
+        // when
+        List<CaptureTimeRange> ranges = CaptureTimeRanges.split(0, HOURS.toMillis(2));
+        // then
+        assertThat(ranges).containsExactly(ImmutableCaptureTimeRange.of(0, HOURS.toMillis(1)),
+                ImmutableCaptureTimeRange.of(HOURS.toMillis(1), HOURS.toMillis(2)));
+    }
+
+    @Test
+    public void shouldCapNumberOfRanges() {
+        // given
+        long from = 1000;
+        long to = from + HOURS.toMillis(24) + 3;
+        // when
+        List<CaptureTimeRange> ranges = CaptureTimeRanges.split(from, to);
+        // then
+        assertThat(ranges).hasSize(4);
+        assertThat(ranges.get(0).from()).isEqualTo(from);
+        assertThat(ranges.get(3).to()).isEqualTo(to);
+        for (int i = 1; i < ranges.size(); i++) {
+            assertThat(ranges.get(i).from()).isEqualTo(ranges.get(i - 1).to());
+        }
+    }
+}
@@ -39,7 +39,8 @@ import org.rauschig.jarchivelib.CompressionType;
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
-// see copies of this class in glowroot-agent-cassandra-plugin and glowroot-webdriver-tests
+// see copies of this class in glowroot-agent-cassandra-plugin, glowroot-webdriver-tests and
+// glowroot-central-benchmarks
 class CassandraWrapper {
 
     static final String CASSANDRA_VERSION;
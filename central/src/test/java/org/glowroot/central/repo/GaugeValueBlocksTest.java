@@ -0,0 +1,119 @@
+/*
+ * Copyright 2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.repo;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueMessage.GaugeValue;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class GaugeValueBlocksTest {
+
+    @Test
+    public void shouldRoundTripEmpty() {
+        // when
+        List<GaugeValue> gaugeValues =
+                GaugeValueBlocks.decode(GaugeValueBlocks.encode(ImmutableList.<GaugeValue>of()));
+        // then
+        assertThat(gaugeValues).isEmpty();
+    }
+
+    @Test
+    public void shouldRoundTripRegularValues() {
+        // given
+        List<GaugeValue> gaugeValues = new ArrayList<>();
+        for (int i = 0; i < 240; i++) {
+            gaugeValues.add(createGaugeValue(1000000000000L + 5000 * i, 100 + (i % 3), 1));
+        }
+        // when
+        ByteBuffer buffer = GaugeValueBlocks.encode(gaugeValues);
+        // then
+        assertThat(GaugeValueBlocks.decode(buffer)).isEqualTo(gaugeValues);
+        // constant interval and weight only costs a bit each for capture time and weight
+        assertThat(buffer.remaining()).isLessThan(240 * 4);
+    }
+
+    @Test
+    public void shouldRoundTripIrregularValues() {
+        // given
+        Random random = new Random(0);
+        List<GaugeValue> gaugeValues = new ArrayList<>();
+        long captureTime = 1000000000000L;
+        for (int i = 0; i < 1000; i++) {
+            // mix of small jitter and large gaps, to exercise each delta-of-delta bucket
+            captureTime += i % 50 == 0 ? 1 + random.nextInt(1000000) : 4990 + random.nextInt(20);
+            double value;
+            switch (i % 4) {
+                case 0:
+                    value = random.nextDouble();
+                    break;
+                case 1:
+                    value = -random.nextInt(100);
+                    break;
+                case 2:
+                    value = Double.NaN;
+                    break;
+                default:
+                    value = Double.MAX_VALUE;
+            }
+            long weight = i % 7 == 0 ? random.nextLong() & Long.MAX_VALUE : 5000;
+            gaugeValues.add(createGaugeValue(captureTime, value, weight));
+        }
+        // when
+        List<GaugeValue> decoded = GaugeValueBlocks.decode(GaugeValueBlocks.encode(gaugeValues));
+        // then
+        assertThat(decoded).hasSize(gaugeValues.size());
+        for (int i = 0; i < gaugeValues.size(); i++) {
+            GaugeValue expected = gaugeValues.get(i);
+            GaugeValue actual = decoded.get(i);
+            assertThat(actual.getCaptureTime()).isEqualTo(expected.getCaptureTime());
+            assertThat(Double.doubleToRawLongBits(actual.getValue()))
+                    .isEqualTo(Double.doubleToRawLongBits(expected.getValue()));
+            assertThat(actual.getWeight()).isEqualTo(expected.getWeight());
+        }
+    }
+
+    @Test
+    public void shouldDecodeFromNonZeroPosition() {
+        // given
+        List<GaugeValue> gaugeValues = ImmutableList.of(createGaugeValue(5000, 1.5, 2),
+                createGaugeValue(10000, 2.5, 2), createGaugeValue(15000, 2.5, 3));
+        ByteBuffer encoded = GaugeValueBlocks.encode(gaugeValues);
+        ByteBuffer buffer = ByteBuffer.allocate(encoded.remaining() + 3);
+        buffer.put(new byte[3]);
+        buffer.put(encoded);
+        buffer.position(3);
+        // when
+        List<GaugeValue> decoded = GaugeValueBlocks.decode(buffer);
+        // then
+        assertThat(decoded).isEqualTo(gaugeValues);
+    }
+
+    private static GaugeValue createGaugeValue(long captureTime, double value, long weight) {
+        return GaugeValue.newBuilder()
+                .setCaptureTime(captureTime)
+                .setValue(value)
+                .setWeight(weight)
+                .build();
+    }
+}
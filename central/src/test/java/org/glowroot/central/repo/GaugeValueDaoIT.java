@@ -1,5 +1,5 @@
 /*
- * Copyright 2016-2019 the original author or authors.
+ * Copyright 2016-2020 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -45,6 +45,7 @@ public class GaugeValueDaoIT {
     private static ExecutorService asyncExecutor;
     private static AgentConfigDao agentConfigDao;
     private static GaugeValueDao gaugeValueDao;
+    private static GaugeValueDao gaugeValueBlocksDao;
 
     @BeforeClass
     public static void setUp() throws Exception {
@@ -64,7 +65,10 @@ public class GaugeValueDaoIT {
                 agentConfigDao, userDao, roleDao, "");
         gaugeValueDao = new GaugeValueDaoWithV09Support(ImmutableSet.of(), 0, Clock.systemClock(),
                 new GaugeValueDaoImpl(session, configRepository, clusterManager, asyncExecutor,
-                        Clock.systemClock()));
+                        false, Clock.systemClock()));
+        gaugeValueBlocksDao = new GaugeValueDaoWithV09Support(ImmutableSet.of(), 0,
+                Clock.systemClock(), new GaugeValueDaoImpl(session, configRepository,
+                        clusterManager, asyncExecutor, true, Clock.systemClock()));
     }
 
     @AfterClass
@@ -150,6 +154,57 @@ public class GaugeValueDaoIT {
         assertThat(gaugeValues.get(0).getWeight()).isEqualTo(2);
     }
 
+    @Test
+    public void shouldReadSameWithAndWithoutBlocks() throws Exception {
+        // truncates both the individual row tables (shared by the two daos) and the block tables
+        gaugeValueBlocksDao.truncateAll();
+        // first block (ending at 1200000) is sealed by the rollup below, and second block (ending
+        // at 2400000) is partially sealed by the rollup below, with more values added after
+        List<GaugeValue> sealedData = new ArrayList<>();
+        for (int captureTime = 5000; captureTime <= 1800000; captureTime += 5000) {
+            sealedData.add(createData("the gauge:attr1", captureTime, captureTime % 7 * 1.5));
+        }
+        List<GaugeValue> unsealedData = new ArrayList<>();
+        for (int captureTime = 1805000; captureTime <= 2700000; captureTime += 5000) {
+            unsealedData.add(createData("the gauge:attr1", captureTime, captureTime % 11 * 2.5));
+        }
+
+        // when
+        gaugeValueDao.store("no blocks", sealedData);
+        gaugeValueBlocksDao.store("blocks", sealedData);
+        gaugeValueDao.rollup("no blocks");
+        gaugeValueBlocksDao.rollup("blocks");
+        gaugeValueDao.store("no blocks", unsealedData);
+        gaugeValueBlocksDao.store("blocks", unsealedData);
+
+        // then
+        assertSameGaugeValues(0, 2700000, 0);
+        assertSameGaugeValues(600000, 2000000, 0);
+        assertSameGaugeValues(1200000, 1200000, 0);
+        assertSameGaugeValues(0, 2700000, 1);
+        assertThat(gaugeValueBlocksDao.readGaugeValues("blocks", "the gauge:attr1", 0, 2700000,
+                0)).hasSize(540);
+    }
+
+    private static void assertSameGaugeValues(long from, long to, int rollupLevel)
+            throws Exception {
+        List<GaugeValue> gaugeValues = gaugeValueDao.readGaugeValues("no blocks",
+                "the gauge:attr1", from, to, rollupLevel);
+        List<GaugeValue> blockGaugeValues = gaugeValueBlocksDao.readGaugeValues("blocks",
+                "the gauge:attr1", from, to, rollupLevel);
+        assertThat(gaugeValues).isNotEmpty();
+        assertThat(blockGaugeValues).isEqualTo(gaugeValues);
+    }
+
+    private static GaugeValue createData(String gaugeName, long captureTime, double value) {
+        return GaugeValue.newBuilder()
+                .setGaugeName(gaugeName)
+                .setCaptureTime(captureTime)
+                .setValue(value)
+                .setWeight(1)
+                .build();
+    }
+
     private static List<GaugeValue> createData(int captureTime) {
         List<GaugeValue> gaugeValues = new ArrayList<>();
         gaugeValues.add(GaugeValue.newBuilder()
@@ -0,0 +1,222 @@
+/*
+ * Copyright 2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.repo;
+
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.utils.UUIDs;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.Futures;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.central.repo.NeedsRollupTracker.NeedsRollup;
+import org.glowroot.central.repo.NeedsRollupTracker.NeedsRollupFromChildren;
+import org.glowroot.central.util.ClusterManager;
+import org.glowroot.central.util.Session;
+import org.glowroot.common.util.Clock;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class NeedsRollupTrackerTest {
+
+    private static final long ONE_MINUTE = MINUTES.toMillis(1);
+    private static final long FIVE_MINUTES = MINUTES.toMillis(5);
+
+    private Session session;
+    private Clock clock;
+    private PreparedStatement insertNeedsRollup1;
+    private PreparedStatement insertNeedsRollup2;
+    private PreparedStatement deleteNeedsRollup1;
+    private PreparedStatement insertNeedsRollupFromChild;
+    private PreparedStatement deleteNeedsRollupFromChild;
+    private NeedsRollupTracker tracker;
+
+    @Before
+    public void beforeEach() throws Exception {
+        session = mock(Session.class);
+        doReturn(Futures.immediateFuture(null)).when(session).writeAsync(any(Statement.class));
+        clock = mock(Clock.class);
+        insertNeedsRollup1 = mockPreparedStatement();
+        insertNeedsRollup2 = mockPreparedStatement();
+        deleteNeedsRollup1 = mockPreparedStatement();
+        insertNeedsRollupFromChild = mockPreparedStatement();
+        deleteNeedsRollupFromChild = mockPreparedStatement();
+        tracker = new NeedsRollupTracker("test", session, ClusterManager.create(),
+                ImmutableList.of(insertNeedsRollup1, insertNeedsRollup2),
+                ImmutableList.of(mockPreparedStatement(), mockPreparedStatement()),
+                ImmutableList.of(deleteNeedsRollup1, mockPreparedStatement()),
+                insertNeedsRollupFromChild, mockPreparedStatement(), deleteNeedsRollupFromChild,
+                clock);
+    }
+
+    @Test
+    public void shouldCoalesceWorkAlreadyWritten() throws Exception {
+        // given
+        when(clock.currentTimeMillis()).thenReturn(10 * ONE_MINUTE);
+        // when
+        tracker.insertNeedsRollup("one", 1, 15 * ONE_MINUTE, ImmutableSet.of("a", "b"),
+                FIVE_MINUTES, 0);
+        tracker.insertNeedsRollup("one", 1, 15 * ONE_MINUTE, ImmutableSet.of("a"), FIVE_MINUTES,
+                0);
+        tracker.insertNeedsRollup("one", 1, 15 * ONE_MINUTE, ImmutableSet.of("b"), FIVE_MINUTES,
+                0);
+        // then
+        verify(insertNeedsRollup1, times(1)).bind();
+    }
+
+    @Test
+    public void shouldWriteNewKeys() throws Exception {
+        // given
+        when(clock.currentTimeMillis()).thenReturn(10 * ONE_MINUTE);
+        // when
+        tracker.insertNeedsRollup("one", 1, 15 * ONE_MINUTE, ImmutableSet.of("a"), FIVE_MINUTES,
+                0);
+        tracker.insertNeedsRollup("one", 1, 15 * ONE_MINUTE, ImmutableSet.of("b"), FIVE_MINUTES,
+                0);
+        tracker.insertNeedsRollup("one", 1, 15 * ONE_MINUTE, ImmutableSet.of("a", "b"),
+                FIVE_MINUTES, 0);
+        tracker.insertNeedsRollup("one", 1, 20 * ONE_MINUTE, ImmutableSet.of("a"), FIVE_MINUTES,
+                0);
+        tracker.insertNeedsRollup("two", 1, 15 * ONE_MINUTE, ImmutableSet.of("a"), FIVE_MINUTES,
+                0);
+        // then
+        verify(insertNeedsRollup1, times(4)).bind();
+    }
+
+    @Test
+    public void shouldWriteOnceOldEnoughToRollup() throws Exception {
+        // given
+        when(clock.currentTimeMillis()).thenReturn(10 * ONE_MINUTE);
+        tracker.insertNeedsRollup("one", 1, 15 * ONE_MINUTE, ImmutableSet.of("a"), FIVE_MINUTES,
+                0);
+        // when
+        // prior row may have already been read (and then deleted) by a rollup
+        when(clock.currentTimeMillis()).thenReturn(20 * ONE_MINUTE + 1);
+        tracker.insertNeedsRollup("one", 1, 15 * ONE_MINUTE, ImmutableSet.of("a"), FIVE_MINUTES,
+                0);
+        // then
+        verify(insertNeedsRollup1, times(2)).bind();
+    }
+
+    @Test
+    public void shouldNotCoalesceFromChild() throws Exception {
+        // given
+        when(clock.currentTimeMillis()).thenReturn(10 * ONE_MINUTE);
+        // when
+        tracker.insertNeedsRollupFromChild("parent::", "parent::one", 10 * ONE_MINUTE,
+                ImmutableSet.of("a"), 0);
+        tracker.insertNeedsRollupFromChild("parent::", "parent::one", 10 * ONE_MINUTE,
+                ImmutableSet.of("a"), 0);
+        // then
+        verify(insertNeedsRollupFromChild, times(2)).bind();
+    }
+
+    @Test
+    public void shouldReadAndDeleteNeedsRollup() throws Exception {
+        // given
+        UUID uniqueness1 = UUIDs.timeBased();
+        UUID uniqueness2 = UUIDs.timeBased();
+        UUID uniqueness3 = UUIDs.timeBased();
+        ResultSet results = mockResultSet(
+                mockRow(5 * ONE_MINUTE, uniqueness1, null, ImmutableSet.of("a")),
+                mockRow(5 * ONE_MINUTE, uniqueness2, null, ImmutableSet.of("b")),
+                mockRow(10 * ONE_MINUTE, uniqueness3, null, ImmutableSet.of("a")));
+        when(session.read(any(Statement.class))).thenReturn(results);
+        when(clock.currentTimeMillis()).thenReturn(14 * ONE_MINUTE);
+        // when
+        List<NeedsRollup> needsRollupList = tracker.getNeedsRollupList("one", 1, FIVE_MINUTES);
+        // then
+        // 10 minutes is not old enough to rollup yet
+        assertThat(needsRollupList).hasSize(1);
+        NeedsRollup needsRollup = needsRollupList.get(0);
+        assertThat(needsRollup.getCaptureTime()).isEqualTo(5 * ONE_MINUTE);
+        assertThat(needsRollup.getKeys()).containsOnly("a", "b");
+
+        // when
+        tracker.postRollup("one", needsRollup, 30 * ONE_MINUTE, 0);
+        // then
+        verify(insertNeedsRollup2, times(1)).bind();
+        verify(deleteNeedsRollup1, times(2)).bind();
+        verify(session, times(2)).writeAsync(any(Statement.class));
+    }
+
+    @Test
+    public void shouldReadAndDeleteNeedsRollupFromChildren() throws Exception {
+        // given
+        UUID uniqueness1 = UUIDs.timeBased();
+        UUID uniqueness2 = UUIDs.timeBased();
+        ResultSet results = mockResultSet(
+                mockRow(10 * ONE_MINUTE, uniqueness1, "parent::one", ImmutableSet.of("a", "b")),
+                mockRow(10 * ONE_MINUTE, uniqueness2, "parent::two", ImmutableSet.of("a")));
+        when(session.read(any(Statement.class))).thenReturn(results);
+        when(clock.currentTimeMillis()).thenReturn(10 * ONE_MINUTE);
+        // when
+        List<NeedsRollupFromChildren> needsRollupFromChildrenList =
+                tracker.getNeedsRollupFromChildrenList("parent::");
+        // then
+        assertThat(needsRollupFromChildrenList).hasSize(1);
+        NeedsRollupFromChildren needsRollupFromChildren = needsRollupFromChildrenList.get(0);
+        assertThat(needsRollupFromChildren.getKeys().get("a")).containsOnly("parent::one",
+                "parent::two");
+        assertThat(needsRollupFromChildren.getKeys().get("b")).containsOnly("parent::one");
+
+        // when
+        tracker.postRollupFromChildren("parent::", needsRollupFromChildren, 1, FIVE_MINUTES, 0);
+        // then
+        verify(insertNeedsRollup1, times(1)).bind();
+        verify(deleteNeedsRollupFromChild, times(2)).bind();
+    }
+
+    private static PreparedStatement mockPreparedStatement() {
+        PreparedStatement preparedStatement = mock(PreparedStatement.class);
+        when(preparedStatement.bind()).thenReturn(mock(BoundStatement.class));
+        return preparedStatement;
+    }
+
+    private static ResultSet mockResultSet(Row... rows) {
+        ResultSet results = mock(ResultSet.class);
+        when(results.iterator()).thenReturn(ImmutableList.copyOf(rows).iterator());
+        return results;
+    }
+
+    private static Row mockRow(long captureTime, UUID uniqueness, String childAgentRollupId,
+            ImmutableSet<String> keys) {
+        Row row = mock(Row.class);
+        when(row.getTimestamp(anyInt())).thenReturn(new Date(captureTime));
+        when(row.getUUID(anyInt())).thenReturn(uniqueness);
+        when(row.getString(anyInt())).thenReturn(childAgentRollupId);
+        when(row.getSet(anyInt(), eq(String.class))).thenReturn(keys);
+        return row;
+    }
+}
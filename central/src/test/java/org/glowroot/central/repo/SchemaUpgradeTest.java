@@ -1,5 +1,5 @@
 /*
- * Copyright 2016 the original author or authors.
+ * Copyright 2016-2020 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,12 +15,15 @@
  */
 package org.glowroot.central.repo;
 
+import java.util.List;
 import java.util.Set;
 
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Ordering;
 import org.junit.Test;
 
+import org.glowroot.central.repo.SchemaUpgrade.TokenRange;
+
 import static org.assertj.core.api.Assertions.assertThat;
 
 public class SchemaUpgradeTest {
@@ -59,4 +62,22 @@ public class SchemaUpgradeTest {
                 "agent:abc,mno,xyz:error", "agent:abc,mno,xyz:jvm:environment",
                 "agent:abc,mno,xyz:jvm:gauges", "agent:abc,mno,xyz:transaction");
     }
+
+    @Test
+    public void shouldSplitTokenRing() {
+        // when
+        List<TokenRange> tokenRanges = SchemaUpgrade.splitTokenRing(256);
+        // then
+        assertThat(tokenRanges).hasSize(256);
+        assertThat(tokenRanges.get(0).start()).isEqualTo(Long.MIN_VALUE);
+        assertThat(tokenRanges.get(255).end()).isEqualTo(Long.MAX_VALUE);
+        for (int i = 0; i < tokenRanges.size(); i++) {
+            TokenRange tokenRange = tokenRanges.get(i);
+            assertThat(tokenRange.end()).isGreaterThan(tokenRange.start());
+            if (i > 0) {
+                assertThat(tokenRange.start()).isEqualTo(tokenRanges.get(i - 1).end());
+            }
+        }
+        assertThat(tokenRanges.get(128).start()).isBetween(-1000000L, 1000000L);
+    }
 }
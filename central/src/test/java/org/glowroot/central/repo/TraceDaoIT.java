@@ -1,5 +1,5 @@
 /*
- * Copyright 2016-2019 the original author or authors.
+ * Copyright 2016-2020 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -16,6 +16,8 @@
 package org.glowroot.central.repo;
 
 import java.util.Collection;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import com.datastax.driver.core.Cluster;
 import com.datastax.driver.core.PoolingOptions;
@@ -57,6 +59,7 @@ public class TraceDaoIT {
     private static Cluster cluster;
     private static Session session;
     private static ClusterManager clusterManager;
+    private static ExecutorService asyncExecutor;
     private static TraceDao traceDao;
 
     @Parameter
@@ -75,19 +78,22 @@ public class TraceDaoIT {
                 PoolingOptions.DEFAULT_MAX_QUEUE_SIZE);
 
         clusterManager = ClusterManager.create();
+        asyncExecutor = Executors.newCachedThreadPool();
         ConfigRepositoryImpl configRepository = mock(ConfigRepositoryImpl.class);
         when(configRepository.getCentralStorageConfig())
                 .thenReturn(ImmutableCentralStorageConfig.builder().build());
         Clock clock = mock(Clock.class);
-        when(clock.currentTimeMillis()).thenReturn(200L);
+        // the search index is enabled at time 0, so that it covers the traces stored below
+        when(clock.currentTimeMillis()).thenReturn(0L, 200L);
         traceDao = new TraceDaoWithV09Support(ImmutableSet.of(), 0, 0, clock,
                 new TraceDaoImpl(session, mock(TransactionTypeDao.class),
                         mock(FullQueryTextDao.class), mock(TraceAttributeNameDao.class),
-                        configRepository, clock));
+                        configRepository, asyncExecutor, true, clock));
     }
 
     @AfterClass
     public static void tearDown() throws Exception {
+        asyncExecutor.shutdown();
         clusterManager.close();
         session.close();
         cluster.close();
@@ -313,6 +319,85 @@ public class TraceDaoIT {
         assertThat(queryResult.records()).isEmpty();
     }
 
+    @Test
+    public void shouldReadTraceWithUserQualifier() throws Exception {
+        // given
+        Trace trace = TraceTestData.createTrace(partial);
+        traceDao.store(AGENT_ID, trace);
+        TraceQuery query = ImmutableTraceQuery.builder()
+                .transactionType("unit test")
+                .transactionName("test transaction name")
+                .from(0)
+                .to(100)
+                .build();
+        TracePointFilter filter = ImmutableTracePointFilter.builder()
+                .durationNanosLow(0)
+                .userComparator(StringComparator.EQUALS)
+                .user("J")
+                .build();
+
+        // when
+        Result<TracePoint> queryResult = traceDao.readSlowPoints(AGENT_ID, query, filter, 1);
+
+        // then
+        assertThat(queryResult.records()).hasSize(1);
+    }
+
+    @Test
+    public void shouldNotReadTraceWithNonMatchingUserQualifier() throws Exception {
+        // given
+        Trace trace = TraceTestData.createTrace(partial);
+        traceDao.store(AGENT_ID, trace);
+        TraceQuery query = ImmutableTraceQuery.builder()
+                .transactionType("unit test")
+                .from(0)
+                .to(100)
+                .build();
+        TracePointFilter filter = ImmutableTracePointFilter.builder()
+                .durationNanosLow(0)
+                .userComparator(StringComparator.EQUALS)
+                .user("k")
+                .build();
+
+        // when
+        Result<TracePoint> queryResult = traceDao.readSlowPoints(AGENT_ID, query, filter, 1);
+
+        // then
+        assertThat(queryResult.records()).isEmpty();
+    }
+
+    @Test
+    public void shouldReadTraceErrorPointWithUserQualifier() throws Exception {
+        // given
+        Trace trace = TraceTestData.createTrace(false); // partial records are not inserted into
+                                                        // error tables
+        trace = trace.toBuilder()
+                .setHeader(trace.getHeader().toBuilder()
+                        .setSlow(false)
+                        .setError(Trace.Error.newBuilder()
+                                .setMessage("this is A test")))
+                .build();
+        traceDao.store(AGENT_ID, trace);
+        TraceQuery query = ImmutableTraceQuery.builder()
+                .transactionType("unit test")
+                .from(0)
+                .to(100)
+                .build();
+        TracePointFilter filter = ImmutableTracePointFilter.builder()
+                .durationNanosLow(0)
+                .userComparator(StringComparator.EQUALS)
+                .user("j")
+                .build();
+
+        // when
+        Result<TracePoint> errorResult = traceDao.readErrorPoints(AGENT_ID, query, filter, 1);
+        Result<TracePoint> slowResult = traceDao.readSlowPoints(AGENT_ID, query, filter, 1);
+
+        // then
+        assertThat(errorResult.records()).hasSize(1);
+        assertThat(slowResult.records()).isEmpty();
+    }
+
     @Test
     public void shouldReadTraceError() throws Exception {
         // given
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.repo;
+
+import com.google.common.base.Strings;
+import org.junit.Test;
+
+import org.glowroot.central.repo.TraceDaoImpl.SearchIndexToken;
+import org.glowroot.common.live.ImmutableTracePointFilter;
+import org.glowroot.common.live.StringComparator;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TraceDaoImplTest {
+
+    @Test
+    public void shouldCreateSearchIndexTokens() {
+        // given
+        Trace.Header header = Trace.Header.newBuilder()
+                .setUser("Joe")
+                .addAttribute(Trace.Attribute.newBuilder()
+                        .setName("Region")
+                        .addValue("east")
+                        .addValue("EAST")
+                        .addValue("west"))
+                .addAttribute(Trace.Attribute.newBuilder()
+                        .setName("payload")
+                        .addValue(Strings.repeat("x", 2000)))
+                .build();
+        // when
+        // then
+        assertThat(TraceDaoImpl.getSearchIndexTokens(header)).containsExactly(
+                ImmutableSearchIndexToken.of(SearchIndexToken.USER, "", "JOE"),
+                ImmutableSearchIndexToken.of(SearchIndexToken.ATTRIBUTE, "REGION", "EAST"),
+                ImmutableSearchIndexToken.of(SearchIndexToken.ATTRIBUTE, "REGION", "WEST"));
+    }
+
+    @Test
+    public void shouldUseSearchIndexForEqualsFilter() {
+        // given
+        ImmutableTracePointFilter filter = ImmutableTracePointFilter.builder()
+                .durationNanosLow(0)
+                .attributeName("region")
+                .attributeValueComparator(StringComparator.EQUALS)
+                .attributeValue("East")
+                .build();
+        // when
+        // then
+        assertThat(TraceDaoImpl.getSearchIndexToken(filter)).isEqualTo(
+                ImmutableSearchIndexToken.of(SearchIndexToken.ATTRIBUTE, "REGION", "EAST"));
+        assertThat(TraceDaoImpl.getSearchIndexToken(filter
+                .withUserComparator(StringComparator.EQUALS)
+                .withUser("joe")))
+                        .isEqualTo(ImmutableSearchIndexToken.of(SearchIndexToken.USER, "", "JOE"));
+    }
+
+    @Test
+    public void shouldNotUseSearchIndexForOtherFilters() {
+        // given
+        ImmutableTracePointFilter filter = ImmutableTracePointFilter.builder()
+                .durationNanosLow(0)
+                .userComparator(StringComparator.BEGINS)
+                .user("jo")
+                .attributeName("region")
+                .attributeValueComparator(StringComparator.CONTAINS)
+                .attributeValue("east")
+                .build();
+        // when
+        // then
+        assertThat(TraceDaoImpl.getSearchIndexToken(filter)).isNull();
+        assertThat(TraceDaoImpl.getSearchIndexToken(filter
+                .withAttributeName("")
+                .withAttributeValueComparator(StringComparator.EQUALS))).isNull();
+    }
+}
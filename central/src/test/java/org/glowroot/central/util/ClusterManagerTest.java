@@ -0,0 +1,120 @@
+/*
+ * Copyright 2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.util;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.central.util.Cache.ValueCodec;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ClusterManagerTest {
+
+    private ClusterManager clusterManager;
+
+    @Before
+    public void beforeEach() {
+        clusterManager = ClusterManager.create();
+    }
+
+    @After
+    public void afterEach() throws Exception {
+        clusterManager.close();
+    }
+
+    @Test
+    public void shouldLoadOffHeapCacheValueOnce() throws Exception {
+        // given
+        AtomicInteger loadCount = new AtomicInteger();
+        Cache<String, String> cache = clusterManager.createPerAgentOffHeapCache("test", 1024,
+                new StringCodec(), key -> key + loadCount.incrementAndGet());
+        // when
+        String value1 = cache.get("abc");
+        String value2 = cache.get("abc");
+        // then
+        assertThat(value1).isEqualTo("abc1");
+        assertThat(value2).isEqualTo("abc1");
+        assertThat(loadCount.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldReloadOffHeapCacheValueAfterInvalidate() throws Exception {
+        // given
+        AtomicInteger loadCount = new AtomicInteger();
+        Cache<String, String> cache = clusterManager.createPerAgentOffHeapCache("test", 1024,
+                new StringCodec(), key -> key + loadCount.incrementAndGet());
+        cache.get("abc");
+        // when
+        cache.invalidate("abc");
+        // then
+        assertThat(cache.get("abc")).isEqualTo("abc2");
+    }
+
+    @Test
+    public void shouldEvictOffHeapCacheValuesBySize() throws Exception {
+        // given
+        AtomicInteger loadCount = new AtomicInteger();
+        Cache<String, String> cache = clusterManager.createPerAgentOffHeapCache("test", 10,
+                new StringCodec(), key -> key + loadCount.incrementAndGet());
+        // when
+        cache.get("abcdefgh");
+        cache.get("ijklmnop");
+        cache.get("abcdefgh");
+        // then
+        assertThat(loadCount.get()).isEqualTo(3);
+    }
+
+    @Test
+    public void shouldExposeOffHeapCacheStats() throws Exception {
+        // given
+        Cache<String, String> cache = clusterManager.createPerAgentOffHeapCache("test", 1024,
+                new StringCodec(), key -> key);
+        // when
+        cache.get("abc");
+        cache.get("abc");
+        cache.get("xyz");
+        // then
+        ObjectName objectName =
+                ObjectName.getInstance("org.glowroot.central:type=Cache,name=test");
+        CompositeData stats = (CompositeData) ManagementFactory.getPlatformMBeanServer()
+                .getAttribute(objectName, "Stats");
+        assertThat(stats.get("requestCount")).isEqualTo(3L);
+        assertThat(stats.get("hitCount")).isEqualTo(1L);
+        assertThat(stats.get("missCount")).isEqualTo(2L);
+    }
+
+    private static class StringCodec implements ValueCodec<String> {
+
+        @Override
+        public byte[] encode(String value) {
+            return value.getBytes(UTF_8);
+        }
+
+        @Override
+        public String decode(byte[] bytes) {
+            return new String(bytes, UTF_8);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.util;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.central.util.LocalCacheStatsMXBean.LocalCacheStatsWrapper;
+import org.glowroot.common.util.Clock;
+
+import static java.util.concurrent.TimeUnit.HOURS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class RecentKeyFilterTest {
+
+    private static final long ONE_HOUR = HOURS.toMillis(1);
+
+    private Clock clock;
+    private RecentKeyFilter filter;
+
+    @Before
+    public void beforeEach() {
+        clock = mock(Clock.class);
+        when(clock.currentTimeMillis()).thenReturn(0L);
+        filter = new RecentKeyFilter(ONE_HOUR, 0.001, 100, clock);
+    }
+
+    @Test
+    public void shouldRememberKeysForOneToTwoGenerations() {
+        // given
+        filter.put("a");
+        // when
+        when(clock.currentTimeMillis()).thenReturn(ONE_HOUR + 1);
+        // then
+        assertThat(filter.mightContain("a")).isTrue();
+        assertThat(filter.mightContain("b")).isFalse();
+
+        // when
+        when(clock.currentTimeMillis()).thenReturn(2 * ONE_HOUR + 2);
+        // then
+        assertThat(filter.mightContain("a")).isFalse();
+    }
+
+    @Test
+    public void shouldForgetKeysAfterIdlePeriod() {
+        // given
+        filter.put("a");
+        // when
+        when(clock.currentTimeMillis()).thenReturn(2 * ONE_HOUR);
+        // then
+        assertThat(filter.mightContain("a")).isFalse();
+    }
+
+    @Test
+    public void shouldHoldFalsePositiveRateWhenCardinalityGrows() {
+        // given
+        for (int i = 0; i < 10000; i++) {
+            filter.put("key" + i);
+        }
+        // when
+        int falsePositives = 0;
+        for (int i = 0; i < 10000; i++) {
+            if (filter.mightContain("other" + i)) {
+                falsePositives++;
+            }
+        }
+        // then
+        // generations fill up early and are each resized, so at most two generations are checked
+        assertThat(falsePositives).isLessThan(50);
+        // the most recent keys are still remembered
+        assertThat(filter.mightContain("key9999")).isTrue();
+    }
+
+    @Test
+    public void shouldRecordHitsAndMisses() {
+        // given
+        filter.put("a");
+        // when
+        filter.mightContain("a");
+        filter.mightContain("a");
+        filter.mightContain("b");
+        // then
+        LocalCacheStatsWrapper stats = filter.getLocalCacheStats().getStats();
+        assertThat(stats.getHitCount()).isEqualTo(2);
+        assertThat(stats.getMissCount()).isEqualTo(1);
+    }
+}
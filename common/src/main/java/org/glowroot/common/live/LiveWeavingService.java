@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2016 the original author or authors.
+ * Copyright 2015-2020 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -19,6 +19,7 @@ import java.util.List;
 
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.GlobalMeta;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.MethodSignature;
+import org.glowroot.wire.api.model.DownstreamServiceOuterClass.ReweaveResponse;
 
 public interface LiveWeavingService {
 
@@ -35,5 +36,5 @@ public interface LiveWeavingService {
     List<MethodSignature> getMethodSignatures(String agentId, String className, String methodName)
             throws Exception;
 
-    int reweave(String agentId) throws Exception;
+    ReweaveResponse reweave(String agentId) throws Exception;
 }
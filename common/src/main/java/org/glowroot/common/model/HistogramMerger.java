@@ -0,0 +1,323 @@
+/*
+ * Copyright 2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common.model;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import com.google.protobuf.ByteString;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramIterationValue;
+
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+// merges many stored histograms (see LazyHistogram.toProto()) in order to compute percentiles
+// across them, without decoding each one into an HdrHistogram (which allocates a 2mb+ counts array
+// per histogram due to the 5 significant digits)
+//
+// encoded histograms are decoded straight from their bytes into a single reusable counts array
+// using the same bucket layout as the HdrHistogram created by LazyHistogram, and percentiles are
+// computed in a single pass over the summed counts
+//
+// the results are identical to merging the same histograms with LazyHistogram
+public class HistogramMerger {
+
+    // HdrHistogram V2 encoding (uncompressed), see AbstractHistogram.encodeIntoByteBuffer()
+    private static final int V2_ENCODING_COOKIE_BASE = 0x1c849303;
+    private static final int ENCODING_HEADER_SIZE = 40;
+
+    private static final long LOWEST_DISCERNIBLE_VALUE =
+            LazyHistogram.HISTOGRAM_LOWEST_DISCERNIBLE_VALUE;
+    private static final int SIGNIFICANT_DIGITS = LazyHistogram.HISTOGRAM_SIGNIFICANT_DIGITS;
+
+    // same derivation as in AbstractHistogram.init()
+    private static final int UNIT_MAGNITUDE =
+            (int) (Math.log(LOWEST_DISCERNIBLE_VALUE) / Math.log(2));
+    private static final int SUB_BUCKET_HALF_COUNT_MAGNITUDE =
+            (int) Math.ceil(Math.log(2 * Math.pow(10, SIGNIFICANT_DIGITS)) / Math.log(2)) - 1;
+    private static final int SUB_BUCKET_HALF_COUNT = 1 << SUB_BUCKET_HALF_COUNT_MAGNITUDE;
+    private static final long SUB_BUCKET_MASK =
+            ((long) (SUB_BUCKET_HALF_COUNT << 1) - 1) << UNIT_MAGNITUDE;
+    private static final int LEADING_ZERO_COUNT_BASE =
+            64 - UNIT_MAGNITUDE - SUB_BUCKET_HALF_COUNT_MAGNITUDE - 1;
+
+    private static final int MAX_RAW_VALUES = LazyHistogram.MAX_VALUES;
+
+    // raw values are retained (and percentiles computed exactly) until an encoded histogram is
+    // merged or there are too many of them, same as LazyHistogram
+    private long[] rawValues = new long[8];
+    private int rawValueCount;
+    private boolean rawValuesSorted;
+
+    private long[] counts = new long[0];
+    private boolean useCounts;
+    private long totalCount;
+    // the range of counts that can be non-zero, so that percentile passes and reset() only touch
+    // the part of the counts array that is used
+    private int minIndex = Integer.MAX_VALUE;
+    private int maxIndex = -1;
+
+    public void merge(Aggregate.Histogram histogram) {
+        ByteString encodedBytes = histogram.getEncodedBytes();
+        if (encodedBytes.isEmpty()) {
+            List<Long> orderedRawValues = histogram.getOrderedRawValueList();
+            for (int i = 0; i < orderedRawValues.size(); i++) {
+                add(orderedRawValues.get(i));
+            }
+        } else {
+            switchToCounts();
+            ByteBuffer buffer = encodedBytes.asReadOnlyByteBuffer();
+            if (!mergeEncodedCounts(buffer)) {
+                mergeDecodedHistogram(encodedBytes.asReadOnlyByteBuffer());
+            }
+        }
+    }
+
+    public void merge(HistogramMerger histogram) {
+        if (!histogram.useCounts) {
+            for (int i = 0; i < histogram.rawValueCount; i++) {
+                add(histogram.rawValues[i]);
+            }
+            return;
+        }
+        switchToCounts();
+        long[] otherCounts = histogram.counts;
+        for (int i = histogram.minIndex; i <= histogram.maxIndex; i++) {
+            long count = otherCounts[i];
+            if (count != 0) {
+                addToCountsAtIndex(i, count);
+            }
+        }
+    }
+
+    public void add(long value) {
+        if (useCounts) {
+            addToCounts(value, 1);
+            return;
+        }
+        if (rawValueCount == MAX_RAW_VALUES) {
+            switchToCounts();
+            addToCounts(value, 1);
+            return;
+        }
+        if (rawValueCount == rawValues.length) {
+            rawValues = Arrays.copyOf(rawValues, Math.min(rawValueCount * 2, MAX_RAW_VALUES));
+        }
+        rawValues[rawValueCount++] = value;
+        rawValuesSorted = false;
+    }
+
+    public long getValueAtPercentile(double percentile) {
+        return getValuesAtPercentiles(percentile)[0];
+    }
+
+    // all percentiles are computed in a single pass
+    public long[] getValuesAtPercentiles(double... percentiles) {
+        double[] sortedPercentiles = percentiles.clone();
+        Arrays.sort(sortedPercentiles);
+        long[] sortedValues = new long[sortedPercentiles.length];
+        if (useCounts) {
+            getValuesAtPercentilesFromCounts(sortedPercentiles, sortedValues);
+        } else {
+            getValuesAtPercentilesFromRawValues(sortedPercentiles, sortedValues);
+        }
+        long[] values = new long[percentiles.length];
+        for (int i = 0; i < percentiles.length; i++) {
+            values[i] = sortedValues[Arrays.binarySearch(sortedPercentiles, percentiles[i])];
+        }
+        return values;
+    }
+
+    public void reset() {
+        rawValueCount = 0;
+        if (maxIndex != -1) {
+            Arrays.fill(counts, minIndex, maxIndex + 1, 0);
+        }
+        useCounts = false;
+        totalCount = 0;
+        minIndex = Integer.MAX_VALUE;
+        maxIndex = -1;
+    }
+
+    // this is consistent with LazyHistogram.getValueAtPercentile()
+    private void getValuesAtPercentilesFromRawValues(double[] percentiles, long[] values) {
+        if (rawValueCount == 0) {
+            // this is consistent with HdrHistogram behavior
+            return;
+        }
+        if (!rawValuesSorted) {
+            Arrays.sort(rawValues, 0, rawValueCount);
+            rawValuesSorted = true;
+        }
+        for (int i = 0; i < percentiles.length; i++) {
+            double percentile = percentiles[i];
+            if (percentile == 0) {
+                // support "0th" percentile to mean the smallest tracked percentile
+                values[i] = rawValues[0];
+            } else {
+                values[i] = rawValues[(int) Math.ceil(rawValueCount * percentile / 100) - 1];
+            }
+        }
+    }
+
+    // this is consistent with AbstractHistogram.getValueAtPercentile()
+    private void getValuesAtPercentilesFromCounts(double[] percentiles, long[] values) {
+        int index = minIndex;
+        long totalToCurrentIndex = 0;
+        for (int i = 0; i < percentiles.length; i++) {
+            double percentile = percentiles[i];
+            double requestedPercentile = Math.min(
+                    Math.max(Math.nextAfter(percentile, Double.NEGATIVE_INFINITY), 0), 100);
+            long countAtPercentile =
+                    Math.max((long) Math.ceil(requestedPercentile * totalCount / 100), 1);
+            // counts before index have already been added to totalToCurrentIndex
+            if (totalToCurrentIndex >= countAtPercentile) {
+                values[i] = getEquivalentValue(index - 1, percentile);
+                continue;
+            }
+            while (index <= maxIndex) {
+                totalToCurrentIndex += counts[index++];
+                if (totalToCurrentIndex >= countAtPercentile) {
+                    values[i] = getEquivalentValue(index - 1, percentile);
+                    break;
+                }
+            }
+            // otherwise leave as 0, same as HdrHistogram (only possible when totalCount is 0)
+        }
+    }
+
+    // returns false if the encoded histogram is not compatible with the counts array layout
+    private boolean mergeEncodedCounts(ByteBuffer buffer) {
+        int start = buffer.position();
+        if (buffer.remaining() < ENCODING_HEADER_SIZE) {
+            return false;
+        }
+        int cookie = buffer.getInt();
+        if ((cookie & ~0xf0) != V2_ENCODING_COOKIE_BASE) {
+            return false;
+        }
+        int payloadLength = buffer.getInt();
+        int normalizingIndexOffset = buffer.getInt();
+        int significantDigits = buffer.getInt();
+        long lowestDiscernibleValue = buffer.getLong();
+        buffer.getLong(); // highestTrackableValue
+        buffer.getDouble(); // integerToDoubleValueConversionRatio
+        if (normalizingIndexOffset != 0 || significantDigits != SIGNIFICANT_DIGITS
+                || lowestDiscernibleValue != LOWEST_DISCERNIBLE_VALUE
+                || payloadLength > buffer.remaining()) {
+            buffer.position(start);
+            return false;
+        }
+        int end = buffer.position() + payloadLength;
+        int index = 0;
+        while (buffer.position() < end) {
+            long count = getZigZagLong(buffer);
+            if (count < 0) {
+                // run of zero counts
+                index += (int) -count;
+            } else {
+                if (count != 0) {
+                    addToCountsAtIndex(index, count);
+                }
+                index++;
+            }
+        }
+        return true;
+    }
+
+    // fallback for encoded histograms that were not created by LazyHistogram
+    private void mergeDecodedHistogram(ByteBuffer buffer) {
+        Histogram histogram = Histogram.decodeFromByteBuffer(buffer, 0);
+        for (HistogramIterationValue value : histogram.recordedValues()) {
+            // same as AbstractHistogram.add() does for histograms with different bucket layouts
+            addToCounts(histogram.lowestEquivalentValue(value.getValueIteratedTo()),
+                    value.getCountAtValueIteratedTo());
+        }
+    }
+
+    private void switchToCounts() {
+        if (useCounts) {
+            return;
+        }
+        useCounts = true;
+        for (int i = 0; i < rawValueCount; i++) {
+            addToCounts(rawValues[i], 1);
+        }
+        rawValueCount = 0;
+    }
+
+    private void addToCounts(long value, long count) {
+        checkArgument(value >= 0, "negative value: %s", value);
+        addToCountsAtIndex(getCountsIndex(value), count);
+    }
+
+    private void addToCountsAtIndex(int index, long count) {
+        if (index >= counts.length) {
+            // at least double in size
+            counts = Arrays.copyOf(counts, Math.max(counts.length * 2, index + 1));
+        }
+        counts[index] += count;
+        totalCount += count;
+        if (index < minIndex) {
+            minIndex = index;
+        }
+        if (index > maxIndex) {
+            maxIndex = index;
+        }
+    }
+
+    // same as AbstractHistogram.countsArrayIndex()
+    private static int getCountsIndex(long value) {
+        int bucketIndex =
+                LEADING_ZERO_COUNT_BASE - Long.numberOfLeadingZeros(value | SUB_BUCKET_MASK);
+        int subBucketIndex = (int) (value >>> (bucketIndex + UNIT_MAGNITUDE));
+        return ((bucketIndex + 1) << SUB_BUCKET_HALF_COUNT_MAGNITUDE)
+                + (subBucketIndex - SUB_BUCKET_HALF_COUNT);
+    }
+
+    // same as AbstractHistogram.lowestEquivalentValue(valueFromIndex(index)) for 0th percentile,
+    // otherwise highestEquivalentValue(valueFromIndex(index))
+    private static long getEquivalentValue(int index, double percentile) {
+        int bucketIndex = (index >> SUB_BUCKET_HALF_COUNT_MAGNITUDE) - 1;
+        int subBucketIndex = (index & (SUB_BUCKET_HALF_COUNT - 1)) + SUB_BUCKET_HALF_COUNT;
+        if (bucketIndex < 0) {
+            subBucketIndex -= SUB_BUCKET_HALF_COUNT;
+            bucketIndex = 0;
+        }
+        long lowestEquivalentValue = ((long) subBucketIndex) << (bucketIndex + UNIT_MAGNITUDE);
+        if (percentile == 0) {
+            return lowestEquivalentValue;
+        }
+        return lowestEquivalentValue + (1L << (bucketIndex + UNIT_MAGNITUDE)) - 1;
+    }
+
+    // same as org.HdrHistogram.ZigZagEncoding.getLong() (LEB128 with a 9 byte maximum)
+    private static long getZigZagLong(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < 56; shift += 7) {
+            long b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return (value >>> 1) ^ -(value & 1);
+            }
+        }
+        value |= ((long) buffer.get()) << 56;
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2018 the original author or authors.
+ * Copyright 2015-2020 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -30,8 +30,9 @@ import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 
 public class LazyHistogram {
 
-    private static final int HISTOGRAM_SIGNIFICANT_DIGITS = 5;
-    private static final int MAX_VALUES = 1024;
+    static final long HISTOGRAM_LOWEST_DISCERNIBLE_VALUE = 1000;
+    static final int HISTOGRAM_SIGNIFICANT_DIGITS = 5;
+    static final int MAX_VALUES = 1024;
 
     private long[] values = new long[8];
     private int size;
@@ -163,7 +164,8 @@ public class LazyHistogram {
     @EnsuresNonNull("histogram")
     private void convertValuesToHistogram() {
         // tracking nanoseconds, but only at microsecond precision (to save histogram space)
-        histogram = new Histogram(1000, 2000, HISTOGRAM_SIGNIFICANT_DIGITS);
+        histogram = new Histogram(HISTOGRAM_LOWEST_DISCERNIBLE_VALUE, 2000,
+                HISTOGRAM_SIGNIFICANT_DIGITS);
         histogram.setAutoResize(true);
         for (int i = 0; i < size; i++) {
             histogram.recordValue(values[i]);
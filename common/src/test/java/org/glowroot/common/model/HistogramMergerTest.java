@@ -0,0 +1,165 @@
+/*
+ * Copyright 2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common.model;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Random;
+
+import com.google.common.collect.Lists;
+import com.google.protobuf.ByteString;
+import org.HdrHistogram.Histogram;
+import org.junit.Test;
+
+import org.glowroot.common.model.LazyHistogram.ScratchBuffer;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class HistogramMergerTest {
+
+    private static final double[] PERCENTILES =
+            {0, 0.1, 1, 25, 50, 75, 90, 95, 99, 99.9, 99.99, 100};
+
+    @Test
+    public void shouldMatchLazyHistogramForRawValues() {
+        // given
+        Random random = new Random(0);
+        List<Aggregate.Histogram> histograms = Lists.newArrayList();
+        for (int i = 0; i < 10; i++) {
+            histograms.add(createHistogram(random, 50));
+        }
+        // when
+        // then
+        assertMatchesLazyHistogram(histograms);
+    }
+
+    @Test
+    public void shouldMatchLazyHistogramForEncodedHistograms() {
+        // given
+        Random random = new Random(0);
+        List<Aggregate.Histogram> histograms = Lists.newArrayList();
+        for (int i = 0; i < 20; i++) {
+            // mix of raw values and encoded histograms
+            histograms.add(createHistogram(random, i % 3 == 0 ? 10 : 5000));
+        }
+        // when
+        // then
+        assertMatchesLazyHistogram(histograms);
+    }
+
+    @Test
+    public void shouldMatchLazyHistogramWhenRawValuesOverflow() {
+        // given
+        Random random = new Random(0);
+        List<Aggregate.Histogram> histograms = Lists.newArrayList();
+        for (int i = 0; i < 30; i++) {
+            histograms.add(createHistogram(random, 100));
+        }
+        // when
+        // then
+        assertMatchesLazyHistogram(histograms);
+    }
+
+    @Test
+    public void shouldMergeHistogramWithDifferentLayout() {
+        // given
+        Histogram histogram = new Histogram(1, 2000, 2);
+        histogram.setAutoResize(true);
+        histogram.recordValue(12345);
+        histogram.recordValue(9876543);
+        ByteBuffer buffer = ByteBuffer.allocate(histogram.getNeededByteBufferCapacity());
+        histogram.encodeIntoByteBuffer(buffer);
+        buffer.flip();
+        Aggregate.Histogram proto = Aggregate.Histogram.newBuilder()
+                .setEncodedBytes(ByteString.copyFrom(buffer))
+                .build();
+        LazyHistogram lazyHistogram = new LazyHistogram();
+        lazyHistogram.merge(proto);
+        // when
+        HistogramMerger merger = new HistogramMerger();
+        merger.merge(proto);
+        // then
+        for (double percentile : PERCENTILES) {
+            assertThat(merger.getValueAtPercentile(percentile))
+                    .isEqualTo(lazyHistogram.getValueAtPercentile(percentile));
+        }
+    }
+
+    @Test
+    public void shouldResetAndReuse() {
+        // given
+        Random random = new Random(0);
+        HistogramMerger merger = new HistogramMerger();
+        merger.merge(createHistogram(random, 5000));
+        Aggregate.Histogram histogram = createHistogram(random, 5000);
+        LazyHistogram lazyHistogram = new LazyHistogram(histogram);
+        // when
+        merger.reset();
+        merger.merge(histogram);
+        // then
+        for (double percentile : PERCENTILES) {
+            assertThat(merger.getValueAtPercentile(percentile))
+                    .isEqualTo(lazyHistogram.getValueAtPercentile(percentile));
+        }
+    }
+
+    @Test
+    public void shouldReturnValuesInRequestedOrder() {
+        // given
+        HistogramMerger merger = new HistogramMerger();
+        for (int i = 1; i <= 100; i++) {
+            merger.add(i);
+        }
+        // when
+        long[] values = merger.getValuesAtPercentiles(99, 50, 99, 0);
+        // then
+        assertThat(values).containsExactly(99, 50, 99, 1);
+    }
+
+    @Test
+    public void shouldReturnZeroWhenEmpty() {
+        // given
+        HistogramMerger merger = new HistogramMerger();
+        // when
+        // then
+        assertThat(merger.getValueAtPercentile(50)).isZero();
+        merger.merge(Aggregate.Histogram.getDefaultInstance());
+        assertThat(merger.getValueAtPercentile(50)).isZero();
+    }
+
+    private static void assertMatchesLazyHistogram(List<Aggregate.Histogram> histograms) {
+        LazyHistogram lazyHistogram = new LazyHistogram();
+        HistogramMerger merger = new HistogramMerger();
+        for (Aggregate.Histogram histogram : histograms) {
+            lazyHistogram.merge(histogram);
+            merger.merge(histogram);
+        }
+        long[] values = merger.getValuesAtPercentiles(PERCENTILES);
+        for (int i = 0; i < PERCENTILES.length; i++) {
+            assertThat(values[i]).isEqualTo(lazyHistogram.getValueAtPercentile(PERCENTILES[i]));
+        }
+    }
+
+    private static Aggregate.Histogram createHistogram(Random random, int count) {
+        LazyHistogram lazyHistogram = new LazyHistogram();
+        for (int i = 0; i < count; i++) {
+            // log-uniform from 1 microsecond to 100 seconds
+            lazyHistogram.add((long) Math.pow(10, 3 + random.nextDouble() * 8));
+        }
+        return lazyHistogram.toProto(new ScratchBuffer());
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2019 the original author or authors.
+ * Copyright 2015-2020 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -25,7 +25,7 @@ import org.glowroot.common.live.ImmutableAggregateQuery;
 import org.glowroot.common.live.LiveAggregateRepository.OverviewAggregate;
 import org.glowroot.common.live.LiveAggregateRepository.PercentileAggregate;
 import org.glowroot.common.live.LiveAggregateRepository.ThroughputAggregate;
-import org.glowroot.common.model.LazyHistogram;
+import org.glowroot.common.model.HistogramMerger;
 import org.glowroot.common2.repo.AggregateRepository;
 import org.glowroot.common2.repo.GaugeValueRepository;
 import org.glowroot.common2.repo.ImmutableTraceQuery;
@@ -102,7 +102,7 @@ class MetricService {
         if (aggregates.isEmpty()) {
             return null;
         }
-        LazyHistogram durationNanosHistogram = new LazyHistogram();
+        HistogramMerger durationNanosHistogram = new HistogramMerger();
         for (PercentileAggregate aggregate : aggregates) {
             durationNanosHistogram.merge(aggregate.durationNanosHistogram());
         }
@@ -216,6 +216,9 @@ glowroot.controller('ConfigInstrumentationListCtrl', [
             var data = response.data;
             if (data.classes) {
               var msg = 're-transformed ' + data.classes + ' class' + (data.classes > 1 ? 'es' : '');
+              if (data.batches > 1) {
+                msg += ' in ' + data.batches + ' batches, longest batch ' + data.maxBatchMillis + ' ms';
+              }
               deferred.resolve('Success (' + msg + ')');
             } else {
               deferred.resolve('Success (no classes needed re-transforming)');
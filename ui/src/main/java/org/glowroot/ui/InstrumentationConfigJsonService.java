@@ -1,5 +1,5 @@
 /*
- * Copyright 2013-2019 the original author or authors.
+ * Copyright 2013-2020 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -46,9 +46,11 @@ import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.Instrumenta
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.InstrumentationConfig.MethodModifier;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.GlobalMeta;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.MethodSignature;
+import org.glowroot.wire.api.model.DownstreamServiceOuterClass.ReweaveResponse;
 import org.glowroot.wire.api.model.Proto.OptionalInt32;
 
 import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 
 @JsonService
 class InstrumentationConfigJsonService {
@@ -222,8 +224,14 @@ class InstrumentationConfigJsonService {
     @POST(path = "/backend/config/reweave", permission = "agent:config:edit:instrumentation")
     String reweave(@BindAgentId String agentId) throws Exception {
         checkNotNull(liveWeavingService); // agent:config:edit is disabled in offline viewer
-        int count = liveWeavingService.reweave(agentId);
-        return "{\"classes\":" + count + "}";
+        ReweaveResponse response = liveWeavingService.reweave(agentId);
+        long maxBatchDurationNanos = 0;
+        for (long batchDurationNanos : response.getBatchDurationNanosList()) {
+            maxBatchDurationNanos = Math.max(maxBatchDurationNanos, batchDurationNanos);
+        }
+        return "{\"classes\":" + response.getClassUpdateCount() + ",\"batches\":"
+                + response.getBatchDurationNanosCount() + ",\"maxBatchMillis\":"
+                + NANOSECONDS.toMillis(maxBatchDurationNanos) + "}";
     }
 
     private String getInstrumentationConfigInternal(String agentId, String version)
@@ -1,5 +1,5 @@
 /*
- * Copyright 2016-2019 the original author or authors.
+ * Copyright 2016-2020 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -51,7 +51,7 @@ import org.glowroot.common.live.LiveAggregateRepository.AggregateQuery;
 import org.glowroot.common.live.LiveAggregateRepository.OverviewAggregate;
 import org.glowroot.common.live.LiveAggregateRepository.PercentileAggregate;
 import org.glowroot.common.live.LiveAggregateRepository.ThroughputAggregate;
-import org.glowroot.common.model.LazyHistogram;
+import org.glowroot.common.model.HistogramMerger;
 import org.glowroot.common.util.CaptureTimes;
 import org.glowroot.common.util.ObjectMappers;
 import org.glowroot.common2.repo.ActiveAgentRepository;
@@ -396,23 +396,22 @@ class ReportJsonService {
                     .captureTime(lastRollupCaptureTime)
                     .build());
         }
+        HistogramMerger durationNanosHistogram = new HistogramMerger();
+        HistogramMerger mergedHistogram = new HistogramMerger();
         PercentileAggregate priorAggregate = null;
         for (PercentileAggregate aggregate : aggregates) {
             if (priorAggregate != null
                     && aggregate.captureTime() - priorAggregate.captureTime() > gapMillis) {
                 dataSeries.addNull();
             }
-            LazyHistogram durationNanosHistogram =
-                    new LazyHistogram(aggregate.durationNanosHistogram());
+            durationNanosHistogram.reset();
+            durationNanosHistogram.merge(aggregate.durationNanosHistogram());
             dataSeries.add(getIntervalAverage(rollup, timeZone, aggregate.captureTime()),
                     durationNanosHistogram.getValueAtPercentile(percentile)
                             / NANOSECONDS_PER_MILLISECOND);
+            mergedHistogram.merge(durationNanosHistogram);
             priorAggregate = aggregate;
         }
-        LazyHistogram mergedHistogram = new LazyHistogram();
-        for (PercentileAggregate aggregate : aggregates) {
-            mergedHistogram.merge(aggregate.durationNanosHistogram());
-        }
         dataSeries.setOverall(
                 mergedHistogram.getValueAtPercentile(percentile) / NANOSECONDS_PER_MILLISECOND);
         return dataSeries;
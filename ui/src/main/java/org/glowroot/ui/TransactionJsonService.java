@@ -1,5 +1,5 @@
 /*
- * Copyright 2011-2019 the original author or authors.
+ * Copyright 2011-2020 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -41,8 +41,8 @@ import org.glowroot.common.live.LiveAggregateRepository.OverviewAggregate;
 import org.glowroot.common.live.LiveAggregateRepository.PercentileAggregate;
 import org.glowroot.common.live.LiveAggregateRepository.SummaryQuery;
 import org.glowroot.common.live.LiveAggregateRepository.ThroughputAggregate;
+import org.glowroot.common.model.HistogramMerger;
 import org.glowroot.common.model.ImmutableOverallSummary;
-import org.glowroot.common.model.LazyHistogram;
 import org.glowroot.common.model.MutableProfile;
 import org.glowroot.common.model.MutableQuery;
 import org.glowroot.common.model.MutableServiceCall;
@@ -609,7 +609,9 @@ class TransactionJsonService {
 
         long transactionCount = 0;
         double totalDurationNanos = 0;
-        LazyHistogram mergedHistogram = new LazyHistogram();
+        double[] percentileArray = Doubles.toArray(percentiles);
+        HistogramMerger durationNanosHistogram = new HistogramMerger();
+        HistogramMerger mergedHistogram = new HistogramMerger();
 
         PercentileAggregate priorPercentileAggregate = null;
         for (PercentileAggregate percentileAggregate : percentileAggregates) {
@@ -622,14 +624,12 @@ class TransactionJsonService {
                 dataSeriesHelper.addGapIfNeeded(priorPercentileAggregate.captureTime(), captureTime,
                         dataSeriesList, null);
             }
-            LazyHistogram durationNanosHistogram =
-                    new LazyHistogram(percentileAggregate.durationNanosHistogram());
+            durationNanosHistogram.reset();
+            durationNanosHistogram.merge(percentileAggregate.durationNanosHistogram());
+            long[] values = durationNanosHistogram.getValuesAtPercentiles(percentileArray);
             for (int i = 0; i < percentiles.size(); i++) {
-                DataSeries dataSeries = dataSeriesList.get(i);
-                double percentile = percentiles.get(i);
                 // convert to milliseconds
-                dataSeries.add(captureTime, durationNanosHistogram.getValueAtPercentile(percentile)
-                        / NANOSECONDS_PER_MILLISECOND);
+                dataSeriesList.get(i).add(captureTime, values[i] / NANOSECONDS_PER_MILLISECOND);
             }
             // TODO more precise aggregate when from/to not on rollup grid
             if (captureTime > request.from() && captureTime <= request.to()) {
@@ -645,10 +645,11 @@ class TransactionJsonService {
         }
 
         List<PercentileValue> percentileValues = Lists.newArrayList();
-        for (double percentile : percentiles) {
+        long[] mergedValues = mergedHistogram.getValuesAtPercentiles(percentileArray);
+        for (int i = 0; i < percentiles.size(); i++) {
             percentileValues.add(ImmutablePercentileValue.of(
-                    Utils.getPercentileWithSuffix(percentile) + " percentile",
-                    mergedHistogram.getValueAtPercentile(percentile)));
+                    Utils.getPercentileWithSuffix(percentiles.get(i)) + " percentile",
+                    mergedValues[i]));
         }
 
         return ImmutablePercentileData.builder()